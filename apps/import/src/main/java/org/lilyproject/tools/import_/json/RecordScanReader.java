@@ -107,6 +107,8 @@ public class RecordScanReader implements EntityReader<RecordScan> {
 
         scan.setCacheBlocks(JsonUtil.getBoolean(node, "cacheBlocks", scan.getCacheBlocks()));
 
+        scan.setLazyFieldDecoding(JsonUtil.getBoolean(node, "lazyFieldDecoding", scan.getLazyFieldDecoding()));
+
         return scan;
     }
 
@@ -84,6 +84,8 @@ public class RecordScanWriter implements EntityWriter<RecordScan> {
 
         node.put("cacheBlocks", scan.getCacheBlocks());
 
+        node.put("lazyFieldDecoding", scan.getLazyFieldDecoding());
+
         return node;
     }
 }
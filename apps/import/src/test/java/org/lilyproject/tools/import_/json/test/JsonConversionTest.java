@@ -198,6 +198,15 @@ public class JsonConversionTest {
         assertEquals(500, parsedScan.getCaching());
     }
 
+    @Test
+    public void testScanLazyFieldDecoding() throws Exception {
+        RecordScan scan = new RecordScan();
+        assertEquals(false, scanFromBytes(scanToBytes(scan)).getLazyFieldDecoding());
+
+        scan.setLazyFieldDecoding(true);
+        assertEquals(true, scanFromBytes(scanToBytes(scan)).getLazyFieldDecoding());
+    }
+
     @Test
     public void testScanRecordTypeFilter() throws Exception {
         QName recordType = new QName("ns", "rt");
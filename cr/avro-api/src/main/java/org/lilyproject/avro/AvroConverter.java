@@ -39,6 +39,7 @@ import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.IdentityRecordStack;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordId;
@@ -710,4 +711,54 @@ public class AvroConverter {
         }
         return recordIds;
     }
+
+    public List<ByteBuffer> convertRecordIds(List<RecordId> recordIds) {
+        List<ByteBuffer> avroRecordIds = new ArrayList<ByteBuffer>(recordIds.size());
+        for (RecordId recordId : recordIds) {
+            avroRecordIds.add(convert(recordId));
+        }
+        return avroRecordIds;
+    }
+
+    public List<RecordId> convertAvroRecordIdList(List<ByteBuffer> avroRecordIds, LRepository repository) {
+        List<RecordId> recordIds = new ArrayList<RecordId>(avroRecordIds.size());
+        for (ByteBuffer avroRecordId : avroRecordIds) {
+            recordIds.add(convertAvroRecordId(avroRecordId, repository));
+        }
+        return recordIds;
+    }
+
+    public List<AvroMutationResult> convertMutationResults(List<MutationResult> results, LRepository repository)
+            throws AvroRepositoryException, AvroInterruptedException, RepositoryException, InterruptedException {
+        List<AvroMutationResult> avroResults = new ArrayList<AvroMutationResult>(results.size());
+        for (MutationResult result : results) {
+            AvroMutationResult avroResult = new AvroMutationResult();
+            avroResult.setRecordId(convert(result.getRecordId()));
+            if (result.getRecord() != null) {
+                avroResult.setRecord(convert(result.getRecord(), repository));
+            }
+            if (result.getException() != null) {
+                avroResult.setException(convert(result.getException()));
+            }
+            avroResults.add(avroResult);
+        }
+        return avroResults;
+    }
+
+    public List<MutationResult> convertAvroMutationResults(List<AvroMutationResult> avroResults,
+            LRepository repository) throws RepositoryException, InterruptedException {
+        List<MutationResult> results = new ArrayList<MutationResult>(avroResults.size());
+        for (AvroMutationResult avroResult : avroResults) {
+            RecordId recordId = avroResult.getRecordId() == null ? null :
+                    convertAvroRecordId(avroResult.getRecordId(), repository);
+            if (avroResult.getException() != null) {
+                results.add(MutationResult.failure(recordId, convert(avroResult.getException())));
+            } else {
+                Record record = avroResult.getRecord() == null ? null :
+                        convertRecord(avroResult.getRecord(), repository);
+                results.add(MutationResult.success(recordId, record));
+            }
+        }
+        return results;
+    }
 }
@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.google.common.collect.Sets;
 import org.apache.hadoop.conf.Configuration;
@@ -59,6 +60,7 @@ import org.lilyproject.util.exception.ExceptionUtil;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
 import org.lilyproject.util.hbase.LilyHBaseSchema;
+import org.lilyproject.util.hbase.LocalHTable;
 import org.lilyproject.util.hbase.RepoAndTableUtil;
 import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.RecordEvent.Type;
@@ -69,9 +71,15 @@ import org.python.google.common.collect.Lists;
 /**
  * Writes Lily records in bulk to HBase. Also provides methods for creating HBase {@code Put} or
  * {@code KeyValue} object for alternative methods of writing (e.g. via MapReduce).
+ *
+ * <p>A BulkIngester can be shared by multiple threads: they use the same ZooKeeper connection, schema
+ * cache and repository, only the buffer of puts is kept per thread.</p>
  */
 public class BulkIngester implements Closeable {
 
+    /**
+     * The default number of puts which is buffered by each thread, see {@link #setFlushSize}.
+     */
     public static final int PUT_BUFFER_SIZE = 1000;
 
     /**
@@ -85,7 +93,10 @@ public class BulkIngester implements Closeable {
     private RecordFactory recordFactory;
     private HTableInterface recordTable;
     private FieldTypes fieldTypes;
-    private List<Put> putBuffer = Lists.newArrayListWithCapacity(PUT_BUFFER_SIZE);
+    private volatile int flushSize = PUT_BUFFER_SIZE;
+    private final ThreadLocal<PutBuffer> threadPutBuffer = new ThreadLocal<PutBuffer>();
+    private final List<PutBuffer> putBuffers = new CopyOnWriteArrayList<PutBuffer>();
+    private final BulkIngesterMetrics metrics;
 
     public boolean isBulkMode() {
         return bulkMode;
@@ -164,6 +175,27 @@ public class BulkIngester implements Closeable {
         this.recordTable = recordTable;
         this.fieldTypes = hbaseRepo.getTypeManager().getFieldTypesSnapshot();
         this.bulkMode = bulkMode;
+        this.metrics = new BulkIngesterMetrics("bulkIngester_" + hbaseRepo.getRepositoryName() + "_"
+                + hbaseRepo.getTableName());
+    }
+
+    /**
+     * Sets the number of puts which each thread buffers before writing them to HBase, by default
+     * {@link #PUT_BUFFER_SIZE}.
+     */
+    public void setFlushSize(int flushSize) {
+        if (flushSize < 1) {
+            throw new IllegalArgumentException("Flush size should be at least 1, got " + flushSize);
+        }
+        this.flushSize = flushSize;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public BulkIngesterMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -189,9 +221,8 @@ public class BulkIngester implements Closeable {
      * When in bulk mode, write a single record directly to HBase, circumventing any indexing or other secondary actions
      * that are performed when using the standard Lily API.
      * <p>
-     * <b>WARNING:</b>This method is not thread-safe.
-     * <p>
-     * Puts are first written to a buffer, which is flushed when it reaches {@link BulkIngester#PUT_BUFFER_SIZE}.
+     * Puts are first written to a buffer of the calling thread, which is flushed when it reaches the
+     * {@link #setFlushSize flush size}.
      *
      * When not in bulk mode, this merely delegates to createOrUpdate on the Lily HBase repository.
      *
@@ -199,24 +230,78 @@ public class BulkIngester implements Closeable {
      */
     public void write(Record record) throws InterruptedException, RepositoryException, IOException {
         if (bulkMode) {
-            putBuffer.add(buildPut(record));
-            if (putBuffer.size() == PUT_BUFFER_SIZE) {
-                flush();
+            List<Put> puts = getPutBuffer().add(buildPut(record), flushSize);
+            if (puts != null) {
+                writePuts(puts);
             }
         } else {
             lilyClient.getRepository(hbaseRepo.getRepositoryName()).getTable(hbaseRepo.getTableName()).createOrUpdate(record);
+            metrics.reportRecords(1);
         }
     }
 
     /**
-     * Flush buffered Puts to the Lily record table.
-     * <p>
-     * This method is not thread-safe.
+     * Flush the buffered Puts of all threads to the Lily record table.
      */
     public void flush() throws IOException {
-        if (!putBuffer.isEmpty()) {
-            recordTable.put(Lists.newArrayList(putBuffer));
-            putBuffer.clear();
+        for (PutBuffer putBuffer : putBuffers) {
+            List<Put> puts = putBuffer.drain();
+            if (!puts.isEmpty()) {
+                writePuts(puts);
+            }
+        }
+    }
+
+    private PutBuffer getPutBuffer() {
+        PutBuffer putBuffer = threadPutBuffer.get();
+        if (putBuffer == null) {
+            putBuffer = new PutBuffer();
+            threadPutBuffer.set(putBuffer);
+            putBuffers.add(putBuffer);
+        }
+        return putBuffer;
+    }
+
+    /**
+     * Writes puts (as built by {@link #buildPut}) directly to the Lily record table, without buffering them.
+     */
+    public void writePuts(List<Put> puts) throws IOException {
+        long before = System.currentTimeMillis();
+        recordTable.put(puts);
+        metrics.reportFlush(System.currentTimeMillis() - before);
+        metrics.reportRecords(puts.size());
+    }
+
+    /**
+     * Returns the encoded name of the region of the record table which contains the given row, or null if
+     * the region location is not available. The location is served from the connection's region cache.
+     */
+    public String getRegionName(byte[] row) throws IOException {
+        if (recordTable instanceof LocalHTable) {
+            return ((LocalHTable)recordTable).getRegionLocation(row).getRegionInfo().getEncodedName();
+        }
+        return null;
+    }
+
+    /**
+     * The puts buffered by one thread. The lock is only contended when the buffers of all threads are
+     * flushed, the writes to HBase happen outside of it.
+     */
+    private static final class PutBuffer {
+        private List<Put> puts = Lists.newArrayList();
+
+        /**
+         * Adds the put, and returns the buffered puts if the buffer is full, null otherwise.
+         */
+        synchronized List<Put> add(Put put, int flushSize) {
+            puts.add(put);
+            return puts.size() >= flushSize ? drain() : null;
+        }
+
+        synchronized List<Put> drain() {
+            List<Put> result = puts;
+            puts = Lists.newArrayList();
+            return result;
         }
     }
 
@@ -237,7 +322,7 @@ public class BulkIngester implements Closeable {
         }
         Put put = hbaseRepo.buildPut(record, 1L, fieldTypes, recordEvent, Sets.<BlobReference>newHashSet(),
                 Sets.<BlobReference>newHashSet(), 1L);
-        put.add(LilyHBaseSchema.RecordCf.DATA.bytes, LilyHBaseSchema.RecordColumn.PAYLOAD.bytes, recordEvent.toJsonBytes());
+        put.add(LilyHBaseSchema.RecordCf.DATA.bytes, LilyHBaseSchema.RecordColumn.PAYLOAD.bytes, recordEvent.toPayloadBytes());
         return put;
     }
 
@@ -275,6 +360,7 @@ public class BulkIngester implements Closeable {
     @Override
     public void close() throws IOException {
         flush();
+        metrics.shutdown();
         lilyClient.close();
     }
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.bulk;
+
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+import org.lilyproject.util.hbase.metrics.MBeanUtil;
+import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
+
+/**
+ * Metrics of a {@link BulkIngester}: the number of records written (throughput) and the duration of the
+ * flushes of the put buffers.
+ *
+ * <p>Besides the usual Hadoop metrics and JMX reporting, totals are kept for the lifetime of the ingester,
+ * so that a summary can be printed at the end of an import.</p>
+ */
+public class BulkIngesterMetrics implements Updater {
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRecord metricsRecord;
+    private final MetricsContext context;
+    private final MetricsTimeVaryingLong records;
+    private final MetricsTimeVaryingRate flushes;
+    private final BulkIngesterMetricsMXBean mbean;
+    private final String recordName;
+
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicLong totalRecords = new AtomicLong();
+    private final AtomicLong totalFlushes = new AtomicLong();
+    private final AtomicLong totalFlushTime = new AtomicLong();
+    private final AtomicLong maxFlushTime = new AtomicLong();
+
+    public BulkIngesterMetrics(String recordName) {
+        this.recordName = recordName;
+        records = new MetricsTimeVaryingLong("records", registry);
+        flushes = new MetricsTimeVaryingRate("flush", registry);
+
+        context = MetricsUtil.getContext("bulkIngester");
+        metricsRecord = MetricsUtil.createRecord(context, recordName);
+        context.registerUpdater(this);
+        mbean = new BulkIngesterMetricsMXBean(this.registry);
+    }
+
+    public void shutdown() {
+        context.unregisterUpdater(this);
+        mbean.shutdown();
+    }
+
+    @Override
+    public void doUpdates(MetricsContext unused) {
+        synchronized (this) {
+          for (MetricsBase m : registry.getMetricsList()) {
+            m.pushMetric(metricsRecord);
+          }
+        }
+        metricsRecord.update();
+    }
+
+    void reportRecords(int count) {
+        records.inc(count);
+        totalRecords.addAndGet(count);
+    }
+
+    void reportFlush(long duration) {
+        flushes.inc(duration);
+        totalFlushes.incrementAndGet();
+        totalFlushTime.addAndGet(duration);
+        long max;
+        while ((max = maxFlushTime.get()) < duration && !maxFlushTime.compareAndSet(max, duration)) {
+            // retry
+        }
+    }
+
+    public long getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    public long getTotalFlushes() {
+        return totalFlushes.get();
+    }
+
+    /**
+     * Average number of records written per second, since the creation of the ingester.
+     */
+    public double getRecordsPerSecond() {
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        return totalRecords.get() * 1000d / duration;
+    }
+
+    /**
+     * Average duration of a flush, in milliseconds.
+     */
+    public double getAverageFlushTime() {
+        long count = totalFlushes.get();
+        return count == 0 ? 0 : (double)totalFlushTime.get() / count;
+    }
+
+    /**
+     * Longest duration of a flush, in milliseconds.
+     */
+    public long getMaxFlushTime() {
+        return maxFlushTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records written (%.1f/s), %d flushes (avg %.1f ms, max %d ms)", getTotalRecords(),
+                getRecordsPerSecond(), getTotalFlushes(), getAverageFlushTime(), getMaxFlushTime());
+    }
+
+    public class BulkIngesterMetricsMXBean extends MetricsDynamicMBeanBase {
+        private final ObjectName mbeanName;
+
+        public BulkIngesterMetricsMXBean(MetricsRegistry registry) {
+            super(registry, "Lily Bulk Ingester");
+
+            mbeanName = MBeanUtil.registerMBean("Bulk Ingester", recordName, this);
+        }
+
+        public void shutdown() {
+            if (mbeanName != null) {
+                MBeanUtil.unregisterMBean(mbeanName);
+            }
+        }
+    }
+}
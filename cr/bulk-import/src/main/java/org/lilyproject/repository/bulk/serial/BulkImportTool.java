@@ -27,6 +27,7 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.lilyproject.cli.OptionUtil;
 import org.lilyproject.repository.bulk.AbstractBulkImportCliTool;
 import org.lilyproject.repository.bulk.BulkIngester;
 import org.lilyproject.repository.bulk.LineMapper;
@@ -45,8 +46,14 @@ public class BulkImportTool extends AbstractBulkImportCliTool {
     private final Log log = LogFactory.getLog(BulkImportTool.class);
 
     private Option dryRunOption;
+    private Option threadsOption;
+    private Option flushSizeOption;
+    private Option deadLetterOption;
 
     private boolean dryRun;
+    private int threads;
+    private int flushSize;
+    private String deadLetterPath;
 
     @SuppressWarnings("static-access")
     @Override
@@ -55,8 +62,33 @@ public class BulkImportTool extends AbstractBulkImportCliTool {
                 OptionBuilder.withDescription("Only print out the created records without writing them to Lily").withLongOpt(
                         "dryrun").create('d');
 
+        threadsOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of threads of each stage of the import pipeline (default: 10)")
+                .withLongOpt("threads")
+                .create('w');
+
+        flushSizeOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of records each thread buffers before writing them to HBase (default: "
+                        + BulkIngester.PUT_BUFFER_SIZE + ")")
+                .withLongOpt("flushsize")
+                .create('f');
+
+        deadLetterOption = OptionBuilder
+                .withArgName("file")
+                .hasArg()
+                .withDescription("File to which lines that fail to import are written (default: input file + .failed)")
+                .withLongOpt("deadletter")
+                .create('l');
+
         List<Option> options = super.getOptions();
         options.add(dryRunOption);
+        options.add(threadsOption);
+        options.add(flushSizeOption);
+        options.add(deadLetterOption);
         return options;
     }
 
@@ -68,6 +100,9 @@ public class BulkImportTool extends AbstractBulkImportCliTool {
         }
 
         dryRun = cmd.hasOption(dryRunOption.getOpt());
+        threads = OptionUtil.getIntOption(cmd, threadsOption, 10);
+        flushSize = OptionUtil.getIntOption(cmd, flushSizeOption, BulkIngester.PUT_BUFFER_SIZE);
+        deadLetterPath = OptionUtil.getStringOption(cmd, deadLetterOption, null);
         return 0;
     }
 
@@ -78,41 +113,67 @@ public class BulkImportTool extends AbstractBulkImportCliTool {
 
     @Override
     public int run(CommandLine cmd) throws Exception {
-        BulkIngester bulkIngester =
+        final BulkIngester bulkIngester =
                 BulkIngester.newBulkIngester(zkConnectionString, 30000, outputRepository, outputTable, bulkMode);
+        bulkIngester.setFlushSize(flushSize);
 
         BufferedReader bufferedReader = new BufferedReader(new FileReader(inputPath));
-        RecordWriter recordWriter;
-        if (dryRun) {
-            recordWriter = new DebugRecordWriter(System.out);
-        } else {
-            recordWriter = new ThreadedRecordWriter(zkConnectionString, 10, outputRepository, outputTable, bulkMode);
-        }
         long start = System.currentTimeMillis();
         int numLines = 0;
+        long numRecords;
 
         try {
-            LineMapper lineMapper = new JythonLineMapper(Files.toString(new File(pythonMapperPath), Charsets.UTF_8),
-                    pythonSymbol);
-            LineMappingContext mappingContext = new LineMappingContext(bulkIngester, recordWriter);
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                lineMapper.mapLine(line, mappingContext);
-                numLines++;
+            final String pythonCode = Files.toString(new File(pythonMapperPath), Charsets.UTF_8);
+            if (dryRun) {
+                RecordWriter recordWriter = new DebugRecordWriter(System.out);
+                LineMapper lineMapper = new JythonLineMapper(pythonCode, pythonSymbol);
+                LineMappingContext mappingContext = new LineMappingContext(bulkIngester, recordWriter);
+                String line;
+                try {
+                    while ((line = bufferedReader.readLine()) != null) {
+                        lineMapper.mapLine(line, mappingContext);
+                        numLines++;
+                    }
+                } catch (PyException pe) {
+                    pe.printStackTrace();    // Print the Jython-native stack trace
+                    log.error("Exception encountered in Python code", pe);
+                    return -1;
+                } finally {
+                    recordWriter.close();
+                }
+                return 0;
+            }
+
+            // Each thread of the map stage gets its own interpreter
+            ImportPipeline pipeline = new ImportPipeline(bulkIngester, new ImportPipeline.LineMapperFactory() {
+                @Override
+                public LineMapper newLineMapper() {
+                    return new JythonLineMapper(pythonCode, pythonSymbol);
+                }
+            }, threads, new File(deadLetterPath != null ? deadLetterPath : inputPath + ".failed"));
+            try {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    pipeline.submit(line);
+                    numLines++;
+                }
+            } finally {
+                pipeline.close();
+            }
+            numRecords = pipeline.getNumRecords();
+            System.out.println(pipeline.getStatus());
+            if (pipeline.getNumFailedLines() > 0) {
+                System.out.printf("%d lines failed to import, they were written to %s\n",
+                        pipeline.getNumFailedLines(), pipeline.getDeadLetterFile());
             }
-        } catch (PyException pe) {
-            pe.printStackTrace();    // Print the Jython-native stack trace
-            log.error("Exception encountered in Python code", pe);
-            return -1;
         } finally {
             bufferedReader.close();
-            recordWriter.close();
+            bulkIngester.close();
         }
+
         float duration = (System.currentTimeMillis() - start) / 1000f;
-        if (!dryRun) {
-            System.out.printf("Imported %d lines as %d records in %.2f seconds\n", numLines, recordWriter.getNumRecords(),
-                    duration);
-        }
+        System.out.printf("Imported %d lines as %d records in %.2f seconds\n", numLines, numRecords, duration);
+        System.out.println("Bulk ingester: " + bulkIngester.getMetrics());
 
         return 0;
     }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.bulk.serial;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Collects the input lines which could not be imported, in a file which has the same format as the input,
+ * so that it can be imported again after fixing the cause of the failures.
+ *
+ * <p>The file is only created when the first line is added.</p>
+ */
+class DeadLetterFile {
+    private final Log log = LogFactory.getLog(getClass());
+    private final File file;
+    private Writer writer;
+    private long count;
+
+    DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    synchronized void add(String line) {
+        count++;
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+            }
+            writer.write(line);
+            writer.write('\n');
+        } catch (IOException e) {
+            log.error("Error writing line to dead-letter file " + file + ": " + line, e);
+        }
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.bulk.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Put;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.bulk.BulkIngester;
+import org.lilyproject.repository.bulk.LineMapper;
+import org.lilyproject.repository.bulk.LineMappingContext;
+import org.lilyproject.repository.bulk.RecordWriter;
+import org.lilyproject.util.exception.ExceptionUtil;
+
+/**
+ * Staged pipeline which imports lines of input into Lily, used by the serial {@link BulkImportTool}.
+ *
+ * <p>The lines supplied to {@link #submit} go through the following stages, each of them having its own threads
+ * and a bounded input queue. A stage which can't keep up blocks the stages before it, up to the caller reading
+ * the input, rather than letting work pile up in memory.</p>
+ *
+ * <ol>
+ *   <li>map: the lines are mapped to records by a {@link LineMapper}, each thread having its own mapper</li>
+ *   <li>build: the records are converted to HBase puts, which are grouped per region of the record table</li>
+ *   <li>write: the puts of one region are written to the record table, with retries</li>
+ * </ol>
+ *
+ * <p>Work is passed between the stages in batches, so there is no handoff per line or record. When the bulk
+ * ingester is not in bulk mode, the build stage writes the records through the Lily API, the write stage
+ * is then not used. The puts waiting for their region batch to fill up are bounded as well: when there are
+ * more than {@link #MAX_BUFFERED_BATCHES} batches worth of them, the largest region batch is written
+ * before it is full.</p>
+ *
+ * <p>Lines which failed to be mapped, built or written are added to a {@link DeadLetterFile}. If a line
+ * results in multiple records and only some of them failed, the line as a whole is added, once.</p>
+ *
+ * <p>If a stage thread hits an {@link Error}, the pipeline fails: the lines which are still submitted are
+ * added to the dead-letter file without being processed, and {@link #submit} and {@link #close} throw
+ * an exception.</p>
+ */
+public class ImportPipeline {
+
+    /**
+     * Creates the line mappers, one is created for every thread of the map stage.
+     */
+    public interface LineMapperFactory {
+        LineMapper newLineMapper();
+    }
+
+    static final int LINE_BATCH_SIZE = 100;
+    static final int MAX_WRITE_ATTEMPTS = 3;
+    static final long DEFAULT_WRITE_RETRY_DELAY = 1000L;
+    static final int MAX_BUFFERED_BATCHES = 10;
+    static final long STATUS_INTERVAL = 10000L;
+
+    @SuppressWarnings("rawtypes")
+    private static final List END = Collections.unmodifiableList(new ArrayList(0));
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final BulkIngester bulkIngester;
+    private final LineMapperFactory lineMapperFactory;
+    private final DeadLetterFile deadLetters;
+    private final MapStage mapStage;
+    private final BuildStage buildStage;
+    private final WriteStage writeStage;
+    private final long writeRetryDelay;
+    private final Map<String, List<Item>> regionBatches = new HashMap<String, List<Item>>();
+    private int bufferedItems;
+    private volatile Throwable fatalError;
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+    private final Thread statusReporter;
+    private List<Line> lineBatch = new ArrayList<Line>(LINE_BATCH_SIZE);
+    private long lineCount;
+    /** The numbers of the lines which were added to the dead-letter file. */
+    private final Set<Long> failedLines = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * @param threads number of threads for each of the stages
+     * @param deadLetterFile file to which lines that could not be imported are written
+     */
+    public ImportPipeline(BulkIngester bulkIngester, LineMapperFactory lineMapperFactory, int threads,
+            File deadLetterFile) {
+        this(bulkIngester, lineMapperFactory, threads, deadLetterFile, DEFAULT_WRITE_RETRY_DELAY);
+    }
+
+    /**
+     * @param writeRetryDelay milliseconds to wait before retrying a failed write, multiplied by the number of
+     *                        the failed attempt
+     */
+    public ImportPipeline(BulkIngester bulkIngester, LineMapperFactory lineMapperFactory, int threads,
+            File deadLetterFile, long writeRetryDelay) {
+        this.bulkIngester = bulkIngester;
+        this.lineMapperFactory = lineMapperFactory;
+        this.deadLetters = new DeadLetterFile(deadLetterFile);
+        this.writeRetryDelay = writeRetryDelay;
+
+        mapStage = new MapStage(threads);
+        buildStage = new BuildStage(threads);
+        writeStage = new WriteStage(threads);
+
+        mapStage.start();
+        buildStage.start();
+        writeStage.start();
+
+        statusReporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(STATUS_INTERVAL);
+                        log.info(getStatus());
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "import-status");
+        statusReporter.setDaemon(true);
+        statusReporter.start();
+    }
+
+    /**
+     * Adds a line to the pipeline. Blocks if the pipeline is full.
+     *
+     * @throws IOException if the pipeline failed
+     */
+    public void submit(String line) throws InterruptedException, IOException {
+        checkNotFailed();
+        lineBatch.add(new Line(lineCount++, line));
+        if (lineBatch.size() == LINE_BATCH_SIZE) {
+            mapStage.submit(lineBatch);
+            lineBatch = new ArrayList<Line>(LINE_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Waits until all submitted lines went through the pipeline, and stops it.
+     */
+    public void close() throws InterruptedException, IOException {
+        try {
+            if (!lineBatch.isEmpty()) {
+                mapStage.submit(lineBatch);
+                lineBatch = new ArrayList<Line>(0);
+            }
+            mapStage.finish();
+            buildStage.finish();
+            for (List<Item> batch : drainRegionBatches()) {
+                writeStage.submit(batch);
+            }
+            writeStage.finish();
+            bulkIngester.flush();
+        } finally {
+            statusReporter.interrupt();
+            deadLetters.close();
+        }
+        checkNotFailed();
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (fatalError != null) {
+            throw new IOException("Import pipeline failed", fatalError);
+        }
+    }
+
+    public long getNumRecords() {
+        return recordsWritten.get();
+    }
+
+    /**
+     * Number of lines which were added to the dead-letter file.
+     */
+    public long getNumFailedLines() {
+        return deadLetters.getCount();
+    }
+
+    public File getDeadLetterFile() {
+        return deadLetters.getFile();
+    }
+
+    /**
+     * Returns a description of the throughput and queue depth of each stage.
+     */
+    public String getStatus() {
+        return String.format("%s; %s; %s; %d records written, %d failed lines", mapStage.getStatus(),
+                buildStage.getStatus(), writeStage.getStatus(), recordsWritten.get(), deadLetters.getCount());
+    }
+
+    private void failed(Collection<Line> lines, String stage, Throwable throwable) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        log.error("Error " + stage + " " + lines.size() + " line(s), first line: " + lines.iterator().next().text,
+                throwable);
+        addDeadLetters(lines);
+    }
+
+    private void failed(Line line, String stage, Throwable throwable) {
+        failed(Collections.singletonList(line), stage, throwable);
+    }
+
+    /**
+     * Adds the lines to the dead-letter file, skipping those which were already added because another of their
+     * records failed.
+     */
+    private void addDeadLetters(Collection<Line> lines) {
+        for (Line line : lines) {
+            if (failedLines.add(line.number)) {
+                deadLetters.add(line.text);
+            }
+        }
+    }
+
+    /**
+     * A line of input, numbered in the order in which it was submitted. Identical lines are distinct lines.
+     */
+    private static final class Line {
+        final long number;
+        final String text;
+
+        Line(long number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+    }
+
+    /**
+     * A record on its way through the pipeline, together with the line it was mapped from.
+     */
+    private static final class Item {
+        final Line line;
+        final Record record;
+        Put put;
+
+        Item(Line line, Record record) {
+            this.line = line;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Adds an item to the batch of its region, and returns the batch if it reached the flush size. If too many
+     * items are buffered, the largest batch is returned instead, even when not full.
+     */
+    private List<Item> addToRegionBatch(String region, Item item) {
+        synchronized (regionBatches) {
+            List<Item> batch = regionBatches.get(region);
+            if (batch == null) {
+                batch = new ArrayList<Item>();
+                regionBatches.put(region, batch);
+            }
+            batch.add(item);
+            bufferedItems++;
+
+            int flushSize = bulkIngester.getFlushSize();
+            if (batch.size() < flushSize && bufferedItems > flushSize * MAX_BUFFERED_BATCHES) {
+                region = null;
+                for (Map.Entry<String, List<Item>> entry : regionBatches.entrySet()) {
+                    if (region == null || entry.getValue().size() > batch.size()) {
+                        region = entry.getKey();
+                        batch = entry.getValue();
+                    }
+                }
+            } else if (batch.size() < flushSize) {
+                return null;
+            }
+            regionBatches.remove(region);
+            bufferedItems -= batch.size();
+            return batch;
+        }
+    }
+
+    private Collection<List<Item>> drainRegionBatches() {
+        synchronized (regionBatches) {
+            List<List<Item>> batches = new ArrayList<List<Item>>(regionBatches.values());
+            regionBatches.clear();
+            bufferedItems = 0;
+            return batches;
+        }
+    }
+
+    /**
+     * Collects the records written by a line mapper.
+     */
+    private static final class CollectingRecordWriter implements RecordWriter {
+        private final List<Record> records = new ArrayList<Record>();
+        private long numRecords;
+
+        @Override
+        public void write(Record record) {
+            records.add(record);
+            numRecords++;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public long getNumRecords() {
+            return numRecords;
+        }
+    }
+
+    private class MapStage extends Stage<Line> {
+        private final ThreadLocal<LineMapper> lineMappers = new ThreadLocal<LineMapper>();
+
+        MapStage(int threads) {
+            super("map", threads);
+        }
+
+        @Override
+        protected void process(List<Line> lines) throws InterruptedException {
+            LineMapper lineMapper = lineMappers.get();
+            if (lineMapper == null) {
+                lineMapper = lineMapperFactory.newLineMapper();
+                lineMappers.set(lineMapper);
+            }
+
+            CollectingRecordWriter collector = new CollectingRecordWriter();
+            LineMappingContext context = new LineMappingContext(bulkIngester, collector);
+            List<Item> items = new ArrayList<Item>(lines.size());
+            for (Line line : lines) {
+                collector.records.clear();
+                try {
+                    lineMapper.mapLine(line.text, context);
+                } catch (Exception e) {
+                    ExceptionUtil.handleInterrupt(e);
+                    failed(line, "mapping", e);
+                    continue;
+                }
+                for (Record record : collector.records) {
+                    items.add(new Item(line, record));
+                }
+            }
+
+            if (!items.isEmpty()) {
+                buildStage.submit(items);
+            }
+        }
+
+        @Override
+        protected Collection<Line> getLines(List<Line> batch) {
+            return batch;
+        }
+    }
+
+    private class BuildStage extends Stage<Item> {
+        BuildStage(int threads) {
+            super("build", threads);
+        }
+
+        @Override
+        protected void process(List<Item> items) throws InterruptedException {
+            for (Item item : items) {
+                List<Item> fullBatch = null;
+                try {
+                    if (bulkIngester.isBulkMode()) {
+                        item.put = bulkIngester.buildPut(item.record);
+                        fullBatch = addToRegionBatch(getRegionName(item.put), item);
+                    } else {
+                        bulkIngester.write(item.record);
+                        recordsWritten.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failed(item.line, bulkIngester.isBulkMode() ? "building" : "writing", e);
+                }
+
+                if (fullBatch != null) {
+                    writeStage.submit(fullBatch);
+                }
+            }
+        }
+
+        @Override
+        protected Collection<Line> getLines(List<Item> batch) {
+            return linesOf(batch);
+        }
+    }
+
+    private class WriteStage extends Stage<Item> {
+        WriteStage(int threads) {
+            super("write", threads);
+        }
+
+        @Override
+        protected void process(List<Item> batch) throws InterruptedException {
+            List<Put> puts = new ArrayList<Put>(batch.size());
+            for (Item item : batch) {
+                puts.add(item.put);
+            }
+
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    bulkIngester.writePuts(puts);
+                    recordsWritten.addAndGet(puts.size());
+                    return;
+                } catch (IOException e) {
+                    if (attempt == MAX_WRITE_ATTEMPTS) {
+                        failed(linesOf(batch), "writing", e);
+                        return;
+                    }
+                    log.warn("Error writing " + puts.size() + " records, attempt " + attempt + " of "
+                            + MAX_WRITE_ATTEMPTS, e);
+                    Thread.sleep(attempt * writeRetryDelay);
+                }
+            }
+        }
+
+        @Override
+        protected Collection<Line> getLines(List<Item> batch) {
+            return linesOf(batch);
+        }
+    }
+
+    private String getRegionName(Put put) {
+        try {
+            return bulkIngester.getRegionName(put.getRow());
+        } catch (IOException e) {
+            // Not fatal, the put simply ends up in a batch which is not grouped by region
+            log.warn("Error looking up region of row", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the lines of the items in input order, each line once, also when several of its records are
+     * among the items.
+     */
+    private static List<Line> linesOf(List<Item> items) {
+        Map<Long, Line> lines = new TreeMap<Long, Line>();
+        for (Item item : items) {
+            lines.put(item.line.number, item.line);
+        }
+        return new ArrayList<Line>(lines.values());
+    }
+
+    /**
+     * A stage of the pipeline: a number of threads taking batches from a bounded queue.
+     */
+    private abstract class Stage<T> {
+        private final String name;
+        private final BlockingQueue<List<T>> queue;
+        private final List<Thread> threads;
+        private final AtomicLong processed = new AtomicLong();
+
+        Stage(String name, int threadCount) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<List<T>>(threadCount * 2);
+            this.threads = new ArrayList<Thread>(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "import-" + name + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+        }
+
+        void start() {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        void submit(List<T> batch) throws InterruptedException {
+            queue.put(batch);
+        }
+
+        /**
+         * Waits until all submitted batches have been processed, and stops the threads.
+         */
+        @SuppressWarnings("unchecked")
+        void finish() throws InterruptedException {
+            queue.put(END);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work() {
+            try {
+                while (true) {
+                    List<T> batch = queue.take();
+                    if (batch == END) {
+                        // let the other threads of this stage see it as well
+                        queue.put(END);
+                        return;
+                    }
+                    if (fatalError != null) {
+                        addDeadLetters(getLines(batch));
+                        processed.addAndGet(batch.size());
+                        continue;
+                    }
+                    try {
+                        process(batch);
+                    } catch (RuntimeException e) {
+                        failed(getLines(batch), "in " + name + " stage processing", e);
+                    } catch (Error e) {
+                        // Keep taking batches, so that the other stages and the caller are not blocked
+                        fatalError = e;
+                        failed(getLines(batch), "in " + name + " stage processing", e);
+                    }
+                    processed.addAndGet(batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected abstract void process(List<T> batch) throws InterruptedException;
+
+        protected abstract Collection<Line> getLines(List<T> batch);
+
+        String getStatus() {
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+            return String.format("%s: %d processed (%.1f/s), queue %d/%d", name, processed.get(),
+                    processed.get() / seconds, queue.size(), queue.size() + queue.remainingCapacity());
+        }
+    }
+}
@@ -16,14 +16,11 @@
 package org.lilyproject.repository.bulk.serial;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.collect.Lists;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.lilyproject.repository.api.Record;
@@ -34,32 +31,34 @@ import org.lilyproject.util.exception.ExceptionUtil;
 
 /**
  * Import writer for bulk imports where the import runs as a single (multi-threaded) process writing directly to Lily.
+ *
+ * <p>All threads write through the same {@link BulkIngester}, so that they share its connections and schema
+ * cache.</p>
  */
 public class ThreadedRecordWriter implements RecordWriter {
 
     private Log log = LogFactory.getLog(getClass());
 
-    private String lilyZk;
-    private String repositoryName;
-    private String tableName;
-    private boolean bulkMode;
+    private BulkIngester bulkIngester;
+    private boolean ownBulkIngester;
     private ThreadPoolExecutor executor;
     private AtomicLong recordsWritten = new AtomicLong();
     private AtomicLong writeFailures = new AtomicLong();
-    private ThreadLocal<BulkIngester> threadLocalBulkIngesters;
-    private List<BulkIngester> bulkIngesters;
 
 
     public ThreadedRecordWriter(String lilyZk, int numThreads, String repositoryName, String tableName, boolean bulkMode) {
-        this.lilyZk = lilyZk;
-        this.repositoryName = repositoryName;
-        this.tableName = tableName;
-        this.bulkMode = bulkMode;
+        this(BulkIngester.newBulkIngester(lilyZk, 30000, repositoryName, tableName, bulkMode), numThreads);
+        this.ownBulkIngester = true;
+    }
+
+    /**
+     * @param bulkIngester the ingester used by all threads, it is flushed but not closed when closing this writer
+     */
+    public ThreadedRecordWriter(BulkIngester bulkIngester, int numThreads) {
+        this.bulkIngester = bulkIngester;
         executor = new ThreadPoolExecutor(numThreads, numThreads, 10, TimeUnit.SECONDS,
                 new ArrayBlockingQueue<Runnable>(5));
         executor.setRejectedExecutionHandler(new WaitPolicy());
-        threadLocalBulkIngesters = new ThreadLocal<BulkIngester>();
-        bulkIngesters = Collections.synchronizedList(Lists.<BulkIngester>newArrayList());
     }
 
 
@@ -68,16 +67,6 @@ public class ThreadedRecordWriter implements RecordWriter {
         executor.submit(new Runnable() {
             @Override
             public void run() {
-
-                if (threadLocalBulkIngesters.get() == null) {
-                    BulkIngester bulkIngester = BulkIngester.newBulkIngester(lilyZk, 30000, repositoryName, tableName, bulkMode);
-                    bulkIngesters.add(bulkIngester);
-                    threadLocalBulkIngesters.set(bulkIngester);
-                }
-
-                BulkIngester bulkIngester = threadLocalBulkIngesters.get();
-
-
                 try {
                     bulkIngester.write(record);
                     recordsWritten.incrementAndGet();
@@ -102,12 +91,14 @@ public class ThreadedRecordWriter implements RecordWriter {
         if (!successfulFinish) {
             throw new RuntimeException("JSON import executor did not end successfully.");
         }
-        for (BulkIngester bulkIngester : bulkIngesters) {
-            try {
+        try {
+            if (ownBulkIngester) {
                 bulkIngester.close();
-            } catch (IOException e) {
-                log.error("Error closing bulk ingester", e);
+            } else {
+                bulkIngester.flush();
             }
+        } catch (IOException e) {
+            log.error("Error closing bulk ingester", e);
         }
     }
 
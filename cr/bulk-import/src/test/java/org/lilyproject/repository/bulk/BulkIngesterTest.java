@@ -15,7 +15,10 @@
  */
 package org.lilyproject.repository.bulk;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -23,6 +26,12 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -41,6 +50,8 @@ import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.impl.HBaseRepository;
 import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.RecordEvent.Type;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class BulkIngesterTest {
 
@@ -110,4 +121,66 @@ public class BulkIngesterTest {
 
     }
 
+    @Test
+    public void testFlushSize() throws InterruptedException, RepositoryException, IOException {
+        bulkIngester.setFlushSize(2);
+
+        Put[] puts = new Put[3];
+        for (int i = 0; i < puts.length; i++) {
+            Record record = mock(Record.class);
+            when(record.getId()).thenReturn(mock(RecordId.class));
+            puts[i] = mock(Put.class);
+            configurePutCreation(record, puts[i]);
+            bulkIngester.write(record);
+        }
+
+        verify(recordTable).put(Lists.newArrayList(puts[0], puts[1]));
+        verify(recordTable, never()).put(Lists.newArrayList(puts[2]));
+
+        bulkIngester.flush();
+        verify(recordTable).put(Lists.newArrayList(puts[2]));
+        assertEquals(3, bulkIngester.getMetrics().getTotalRecords());
+        assertEquals(2, bulkIngester.getMetrics().getTotalFlushes());
+    }
+
+    @Test
+    public void testWriteFromMultipleThreads() throws Exception {
+        final AtomicInteger putCount = new AtomicInteger();
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                putCount.addAndGet(((List<?>)invocation.getArguments()[0]).size());
+                return null;
+            }
+        }).when(recordTable).put(anyListOf(Put.class));
+
+        bulkIngester.setFlushSize(3);
+        final Record record = mock(Record.class);
+        when(record.getId()).thenReturn(mock(RecordId.class));
+        configurePutCreation(record, mock(Put.class));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 5; j++) {
+                        bulkIngester.write(record);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Each thread flushed one full buffer, the rest is still buffered per thread
+        assertEquals(12, putCount.get());
+        bulkIngester.flush();
+        assertEquals(20, putCount.get());
+    }
+
 }
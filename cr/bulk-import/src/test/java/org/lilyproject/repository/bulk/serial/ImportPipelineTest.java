@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.bulk.serial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.bulk.BulkIngester;
+import org.lilyproject.repository.bulk.LineMapper;
+import org.lilyproject.repository.bulk.LineMappingContext;
+import org.lilyproject.repository.impl.RecordImpl;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ImportPipelineTest {
+
+    private BulkIngester bulkIngester;
+    private File deadLetterFile;
+    private AtomicInteger putsWritten = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        deadLetterFile = File.createTempFile("import", ".failed");
+        deadLetterFile.delete();
+
+        bulkIngester = mock(BulkIngester.class);
+        when(bulkIngester.isBulkMode()).thenReturn(true);
+        when(bulkIngester.getFlushSize()).thenReturn(7);
+        when(bulkIngester.buildPut(any(Record.class))).thenAnswer(new Answer<Put>() {
+            @Override
+            public Put answer(InvocationOnMock invocation) throws Throwable {
+                Record record = (Record)invocation.getArguments()[0];
+                return new Put(Bytes.toBytes(record.getId().toString()));
+            }
+        });
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<Put> puts = (List<Put>)invocation.getArguments()[0];
+                for (Put put : puts) {
+                    if (Bytes.toString(put.getRow()).endsWith("unwritable")) {
+                        throw new IOException("simulated write failure");
+                    }
+                }
+                putsWritten.addAndGet(puts.size());
+                return null;
+            }
+        }).when(bulkIngester).writePuts(anyListOf(Put.class));
+    }
+
+    @After
+    public void tearDown() {
+        deadLetterFile.delete();
+    }
+
+    /**
+     * Maps a line to a record per comma-separated value, with the value as id. The line "unmappable" fails.
+     */
+    private static class TestLineMapper implements LineMapper {
+        private static final IdGenerator ID_GENERATOR = new IdGeneratorImpl();
+
+        @Override
+        public void mapLine(String inputLine, LineMappingContext context) {
+            if (inputLine.equals("unmappable")) {
+                throw new IllegalArgumentException("simulated mapping failure");
+            } else if (inputLine.equals("fatal")) {
+                throw new Error("simulated fatal failure");
+            }
+            try {
+                for (String value : inputLine.split(",")) {
+                    context.writeRecord(new RecordImpl(ID_GENERATOR.newRecordId(value)));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testImport() throws Exception {
+        ImportPipeline pipeline = new ImportPipeline(bulkIngester, new ImportPipeline.LineMapperFactory() {
+            @Override
+            public LineMapper newLineMapper() {
+                return new TestLineMapper();
+            }
+        }, 3, deadLetterFile);
+
+        for (int i = 0; i < 1000; i++) {
+            pipeline.submit("a" + i + ",b" + i);
+        }
+        pipeline.close();
+
+        assertEquals(2000, putsWritten.get());
+        assertEquals(2000, pipeline.getNumRecords());
+        assertEquals(0, pipeline.getNumFailedLines());
+        assertFalse(deadLetterFile.exists());
+    }
+
+    private ImportPipeline newPipeline(int threads) {
+        return new ImportPipeline(bulkIngester, new ImportPipeline.LineMapperFactory() {
+            @Override
+            public LineMapper newLineMapper() {
+                return new TestLineMapper();
+            }
+        }, threads, deadLetterFile, 0L);
+    }
+
+    @Test
+    public void testDeadLetters() throws Exception {
+        when(bulkIngester.getFlushSize()).thenReturn(1);
+
+        ImportPipeline pipeline = newPipeline(2);
+
+        pipeline.submit("a,b");
+        pipeline.submit("unmappable");
+        pipeline.submit("c,unwritable");
+        pipeline.submit("d");
+        pipeline.close();
+
+        assertEquals(4, pipeline.getNumRecords());
+        assertEquals(2, pipeline.getNumFailedLines());
+
+        List<String> deadLetters = Files.readLines(deadLetterFile, Charsets.UTF_8);
+        assertEquals(2, deadLetters.size());
+        assertEquals(true, deadLetters.contains("unmappable"));
+        assertEquals(true, deadLetters.contains("c,unwritable"));
+    }
+
+    @Test
+    public void testDeadLettersPerLine() throws Exception {
+        when(bulkIngester.getFlushSize()).thenReturn(1);
+
+        ImportPipeline pipeline = newPipeline(2);
+
+        // Identical lines are each added, a line whose records fail in several batches is added once
+        pipeline.submit("unmappable");
+        pipeline.submit("c,unwritable");
+        pipeline.submit("unmappable");
+        pipeline.submit("c,unwritable");
+        pipeline.submit("x-unwritable,y-unwritable");
+        pipeline.close();
+
+        assertEquals(2, pipeline.getNumRecords());
+        assertEquals(5, pipeline.getNumFailedLines());
+
+        List<String> deadLetters = Files.readLines(deadLetterFile, Charsets.UTF_8);
+        Collections.sort(deadLetters);
+        assertEquals(Arrays.asList("c,unwritable", "c,unwritable", "unmappable", "unmappable",
+                "x-unwritable,y-unwritable"), deadLetters);
+    }
+
+    @Test
+    public void testBufferedPutsBounded() throws Exception {
+        // Each record in its own region, so no region batch ever reaches the flush size
+        when(bulkIngester.getRegionName(any(byte[].class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return Bytes.toString((byte[])invocation.getArguments()[0]);
+            }
+        });
+
+        ImportPipeline pipeline = newPipeline(2);
+        for (int i = 0; i < 200; i++) {
+            pipeline.submit("a" + i);
+        }
+
+        // Without waiting for close, all but the maximum number of buffered puts get written
+        int maxBuffered = 7 * ImportPipeline.MAX_BUFFERED_BATCHES;
+        long waitUntil = System.currentTimeMillis() + 10000L;
+        while (putsWritten.get() < 200 - maxBuffered && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertTrue(putsWritten.get() >= 200 - maxBuffered);
+
+        pipeline.close();
+        assertEquals(200, putsWritten.get());
+        assertEquals(0, pipeline.getNumFailedLines());
+    }
+
+    @Test
+    public void testErrorFailsPipeline() throws Exception {
+        ImportPipeline pipeline = newPipeline(2);
+        pipeline.submit("fatal");
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit("a" + i);
+        }
+
+        try {
+            pipeline.close();
+            fail("Expected exception.");
+        } catch (IOException e) {
+            assertEquals("simulated fatal failure", e.getCause().getMessage());
+        }
+
+        // The line hitting the error, and its batch, could not be imported
+        List<String> deadLetters = Files.readLines(deadLetterFile, Charsets.UTF_8);
+        assertTrue(deadLetters.contains("fatal"));
+        assertEquals(11, deadLetters.size());
+        assertEquals(0, putsWritten.get());
+
+        try {
+            pipeline.submit("b");
+            fail("Expected exception.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -33,6 +33,7 @@ import org.lilyproject.repository.api.IdRecordScanner;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.LTable;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
@@ -159,6 +160,21 @@ public class FakeLRepository implements LRepository, Repository {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException {
+        return getDefaultTable().create(records);
+    }
+
+    @Override
+    public List<MutationResult> update(List<Record> records) throws RepositoryException, InterruptedException {
+        return getDefaultTable().update(records);
+    }
+
+    @Override
+    public List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return getDefaultTable().createOrUpdate(records);
+    }
+
     @Override
     public Record read(RecordId recordId, List<QName> qNames) throws RepositoryException, InterruptedException {
         throw new UnsupportedOperationException();
@@ -179,6 +195,12 @@ public class FakeLRepository implements LRepository, Repository {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public RecordScanner readStreaming(List<RecordId> recordIds, QName... qNames)
+            throws RepositoryException, InterruptedException {
+        return getDefaultTable().readStreaming(recordIds, qNames);
+    }
+
     @Override
     public Record read(RecordId recordId, Long aLong, List<QName> qNames) throws RepositoryException, InterruptedException {
         throw new UnsupportedOperationException();
@@ -214,6 +236,11 @@ public class FakeLRepository implements LRepository, Repository {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> schemaIds) throws RepositoryException, InterruptedException {
+        return getDefaultTable().readWithIds(recordIds, schemaIds);
+    }
+
     @Override
     public void delete(RecordId recordId) throws RepositoryException, InterruptedException {
         throw new UnsupportedOperationException();
@@ -229,6 +256,11 @@ public class FakeLRepository implements LRepository, Repository {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public List<MutationResult> delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        return getDefaultTable().delete(recordIds);
+    }
+
     @Override
     public OutputStream getOutputStream(Blob blob) throws RepositoryException, InterruptedException {
         throw new UnsupportedOperationException();
@@ -37,6 +37,7 @@ import org.lilyproject.repository.api.InvalidRecordException;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.LTable;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
@@ -203,6 +204,38 @@ public class FakeLTable implements Repository {
         return update(record);
     }
 
+    @Override
+    public List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException {
+        List<MutationResult> results = Lists.newArrayList();
+        for (Record record : records) {
+            try {
+                Record created = create(record);
+                results.add(MutationResult.success(created.getId(), created));
+            } catch (RepositoryException e) {
+                results.add(MutationResult.failure(record.getId(), e));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<MutationResult> update(List<Record> records) throws RepositoryException, InterruptedException {
+        List<MutationResult> results = Lists.newArrayList();
+        for (Record record : records) {
+            try {
+                results.add(MutationResult.success(record.getId(), update(record)));
+            } catch (RepositoryException e) {
+                results.add(MutationResult.failure(record.getId(), e));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return update(records);
+    }
+
     private Record getRecord(RecordId recordId) throws RecordNotFoundException {
         Record record = records.get(recordId);
         if (record == null) {
@@ -235,6 +268,12 @@ public class FakeLTable implements Repository {
         return list;
     }
 
+    @Override
+    public RecordScanner readStreaming(List<RecordId> recordIds, QName... qNames)
+            throws RepositoryException, InterruptedException {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public Record read(RecordId recordId, Long aLong, List<QName> qNames) throws RepositoryException, InterruptedException {
         return getRecord(recordId);
@@ -283,6 +322,17 @@ public class FakeLTable implements Repository {
         return idRecord;
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> schemaIds) throws RepositoryException, InterruptedException {
+        List<IdRecord> list = Lists.newArrayList();
+        for (RecordId id : recordIds) {
+            if (records.containsKey(id)) {
+                list.add(readWithIds(id, null, schemaIds));
+            }
+        }
+        return list;
+    }
+
     @Override
     public void delete(RecordId recordId) throws RepositoryException, InterruptedException {
         records.remove(recordId);
@@ -298,6 +348,16 @@ public class FakeLTable implements Repository {
         records.remove(record.getId());
     }
 
+    @Override
+    public List<MutationResult> delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        List<MutationResult> results = Lists.newArrayList();
+        for (RecordId recordId : recordIds) {
+            records.remove(recordId);
+            results.add(MutationResult.success(recordId, null));
+        }
+        return results;
+    }
+
     @Override
     public OutputStream getOutputStream(Blob blob) throws RepositoryException, InterruptedException {
         throw new UnsupportedOperationException();
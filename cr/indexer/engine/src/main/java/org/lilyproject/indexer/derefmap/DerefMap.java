@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Multimap;
 import org.lilyproject.repository.api.AbsoluteRecordId;
 import org.lilyproject.repository.api.SchemaId;
 
@@ -76,4 +77,17 @@ public interface DerefMap {
     DependantRecordIdsIterator findDependantsOf(AbsoluteRecordId parentRecordId)
             throws IOException;
 
+    /**
+     * Find all record ids which depend on a given record in one of the given vtags, with a single query. For each
+     * vtag, the dependants can be restricted to those that depend on one of a set of fields.
+     *
+     * @param parentRecordId the record to find dependant record ids for
+     * @param fieldsByVTag   the vtags of the dependants you are interested in, each mapped on the fields (one of
+     *                       the fields in the set) of the given record which should be dereferenced in the dependant,
+     *                       or on <code>null</code> to ignore the fields for that vtag
+     * @return the dependant record ids, each mapped on the vtags in which they depend on the given record
+     */
+    Multimap<AbsoluteRecordId, SchemaId> findDependantsOf(AbsoluteRecordId parentRecordId,
+            Map<SchemaId, Set<SchemaId>> fieldsByVTag) throws IOException;
+
 }
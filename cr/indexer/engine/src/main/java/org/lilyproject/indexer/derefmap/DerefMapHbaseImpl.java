@@ -16,11 +16,15 @@
 package org.lilyproject.indexer.derefmap;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -144,11 +148,13 @@ public class DerefMapHbaseImpl implements DerefMap {
         // be found via the forward index.
 
         // delete removed from bwd index
+        final List<IndexEntry> removedBackwardEntries = new ArrayList<IndexEntry>(removedDependencies.size());
         for (DependencyEntry removed : removedDependencies) {
-            final IndexEntry backwardEntry =
-                    createBackwardEntry(removed.getDependency(), parentRecordId, parentVtagId, null,
-                            removed.getMoreDimensionedVariants());
-            backwardDerefIndex.removeEntry(backwardEntry);
+            removedBackwardEntries.add(createBackwardEntry(removed.getDependency(), parentRecordId, parentVtagId,
+                    null, removed.getMoreDimensionedVariants()));
+        }
+        if (!removedBackwardEntries.isEmpty()) {
+            backwardDerefIndex.removeEntries(removedBackwardEntries);
         }
 
         // update fwd index (added and removed at the same time, it is a single row)
@@ -157,12 +163,14 @@ public class DerefMapHbaseImpl implements DerefMap {
         forwardDerefIndex.addEntry(fwdEntry);
 
         // add added to bwd idx
+        final List<IndexEntry> addedBackwardEntries = new ArrayList<IndexEntry>(addedDependencies.size());
         for (DependencyEntry added : addedDependencies) {
             final Set<SchemaId> fields = newDependantEntries.get(added);
-            final IndexEntry backwardEntry =
-                    createBackwardEntry(added.getDependency(), parentRecordId, parentVtagId, fields,
-                            added.getMoreDimensionedVariants());
-            backwardDerefIndex.addEntry(backwardEntry);
+            addedBackwardEntries.add(createBackwardEntry(added.getDependency(), parentRecordId, parentVtagId,
+                    fields, added.getMoreDimensionedVariants()));
+        }
+        if (!addedBackwardEntries.isEmpty()) {
+            backwardDerefIndex.addEntries(addedBackwardEntries);
         }
     }
 
@@ -294,4 +302,52 @@ public class DerefMapHbaseImpl implements DerefMap {
         return findDependantsOf(parentRecordId, (Set<SchemaId>) null, null);
     }
 
+    @Override
+    public Multimap<AbsoluteRecordId, SchemaId> findDependantsOf(AbsoluteRecordId parentRecordId,
+                                                               Map<SchemaId, Set<SchemaId>> fieldsByVTag)
+            throws IOException {
+        final Multimap<AbsoluteRecordId, SchemaId> result = LinkedHashMultimap.create();
+        if (fieldsByVTag.isEmpty()) {
+            return result;
+        }
+
+        final RecordId master = parentRecordId.getRecordId().getMaster();
+
+        final Query query = new Query();
+        query.addEqualsCondition("dependency_masterrecordid", master.toBytes());
+        if (fieldsByVTag.size() == 1) {
+            query.addEqualsCondition("dependant_vtag", fieldsByVTag.keySet().iterator().next().getBytes());
+        }
+
+        // The fields differ per vtag, so they are checked here rather than by the filter
+        query.setIndexFilter(new DerefMapIndexFilter(parentRecordId.getRecordId().getVariantProperties(), null));
+
+        final QueryResult queryResult = backwardDerefIndex.performQuery(query);
+        byte[] identifier;
+        while ((identifier = queryResult.next()) != null) {
+            final SchemaId vtag =
+                    this.serializationUtil.deserializeSchemaId((byte[]) queryResult.getIndexField("dependant_vtag"));
+            if (!fieldsByVTag.containsKey(vtag)) {
+                continue;
+            }
+
+            final Set<SchemaId> fields = fieldsByVTag.get(vtag);
+            if (fields != null) {
+                // same as DerefMapIndexFilter: entries without fields information are not filtered
+                final byte[] serializedFields = queryResult.getData(FIELDS_KEY);
+                if (serializedFields != null &&
+                        Sets.intersection(this.serializationUtil.deserializeFields(serializedFields), fields).isEmpty()) {
+                    continue;
+                }
+            }
+
+            result.put(this.serializationUtil.deserializeDependantRecordId(identifier), vtag);
+        }
+
+        // Not closed in finally block: avoid HBase contact when there could be connection problems.
+        Closer.close(queryResult);
+
+        return result;
+    }
+
 }
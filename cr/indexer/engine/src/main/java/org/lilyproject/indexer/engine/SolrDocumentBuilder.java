@@ -33,6 +33,7 @@ import org.apache.solr.common.SolrInputDocument;
 import org.lilyproject.indexer.derefmap.DependencyEntry;
 import org.lilyproject.indexer.derefmap.DerefMapUtil;
 import org.lilyproject.indexer.model.indexerconf.Dep;
+import org.lilyproject.indexer.model.indexerconf.DerefRecordCache;
 import org.lilyproject.indexer.model.indexerconf.FieldTemplatePart;
 import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
 import org.lilyproject.indexer.model.indexerconf.IndexUpdateBuilder;
@@ -65,6 +66,7 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
     private final TypeManager typeManager;
     private final ValueEvaluator valueEvaluator;
     private final NameTemplateResolver nameTemplateResolver;
+    private final DerefRecordCache derefRecordCache;
 
     private final SolrInputDocument solrDoc = new SolrInputDocument();
     private boolean emptyDocument = true;
@@ -80,6 +82,17 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
 
     public SolrDocumentBuilder(LRepository repository, IndexRecordFilter indexRecordFilter, SystemFields systemFields,
                                ValueEvaluator valueEvaluator, String table, IdRecord record, String key, SchemaId vtag, long version) {
+        this(repository, indexRecordFilter, systemFields, valueEvaluator, table, record, key, vtag, version,
+                new DerefRecordCache());
+    }
+
+    /**
+     * @param derefRecordCache cache for the records which are dereferenced, can be shared by the builders of
+     *                         a batch of documents
+     */
+    public SolrDocumentBuilder(LRepository repository, IndexRecordFilter indexRecordFilter, SystemFields systemFields,
+                               ValueEvaluator valueEvaluator, String table, IdRecord record, String key, SchemaId vtag, long version,
+                               DerefRecordCache derefRecordCache) {
         this.repository = repository;
         this.indexRecordFilter = indexRecordFilter;
         this.systemFields = systemFields;
@@ -90,6 +103,7 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
         this.key = key;
         this.vtag = vtag;
         this.version = version;
+        this.derefRecordCache = derefRecordCache;
 
         this.nameTemplateResolver = new FieldNameTemplateResolver();
 
@@ -257,4 +271,9 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
         return table;
     }
 
+    @Override
+    public DerefRecordCache getDerefRecordCache() {
+        return derefRecordCache;
+    }
+
 }
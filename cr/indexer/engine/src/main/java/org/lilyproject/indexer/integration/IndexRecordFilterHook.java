@@ -17,11 +17,13 @@ package org.lilyproject.indexer.integration;
 
 import javax.annotation.PreDestroy;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 
 import com.google.common.collect.Sets;
 import org.lilyproject.indexer.model.api.LResultToSolrMapper;
 import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
+import org.lilyproject.indexer.model.util.CompiledIndexRecordFilters;
 import org.lilyproject.indexer.model.util.IndexInfo;
 import org.lilyproject.indexer.model.util.IndexesInfo;
 import org.lilyproject.plugin.PluginRegistry;
@@ -34,8 +36,8 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.spi.ProjectingRecordUpdateHook;
 import org.lilyproject.repository.spi.RecordUpdateHook;
-import org.lilyproject.util.hbase.RepoAndTableUtil;
 import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.RecordEvent.IndexRecordFilterData;
 
@@ -45,7 +47,7 @@ import org.lilyproject.util.repo.RecordEvent.IndexRecordFilterData;
  * on the previous (or deleted) record state. Also allows to make this decision without
  * needing to read the complete record.
  */
-public class IndexRecordFilterHook implements RecordUpdateHook {
+public class IndexRecordFilterHook implements ProjectingRecordUpdateHook {
 
     private PluginRegistry pluginRegistry;
     private final IndexesInfo indexesInfo;
@@ -74,6 +76,13 @@ public class IndexRecordFilterHook implements RecordUpdateHook {
         pluginRegistry.removePlugin(RecordUpdateHook.class, NAME, this);
     }
 
+    @Override
+    public Collection<QName> getUpdateFieldDependencies(Record record, FieldTypes fieldTypes) {
+        // The record filters only look at the record type, the record id and these fields
+        return indexesInfo.getIndexInfos().isEmpty() ? Collections.<QName>emptySet()
+                : indexesInfo.getRecordFilterFieldDependencies();
+    }
+
     @Override
     public void beforeUpdate(Record record, Record originalRecord, Repository repository, FieldTypes fieldTypes,
             RecordEvent recordEvent) throws RepositoryException, InterruptedException {
@@ -201,6 +210,9 @@ public class IndexRecordFilterHook implements RecordUpdateHook {
      * Calculate the inclusion/exclusion sets for index subscriptions based on the old and new
      * records, and update the {@code IndexRecordFilterData} with this information.
      *
+     * <p>Only the record filters of the candidate indexes given by the {@link CompiledIndexRecordFilters}
+     * are evaluated, the other indexes can not include the records.</p>
+     *
      * @param table table where the record update has occurred
      * @param oldRecord Previous version of the record, null if the record is being newly created
      * @param newRecord New version of the record, null if the record is being deleted
@@ -209,17 +221,24 @@ public class IndexRecordFilterHook implements RecordUpdateHook {
     void calculateIndexInclusion(String repositoryName, String table,
                                  Record oldRecord, Record newRecord, IndexRecordFilterData indexFilterData) {
 
+        CompiledIndexRecordFilters recordFilters = indexesInfo.getCompiledRecordFilters();
+
+        Set<IndexInfo> candidates = Sets.newLinkedHashSet();
+        if (oldRecord != null) {
+            candidates.addAll(recordFilters.getCandidates(repositoryName, table, oldRecord));
+        }
+        if (newRecord != null) {
+            candidates.addAll(recordFilters.getCandidates(repositoryName, table, newRecord));
+        }
+
         Set<String> applicableIndexes = Sets.newHashSet();
-        Set<String> nonApplicableIndexes = Sets.newHashSet();
-        for (IndexInfo indexInfo : indexesInfo.getIndexInfos()) {
-            String queueSubscriptionId = indexInfo.getIndexDefinition().getSubscriptionId();
-            if (indexMatchesRepository(repositoryName, indexInfo) &&
-                    indexIsApplicable(indexInfo.getLilyIndexerConf().getRecordFilter(), table, oldRecord, newRecord)) {
-                applicableIndexes.add(queueSubscriptionId);
-            } else {
-                nonApplicableIndexes.add(queueSubscriptionId);
+        for (IndexInfo indexInfo : candidates) {
+            if (indexIsApplicable(indexInfo.getLilyIndexerConf().getRecordFilter(), table, oldRecord, newRecord)) {
+                applicableIndexes.add(indexInfo.getIndexDefinition().getSubscriptionId());
             }
         }
+        Set<String> nonApplicableIndexes =
+                Sets.newHashSet(Sets.difference(recordFilters.getSubscriptionIds(), applicableIndexes));
 
         if (applicableIndexes.isEmpty()) {
             indexFilterData.setSubscriptionExclusions(IndexRecordFilterData.ALL_INDEX_SUBSCRIPTIONS);
@@ -232,12 +251,6 @@ public class IndexRecordFilterHook implements RecordUpdateHook {
         }
     }
 
-    boolean indexMatchesRepository(String repositoryName, IndexInfo indexInfo){
-        String indexRepo = indexInfo.getRepositoryName();
-        indexRepo = (indexRepo != null ? indexRepo : RepoAndTableUtil.DEFAULT_REPOSITORY);
-        return indexRepo.equals(repositoryName);
-    }
-
     /**
      * Determine if an {@code IndexRecordFilter} is applicable for either the old or new version of
      * a record.
@@ -29,6 +29,7 @@ import java.util.UUID;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -545,6 +546,47 @@ public class DerefMapBasicTest {
                                                 absId(b), field, tag2)));
     }
 
+    @Test
+    public void multipleVTagsInOneQuery() throws Exception {
+        final SchemaId tag1 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId tag2 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId tag3 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId field1 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId field2 = ids.getSchemaId(UUID.randomUUID());
+
+        final RecordId a = ids.newRecordId();
+        final RecordId b = ids.newRecordId();
+        final RecordId c = ids.newRecordId();
+
+        // a depends on field1 of c in tag1 and tag2, b depends on field2 of c in tag2
+        derefMap.updateDependants(absId(a), tag1,
+                Collections.singletonMap(new DependencyEntry(absId(c)), (Set<SchemaId>) Sets.newHashSet(field1)));
+        derefMap.updateDependants(absId(a), tag2,
+                Collections.singletonMap(new DependencyEntry(absId(c)), (Set<SchemaId>) Sets.newHashSet(field1)));
+        derefMap.updateDependants(absId(b), tag2,
+                Collections.singletonMap(new DependencyEntry(absId(c)), (Set<SchemaId>) Sets.newHashSet(field2)));
+
+        // fields filter on tag1, no fields filter on tag2
+        Map<SchemaId, Set<SchemaId>> fieldsByVTag = Maps.newHashMap();
+        fieldsByVTag.put(tag1, Sets.newHashSet(field2));
+        fieldsByVTag.put(tag2, null);
+        Multimap<AbsoluteRecordId, SchemaId> dependants = derefMap.findDependantsOf(absId(c), fieldsByVTag);
+        assertEquals(Sets.newHashSet(absId(a), absId(b)), dependants.keySet());
+        assertEquals(Sets.newHashSet(tag2), Sets.newHashSet(dependants.get(absId(a))));
+        assertEquals(Sets.newHashSet(tag2), Sets.newHashSet(dependants.get(absId(b))));
+
+        // fields filter on both vtags
+        fieldsByVTag.put(tag1, Sets.newHashSet(field1));
+        fieldsByVTag.put(tag2, Sets.newHashSet(field1));
+        dependants = derefMap.findDependantsOf(absId(c), fieldsByVTag);
+        assertEquals(Sets.newHashSet(absId(a)), dependants.keySet());
+        assertEquals(Sets.newHashSet(tag1, tag2), Sets.newHashSet(dependants.get(absId(a))));
+
+        // single vtag, which has no dependants
+        dependants = derefMap.findDependantsOf(absId(c), Collections.singletonMap(tag3, (Set<SchemaId>) null));
+        assertTrue(dependants.isEmpty());
+    }
+
     private Set<AbsoluteRecordId> asRecordIds(DependantRecordIdsIterator iter) throws IOException {
         Set<AbsoluteRecordId> result = Sets.newHashSet();
         while (iter.hasNext()) {
@@ -16,6 +16,9 @@
 package org.lilyproject.indexer.integration;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -24,12 +27,18 @@ import org.junit.Test;
 import org.lilyproject.indexer.model.api.LResultToSolrMapper;
 import org.lilyproject.indexer.model.indexerconf.IndexCase;
 import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
+import org.lilyproject.indexer.model.indexerconf.RecordMatcher;
+import org.lilyproject.indexer.model.indexerconf.WildcardPattern;
+import org.lilyproject.indexer.model.util.CompiledIndexRecordFilters;
 import org.lilyproject.indexer.model.util.IndexInfo;
 import org.lilyproject.indexer.model.util.IndexesInfo;
 import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.util.hbase.LilyHBaseSchema.Table;
 import org.lilyproject.util.hbase.RepoAndTableUtil;
 import org.lilyproject.util.repo.RecordEvent;
@@ -39,9 +48,12 @@ import org.mockito.Mockito;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -66,12 +78,21 @@ public class IndexRecordFilterHookTest {
         indexesInfo = mock(IndexesInfo.class);
         indexFilterHook = spy(new IndexRecordFilterHook(indexesInfo));
         when(repository.getRepositoryName()).thenReturn(RepoAndTableUtil.DEFAULT_REPOSITORY);
+
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        when(oldRecord.getId()).thenReturn(idGenerator.newRecordId());
+        when(newRecord.getId()).thenReturn(idGenerator.newRecordId());
+    }
+
+    private void setIndexInfos(List<IndexInfo> indexInfos) {
+        when(indexesInfo.getIndexInfos()).thenReturn(indexInfos);
+        when(indexesInfo.getCompiledRecordFilters()).thenReturn(new CompiledIndexRecordFilters(indexInfos));
     }
 
     @Test
     public void testBeforeUpdate() throws RepositoryException, InterruptedException {
         IndexInfo inclusion = createMockIndexInfo("include", true);
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusion));
+        setIndexInfos(Lists.newArrayList(inclusion));
 
         RecordEvent recordEvent = new RecordEvent();
         recordEvent.setType(Type.UPDATE);
@@ -89,7 +110,7 @@ public class IndexRecordFilterHookTest {
     @Test
     public void testBeforeCreate() throws RepositoryException, InterruptedException {
         IndexInfo inclusion = createMockIndexInfo("include", true);
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusion));
+        setIndexInfos(Lists.newArrayList(inclusion));
 
         RecordEvent recordEvent = new RecordEvent();
         recordEvent.setType(Type.CREATE);
@@ -107,7 +128,7 @@ public class IndexRecordFilterHookTest {
     @Test
     public void testBeforeDelete() throws RepositoryException, InterruptedException {
         IndexInfo inclusion = createMockIndexInfo("include", true);
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusion));
+        setIndexInfos(Lists.newArrayList(inclusion));
 
         RecordEvent recordEvent = new RecordEvent();
         recordEvent.setType(Type.DELETE);
@@ -129,7 +150,7 @@ public class IndexRecordFilterHookTest {
         IndexInfo inclusionB = createMockIndexInfo("includeB", true);
         IndexInfo exclusion = createMockIndexInfo("exclude", false);
 
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusionA, inclusionB, exclusion));
+        setIndexInfos(Lists.newArrayList(inclusionA, inclusionB, exclusion));
 
         indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -144,7 +165,7 @@ public class IndexRecordFilterHookTest {
         IndexInfo exclusionA = createMockIndexInfo("excludeA", false);
         IndexInfo exclusionB = createMockIndexInfo("excludeB", false);
 
-        when(this.indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusion, exclusionA, exclusionB));
+        setIndexInfos(Lists.newArrayList(inclusion, exclusionA, exclusionB));
 
         indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -157,7 +178,7 @@ public class IndexRecordFilterHookTest {
         IndexRecordFilterData indexFilterData = mock(IndexRecordFilterData.class);
         IndexInfo inclusion = createMockIndexInfo("include", true);
 
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusion));
+        setIndexInfos(Lists.newArrayList(inclusion));
 
         indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -170,7 +191,7 @@ public class IndexRecordFilterHookTest {
         IndexRecordFilterData indexFilterData = mock(IndexRecordFilterData.class);
         IndexInfo inclusion = createMockIndexInfo("exclude", false);
 
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusion));
+        setIndexInfos(Lists.newArrayList(inclusion));
 
         indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -181,7 +202,7 @@ public class IndexRecordFilterHookTest {
     @Test
     public void testCalculateIndexInclusion_NoIndexSubscriptions() {
         IndexRecordFilterData indexFilterData = mock(IndexRecordFilterData.class);
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.<IndexInfo>newArrayList());
+        setIndexInfos(Lists.<IndexInfo>newArrayList());
 
         indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -197,7 +218,7 @@ public class IndexRecordFilterHookTest {
         when(inclusionB.getRepositoryName()).thenReturn("someOtherRepo");
         IndexInfo exclusion = createMockIndexInfo("exclude", false);
 
-        when(indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusionA, inclusionB, exclusion));
+        setIndexInfos(Lists.newArrayList(inclusionA, inclusionB, exclusion));
 
         indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -212,7 +233,7 @@ public class IndexRecordFilterHookTest {
         IndexInfo exclusion = createMockIndexInfo("excludeA", false);
         IndexInfo inclusionB = createMockIndexInfo("inclusionB", true);
         when(inclusionB.getRepositoryName()).thenReturn("someOtherRepo");
-        when(this.indexesInfo.getIndexInfos()).thenReturn(Lists.newArrayList(inclusionA, exclusion, inclusionB));
+        setIndexInfos(Lists.newArrayList(inclusionA, exclusion, inclusionB));
 
         indexFilterHook.calculateIndexInclusion("someOtherRepo",
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -230,7 +251,7 @@ public class IndexRecordFilterHookTest {
         for (IndexInfo info : infos) {
             when(info.getRepositoryName()).thenReturn("someOtherRepo");
         }
-        when(this.indexesInfo.getIndexInfos()).thenReturn(infos);
+        setIndexInfos(infos);
 
         indexFilterHook.calculateIndexInclusion("someOtherRepo",
                 Table.RECORD.name, oldRecord, newRecord, indexFilterData);
@@ -238,9 +259,56 @@ public class IndexRecordFilterHookTest {
         verify(indexFilterData).setSubscriptionInclusions(ImmutableSet.of("inclusionA","inclusionB"));
     }
 
+    @Test
+    public void testCalculateIndexInclusion_OnlyCandidatesEvaluated() {
+        IndexRecordFilterData indexFilterData = mock(IndexRecordFilterData.class);
+        IndexInfo inclusion = createMockIndexInfo("include", true);
+        IndexInfo otherTable = createMockIndexInfo("otherTable", true,
+                newRecordMatcher(null, null, Collections.singletonList("otherTable")));
+        IndexInfo otherRecordType = createMockIndexInfo("otherRecordType", true,
+                newRecordMatcher(new QName("ns", "OtherType"), null, null));
+        IndexInfo variant = createMockIndexInfo("variant", true,
+                newRecordMatcher(null, Collections.<String, String>singletonMap("lang", null), null));
+
+        setIndexInfos(Lists.newArrayList(inclusion, otherTable, otherRecordType, variant));
+
+        indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
+                Table.RECORD.name, oldRecord, newRecord, indexFilterData);
+
+        verify(indexFilterData).setSubscriptionExclusions(ImmutableSet.of("otherTable", "otherRecordType", "variant"));
+        // only the filter of the candidate index is evaluated
+        verify(indexFilterHook, times(1)).indexIsApplicable(any(IndexRecordFilter.class), anyString(),
+                any(Record.class), any(Record.class));
+    }
+
+    @Test
+    public void testCalculateIndexInclusion_CandidateByRecordType() {
+        IndexRecordFilterData indexFilterData = mock(IndexRecordFilterData.class);
+        QName recordType = new QName("ns", "Type");
+        when(newRecord.getRecordTypeName()).thenReturn(recordType);
+        IndexInfo sameRecordType = createMockIndexInfo("sameRecordType", true,
+                newRecordMatcher(recordType, null, null));
+        IndexInfo otherRecordType = createMockIndexInfo("otherRecordType", true,
+                newRecordMatcher(new QName("ns", "OtherType"), null, null));
+
+        setIndexInfos(Lists.newArrayList(sameRecordType, otherRecordType));
+
+        // the old record doesn't have a record type, the new one does
+        indexFilterHook.calculateIndexInclusion(RepoAndTableUtil.DEFAULT_REPOSITORY,
+                Table.RECORD.name, oldRecord, newRecord, indexFilterData);
+
+        verify(indexFilterData).setSubscriptionExclusions(ImmutableSet.of("otherRecordType"));
+    }
+
     private IndexInfo createMockIndexInfo(String queueSubscriptionId, boolean include) {
+        // Matches all records, whether the index is applicable is determined by stubbing indexIsApplicable
+        return createMockIndexInfo(queueSubscriptionId, include, newRecordMatcher(null, null, null));
+    }
+
+    private IndexInfo createMockIndexInfo(String queueSubscriptionId, boolean include, RecordMatcher recordMatcher) {
         IndexInfo indexInfo = mock(IndexInfo.class, Mockito.RETURNS_DEEP_STUBS);
-        IndexRecordFilter indexRecordFilter = mock(IndexRecordFilter.class);
+        IndexRecordFilter indexRecordFilter = new IndexRecordFilter();
+        indexRecordFilter.addInclude(recordMatcher, mock(IndexCase.class));
 
         when(indexInfo.getLilyIndexerConf().getRecordFilter()).thenReturn(indexRecordFilter);
         doReturn(include).when(indexFilterHook).indexIsApplicable(indexRecordFilter, Table.RECORD.name, oldRecord, newRecord);
@@ -249,6 +317,14 @@ public class IndexRecordFilterHookTest {
         return indexInfo;
     }
 
+    private RecordMatcher newRecordMatcher(QName recordType, Map<String, String> variantPropsPattern,
+            List<String> tableNames) {
+        WildcardPattern namespacePattern = recordType != null ? new WildcardPattern(recordType.getNamespace()) : null;
+        WildcardPattern namePattern = recordType != null ? new WildcardPattern(recordType.getName()) : null;
+        return new RecordMatcher(namespacePattern, namePattern, null, null, null, null, variantPropsPattern,
+                tableNames, null);
+    }
+
     @Test
     public void testIndexIsApplicable_TrueForOldRecord() {
         IndexRecordFilter indexRecordFilter = mock(IndexRecordFilter.class);
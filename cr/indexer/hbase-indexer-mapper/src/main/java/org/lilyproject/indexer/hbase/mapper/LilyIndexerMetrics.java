@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.hbase.mapper;
+
+import javax.management.ObjectName;
+
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
+import org.apache.hadoop.metrics.util.MetricsLongValue;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.lilyproject.indexer.model.indexerconf.DerefRecordCache;
+import org.lilyproject.util.hbase.metrics.MBeanUtil;
+import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
+
+/**
+ * Metrics about the reads of the records which are dereferenced while indexing, see {@link DerefRecordCache}, and
+ * about the reindexing of records which contain denormalized data, see {@link ReindexFanout}.
+ */
+public class LilyIndexerMetrics implements Updater {
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRecord metricsRecord;
+    private final MetricsContext context;
+    private final LilyIndexerMetricsMXBean mbean;
+    private final String recordName;
+
+    /** Number of dereferenced records which were found in the cache. */
+    public MetricsTimeVaryingLong derefCacheHits = new MetricsTimeVaryingLong("deref_cache_hits", registry);
+
+    /** Number of dereferenced records which needed to be read. */
+    public MetricsTimeVaryingLong derefCacheMisses = new MetricsTimeVaryingLong("deref_cache_misses", registry);
+
+    /** Number of repository reads done for the dereferenced records, each read can read multiple records. */
+    public MetricsTimeVaryingLong derefReads = new MetricsTimeVaryingLong("deref_reads", registry);
+
+    /** Number of repository reads saved compared to reading each dereferenced record separately. */
+    public MetricsTimeVaryingLong derefReadsSaved = new MetricsTimeVaryingLong("deref_reads_saved", registry);
+
+    /** Percentage of the dereferenced records which were found in the cache, during the last interval. */
+    public MetricsIntValue derefCacheHitRate = new MetricsIntValue("deref_cache_hit_pct", registry);
+
+    /** Number of reindex requests which are waiting to be published. */
+    public MetricsIntValue reindexPending = new MetricsIntValue("reindex_pending", registry);
+
+    /** Time in ms since the oldest reindex request which is waiting to be published was requested. */
+    public MetricsLongValue reindexPendingAge = new MetricsLongValue("reindex_pending_age", registry);
+
+    /** Number of reindex requests which were published. */
+    public MetricsTimeVaryingLong reindexPublished = new MetricsTimeVaryingLong("reindex_published", registry);
+
+    /** Number of reindex requests which were merged into a request for the same record. */
+    public MetricsTimeVaryingLong reindexCoalesced = new MetricsTimeVaryingLong("reindex_coalesced", registry);
+
+    public LilyIndexerMetrics(String recordName) {
+        this.recordName = recordName;
+        context = MetricsUtil.getContext("indexer");
+        metricsRecord = MetricsUtil.createRecord(context, recordName);
+        context.registerUpdater(this);
+        mbean = new LilyIndexerMetricsMXBean(this.registry);
+    }
+
+    public void shutdown() {
+        context.unregisterUpdater(this);
+        mbean.shutdown();
+    }
+
+    /**
+     * Adds the counts of the given cache, after which they are reset.
+     */
+    public synchronized void report(DerefRecordCache cache) {
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        long reads = cache.getReads();
+        cache.resetCounts();
+
+        derefCacheHits.inc(hits);
+        derefCacheMisses.inc(misses);
+        derefReads.inc(reads);
+        derefReadsSaved.inc(hits + misses - reads);
+    }
+
+    @Override
+    public void doUpdates(MetricsContext unused) {
+        synchronized (this) {
+            long lookups = derefCacheHits.getCurrentIntervalValue() + derefCacheMisses.getCurrentIntervalValue();
+            derefCacheHitRate.set(lookups == 0 ? 0 : (int)(derefCacheHits.getCurrentIntervalValue() * 100 / lookups));
+
+            for (MetricsBase m : registry.getMetricsList()) {
+                m.pushMetric(metricsRecord);
+            }
+        }
+        metricsRecord.update();
+    }
+
+    public class LilyIndexerMetricsMXBean extends MetricsDynamicMBeanBase {
+        private final ObjectName mbeanName;
+
+        public LilyIndexerMetricsMXBean(MetricsRegistry registry) {
+            super(registry, "Lily Indexer");
+
+            mbeanName = MBeanUtil.registerMBean("Indexer", recordName, this);
+        }
+
+        public void shutdown() {
+            if (mbeanName != null) {
+                MBeanUtil.unregisterMBean(mbeanName);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.lilyproject.indexer.hbase.mapper;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -13,10 +14,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.ngdata.hbaseindexer.Configurable;
@@ -31,13 +29,13 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.lilyproject.client.LilyClient;
 import org.lilyproject.hbaseindex.IndexNotFoundException;
-import org.lilyproject.indexer.derefmap.DependantRecordIdsIterator;
 import org.lilyproject.indexer.derefmap.DependencyEntry;
 import org.lilyproject.indexer.derefmap.DerefMap;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
 import org.lilyproject.indexer.engine.SolrDocumentBuilder;
 import org.lilyproject.indexer.engine.ValueEvaluator;
 import org.lilyproject.indexer.model.api.LResultToSolrMapper;
+import org.lilyproject.indexer.model.indexerconf.DerefRecordCache;
 import org.lilyproject.indexer.model.indexerconf.DynamicFieldNameTemplateResolver;
 import org.lilyproject.indexer.model.indexerconf.DynamicIndexField;
 import org.lilyproject.indexer.model.indexerconf.IndexCase;
@@ -85,6 +83,8 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
 
     private final Log log = LogFactory.getLog(getClass());
 
+    private static final int DEFAULT_REINDEX_PRIORITY_THRESHOLD = 100;
+
     private String repositoryName;
     private String indexName;
 
@@ -99,6 +99,18 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
     private LilyEventPublisherManager eventPublisherManager;
     private String subscriptionId;
     private boolean enableDerefMap = true;
+    private int derefCacheSize = DerefRecordCache.DEFAULT_MAX_SIZE;
+    private long reindexCoalesceWindow = 0;
+    private double reindexMaxRate = 0;
+    private int reindexPriorityThreshold = DEFAULT_REINDEX_PRIORITY_THRESHOLD;
+    private ReindexFanout reindexFanout;
+    private LilyIndexerMetrics metrics;
+
+    /**
+     * The cache of dereferenced records of the batch which is being mapped by the current thread. All results of
+     * a batch are mapped with the same SolrUpdateWriter, so when another writer is used, a new batch has started.
+     */
+    private final ThreadLocal<BatchDerefRecordCache> batchDerefRecordCache = new ThreadLocal<BatchDerefRecordCache>();
 
     public LilyResultToSolrMapper(String indexName, LilyIndexerConf lilyIndexerConf, RepositoryManager repositoryManager, ZooKeeperItf zooKeeperItf) {
         setIndexName(indexName);
@@ -114,6 +126,15 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
             String repoParam = Optional.fromNullable(params.get(LResultToSolrMapper.REPO_KEY)).or(RepoAndTableUtil.DEFAULT_REPOSITORY);
             setRepositoryName(repoParam);
             enableDerefMap = Boolean.parseBoolean(Optional.fromNullable(params.get(LResultToSolrMapper.ENABLE_DEREFMAP_KEY)).or("true"));
+            derefCacheSize = Integer.parseInt(Optional.fromNullable(params.get(LResultToSolrMapper.DEREF_CACHE_SIZE_KEY))
+                    .or(String.valueOf(DerefRecordCache.DEFAULT_MAX_SIZE)));
+            reindexCoalesceWindow = Long.parseLong(Optional.fromNullable(
+                    params.get(LResultToSolrMapper.REINDEX_COALESCE_WINDOW_KEY)).or("0"));
+            reindexMaxRate = Double.parseDouble(Optional.fromNullable(
+                    params.get(LResultToSolrMapper.REINDEX_MAX_RATE_KEY)).or("0"));
+            reindexPriorityThreshold = Integer.parseInt(Optional.fromNullable(
+                    params.get(LResultToSolrMapper.REINDEX_PRIORITY_THRESHOLD_KEY))
+                    .or(String.valueOf(DEFAULT_REINDEX_PRIORITY_THRESHOLD)));
             init();
 
         } catch (Exception e) {
@@ -129,15 +150,31 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
         valueEvaluator = new ValueEvaluator(lilyIndexerConf);
         recordDecoder = new RecordDecoder(repository.getTypeManager(), repository.getIdGenerator(), repository.getRecordFactory());
 
+        if (lilyIndexerConf.containsDerefExpressions()) {
+            metrics = new LilyIndexerMetrics(indexName);
+        }
+
         if (lilyIndexerConf.containsDerefExpressions() && enableDerefMap) {
             HBaseTableFactory tableFactory = new HBaseTableFactoryImpl(LilyClient.getHBaseConfiguration(zooKeeperItf));
             eventPublisherManager = new LilyEventPublisherManager(tableFactory);
             derefMap = DerefMapHbaseImpl.create(repository.getRepositoryName(), indexName,
                     LilyClient.getHBaseConfiguration(zooKeeperItf), null, repository.getIdGenerator());
+            reindexFanout = new ReindexFanout(eventPublisherManager, repository.getRepositoryName(), subscriptionId,
+                    reindexCoalesceWindow, reindexMaxRate, reindexPriorityThreshold, metrics);
         }
     }
 
     public void stop () {
+        if (reindexFanout != null) {
+            try {
+                reindexFanout.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (metrics != null) {
+            metrics.shutdown();
+        }
         Closer.close(eventPublisherManager);
         Closer.close(repository);
         Closer.close(repositoryManager);
@@ -344,43 +381,36 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
                                         Set<SchemaId> changedVTagFields)
             throws RepositoryException, InterruptedException, IOException {
 
-        Multimap<AbsoluteRecordId, SchemaId> referrersAndVTags = ArrayListMultimap.create();
-
         Set<SchemaId> allVTags = lilyIndexerConf.getVtags();
 
         if (log.isDebugEnabled()) {
             log.debug("Updating denormalized data for " + recordId + ", vtags: " + changedVTagFields);
         }
 
-        // The reason to iterate over all vtags is because a field from a record without versions might be
+        // The reason to look at all vtags is because a field from a record without versions might be
         // dereferenced into multiple vtagged versions of another record, and we don't know what the [indexed]
-        // vtags of that other record are.
+        // vtags of that other record are. The dependants in all vtags are looked up with one query.
+        Set<SchemaId> updatedFields = null;
+        if (updatedFieldsByScope != null) {
+            updatedFields = new HashSet<SchemaId>();
+            for (Scope scope : updatedFieldsByScope.keySet()) {
+                updatedFields.addAll(toSchemaIds(updatedFieldsByScope.get(scope)));
+            }
+        }
+        Map<SchemaId, Set<SchemaId>> fieldsByVTag = new HashMap<SchemaId, Set<SchemaId>>();
         for (SchemaId vtag : allVTags) {
-            if ((changedVTagFields != null && changedVTagFields.contains(vtag)) || updatedFieldsByScope == null) {
+            if ((changedVTagFields != null && changedVTagFields.contains(vtag)) || updatedFields == null) {
                 // changed vtags or delete: reindex regardless of fields
-                AbsoluteRecordId absRecordId = new AbsoluteRecordIdImpl(table, recordId);
-                DependantRecordIdsIterator dependants = derefMap.findDependantsOf(absRecordId);
-                if (log.isDebugEnabled()) {
-                    log.debug("changed vtag: dependants of " + recordId + ": " +
-                            depIds(derefMap.findDependantsOf(absRecordId)));
-                }
-                while (dependants.hasNext()) {
-                    referrersAndVTags.put(dependants.next(), vtag);
-                }
+                fieldsByVTag.put(vtag, null);
             } else {
                 // vtag didn't change, but some fields did change:
-                Set<SchemaId> fields = new HashSet<SchemaId>();
-                for (Scope scope : updatedFieldsByScope.keySet()) {
-                    fields.addAll(toSchemaIds(updatedFieldsByScope.get(scope)));
-                }
-                AbsoluteRecordId absRecordId = new AbsoluteRecordIdImpl(table, recordId);
-                final DependantRecordIdsIterator dependants = derefMap.findDependantsOf(absRecordId, fields, vtag);
-                while (dependants.hasNext()) {
-                    referrersAndVTags.put(dependants.next(), vtag);
-                }
+                fieldsByVTag.put(vtag, updatedFields);
             }
         }
 
+        AbsoluteRecordId absRecordId = new AbsoluteRecordIdImpl(table, recordId);
+        Multimap<AbsoluteRecordId, SchemaId> referrersAndVTags = derefMap.findDependantsOf(absRecordId, fieldsByVTag);
+
         if (log.isDebugEnabled()) {
             log.debug(String.format("Record %1$s: found %2$s records (times vtags) to be updated because they " +
                     "might contain outdated denormalized data." +
@@ -392,31 +422,7 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
         // Now add an index message to each of the found referrers, their actual indexing
         // will be triggered by the message queue.
         //
-        for (AbsoluteRecordId referrer : referrersAndVTags.keySet()) {
-            RecordEvent payload = new RecordEvent();
-            payload.setTableName(referrer.getTable());
-            payload.setType(INDEX);
-            for (SchemaId vtag : referrersAndVTags.get(referrer)) {
-                payload.addVTagToIndex(vtag);
-            }
-            RecordEvent.IndexRecordFilterData filterData = new RecordEvent.IndexRecordFilterData();
-            filterData.setSubscriptionInclusions(ImmutableSet.of(this.subscriptionId));
-            payload.setIndexRecordFilterData(filterData);
-
-            try {
-                eventPublisherManager.getEventPublisher(repo, referrer.getTable()
-                ).publishEvent(referrer.getRecordId().toBytes(), payload.toJsonBytes());
-            } catch (Exception e) {
-                // We failed to put the message: this is pretty important since it means the record's index
-                // won't get updated, therefore log as error, but after this we continue with the next one.
-                log.error("Error putting index message on queue of record " + referrer, e);
-                //metrics.errors.inc();
-            }
-            //metrics.lastReindexRequestedTimestamp.set(System.currentTimeMillis());
-
-
-
-        }
+        reindexFanout.add(referrersAndVTags);
     }
 
     private Set<SchemaId> toSchemaIds(Set<FieldType> fieldTypes) {
@@ -428,14 +434,6 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
         }));
     }
 
-    private List<AbsoluteRecordId> depIds(DependantRecordIdsIterator dependants) throws IOException {
-        List<AbsoluteRecordId> recordIds = Lists.newArrayList();
-        while (dependants.hasNext()) {
-            recordIds.add(dependants.next());
-        }
-        return recordIds;
-    }
-
     @Override
     public LRepository getRepository() {
         return this.repository;
@@ -667,8 +665,32 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
         return result;
     }
 
+    /**
+     * Returns the cache for the records which are dereferenced while indexing the batch to which the results
+     * written to the given writer belong.
+     */
+    private DerefRecordCache getDerefRecordCache(SolrUpdateWriter solrUpdateWriter) {
+        BatchDerefRecordCache batchCache = batchDerefRecordCache.get();
+        if (batchCache == null || batchCache.solrUpdateWriter.get() != solrUpdateWriter) {
+            batchCache = new BatchDerefRecordCache(solrUpdateWriter, new DerefRecordCache(derefCacheSize));
+            batchDerefRecordCache.set(batchCache);
+        }
+        return batchCache.cache;
+    }
+
+    private static class BatchDerefRecordCache {
+        private final WeakReference<SolrUpdateWriter> solrUpdateWriter;
+        private final DerefRecordCache cache;
+
+        BatchDerefRecordCache(SolrUpdateWriter solrUpdateWriter, DerefRecordCache cache) {
+            this.solrUpdateWriter = new WeakReference<SolrUpdateWriter>(solrUpdateWriter);
+            this.cache = cache;
+        }
+    }
+
     private void index(LTable table, VTaggedRecord vtRecord, Set<SchemaId> vtagsToIndex, SolrUpdateWriter solrUpdateWriter) throws Exception {
         IdRecord idRecord = vtRecord.getRecord();
+        DerefRecordCache derefRecordCache = getDerefRecordCache(solrUpdateWriter);
         Map<Long, Set<SchemaId>> vtagsToIndexByVersion = getVtagsByVersion(vtagsToIndex, vtRecord.getVTags());
         for (Map.Entry<Long, Set<SchemaId>> entry : vtagsToIndexByVersion.entrySet()) {
 
@@ -697,7 +719,8 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
                 for (SchemaId vtag : entry.getValue()) {
                     SolrDocumentBuilder solrDocumentBuilder = new SolrDocumentBuilder(repository, lilyIndexerConf.getRecordFilter(),
                             lilyIndexerConf.getSystemFields(), valueEvaluator, table.getTableName(), version,
-                            getIndexId(table.getTableName(), vtRecord.getId(), vtag), vtag, entry.getKey());
+                            getIndexId(table.getTableName(), vtRecord.getId(), vtag), vtag, entry.getKey(),
+                            derefRecordCache);
 
                     lilyIndexerConf.getIndexFields().collectIndexUpdate(solrDocumentBuilder);
 
@@ -758,6 +781,10 @@ public class LilyResultToSolrMapper implements LResultToSolrMapper,Configurable
                 }
             }
         }
+
+        if (metrics != null) {
+            metrics.report(derefRecordCache);
+        }
     }
 
     protected String vtagSetToNameString(Set<SchemaId> vtags) {
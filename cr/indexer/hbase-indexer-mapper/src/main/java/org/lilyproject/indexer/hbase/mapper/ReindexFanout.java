@@ -0,0 +1,330 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.hbase.mapper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lilyproject.repository.api.AbsoluteRecordId;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.sep.LilyEventPublisherManager;
+import org.lilyproject.sep.LilyHBaseEventPublisher;
+import org.lilyproject.util.repo.RecordEvent;
+
+import static org.lilyproject.util.repo.RecordEvent.Type.INDEX;
+
+/**
+ * Publishes the reindex requests (INDEX events) for the records which contain denormalized data of an updated
+ * record.
+ *
+ * <p>An update of a record to which many records link can result in a very large number of reindex requests.
+ * To avoid that these starve the normal indexing, the requests of such large fan-outs can be throttled:</p>
+ *
+ * <ul>
+ *     <li>with a coalesce window, requests are kept for the duration of the window, during which later requests
+ *     for the same record are merged into them.</li>
+ *     <li>with a rate limit, at most the given number of requests is published per second.</li>
+ * </ul>
+ *
+ * <p>The requests caused by an update with a fan-out of at most the priority threshold, which is typically a
+ * direct edit of a record with few dependants, form a priority lane: they are published right away, without
+ * waiting for the window or the rate limit.</p>
+ *
+ * <p>Throttled requests are kept in memory, and are lost if the process stops abnormally. They are published with
+ * batched mutations, see {@link LilyHBaseEventPublisher#publishEvents}, which don't check atomically that the
+ * records still exist. The other requests are published one by one with
+ * {@link LilyHBaseEventPublisher#publishEvent}. Without coalesce window and rate limit, which is the default, all
+ * requests are published before {@link #add} returns.</p>
+ */
+public class ReindexFanout {
+    private final Log log = LogFactory.getLog(getClass());
+
+    /**
+     * Maximum number of throttled events which are published with one batch of mutations.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private final LilyEventPublisherManager eventPublisherManager;
+    private final String repositoryName;
+    private final String subscriptionId;
+    private final long coalesceWindow;
+    private final RateLimiter rateLimiter;
+    private final int priorityThreshold;
+    private final LilyIndexerMetrics metrics;
+
+    /**
+     * The throttled requests, in the order in which they were first requested.
+     */
+    private final LinkedHashMap<AbsoluteRecordId, PendingReindex> pending =
+            new LinkedHashMap<AbsoluteRecordId, PendingReindex>();
+
+    private Thread publisherThread;
+
+    /**
+     * @param coalesceWindow time in ms during which throttled requests are coalesced, 0 for none
+     * @param maxRate maximum number of throttled requests which is published per second, 0 for no limit
+     * @param priorityThreshold updates with a fan-out up to this number of records are not throttled
+     * @param metrics can be null
+     */
+    public ReindexFanout(LilyEventPublisherManager eventPublisherManager, String repositoryName,
+            String subscriptionId, long coalesceWindow, double maxRate, int priorityThreshold,
+            LilyIndexerMetrics metrics) {
+        this.eventPublisherManager = eventPublisherManager;
+        this.repositoryName = repositoryName;
+        this.subscriptionId = subscriptionId;
+        this.coalesceWindow = coalesceWindow;
+        this.rateLimiter = maxRate > 0 ? RateLimiter.create(maxRate) : null;
+        this.priorityThreshold = priorityThreshold;
+        this.metrics = metrics;
+
+        if (isThrottled()) {
+            publisherThread = new Thread(new PublisherRunnable(), "Reindex fan-out publisher " + subscriptionId);
+            publisherThread.setDaemon(true);
+            publisherThread.start();
+        }
+    }
+
+    private boolean isThrottled() {
+        return coalesceWindow > 0 || rateLimiter != null;
+    }
+
+    /**
+     * Stops publishing in the background. The requests which are still pending are published before returning.
+     */
+    public void stop() throws InterruptedException {
+        if (publisherThread != null) {
+            publisherThread.interrupt();
+            publisherThread.join();
+            publisherThread = null;
+        }
+
+        Map<AbsoluteRecordId, Set<SchemaId>> remaining = new LinkedHashMap<AbsoluteRecordId, Set<SchemaId>>();
+        synchronized (pending) {
+            for (Map.Entry<AbsoluteRecordId, PendingReindex> entry : pending.entrySet()) {
+                remaining.put(entry.getKey(), entry.getValue().vtags);
+            }
+            pending.clear();
+        }
+        publish(remaining, true);
+    }
+
+    /**
+     * Requests the reindexing of the given records, all caused by the update of one record.
+     *
+     * @param referrersAndVTags the vtags to reindex, per record
+     */
+    public void add(Multimap<AbsoluteRecordId, SchemaId> referrersAndVTags) throws InterruptedException {
+        if (!isThrottled() || referrersAndVTags.keySet().size() <= priorityThreshold) {
+            Map<AbsoluteRecordId, Set<SchemaId>> requests = new LinkedHashMap<AbsoluteRecordId, Set<SchemaId>>();
+            synchronized (pending) {
+                for (AbsoluteRecordId referrer : referrersAndVTags.keySet()) {
+                    Set<SchemaId> vtags = new HashSet<SchemaId>(referrersAndVTags.get(referrer));
+                    // Take along a throttled request for the same record, it is published now anyway
+                    PendingReindex pendingReindex = pending.remove(referrer);
+                    if (pendingReindex != null) {
+                        vtags.addAll(pendingReindex.vtags);
+                        coalesced(1);
+                    }
+                    requests.put(referrer, vtags);
+                }
+            }
+            publish(requests, false);
+        } else {
+            long now = System.currentTimeMillis();
+            int coalesced = 0;
+            synchronized (pending) {
+                for (AbsoluteRecordId referrer : referrersAndVTags.keySet()) {
+                    PendingReindex pendingReindex = pending.get(referrer);
+                    if (pendingReindex == null) {
+                        pendingReindex = new PendingReindex(now);
+                        pending.put(referrer, pendingReindex);
+                    } else {
+                        coalesced++;
+                    }
+                    pendingReindex.vtags.addAll(referrersAndVTags.get(referrer));
+                }
+                pending.notifyAll();
+            }
+            coalesced(coalesced);
+        }
+    }
+
+    private void requeue(Map<AbsoluteRecordId, Set<SchemaId>> requests) {
+        synchronized (pending) {
+            for (Map.Entry<AbsoluteRecordId, Set<SchemaId>> entry : requests.entrySet()) {
+                PendingReindex pendingReindex = pending.get(entry.getKey());
+                if (pendingReindex == null) {
+                    pendingReindex = new PendingReindex(0);
+                    pending.put(entry.getKey(), pendingReindex);
+                }
+                pendingReindex.vtags.addAll(entry.getValue());
+            }
+        }
+    }
+
+    private void coalesced(int count) {
+        if (metrics != null && count > 0) {
+            metrics.reindexCoalesced.inc(count);
+        }
+    }
+
+    /**
+     * Waits until throttled requests have been pending for the coalesce window, and removes up to
+     * {@link #BATCH_SIZE} of them.
+     */
+    private Map<AbsoluteRecordId, Set<SchemaId>> takeBatch() throws InterruptedException {
+        Map<AbsoluteRecordId, Set<SchemaId>> batch = new LinkedHashMap<AbsoluteRecordId, Set<SchemaId>>();
+        synchronized (pending) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long oldest = pending.isEmpty() ? now : pending.values().iterator().next().requested;
+                updatePendingMetrics(now - oldest);
+
+                if (!pending.isEmpty() && now - oldest >= coalesceWindow) {
+                    break;
+                }
+                // Wake up regularly to keep the metrics up to date
+                long wait = pending.isEmpty() ? 1000 : coalesceWindow - (now - oldest);
+                pending.wait(Math.min(wait, 1000));
+            }
+
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<AbsoluteRecordId, PendingReindex>> it = pending.entrySet().iterator();
+            while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                Map.Entry<AbsoluteRecordId, PendingReindex> entry = it.next();
+                if (now - entry.getValue().requested < coalesceWindow) {
+                    break;
+                }
+                batch.put(entry.getKey(), entry.getValue().vtags);
+                it.remove();
+            }
+        }
+        return batch;
+    }
+
+    private void updatePendingMetrics(long age) {
+        if (metrics != null) {
+            metrics.reindexPending.set(pending.size());
+            metrics.reindexPendingAge.set(age);
+        }
+    }
+
+    /**
+     * @param batched true to publish the events with batched mutations, false to publish them one by one
+     */
+    private void publish(Map<AbsoluteRecordId, Set<SchemaId>> requests, boolean batched) throws InterruptedException {
+        // The events are published per table
+        Map<String, List<AbsoluteRecordId>> referrersByTable = new LinkedHashMap<String, List<AbsoluteRecordId>>();
+        for (AbsoluteRecordId referrer : requests.keySet()) {
+            List<AbsoluteRecordId> referrers = referrersByTable.get(referrer.getTable());
+            if (referrers == null) {
+                referrers = new ArrayList<AbsoluteRecordId>();
+                referrersByTable.put(referrer.getTable(), referrers);
+            }
+            referrers.add(referrer);
+        }
+
+        for (Map.Entry<String, List<AbsoluteRecordId>> entry : referrersByTable.entrySet()) {
+            List<AbsoluteRecordId> referrers = entry.getValue();
+            int batchSize = batched ? BATCH_SIZE : 1;
+            for (int start = 0; start < referrers.size(); start += batchSize) {
+                List<AbsoluteRecordId> batch = referrers.subList(start, Math.min(start + batchSize, referrers.size()));
+                try {
+                    LilyHBaseEventPublisher eventPublisher =
+                            eventPublisherManager.getEventPublisher(repositoryName, entry.getKey());
+                    if (batched) {
+                        List<byte[]> rows = new ArrayList<byte[]>(batch.size());
+                        List<byte[]> payloads = new ArrayList<byte[]>(batch.size());
+                        for (AbsoluteRecordId referrer : batch) {
+                            rows.add(referrer.getRecordId().toBytes());
+                            payloads.add(createPayload(referrer, requests.get(referrer)));
+                        }
+                        eventPublisher.publishEvents(rows, payloads);
+                    } else {
+                        AbsoluteRecordId referrer = batch.get(0);
+                        eventPublisher.publishEvent(referrer.getRecordId().toBytes(),
+                                createPayload(referrer, requests.get(referrer)));
+                    }
+                    if (metrics != null) {
+                        metrics.reindexPublished.inc(batch.size());
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // We failed to put the messages: this is pretty important since it means the records' index
+                    // won't get updated, therefore log as error, but after this we continue with the next ones.
+                    log.error("Error putting index messages on queue of records " + batch, e);
+                }
+            }
+        }
+    }
+
+    private byte[] createPayload(AbsoluteRecordId referrer, Set<SchemaId> vtags) {
+        RecordEvent payload = new RecordEvent();
+        payload.setTableName(referrer.getTable());
+        payload.setType(INDEX);
+        for (SchemaId vtag : vtags) {
+            payload.addVTagToIndex(vtag);
+        }
+        RecordEvent.IndexRecordFilterData filterData = new RecordEvent.IndexRecordFilterData();
+        filterData.setSubscriptionInclusions(ImmutableSet.of(subscriptionId));
+        payload.setIndexRecordFilterData(filterData);
+        return payload.toPayloadBytes();
+    }
+
+    private static class PendingReindex {
+        private final long requested;
+        private final Set<SchemaId> vtags = new HashSet<SchemaId>();
+
+        PendingReindex(long requested) {
+            this.requested = requested;
+        }
+    }
+
+    private class PublisherRunnable implements Runnable {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Map<AbsoluteRecordId, Set<SchemaId>> batch = null;
+                try {
+                    batch = takeBatch();
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire(batch.size());
+                    }
+                    publish(batch, true);
+                } catch (InterruptedException e) {
+                    // Leave the batch to stop(), publishing a request twice does no harm
+                    if (batch != null) {
+                        requeue(batch);
+                    }
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    log.error("Error publishing reindex requests", t);
+                }
+            }
+        }
+    }
+}
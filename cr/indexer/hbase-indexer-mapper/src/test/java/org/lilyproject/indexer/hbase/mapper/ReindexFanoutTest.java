@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.hbase.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.AbsoluteRecordId;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.sep.LilyEventPublisherManager;
+import org.lilyproject.sep.LilyHBaseEventPublisher;
+import org.lilyproject.util.repo.RecordEvent;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReindexFanoutTest {
+    private static final String TABLE = "record";
+
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+    private SchemaId vtag1 = idGenerator.getSchemaId(UUID.randomUUID());
+    private SchemaId vtag2 = idGenerator.getSchemaId(UUID.randomUUID());
+
+    private LilyEventPublisherManager eventPublisherManager;
+    private LilyHBaseEventPublisher eventPublisher;
+    private ReindexFanout reindexFanout;
+
+    @Before
+    public void setUp() throws Exception {
+        eventPublisher = mock(LilyHBaseEventPublisher.class);
+        eventPublisherManager = mock(LilyEventPublisherManager.class);
+        when(eventPublisherManager.getEventPublisher(anyString(), anyString())).thenReturn(eventPublisher);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (reindexFanout != null) {
+            reindexFanout.stop();
+        }
+    }
+
+    private ReindexFanout newReindexFanout(long coalesceWindow, double maxRate, int priorityThreshold) {
+        reindexFanout = new ReindexFanout(eventPublisherManager, "default", "subscription", coalesceWindow, maxRate,
+                priorityThreshold, null);
+        return reindexFanout;
+    }
+
+    @Test
+    public void testUnthrottled() throws Exception {
+        newReindexFanout(0, 0, 0);
+
+        reindexFanout.add(requests(vtag1, "A", "B", "C"));
+
+        // Published before add returns, with a checkAndPut per record
+        verify(eventPublisher, times(3)).publishEvent(any(byte[].class), any(byte[].class));
+        verify(eventPublisher, never()).publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+    }
+
+    @Test
+    public void testPriorityLane() throws Exception {
+        newReindexFanout(60000, 0, 2);
+
+        // A fan-out above the threshold is throttled
+        reindexFanout.add(requests(vtag1, "A", "B", "C"));
+        verify(eventPublisher, never()).publishEvent(any(byte[].class), any(byte[].class));
+
+        // A fan-out up to the threshold is published right away, taking along the throttled request of the
+        // same record
+        reindexFanout.add(requests(vtag2, "A", "D"));
+        ArgumentCaptor<byte[]> rows = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<byte[]> payloads = ArgumentCaptor.forClass(byte[].class);
+        verify(eventPublisher, times(2)).publishEvent(rows.capture(), payloads.capture());
+        assertEquals(Sets.newHashSet(recordId("A"), recordId("D")), Sets.newHashSet(toRecordIds(rows.getAllValues())));
+        for (int i = 0; i < 2; i++) {
+            Set<SchemaId> expectedVTags = recordId("A").equals(toRecordId(rows.getAllValues().get(i))) ?
+                    Sets.newHashSet(vtag1, vtag2) : Sets.newHashSet(vtag2);
+            assertEquals(expectedVTags, toVTags(payloads.getAllValues().get(i)));
+        }
+        verify(eventPublisher, never()).publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+
+        // The other throttled requests are still pending
+        reindexFanout.stop();
+        assertEquals(Arrays.asList(recordId("B"), recordId("C")), toRecordIds(captureBatches(1).get(0)));
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        newReindexFanout(60000, 0, 0);
+
+        reindexFanout.add(requests(vtag1, "A", "B"));
+        reindexFanout.add(requests(vtag2, "A"));
+        reindexFanout.add(requests(vtag1, "B", "C"));
+        verify(eventPublisher, never()).publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+
+        // Stopping publishes the pending requests, one per record, in the order they were first requested
+        reindexFanout.stop();
+        ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List> payloads = ArgumentCaptor.forClass(List.class);
+        verify(eventPublisher).publishEvents(rows.capture(), payloads.capture());
+        assertEquals(Arrays.asList(recordId("A"), recordId("B"), recordId("C")), toRecordIds(rows.getValue()));
+        assertEquals(Sets.newHashSet(vtag1, vtag2), toVTags((byte[])payloads.getValue().get(0)));
+        assertEquals(Sets.newHashSet(vtag1), toVTags((byte[])payloads.getValue().get(1)));
+        assertEquals(Sets.newHashSet(vtag1), toVTags((byte[])payloads.getValue().get(2)));
+        verify(eventPublisher, never()).publishEvent(any(byte[].class), any(byte[].class));
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        final List<Long> publishTimes = Collections.synchronizedList(new ArrayList<Long>());
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                publishTimes.add(System.currentTimeMillis());
+                return null;
+            }
+        }).when(eventPublisher).publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+
+        newReindexFanout(0, 100, 0);
+
+        String[] ids = new String[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "R" + i;
+        }
+        reindexFanout.add(requests(vtag1, ids));
+        verify(eventPublisher, timeout(5000)).publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+
+        // The first 100 requests take up the permits of one second
+        reindexFanout.add(requests(vtag1, "A"));
+        verify(eventPublisher, timeout(5000).times(2))
+                .publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+        assertTrue(publishTimes.get(1) - publishTimes.get(0) >= 800);
+    }
+
+    @Test
+    public void testRequeueOnInterrupt() throws Exception {
+        // The publisher thread is interrupted while publishing
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        when(eventPublisherManager.getEventPublisher(anyString(), anyString())).thenAnswer(
+                new Answer<LilyHBaseEventPublisher>() {
+                    @Override
+                    public LilyHBaseEventPublisher answer(InvocationOnMock invocation) throws Throwable {
+                        if (interrupted.getCount() > 0) {
+                            interrupted.countDown();
+                            throw new InterruptedException();
+                        }
+                        return eventPublisher;
+                    }
+                });
+
+        newReindexFanout(0, 1000, 0);
+
+        reindexFanout.add(requests(vtag1, "A", "B"));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // The batch which was being published is published by stop
+        reindexFanout.stop();
+        assertEquals(Arrays.asList(recordId("A"), recordId("B")), toRecordIds(captureBatches(1).get(0)));
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        newReindexFanout(60000, 10, 0);
+
+        reindexFanout.add(requests(vtag1, "A", "B"));
+        verify(eventPublisher, never()).publishEvents(anyListOf(byte[].class), anyListOf(byte[].class));
+
+        reindexFanout.stop();
+        assertEquals(Arrays.asList(recordId("A"), recordId("B")), toRecordIds(captureBatches(1).get(0)));
+
+        // Nothing is left to publish
+        reindexFanout.stop();
+        captureBatches(1);
+    }
+
+    private Multimap<AbsoluteRecordId, SchemaId> requests(SchemaId vtag, String... ids) {
+        Multimap<AbsoluteRecordId, SchemaId> requests = LinkedHashMultimap.create();
+        for (String id : ids) {
+            requests.put(idGenerator.newAbsoluteRecordId(TABLE, id), vtag);
+        }
+        return requests;
+    }
+
+    private RecordId recordId(String id) {
+        return idGenerator.newRecordId(id);
+    }
+
+    private List<List> captureBatches(int count) throws Exception {
+        ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+        verify(eventPublisher, times(count)).publishEvents(rows.capture(), anyListOf(byte[].class));
+        return rows.getAllValues();
+    }
+
+    private RecordId toRecordId(byte[] row) {
+        return idGenerator.fromBytes(row);
+    }
+
+    private List<RecordId> toRecordIds(List rows) {
+        List<RecordId> recordIds = new ArrayList<RecordId>();
+        for (Object row : rows) {
+            recordIds.add(toRecordId((byte[])row));
+        }
+        return recordIds;
+    }
+
+    private Set<SchemaId> toVTags(byte[] payload) throws Exception {
+        return new RecordEvent(payload, idGenerator).getVtagsToIndex();
+    }
+}
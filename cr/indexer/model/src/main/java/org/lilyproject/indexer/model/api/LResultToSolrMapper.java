@@ -9,6 +9,10 @@ public interface LResultToSolrMapper extends ResultToSolrMapper {
     static final String REPO_KEY = "lily.repository"; // defaults to 'default'
     static final String TABLE_KEY = "lily.table"; // defaults to 'record'
     static final String ENABLE_DEREFMAP_KEY = "lily.enable-derefmap"; // defaults to 'true'
+    static final String DEREF_CACHE_SIZE_KEY = "lily.deref-cache-size"; // defaults to 1000 records
+    static final String REINDEX_COALESCE_WINDOW_KEY = "lily.reindex-coalesce-window"; // in ms, defaults to 0
+    static final String REINDEX_MAX_RATE_KEY = "lily.reindex-max-rate"; // per second, defaults to 0 (no limit)
+    static final String REINDEX_PRIORITY_THRESHOLD_KEY = "lily.reindex-priority-threshold"; // defaults to 100
 
     LRepository getRepository();
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.model.indexerconf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.repository.api.AbsoluteRecordId;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.LRepository;
+import org.lilyproject.repository.api.LTable;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordNotFoundException;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.VersionNotFoundException;
+import org.lilyproject.util.repo.VTaggedRecord;
+
+/**
+ * Reads and caches the records which are dereferenced while indexing, see {@link LinkFieldFollow}.
+ *
+ * <p>The records which are not cached yet are read with one multi-get per table. When the same cache is used
+ * for the indexing of a batch of records, records to which many of these records link are read only once per
+ * batch, so the cached records can be as old as the batch. The cache is bounded: when it is full, the least
+ * recently used records are evicted.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+public class DerefRecordCache {
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final Map<Key, IdRecord> records;
+
+    private long hits;
+    private long misses;
+    private long reads;
+
+    public DerefRecordCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public DerefRecordCache(final int maxSize) {
+        this.records = new LinkedHashMap<Key, IdRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, IdRecord> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the given vtag version of each of the given records, in the same order. The returned list contains
+     * null for the records which do not exist, or which do not have the vtag.
+     */
+    public List<IdRecord> getRecords(List<AbsoluteRecordId> recordIds, SchemaId vtag, LRepository repository)
+            throws RepositoryException, InterruptedException {
+        IdRecord[] result = new IdRecord[recordIds.size()];
+
+        // Positions of the records which still need to be read, per table and record id
+        Map<String, Map<RecordId, List<Integer>>> toRead = new LinkedHashMap<String, Map<RecordId, List<Integer>>>();
+        for (int i = 0; i < result.length; i++) {
+            AbsoluteRecordId recordId = recordIds.get(i);
+            Key key = new Key(recordId.getTable(), recordId.getRecordId(), vtag);
+            if (records.containsKey(key)) {
+                result[i] = records.get(key);
+                hits++;
+            } else {
+                misses++;
+                Map<RecordId, List<Integer>> positionsById = toRead.get(recordId.getTable());
+                if (positionsById == null) {
+                    positionsById = new LinkedHashMap<RecordId, List<Integer>>();
+                    toRead.put(recordId.getTable(), positionsById);
+                }
+                List<Integer> positions = positionsById.get(recordId.getRecordId());
+                if (positions == null) {
+                    positions = new ArrayList<Integer>(1);
+                    positionsById.put(recordId.getRecordId(), positions);
+                }
+                positions.add(i);
+            }
+        }
+
+        for (Map.Entry<String, Map<RecordId, List<Integer>>> tableEntry : toRead.entrySet()) {
+            LTable table = repository.getTable(tableEntry.getKey());
+            Map<RecordId, List<Integer>> positionsById = tableEntry.getValue();
+
+            // Read the last version of all records at once, this also gives the vtags of the records
+            List<IdRecord> lastRecords = table.readWithIds(new ArrayList<RecordId>(positionsById.keySet()), null);
+            reads++;
+            Map<RecordId, IdRecord> lastRecordsById = new HashMap<RecordId, IdRecord>();
+            for (IdRecord lastRecord : lastRecords) {
+                lastRecordsById.put(lastRecord.getId(), lastRecord);
+            }
+
+            for (Map.Entry<RecordId, List<Integer>> entry : positionsById.entrySet()) {
+                IdRecord record = null;
+                IdRecord lastRecord = lastRecordsById.get(entry.getKey());
+                if (lastRecord != null) {
+                    try {
+                        VTaggedRecord vtRecord = new VTaggedRecord(lastRecord, null, table, repository);
+                        Long version = vtRecord.getVTags().get(vtag);
+                        if (version != null) {
+                            if (version != 0L && !version.equals(lastRecord.getVersion())) {
+                                // The vtag points to an older version, which is read separately
+                                reads++;
+                            }
+                            record = vtRecord.getIdRecord(version);
+                        }
+                    } catch (RecordNotFoundException e) {
+                        // ok, continue with null value
+                    } catch (VersionNotFoundException e) {
+                        // ok, continue with null value
+                    }
+                }
+                records.put(new Key(tableEntry.getKey(), entry.getKey(), vtag), record);
+                for (int position : entry.getValue()) {
+                    result[position] = record;
+                }
+            }
+        }
+
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Returns the given vtag version of the given record, or null if the record does not exist or does not have
+     * the vtag.
+     */
+    public IdRecord getRecord(AbsoluteRecordId recordId, SchemaId vtag, LRepository repository)
+            throws RepositoryException, InterruptedException {
+        return getRecords(Collections.singletonList(recordId), vtag, repository).get(0);
+    }
+
+    /**
+     * Number of records which were found in the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of records which were not found in the cache, and needed to be read.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of repository reads which were done to read the records which were not cached. Each read of the
+     * last versions can read multiple records, a vtag which points to an older version takes a read per record.
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    public void resetCounts() {
+        hits = 0;
+        misses = 0;
+        reads = 0;
+    }
+
+    public void clear() {
+        records.clear();
+    }
+
+    private static final class Key {
+        private final String table;
+        private final RecordId recordId;
+        private final SchemaId vtag;
+
+        private Key(String table, RecordId recordId, SchemaId vtag) {
+            this.table = table;
+            this.recordId = recordId;
+            this.vtag = vtag;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return table.equals(other.table) && recordId.equals(other.recordId) && vtag.equals(other.vtag);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = table.hashCode();
+            result = 31 * result + recordId.hashCode();
+            result = 31 * result + vtag.hashCode();
+            return result;
+        }
+    }
+}
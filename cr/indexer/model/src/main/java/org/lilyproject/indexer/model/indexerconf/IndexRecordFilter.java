@@ -87,6 +87,14 @@ public class IndexRecordFilter {
         return null;
     }
 
+    public List<RecordMatcher> getIncludeMatchers() {
+        List<RecordMatcher> matchers = new ArrayList<RecordMatcher>(includes.size());
+        for (Pair<RecordMatcher, IndexCase> include : includes) {
+            matchers.add(include.getV1());
+        }
+        return matchers;
+    }
+
     public List<IndexCase> getAllIndexCases() {
         List<IndexCase> cases = new ArrayList<IndexCase>(includes.size());
         for (Pair<RecordMatcher, IndexCase> include : includes) {
@@ -56,4 +56,9 @@ public interface IndexUpdateBuilder {
      */
     public String getTable();
 
+    /**
+     * Returns the cache through which the records which are dereferenced are read.
+     */
+    public DerefRecordCache getDerefRecordCache();
+
 }
@@ -16,20 +16,18 @@
 package org.lilyproject.indexer.model.indexerconf;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.lilyproject.repository.api.AbsoluteRecordId;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.LRepository;
-import org.lilyproject.repository.api.LTable;
 import org.lilyproject.repository.api.Link;
-import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordId;
-import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RepositoryException;
-import org.lilyproject.repository.api.VersionNotFoundException;
-import org.lilyproject.util.repo.VersionTag;
 
 public class LinkFieldFollow implements Follow {
     private FieldType fieldType;
@@ -67,23 +65,21 @@ public class LinkFieldFollow implements Follow {
         RecordContext ctx = indexUpdateBuilder.getRecordContext();
         LRepository repository = indexUpdateBuilder.getRepository();
 
-        // FIXME: it's more efficient to read all records at once
-        // but make sure missing records are also treated (handled here via null linkedRecord in case of RecordNotFoundException
         if (ctx.record != null) {
             List links = IndexerUtils.flatList(ctx.record, fieldType);
+            List<AbsoluteRecordId> linkedRecordIds = new ArrayList<AbsoluteRecordId>(links.size());
             for (Link link: (List<Link>)links) {
                 RecordId linkedRecordId = link.resolve(ctx.contextRecord, idGenerator);
-                Record linkedRecord = null;
                 String tableName = link.getTable() != null ? link.getTable() : indexUpdateBuilder.getTable();
-                LTable table = repository.getTable(tableName);
-                try {
-                    linkedRecord = VersionTag.getIdRecord(linkedRecordId, indexUpdateBuilder.getVTag(), table, repository);
-                } catch (RecordNotFoundException rnfe) {
-                    // ok, continue with null value
-                } catch (VersionNotFoundException e) {
-                    // ok, continue with null value
-                }
-                indexUpdateBuilder.push(linkedRecord, new Dep(linkedRecordId, Collections.<String>emptySet()));
+                linkedRecordIds.add(idGenerator.newAbsoluteRecordId(tableName, linkedRecordId));
+            }
+
+            // Read all linked records at once, missing records are treated via a null linkedRecord
+            List<IdRecord> linkedRecords = indexUpdateBuilder.getDerefRecordCache().getRecords(linkedRecordIds,
+                    indexUpdateBuilder.getVTag(), repository);
+            for (int i = 0; i < linkedRecordIds.size(); i++) {
+                RecordId linkedRecordId = linkedRecordIds.get(i).getRecordId();
+                indexUpdateBuilder.push(linkedRecords.get(i), new Dep(linkedRecordId, Collections.<String>emptySet()));
                 callback.call();
                 indexUpdateBuilder.pop();
             }
@@ -18,13 +18,10 @@ package org.lilyproject.indexer.model.indexerconf;
 import java.io.IOException;
 import java.util.Collections;
 
+import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.LRepository;
-import org.lilyproject.repository.api.LTable;
 import org.lilyproject.repository.api.Record;
-import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RepositoryException;
-import org.lilyproject.repository.api.VersionNotFoundException;
-import org.lilyproject.util.repo.VersionTag;
 
 public class MasterFollow implements Follow {
 
@@ -37,17 +34,12 @@ public class MasterFollow implements Follow {
         }
 
         LRepository repository = indexUpdateBuilder.getRepository();
-        LTable table = repository.getTable(indexUpdateBuilder.getTable());
+        IdGenerator idGenerator = repository.getIdGenerator();
 
         Dep masterDep = new Dep(ctx.dep.id.getMaster(), Collections.<String>emptySet());
-        Record master = null;
-        try {
-            master = VersionTag.getIdRecord(masterDep.id, indexUpdateBuilder.getVTag(), table, repository);
-        } catch (RecordNotFoundException e) {
-            // It's ok that the master does not exist
-        } catch (VersionNotFoundException e) {
-            // It's ok that the master does not exist
-        }
+        Record master = indexUpdateBuilder.getDerefRecordCache().getRecord(
+                idGenerator.newAbsoluteRecordId(indexUpdateBuilder.getTable(), masterDep.id), indexUpdateBuilder.getVTag(),
+                repository);
 
         indexUpdateBuilder.push(master, masterDep);
         callback.call();
@@ -140,6 +140,28 @@ public class RecordMatcher {
         return true;
     }
 
+    public WildcardPattern getRecordTypeNamespace() {
+        return recordTypeNamespace;
+    }
+
+    public WildcardPattern getRecordTypeName() {
+        return recordTypeName;
+    }
+
+    /**
+     * The tables in which the record should be, an empty set if the table doesn't matter.
+     */
+    public Set<String> getTableNames() {
+        return Collections.unmodifiableSet(tableNames);
+    }
+
+    /**
+     * The variant properties pattern, see {@link #variantPropsPattern}, can be null.
+     */
+    public Map<String, String> getVariantPropsPattern() {
+        return variantPropsPattern;
+    }
+
     public Set<QName> getFieldDependencies() {
         return fieldType != null ? Collections.singleton(fieldType.getName()) : Collections.<QName>emptySet();
     }
@@ -101,6 +101,13 @@ public class WildcardPattern {
         return type == Type.STARTS_WITH || type == Type.ENDS_WITH;
     }
 
+    /**
+     * Returns the string which the input should be equal to, or null if the pattern contains a wildcard.
+     */
+    public String getExactMatch() {
+        return hasWildcard() ? null : string;
+    }
+
     public static boolean isWildcardExpression(String text) {
         return text.length() > 0 && (text.startsWith("*") || text.endsWith("*"));
     }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.model.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
+import org.lilyproject.indexer.model.indexerconf.RecordMatcher;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.util.hbase.RepoAndTableUtil;
+
+/**
+ * The record filters of all indexes, compiled to quickly find the indexes whose {@link IndexRecordFilter} can
+ * include a record, so that only the record filters of these candidate indexes need to be evaluated.
+ *
+ * <p>Each include of a record filter is stored under the conditions which can be looked up: the repository,
+ * the tables, the record type if it is specified without wildcards, and the number of variant properties if
+ * the variant properties pattern doesn't contain "*". Conditions which an include doesn't have in such form are
+ * stored as null, matching any record. Since a record only matches an include if all of its conditions match,
+ * and excludes can only exclude records, an index which is not a candidate for a record doesn't include it.</p>
+ *
+ * <p>Instances are immutable, {@link IndexesInfo} compiles a new one whenever the indexes change.</p>
+ */
+public class CompiledIndexRecordFilters {
+    private final Multimap<Key, IndexInfo> candidates = LinkedHashMultimap.create();
+    private final Set<String> subscriptionIds;
+
+    public CompiledIndexRecordFilters(Collection<IndexInfo> indexInfos) {
+        ImmutableSet.Builder<String> subscriptionIds = ImmutableSet.builder();
+        for (IndexInfo indexInfo : indexInfos) {
+            subscriptionIds.add(indexInfo.getIndexDefinition().getSubscriptionId());
+
+            String repositoryName = getRepositoryName(indexInfo);
+            IndexRecordFilter recordFilter = indexInfo.getLilyIndexerConf().getRecordFilter();
+            for (RecordMatcher include : recordFilter.getIncludeMatchers()) {
+                QName recordType = getRecordType(include);
+                Integer variantPropertyCount = getVariantPropertyCount(include);
+                if (include.getTableNames().isEmpty()) {
+                    candidates.put(new Key(repositoryName, null, recordType, variantPropertyCount), indexInfo);
+                } else {
+                    for (String table : include.getTableNames()) {
+                        candidates.put(new Key(repositoryName, table, recordType, variantPropertyCount), indexInfo);
+                    }
+                }
+            }
+        }
+        this.subscriptionIds = subscriptionIds.build();
+    }
+
+    private static String getRepositoryName(IndexInfo indexInfo) {
+        String repositoryName = indexInfo.getRepositoryName();
+        return repositoryName != null ? repositoryName : RepoAndTableUtil.DEFAULT_REPOSITORY;
+    }
+
+    private static QName getRecordType(RecordMatcher include) {
+        if (include.getRecordTypeNamespace() == null || include.getRecordTypeName() == null) {
+            return null;
+        }
+        String namespace = include.getRecordTypeNamespace().getExactMatch();
+        String name = include.getRecordTypeName().getExactMatch();
+        return namespace != null && name != null ? new QName(namespace, name) : null;
+    }
+
+    private static Integer getVariantPropertyCount(RecordMatcher include) {
+        Map<String, String> pattern = include.getVariantPropsPattern();
+        return pattern != null && !pattern.containsKey("*") ? pattern.size() : null;
+    }
+
+    /**
+     * The subscription ids of all indexes, of all repositories.
+     */
+    public Set<String> getSubscriptionIds() {
+        return subscriptionIds;
+    }
+
+    /**
+     * Returns the indexes of the given repository whose record filter can include the given record. The record
+     * filters of these indexes still need to be evaluated to know if they include the record.
+     */
+    public Set<IndexInfo> getCandidates(String repositoryName, String table, Record record) {
+        if (candidates.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        String[] tables = {table, null};
+        QName[] recordTypes = {record.getRecordTypeName(), null};
+        Integer[] variantPropertyCounts = {record.getId().getVariantProperties().size(), null};
+
+        Set<IndexInfo> result = new LinkedHashSet<IndexInfo>();
+        for (String t : tables) {
+            for (QName recordType : recordTypes) {
+                for (Integer variantPropertyCount : variantPropertyCounts) {
+                    result.addAll(candidates.get(new Key(repositoryName, t, recordType, variantPropertyCount)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static final class Key {
+        private final String repositoryName;
+        private final String table;
+        private final QName recordType;
+        private final Integer variantPropertyCount;
+
+        private Key(String repositoryName, String table, QName recordType, Integer variantPropertyCount) {
+            this.repositoryName = repositoryName;
+            this.table = table;
+            this.recordType = recordType;
+            this.variantPropertyCount = variantPropertyCount;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return repositoryName.equals(other.repositoryName) && Objects.equal(table, other.table)
+                    && Objects.equal(recordType, other.recordType)
+                    && Objects.equal(variantPropertyCount, other.variantPropertyCount);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(repositoryName, table, recordType, variantPropertyCount);
+        }
+    }
+}
@@ -46,6 +46,14 @@ public class IndexInfo {
         this.lilyIndexerConf = LilyIndexerConfBuilder.build(new ByteArrayInputStream(indexDefinition.getConfiguration()), repository);
     }
 
+    public IndexInfo(IndexerDefinition indexDefinition, IndexerConf indexerConf, LilyIndexerConf lilyIndexerConf,
+            String repositoryName) {
+        this.indexDefinition = indexDefinition;
+        this.indexerConf = indexerConf;
+        this.lilyIndexerConf = lilyIndexerConf;
+        this.repositoryName = repositoryName;
+    }
+
     public IndexerDefinition getIndexDefinition() {
         return indexDefinition;
     }
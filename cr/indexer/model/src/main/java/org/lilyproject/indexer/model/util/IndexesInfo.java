@@ -33,4 +33,9 @@ public interface IndexesInfo {
     Set<QName> getRecordFilterFieldDependencies();
 
     boolean getRecordFilterDependsOnRecordType();
+
+    /**
+     * The record filters of all indexes, compiled to quickly find the indexes which can include a record.
+     */
+    CompiledIndexRecordFilters getCompiledRecordFilters();
 }
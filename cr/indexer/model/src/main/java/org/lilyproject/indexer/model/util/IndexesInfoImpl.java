@@ -50,6 +50,7 @@ public class IndexesInfoImpl implements IndexesInfo {
     private Map<String, IndexInfo> indexInfos;
     private Set<QName> recordFilterFieldDependencies;
     private boolean recordFilterDependsOnRecordType;
+    private CompiledIndexRecordFilters compiledRecordFilters;
 
     private final Listener listener = new Listener();
     private final Log log = LogFactory.getLog(getClass());
@@ -117,6 +118,7 @@ public class IndexesInfoImpl implements IndexesInfo {
         this.indexInfos = newIndexInfos;
         this.recordFilterFieldDependencies = recordFilterFieldDependencies;
         this.recordFilterDependsOnRecordType = recordFilterDependsOnRecordType;
+        this.compiledRecordFilters = new CompiledIndexRecordFilters(newIndexInfos.values());
     }
 
     /**
@@ -152,6 +154,12 @@ public class IndexesInfoImpl implements IndexesInfo {
         return recordFilterDependsOnRecordType;
     }
 
+    @Override
+    public CompiledIndexRecordFilters getCompiledRecordFilters() {
+        assureInitialized();
+        return compiledRecordFilters;
+    }
+
     private class Listener implements IndexerModelListener {
         @Override
         public void process(IndexerModelEvent event) {
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.model.indexerconf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.AbsoluteRecordId;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.LRepository;
+import org.lilyproject.repository.api.LTable;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.repo.VersionTag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DerefRecordCacheTest {
+    private static final String TABLE = "record";
+
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+    private LRepository repository;
+    private LTable table;
+    private SchemaId lastVTag;
+    private SchemaId liveVTag;
+
+    @Before
+    public void setUp() throws Exception {
+        lastVTag = mock(SchemaId.class);
+        FieldType lastVTagType = mock(FieldType.class);
+        when(lastVTagType.getId()).thenReturn(lastVTag);
+        TypeManager typeManager = mock(TypeManager.class);
+        when(typeManager.getFieldTypeByName(VersionTag.LAST)).thenReturn(lastVTagType);
+
+        liveVTag = mock(SchemaId.class);
+        ValueType longValueType = mock(ValueType.class);
+        when(longValueType.getBaseName()).thenReturn("LONG");
+        FieldType liveVTagType = mock(FieldType.class);
+        when(liveVTagType.getId()).thenReturn(liveVTag);
+        when(liveVTagType.getName()).thenReturn(VersionTag.qname("live"));
+        when(liveVTagType.getScope()).thenReturn(Scope.NON_VERSIONED);
+        when(liveVTagType.getValueType()).thenReturn(longValueType);
+        when(typeManager.getFieldTypeById(liveVTag)).thenReturn(liveVTagType);
+
+        table = mock(LTable.class);
+        repository = mock(LRepository.class);
+        when(repository.getTypeManager()).thenReturn(typeManager);
+        when(repository.getTable(TABLE)).thenReturn(table);
+    }
+
+    private IdRecord newRecord(RecordId recordId) {
+        return newRecord(recordId, Collections.<SchemaId, Object>emptyMap());
+    }
+
+    private IdRecord newRecord(RecordId recordId, Map<SchemaId, Object> fields) {
+        IdRecord record = mock(IdRecord.class);
+        when(record.getId()).thenReturn(recordId);
+        when(record.getVersion()).thenReturn(1L);
+        when(record.getFieldsById()).thenReturn(fields);
+        return record;
+    }
+
+    @Test
+    public void testGetRecords() throws Exception {
+        RecordId idA = idGenerator.newRecordId();
+        RecordId idB = idGenerator.newRecordId();
+        RecordId idC = idGenerator.newRecordId();
+        IdRecord recordA = newRecord(idA);
+        IdRecord recordB = newRecord(idB);
+        when(table.readWithIds(Arrays.asList(idA, idB), null)).thenReturn(Arrays.asList(recordA, recordB));
+        when(table.readWithIds(Arrays.asList(idC), null)).thenReturn(Collections.<IdRecord>emptyList());
+
+        DerefRecordCache cache = new DerefRecordCache();
+
+        // Duplicate ids are read once
+        List<IdRecord> records = cache.getRecords(absIds(idA, idB, idA), lastVTag, repository);
+        assertEquals(3, records.size());
+        assertSame(recordA, records.get(0));
+        assertSame(recordB, records.get(1));
+        assertSame(recordA, records.get(2));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getReads());
+
+        // Missing records are null, and are cached as well
+        records = cache.getRecords(absIds(idA, idC), lastVTag, repository);
+        assertSame(recordA, records.get(0));
+        assertNull(records.get(1));
+        assertNull(cache.getRecord(idGenerator.newAbsoluteRecordId(TABLE, idC), lastVTag, repository));
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.getReads());
+
+        verify(table, times(2)).readWithIds(anyListOf(RecordId.class), eq((List<SchemaId>)null));
+
+        cache.resetCounts();
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getReads());
+    }
+
+    @Test
+    public void testReadsOfOlderVersions() throws Exception {
+        // The live vtag of A points to the last version, the one of B to an older version
+        RecordId idA = idGenerator.newRecordId();
+        RecordId idB = idGenerator.newRecordId();
+        IdRecord recordA = newRecord(idA, Collections.<SchemaId, Object>singletonMap(liveVTag, 1L));
+        IdRecord recordB = newRecord(idB, Collections.<SchemaId, Object>singletonMap(liveVTag, 1L));
+        when(recordB.getVersion()).thenReturn(2L);
+        IdRecord recordB1 = newRecord(idB);
+        when(table.readWithIds(Arrays.asList(idA, idB), null)).thenReturn(Arrays.asList(recordA, recordB));
+        when(table.readWithIds(idB, 1L, null)).thenReturn(recordB1);
+
+        DerefRecordCache cache = new DerefRecordCache();
+        List<IdRecord> records = cache.getRecords(absIds(idA, idB), liveVTag, repository);
+        assertSame(recordA, records.get(0));
+        assertSame(recordB1, records.get(1));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getReads());
+
+        // The last vtag needs no extra reads
+        records = cache.getRecords(absIds(idA, idB), lastVTag, repository);
+        assertSame(recordA, records.get(0));
+        assertSame(recordB, records.get(1));
+        assertEquals(4, cache.getMisses());
+        assertEquals(3, cache.getReads());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        RecordId idA = idGenerator.newRecordId();
+        RecordId idB = idGenerator.newRecordId();
+        IdRecord recordA = newRecord(idA);
+        IdRecord recordB = newRecord(idB);
+        when(table.readWithIds(Arrays.asList(idA), null)).thenReturn(Arrays.asList(recordA));
+        when(table.readWithIds(Arrays.asList(idB), null)).thenReturn(Arrays.asList(recordB));
+
+        DerefRecordCache cache = new DerefRecordCache(1);
+        assertSame(recordA, cache.getRecord(idGenerator.newAbsoluteRecordId(TABLE, idA), lastVTag, repository));
+        assertSame(recordB, cache.getRecord(idGenerator.newAbsoluteRecordId(TABLE, idB), lastVTag, repository));
+        // A has been evicted by B
+        assertSame(recordA, cache.getRecord(idGenerator.newAbsoluteRecordId(TABLE, idA), lastVTag, repository));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getReads());
+    }
+
+    private List<AbsoluteRecordId> absIds(RecordId... recordIds) {
+        AbsoluteRecordId[] result = new AbsoluteRecordId[recordIds.length];
+        for (int i = 0; i < recordIds.length; i++) {
+            result[i] = idGenerator.newAbsoluteRecordId(TABLE, recordIds[i]);
+        }
+        return Arrays.asList(result);
+    }
+}
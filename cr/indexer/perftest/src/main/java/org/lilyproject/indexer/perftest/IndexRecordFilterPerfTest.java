@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.perftest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.ngdata.hbaseindexer.model.api.IndexerDefinitionBuilder;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.indexer.integration.IndexRecordFilterHook;
+import org.lilyproject.indexer.model.indexerconf.IndexCase;
+import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
+import org.lilyproject.indexer.model.indexerconf.LilyIndexerConf;
+import org.lilyproject.indexer.model.indexerconf.RecordMatcher;
+import org.lilyproject.indexer.model.indexerconf.WildcardPattern;
+import org.lilyproject.indexer.model.util.CompiledIndexRecordFilters;
+import org.lilyproject.indexer.model.util.IndexInfo;
+import org.lilyproject.indexer.model.util.IndexesInfo;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.fake.FakeRepositoryManager;
+import org.lilyproject.repository.perftest.BaseMicroPerfTest;
+import org.lilyproject.util.hbase.LilyHBaseSchema.Table;
+import org.lilyproject.util.hbase.RepoAndTableUtil;
+import org.lilyproject.util.repo.RecordEvent;
+
+/**
+ * Measures the overhead which the {@link IndexRecordFilterHook} adds to a record update, against the number of
+ * indexes. Each index includes the records of its own record type. As a reference, the evaluation of the record
+ * filters of all indexes, which is what the hook did before the filters were compiled, is measured as well.
+ */
+public class IndexRecordFilterPerfTest extends BaseMicroPerfTest {
+    private static final String NS = "perftest";
+
+    private Option indexesOption;
+
+    public static void main(String[] args) throws Exception {
+        new IndexRecordFilterPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-index-record-filter-perftest";
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        indexesOption = OptionBuilder
+                .withArgName("counts")
+                .hasArg()
+                .withDescription("Comma-separated list of index counts to test, default 1,10,50,200")
+                .withLongOpt("indexes")
+                .create("x");
+        options.add(indexesOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        String indexCounts = OptionUtil.getStringOption(cmd, indexesOption, "1,10,50,200");
+        for (String indexCount : indexCounts.split(",")) {
+            runForIndexCount(Integer.parseInt(indexCount.trim()));
+            System.out.println();
+        }
+
+        return 0;
+    }
+
+    private void runForIndexCount(int indexCount) throws Exception {
+        Repository repository = (Repository)FakeRepositoryManager.bootstrapRepositoryManager().getDefaultRepository();
+        TypeManager typeManager = repository.getTypeManager();
+
+        final List<IndexInfo> indexInfos = new ArrayList<IndexInfo>(indexCount);
+        final Record[] records = new Record[indexCount];
+        for (int i = 0; i < indexCount; i++) {
+            QName recordType = new QName(NS, "Type" + i);
+            typeManager.createRecordType(typeManager.newRecordType(recordType));
+
+            IndexRecordFilter recordFilter = new IndexRecordFilter();
+            recordFilter.addInclude(new RecordMatcher(new WildcardPattern(NS), new WildcardPattern(recordType.getName()),
+                    null, null, null, null, null, null, typeManager),
+                    new IndexCase(Collections.<SchemaId>emptySet()));
+            indexInfos.add(new IndexInfo(new IndexerDefinitionBuilder().name("index" + i)
+                    .subscriptionId("Indexer_index" + i).build(), null, new PerfTestIndexerConf(recordFilter),
+                    RepoAndTableUtil.DEFAULT_REPOSITORY));
+
+            records[i] = repository.newRecord(repository.getIdGenerator().newRecordId());
+            records[i].setRecordType(recordType);
+        }
+
+        final IndexRecordFilterHook hook = new IndexRecordFilterHook(new PerfTestIndexesInfo(indexInfos));
+        final Repository repo = repository;
+
+        measure(indexCount + " indexes, evaluate all record filters", new Operation() {
+            private int i;
+
+            @Override
+            public Object run() throws Exception {
+                Record record = records[i];
+                i = (i + 1) % records.length;
+                int applicable = 0;
+                for (IndexInfo indexInfo : indexInfos) {
+                    IndexRecordFilter recordFilter = indexInfo.getLilyIndexerConf().getRecordFilter();
+                    // old and new record, as on update
+                    if (recordFilter.getIndexCase(Table.RECORD.name, record) != null
+                            || recordFilter.getIndexCase(Table.RECORD.name, record) != null) {
+                        applicable++;
+                    }
+                }
+                return applicable;
+            }
+        });
+
+        measure(indexCount + " indexes, IndexRecordFilterHook.beforeUpdate", new Operation() {
+            private int i;
+
+            @Override
+            public Object run() throws Exception {
+                Record record = records[i];
+                i = (i + 1) % records.length;
+                RecordEvent recordEvent = new RecordEvent();
+                recordEvent.setTableName(Table.RECORD.name);
+                hook.beforeUpdate(record, record, repo, null, recordEvent);
+                return recordEvent;
+            }
+        });
+    }
+
+    private static class PerfTestIndexerConf extends LilyIndexerConf {
+        PerfTestIndexerConf(IndexRecordFilter recordFilter) {
+            setRecordFilter(recordFilter);
+        }
+    }
+
+    private static class PerfTestIndexesInfo implements IndexesInfo {
+        private final Collection<IndexInfo> indexInfos;
+        private final CompiledIndexRecordFilters compiledRecordFilters;
+
+        PerfTestIndexesInfo(Collection<IndexInfo> indexInfos) {
+            this.indexInfos = indexInfos;
+            this.compiledRecordFilters = new CompiledIndexRecordFilters(indexInfos);
+        }
+
+        @Override
+        public Collection<IndexInfo> getIndexInfos() {
+            return indexInfos;
+        }
+
+        @Override
+        public Set<QName> getRecordFilterFieldDependencies() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public boolean getRecordFilterDependsOnRecordType() {
+            return true;
+        }
+
+        @Override
+        public CompiledIndexRecordFilters getCompiledRecordFilters() {
+            return compiledRecordFilters;
+        }
+    }
+}
@@ -18,8 +18,11 @@ package org.lilyproject.linkindex;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.Sets;
@@ -275,6 +278,109 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Creates an empty batch of link changes, to be applied with {@link #apply(Batch)}.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Applies the link changes of a number of records at once.
+     *
+     * <p>The existing forward links are read with one query per record (rather than one per record and vtag),
+     * and the resulting changes are written with one {@link Index#addEntries} and {@link Index#removeEntries}
+     * call per index. Just as for the changes to a single record, additions are done first on the forward index
+     * and removals first on the backward index.</p>
+     */
+    public void apply(Batch batch) throws LinkIndexException, InterruptedException {
+        if (batch.changes.isEmpty()) {
+            return;
+        }
+
+        long before = System.currentTimeMillis();
+        try {
+            List<IndexEntry> fwdAdded = new ArrayList<IndexEntry>();
+            List<IndexEntry> bkwdAdded = new ArrayList<IndexEntry>();
+            List<IndexEntry> fwdRemoved = new ArrayList<IndexEntry>();
+            List<IndexEntry> bkwdRemoved = new ArrayList<IndexEntry>();
+
+            for (Map.Entry<AbsoluteRecordId, RecordLinkChanges> entry : batch.changes.entrySet()) {
+                AbsoluteRecordId sourceRecord = entry.getKey();
+                RecordLinkChanges changes = entry.getValue();
+                byte[] sourceAsBytes = sourceRecord.toBytes();
+
+                Map<SchemaId, Set<FieldedLink>> oldLinksByVTag = new HashMap<SchemaId, Set<FieldedLink>>();
+                if (!changes.isNewRecord) {
+                    for (Pair<FieldedLink, SchemaId> link : getAllForwardLinks(sourceRecord)) {
+                        Set<FieldedLink> vtagLinks = oldLinksByVTag.get(link.getV2());
+                        if (vtagLinks == null) {
+                            vtagLinks = new HashSet<FieldedLink>();
+                            oldLinksByVTag.put(link.getV2(), vtagLinks);
+                        }
+                        vtagLinks.add(link.getV1());
+                    }
+                }
+
+                Set<SchemaId> vtags = new HashSet<SchemaId>(changes.linksByVTag.keySet());
+                if (changes.deleteOtherVTags) {
+                    vtags.addAll(oldLinksByVTag.keySet());
+                }
+
+                for (SchemaId vtag : vtags) {
+                    Set<FieldedLink> links = changes.linksByVTag.containsKey(vtag) ?
+                            changes.linksByVTag.get(vtag) : Collections.<FieldedLink>emptySet();
+                    Set<FieldedLink> oldLinks = oldLinksByVTag.containsKey(vtag) ?
+                            oldLinksByVTag.get(vtag) : Collections.<FieldedLink>emptySet();
+
+                    // Same as in updateLinks: only write what changed, to avoid a delete and put of the same
+                    // entry within the same millisecond
+                    for (FieldedLink link : links) {
+                        if (!oldLinks.contains(link)) {
+                            IndexEntry fwdEntry = createForwardIndexEntry(vtag, sourceRecord, link.getFieldTypeId());
+                            fwdEntry.setIdentifier(link.getAbsoluteRecordId().toBytes());
+                            fwdAdded.add(fwdEntry);
+
+                            IndexEntry bkwdEntry = createBackwardIndexEntry(vtag, link.getAbsoluteRecordId(),
+                                    link.getFieldTypeId());
+                            bkwdEntry.setIdentifier(sourceAsBytes);
+                            bkwdAdded.add(bkwdEntry);
+                        }
+                    }
+
+                    for (FieldedLink link : oldLinks) {
+                        if (!links.contains(link)) {
+                            IndexEntry bkwdEntry = createBackwardIndexEntry(vtag, link.getAbsoluteRecordId(),
+                                    link.getFieldTypeId());
+                            bkwdEntry.setIdentifier(sourceAsBytes);
+                            bkwdRemoved.add(bkwdEntry);
+
+                            IndexEntry fwdEntry = createForwardIndexEntry(vtag, sourceRecord, link.getFieldTypeId());
+                            fwdEntry.setIdentifier(link.getAbsoluteRecordId().toBytes());
+                            fwdRemoved.add(fwdEntry);
+                        }
+                    }
+                }
+            }
+
+            if (!fwdAdded.isEmpty()) {
+                forwardIndex.addEntries(fwdAdded);
+                backwardIndex.addEntries(bkwdAdded);
+            }
+
+            if (!bkwdRemoved.isEmpty()) {
+                backwardIndex.removeEntries(bkwdRemoved);
+                forwardIndex.removeEntries(fwdRemoved);
+            }
+        } catch (LinkIndexException e) {
+            throw new LinkIndexException("Error updating links for records " + batch.changes.keySet(), e);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error updating links for records " + batch.changes.keySet(), e);
+        } finally {
+            metrics.report(Action.APPLY_BATCH, System.currentTimeMillis() - before);
+        }
+    }
+
     private IndexEntry createBackwardIndexEntry(SchemaId vtag, AbsoluteRecordId target, SchemaId sourceField) {
         IndexEntry entry = new IndexEntry(backwardIndex.getDefinition());
 
@@ -518,4 +624,63 @@ public class LinkIndex {
         return getIdGenerator().newAbsoluteRecordId(Table.RECORD.name, recordId);
     }
 
+    /**
+     * The link changes of a number of records, which are applied together by {@link LinkIndex#apply(Batch)}.
+     * The methods have the same meaning as the corresponding methods of LinkIndex. When a record is changed
+     * more than once, the last change of a vtag wins.
+     *
+     * <p>A batch is not thread safe.</p>
+     */
+    public static class Batch {
+        private final Map<AbsoluteRecordId, RecordLinkChanges> changes =
+                new LinkedHashMap<AbsoluteRecordId, RecordLinkChanges>();
+
+        private Batch() {
+        }
+
+        /**
+         * Deletes all links of a record, irrespective of the vtag. The links of vtags which are updated
+         * afterwards in this batch are not deleted but updated.
+         */
+        public void deleteLinks(AbsoluteRecordId sourceRecord) {
+            RecordLinkChanges recordChanges = new RecordLinkChanges(false);
+            recordChanges.deleteOtherVTags = true;
+            changes.put(sourceRecord, recordChanges);
+        }
+
+        public void deleteLinks(AbsoluteRecordId sourceRecord, SchemaId vtag) {
+            getChanges(sourceRecord, false).linksByVTag.put(vtag, Collections.<FieldedLink>emptySet());
+        }
+
+        public void updateLinks(AbsoluteRecordId sourceRecord, SchemaId vtag, Set<FieldedLink> links,
+                boolean isNewRecord) {
+            getChanges(sourceRecord, isNewRecord).linksByVTag.put(vtag, links);
+        }
+
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+
+        private RecordLinkChanges getChanges(AbsoluteRecordId sourceRecord, boolean isNewRecord) {
+            RecordLinkChanges recordChanges = changes.get(sourceRecord);
+            if (recordChanges == null) {
+                recordChanges = new RecordLinkChanges(isNewRecord);
+                changes.put(sourceRecord, recordChanges);
+            } else if (!isNewRecord) {
+                recordChanges.isNewRecord = false;
+            }
+            return recordChanges;
+        }
+    }
+
+    private static class RecordLinkChanges {
+        private boolean isNewRecord;
+        private boolean deleteOtherVTags;
+        private final Map<SchemaId, Set<FieldedLink>> linksByVTag = new HashMap<SchemaId, Set<FieldedLink>>();
+
+        RecordLinkChanges(boolean isNewRecord) {
+            this.isNewRecord = isNewRecord;
+        }
+    }
+
 }
@@ -20,9 +20,11 @@ import static org.lilyproject.util.repo.RecordEvent.Type.DELETE;
 import static org.lilyproject.util.repo.RecordEvent.Type.UPDATE;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -35,6 +37,7 @@ import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.LTable;
+import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.RepositoryManager;
@@ -73,23 +76,29 @@ public class LinkIndexUpdater extends LilyEventListener {
 
     @Override
     public void processLilyEvents(List<LilySepEvent> events) {
+        // The events are grouped per record, so that a record which changed a number of times within this
+        // batch is only read once, and its links only written once.
+        Map<AbsoluteRecordId, List<RecordEvent>> eventsByRecord = new LinkedHashMap<AbsoluteRecordId, List<RecordEvent>>();
         for (LilySepEvent event : events) {
-            processEvent(event);
+            RecordEvent recordEvent;
+            try {
+                recordEvent = event.getRecordEvent();
+            } catch (IOException e) {
+                log.error("Error reading record event, processing of message cancelled", e);
+                continue;
+            }
+            AbsoluteRecordId absoluteRecordId = event.getAbsoluteRecordId();
+            List<RecordEvent> recordEvents = eventsByRecord.get(absoluteRecordId);
+            if (recordEvents == null) {
+                recordEvents = new ArrayList<RecordEvent>();
+                eventsByRecord.put(absoluteRecordId, recordEvents);
+            }
+            recordEvents.add(recordEvent);
         }
+        update(eventsByRecord);
     }
     
     public void processEvent(LilySepEvent event) {
-
-        LRepository repository = null;
-        try {
-            repository = repositoryManager.getDefaultRepository();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(e);
-        } catch (RepositoryException e) {
-            throw new RuntimeException(e);
-        }
-
         RecordEvent recordEvent;
         try {
             recordEvent = event.getRecordEvent();
@@ -102,6 +111,18 @@ public class LinkIndexUpdater extends LilyEventListener {
     }
 
     public void update(AbsoluteRecordId absRecordId, RecordEvent recordEvent) {
+        update(Collections.singletonMap(absRecordId, Collections.singletonList(recordEvent)));
+    }
+
+    /**
+     * Updates the link index for the events of a number of records, the events of each record being in the order
+     * in which they happened.
+     *
+     * <p>The events of one record are collapsed into one update against the latest state of the record. The
+     * records are read with one multi-get per table, and all resulting link changes are applied as one
+     * {@link LinkIndex.Batch}.</p>
+     */
+    public void update(Map<AbsoluteRecordId, List<RecordEvent>> eventsByRecord) {
         // This is the algorithm for updating the LinkIndex when a record changes.
         //
         // The LinkIndex contains, for each vtag defined on the record, the links extracted from the record
@@ -116,82 +137,146 @@ public class LinkIndexUpdater extends LilyEventListener {
 
         long before = System.currentTimeMillis();
         try {
-            if (recordEvent.getType().equals(DELETE)) {
-                // Delete everything from the link index for this record, thus for all vtags
-                linkIndex.deleteLinks(absRecordId);
-                if (log.isDebugEnabled()) {
-                    log.debug("Record " + absRecordId + " : delete event : deleted extracted links.");
-                }
-            } else if (recordEvent.getType().equals(CREATE) || recordEvent.getType().equals(UPDATE)) {
-                boolean isNewRecord = recordEvent.getType().equals(CREATE);
+            LRepository repository = repositoryManager.getDefaultRepository();
+            LinkIndex.Batch batch = linkIndex.newBatch();
 
-                RecordEventHelper eventHelper = new RecordEventHelper(recordEvent, LINK_FIELD_FILTER,
-                        repositoryManager.getDefaultRepository().getTypeManager());
-
-                VTaggedRecord vtRecord;
-                try {
-                    LRepository repository = repositoryManager.getDefaultRepository();
-                    LTable table = repository.getTable(recordEvent.getTableName());
-                    vtRecord = new VTaggedRecord(absRecordId.getRecordId(), eventHelper, table, repository);
-                } catch (RecordNotFoundException e) {
-                    // record not found: delete all links for all vtags
-                    linkIndex.deleteLinks(absRecordId);
-                    if (log.isDebugEnabled()) {
-                        log.debug("Record " + absRecordId + " : does not exist : deleted extracted links.");
+            // The events since the last delete of each record, for the records which still exist after the
+            // last delete, grouped per table.
+            Map<String, Map<AbsoluteRecordId, List<RecordEvent>>> eventsByTable =
+                    new LinkedHashMap<String, Map<AbsoluteRecordId, List<RecordEvent>>>();
+
+            for (Map.Entry<AbsoluteRecordId, List<RecordEvent>> entry : eventsByRecord.entrySet()) {
+                AbsoluteRecordId absRecordId = entry.getKey();
+                List<RecordEvent> recordEvents = new ArrayList<RecordEvent>();
+                for (RecordEvent recordEvent : entry.getValue()) {
+                    if (recordEvent.getType().equals(DELETE)) {
+                        // Delete everything from the link index for this record, thus for all vtags. This
+                        // makes that the events which came before don't matter anymore.
+                        batch.deleteLinks(absRecordId);
+                        recordEvents.clear();
+                        if (log.isDebugEnabled()) {
+                            log.debug("Record " + absRecordId + " : delete event : deleted extracted links.");
+                        }
+                    } else if (recordEvent.getType().equals(CREATE) || recordEvent.getType().equals(UPDATE)) {
+                        recordEvents.add(recordEvent);
                     }
-                    return;
                 }
 
-                //
-                // First find out for what vtags we need to re-perform the link extraction
-                //
-                Set<SchemaId> vtagsToProcess = new HashSet<SchemaId>();
+                if (!recordEvents.isEmpty()) {
+                    String tableName = recordEvents.get(0).getTableName();
+                    Map<AbsoluteRecordId, List<RecordEvent>> tableEvents = eventsByTable.get(tableName);
+                    if (tableEvents == null) {
+                        tableEvents = new LinkedHashMap<AbsoluteRecordId, List<RecordEvent>>();
+                        eventsByTable.put(tableName, tableEvents);
+                    }
+                    tableEvents.put(absRecordId, recordEvents);
+                }
+            }
 
-                // Modified vtag fields
-                vtagsToProcess.addAll(eventHelper.getModifiedVTags());
+            for (Map.Entry<String, Map<AbsoluteRecordId, List<RecordEvent>>> entry : eventsByTable.entrySet()) {
+                LTable table = repository.getTable(entry.getKey());
+                Map<AbsoluteRecordId, List<RecordEvent>> tableEvents = entry.getValue();
 
-                // The vtags of the created/modified version, if any, and if any link fields changed
-                vtagsToProcess.addAll(vtRecord.getVTagsOfModifiedData());
+                List<RecordId> recordIds = new ArrayList<RecordId>(tableEvents.size());
+                for (AbsoluteRecordId absRecordId : tableEvents.keySet()) {
+                    recordIds.add(absRecordId.getRecordId());
+                }
+                Map<RecordId, IdRecord> records = new HashMap<RecordId, IdRecord>();
+                for (IdRecord record : table.readWithIds(recordIds, null)) {
+                    records.put(record.getId(), record);
+                }
 
-                Map<SchemaId, Long> vtags = vtRecord.getVTags();
-
-                //
-                // For each of the vtags, perform the link extraction
-                //
-                Map<Long, Set<FieldedLink>> cache = new HashMap<Long, Set<FieldedLink>>();
-                for (SchemaId vtag : vtagsToProcess) {
-                    if (!vtags.containsKey(vtag)) {
-                        // The vtag is not defined on the document: it is a deleted vtag, delete the
-                        // links corresponding to it
-                        linkIndex.deleteLinks(absRecordId, vtag);
+                for (Map.Entry<AbsoluteRecordId, List<RecordEvent>> recordEntry : tableEvents.entrySet()) {
+                    AbsoluteRecordId absRecordId = recordEntry.getKey();
+                    IdRecord record = records.get(absRecordId.getRecordId());
+                    if (record == null) {
+                        // record not found: delete all links for all vtags
+                        batch.deleteLinks(absRecordId);
                         if (log.isDebugEnabled()) {
-                            log.debug(String.format("Record %1$s, vtag %2$s : deleted extracted links " +
-                                    "because vtag does not exist on document anymore",
-                                    absRecordId, safeLoadTagName(vtag)));
+                            log.debug("Record " + absRecordId + " : does not exist : deleted extracted links.");
                         }
                     } else {
-                        // Since one version might have multiple vtags, we keep a little cache to avoid
-                        // extracting the links from the same version twice.
-                        long version = vtags.get(vtag);
-                        Set<FieldedLink> links;
-                        if (cache.containsKey(version)) {
-                            links = cache.get(version);
-                        } else {
-                            links = extractLinks(vtRecord, version);
-                            cache.put(version, links);
-                        }
-                        linkIndex.updateLinks(absRecordId, vtag, links, isNewRecord);
-                        if (log.isDebugEnabled()) {
-                            log.debug(String.format("Record %1$s, vtag %2$s : extracted links count : %3$s",
-                                    absRecordId, safeLoadTagName(vtag), links.size()));
-                        }
+                        updateLinks(absRecordId, record, recordEntry.getValue(), table, repository, batch);
                     }
                 }
             }
+
+            linkIndex.apply(batch);
         } catch (Exception e) {
             // Throw the exception through so that it is retried later by the SEP
             ExceptionUtil.handleInterrupt(e);
             throw new RuntimeException(e);
+        } finally {
+            metrics.report(Action.UPDATE_BATCH, System.currentTimeMillis() - before);
+        }
+    }
+
+    /**
+     * Adds the link changes caused by the create and update events of one record to the batch.
+     */
+    private void updateLinks(AbsoluteRecordId absRecordId, IdRecord record, List<RecordEvent> recordEvents,
+            LTable table, LRepository repository, LinkIndex.Batch batch)
+            throws RepositoryException, InterruptedException {
+        long before = System.currentTimeMillis();
+        try {
+            boolean isNewRecord = recordEvents.get(0).getType().equals(CREATE);
+
+            //
+            // First find out for what vtags we need to re-perform the link extraction
+            //
+            Set<SchemaId> vtagsToProcess = new HashSet<SchemaId>();
+            VTaggedRecord vtRecord = null;
+            for (RecordEvent recordEvent : recordEvents) {
+                RecordEventHelper eventHelper = new RecordEventHelper(recordEvent, LINK_FIELD_FILTER,
+                        repository.getTypeManager());
+                vtRecord = new VTaggedRecord(record, eventHelper, table, repository);
+
+                // Modified vtag fields
+                vtagsToProcess.addAll(eventHelper.getModifiedVTags());
+
+                // The vtags of the created/modified version, if any, and if any link fields changed
+                vtagsToProcess.addAll(vtRecord.getVTagsOfModifiedData());
+            }
+
+            Map<SchemaId, Long> vtags = vtRecord.getVTags();
+
+            // A (re)created record has no links yet, or only the ones of before its deletion
+            if (isNewRecord) {
+                vtagsToProcess.addAll(vtags.keySet());
+            }
+
+            //
+            // For each of the vtags, perform the link extraction
+            //
+            Map<Long, Set<FieldedLink>> cache = new HashMap<Long, Set<FieldedLink>>();
+            for (SchemaId vtag : vtagsToProcess) {
+                if (!vtags.containsKey(vtag)) {
+                    // The vtag is not defined on the document: it is a deleted vtag, delete the
+                    // links corresponding to it
+                    batch.deleteLinks(absRecordId, vtag);
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("Record %1$s, vtag %2$s : deleted extracted links " +
+                                "because vtag does not exist on document anymore",
+                                absRecordId, safeLoadTagName(vtag)));
+                    }
+                } else {
+                    // Since one version might have multiple vtags, we keep a little cache to avoid
+                    // extracting the links from the same version twice.
+                    long version = vtags.get(vtag);
+                    Set<FieldedLink> links;
+                    if (cache.containsKey(version)) {
+                        links = cache.get(version);
+                    } else {
+                        links = extractLinks(vtRecord, version);
+                        cache.put(version, links);
+                    }
+                    batch.updateLinks(absRecordId, vtag, links, isNewRecord);
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("Record %1$s, vtag %2$s : extracted links count : %3$s",
+                                absRecordId, safeLoadTagName(vtag), links.size()));
+                    }
+                }
+            }
         } finally {
             metrics.report(Action.UPDATE, System.currentTimeMillis() - before);
         }
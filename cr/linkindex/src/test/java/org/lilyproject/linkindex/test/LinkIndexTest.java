@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
@@ -49,6 +50,7 @@ import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.repotestfw.RepositorySetup;
 import org.lilyproject.util.hbase.LilyHBaseSchema.Table;
 import org.lilyproject.util.io.Closer;
+import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.VersionTag;
 
 public class LinkIndexTest {
@@ -142,6 +144,47 @@ public class LinkIndexTest {
         assertEquals(1, referrers.size());
     }
 
+    @Test
+    public void testLinkIndexBatch() throws Exception {
+        SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+        SchemaId previewTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+
+        AbsoluteRecordId idA = createAbsoluteId("batchA");
+        AbsoluteRecordId idB = createAbsoluteId("batchB");
+
+        Set<FieldedLink> links1 = new HashSet<FieldedLink>();
+        links1.add(new FieldedLink(createAbsoluteId("batch1"), field1));
+        links1.add(new FieldedLink(createAbsoluteId("batch2"), field1));
+
+        Set<FieldedLink> links2 = new HashSet<FieldedLink>();
+        links2.add(new FieldedLink(createAbsoluteId("batch3"), field1));
+
+        LinkIndex.Batch batch = linkIndex.newBatch();
+        batch.updateLinks(idA, liveTag, links1, true);
+        batch.updateLinks(idA, previewTag, links2, true);
+        batch.updateLinks(idB, liveTag, links2, true);
+        linkIndex.apply(batch);
+
+        assertEquals(links1, linkIndex.getFieldedForwardLinks(idA, liveTag));
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(idA, previewTag));
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(idB, liveTag));
+        assertEquals(Sets.newHashSet(idA, idB), linkIndex.getAbsoluteReferrers(createAbsoluteId("batch3"), null));
+
+        // Changes to existing records: the last change of a vtag wins, a full delete drops the earlier changes
+        batch = linkIndex.newBatch();
+        batch.updateLinks(idA, liveTag, links1, false);
+        batch.updateLinks(idA, liveTag, links2, false);
+        batch.updateLinks(idB, previewTag, links1, false);
+        batch.deleteLinks(idB);
+        linkIndex.apply(batch);
+
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(idA, liveTag));
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(idA, previewTag));
+        assertEquals(0, linkIndex.getAllForwardLinks(idB).size());
+        assertEquals(0, linkIndex.getAbsoluteReferrers(createAbsoluteId("batch1"), null).size());
+        assertEquals(Sets.newHashSet(idA), linkIndex.getAbsoluteReferrers(createAbsoluteId("batch3"), null));
+    }
+
     @Test
     public void testLinkIndex_AcrossTables() throws Exception {
         SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
@@ -381,6 +424,156 @@ public class LinkIndexTest {
         }
     }
 
+    /**
+     * Hands batches of events to a link index updater, to check how the events of one record are collapsed.
+     */
+    @Test
+    public void testLinkIndexUpdaterCollapsesEvents() throws Exception {
+        FieldType linkFt = typeManager.createFieldType(typeManager.newFieldType(typeManager.getValueType("LINK"),
+                new QName("collapse", "link"), Scope.VERSIONED));
+        FieldType liveTagFt = typeManager.createFieldType(typeManager.newFieldType(
+                typeManager.getValueType("LONG"), new QName(VersionTag.NAMESPACE, "collapseLive"),
+                Scope.NON_VERSIONED));
+        FieldType previewTagFt = typeManager.createFieldType(typeManager.newFieldType(
+                typeManager.getValueType("LONG"), new QName(VersionTag.NAMESPACE, "collapsePreview"),
+                Scope.NON_VERSIONED));
+        FieldType oldTagFt = typeManager.createFieldType(typeManager.newFieldType(
+                typeManager.getValueType("LONG"), new QName(VersionTag.NAMESPACE, "collapseOld"),
+                Scope.NON_VERSIONED));
+
+        RecordType recordType = typeManager.newRecordType(new QName("collapse", "RecordType"));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(linkFt.getId(), false));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(liveTagFt.getId(), false));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(previewTagFt.getId(), false));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(oldTagFt.getId(), false));
+        recordType = typeManager.createRecordType(recordType);
+
+        SchemaId linkField = linkFt.getId();
+        SchemaId lastVTag = typeManager.getFieldTypeByName(VersionTag.LAST).getId();
+        SchemaId liveVTag = liveTagFt.getId();
+        SchemaId previewVTag = previewTagFt.getId();
+        SchemaId oldVTag = oldTagFt.getId();
+
+        // This updater isn't subscribed to the SEP, the events are given to it directly. Before doing so, the
+        // link index is set to the state from before the events, as the SEP subscribed updater already
+        // processed them.
+        LinkIndexUpdater updater = new LinkIndexUpdater(repoSetup.getRepositoryManager(), linkIndex);
+
+        //
+        // Delete and create of a record: the links of before the delete are gone, also for vtags which
+        // the new record doesn't have
+        //
+        {
+            Record record = repository.newRecord(ids.newRecordId("collapseDeleteCreate"));
+            record.setRecordType(recordType.getName());
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("dc1")));
+            record.setField(liveTagFt.getName(), 1L);
+            record = repository.create(record);
+            repository.delete(record.getId());
+
+            record = repository.newRecord(record.getId());
+            record.setRecordType(recordType.getName());
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("dc2")));
+            record = repository.create(record);
+            repoSetup.waitForSepProcessing();
+
+            AbsoluteRecordId absId = createAbsoluteId(record.getId());
+            linkIndex.deleteLinks(absId);
+            linkIndex.updateLinks(absId, lastVTag, fieldedLinks(linkField, "dc1"));
+            linkIndex.updateLinks(absId, liveVTag, fieldedLinks(linkField, "dc1"));
+
+            updater.update(Collections.singletonMap(absId, Arrays.asList(
+                    newEvent(RecordEvent.Type.DELETE, -1),
+                    newEvent(RecordEvent.Type.CREATE, record.getVersion(), linkField))));
+
+            assertEquals(fieldedLinks(linkField, "dc2"), linkIndex.getFieldedForwardLinks(absId, lastVTag));
+            assertEquals(0, linkIndex.getFieldedForwardLinks(absId, liveVTag).size());
+            assertEquals(0, linkIndex.getReferrers(ids.newRecordId("dc1"), null).size());
+        }
+
+        //
+        // Several updates of a record: the links of the latest version are kept
+        //
+        {
+            Record record = repository.newRecord(ids.newRecordId("collapseUpdates"));
+            record.setRecordType(recordType.getName());
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("mu1")));
+            record = repository.create(record);
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("mu2")));
+            record = repository.update(record);
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("mu3")));
+            record = repository.update(record);
+            assertEquals(Long.valueOf(3), record.getVersion());
+            repoSetup.waitForSepProcessing();
+
+            AbsoluteRecordId absId = createAbsoluteId(record.getId());
+            linkIndex.deleteLinks(absId);
+            linkIndex.updateLinks(absId, lastVTag, fieldedLinks(linkField, "mu1"));
+
+            updater.update(Collections.singletonMap(absId, Arrays.asList(
+                    newEvent(RecordEvent.Type.UPDATE, 2, linkField),
+                    newEvent(RecordEvent.Type.UPDATE, 3, linkField))));
+
+            assertEquals(fieldedLinks(linkField, "mu3"), linkIndex.getFieldedForwardLinks(absId, lastVTag));
+            assertEquals(0, linkIndex.getReferrers(ids.newRecordId("mu1"), null).size());
+            assertEquals(0, linkIndex.getReferrers(ids.newRecordId("mu2"), null).size());
+        }
+
+        //
+        // Updates of the data and of the vtags of a record: the vtags changed by any of the events are
+        // updated, removed vtags are deleted
+        //
+        {
+            Record record = repository.newRecord(ids.newRecordId("collapseVTags"));
+            record.setRecordType(recordType.getName());
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("mv1")));
+            record.setField(oldTagFt.getName(), 1L);
+            record = repository.create(record);
+            record.setField(linkFt.getName(), new Link(ids.newRecordId("mv2")));
+            record = repository.update(record);
+
+            record = repository.newRecord(record.getId());
+            record.setField(liveTagFt.getName(), 1L);
+            record.setField(previewTagFt.getName(), 2L);
+            record.addFieldsToDelete(Collections.singletonList(oldTagFt.getName()));
+            record = repository.update(record);
+            repoSetup.waitForSepProcessing();
+
+            AbsoluteRecordId absId = createAbsoluteId(record.getId());
+            linkIndex.deleteLinks(absId);
+            linkIndex.updateLinks(absId, lastVTag, fieldedLinks(linkField, "mv1"));
+            linkIndex.updateLinks(absId, oldVTag, fieldedLinks(linkField, "mv1"));
+
+            updater.update(Collections.singletonMap(absId, Arrays.asList(
+                    newEvent(RecordEvent.Type.UPDATE, 2, linkField),
+                    newEvent(RecordEvent.Type.UPDATE, -1, liveVTag, previewVTag, oldVTag))));
+
+            assertEquals(fieldedLinks(linkField, "mv2"), linkIndex.getFieldedForwardLinks(absId, lastVTag));
+            assertEquals(fieldedLinks(linkField, "mv2"), linkIndex.getFieldedForwardLinks(absId, previewVTag));
+            assertEquals(fieldedLinks(linkField, "mv1"), linkIndex.getFieldedForwardLinks(absId, liveVTag));
+            assertEquals(0, linkIndex.getFieldedForwardLinks(absId, oldVTag).size());
+        }
+    }
+
+    private RecordEvent newEvent(RecordEvent.Type type, long versionCreated, SchemaId... updatedFields) {
+        RecordEvent event = new RecordEvent();
+        event.setType(type);
+        event.setTableName(Table.RECORD.name);
+        event.setVersionCreated(versionCreated);
+        for (SchemaId updatedField : updatedFields) {
+            event.addUpdatedField(updatedField);
+        }
+        return event;
+    }
+
+    private Set<FieldedLink> fieldedLinks(SchemaId field, String... recordIds) {
+        Set<FieldedLink> links = new HashSet<FieldedLink>();
+        for (String recordId : recordIds) {
+            links.add(new FieldedLink(createAbsoluteId(recordId), field));
+        }
+        return links;
+    }
+
     private AbsoluteRecordId createAbsoluteId(String recordIdString) {
         return createAbsoluteId(ids.newRecordId(recordIdString));
     }
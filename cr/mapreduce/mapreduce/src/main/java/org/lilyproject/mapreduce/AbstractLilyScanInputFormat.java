@@ -17,8 +17,12 @@ package org.lilyproject.mapreduce;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 import org.lilyproject.util.hbase.RepoAndTableUtil;
 
@@ -29,36 +33,70 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.mapreduce.TableSplit;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.apache.hadoop.hbase.util.Pair;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.codehaus.jackson.JsonNode;
 import org.lilyproject.client.LilyClient;
+import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.RecordScan;
-import org.lilyproject.repository.api.RepositoryException;
-import org.lilyproject.repository.api.RepositoryTable;
-import org.lilyproject.repository.api.TableManager;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.tools.import_.json.RecordScanReader;
 import org.lilyproject.util.exception.ExceptionUtil;
+import org.lilyproject.util.hbase.LilyHBaseSchema;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.json.JsonFormat;
+import org.lilyproject.util.json.JsonFormatException;
+import org.lilyproject.util.json.JsonUtil;
 import org.lilyproject.util.zookeeper.ZkConnectException;
 import org.lilyproject.util.zookeeper.ZkUtil;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
 /**
  * A MapReduce InputFormat for Lily based on Lily scanners.
+ *
+ * <p>By default, one split is created per region. Regions can be divided into multiple splits, based on an
+ * estimate of their size, with {@link #SPLIT_MAX_SIZE} and/or {@link #SPLIT_COUNT}. A region is divided by
+ * splitting its key range in parts of equal width, so this works best when the record ids are spread evenly
+ * over the key space, as is the case for UUID record ids. Each split carries the host of the region server
+ * of its region.</p>
  */
 public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputFormat<KEYIN, VALUEIN> implements Configurable {
 
     public static final String SCAN = "lily.mapreduce.scan";
 
+    /**
+     * Config key for the maximum size of a split, in MB. Regions which are estimated to be larger are divided
+     * into multiple splits. Not set by default.
+     */
+    public static final String SPLIT_MAX_SIZE = "lily.mapreduce.split.maxsize";
+
+    /**
+     * Config key for the number of splits to aim for. If there are less regions, the regions are divided into
+     * multiple splits, in proportion to their estimated size. Not set by default.
+     */
+    public static final String SPLIT_COUNT = "lily.mapreduce.split.count";
+
+    /**
+     * The maximum number of splits a single region is divided into.
+     */
+    public static final int MAX_SPLITS_PER_REGION = 256;
+
     final Log log = LogFactory.getLog(AbstractLilyScanInputFormat.class);
 
     private Configuration conf;
@@ -87,78 +125,87 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
     @Override
     public List<InputSplit> getSplits(JobContext jobContext) throws IOException, InterruptedException {
         ZooKeeperItf zk = null;
-        LilyClient lilyClient = null;
         Configuration hbaseConf = null;
-        List<InputSplit> inputSplits = Lists.newArrayList();
+        HBaseAdmin hbaseAdmin = null;
         try {
             zk = ZkUtil.connect(zkConnectString, 30000);
 
-            // Need connection to Lily to parse RecordScan (a bit lame)
-            lilyClient = null;
-            try {
-                lilyClient = new LilyClient(zk);
-            } catch (Exception e) {
-                throw new IOException("Error setting up LilyClient", e);
-            }
+            // Determine start and stop row. Only the row range of the scan matters here, so no LilyClient is
+            // needed to parse the scan.
+            byte[][] rowRange = getScanRowRange();
+            byte[] startRow = rowRange[0];
+            byte[] stopRow = rowRange[1];
 
-            LRepository repository = lilyClient.getRepository(repositoryName);
-            RecordScan scan = getScan(repository);
+            //
+            hbaseConf = LilyClient.getHBaseConfiguration(zk);
+            hbaseAdmin = new HBaseAdmin(hbaseConf);
 
-            // Determine start and stop row
-            byte[] startRow;
-            if (scan.getRawStartRecordId() != null) {
-                startRow = scan.getRawStartRecordId();
-            } else if (scan.getStartRecordId() != null) {
-                startRow = scan.getStartRecordId().toBytes();
-            } else {
-                startRow = new byte[0];
-            }
+            Configuration jobConf = jobContext.getConfiguration();
+            long maxSplitSize = jobConf.getLong(SPLIT_MAX_SIZE, 0) * 1024 * 1024;
+            int splitCount = jobConf.getInt(SPLIT_COUNT, 0);
+            boolean divideRegions = maxSplitSize > 0 || splitCount > 0;
+            Map<byte[], Long> regionSizes = divideRegions ? getRegionSizes(hbaseAdmin)
+                    : Collections.<byte[], Long>emptyMap();
 
-            byte[] stopRow;
-            if (scan.getRawStopRecordId() != null) {
-                stopRow = scan.getRawStopRecordId();
-            } else if (scan.getStopRecordId() != null) {
-                stopRow = scan.getStopRecordId().toBytes();
-            } else {
-                stopRow = new byte[0];
-            }
+            List<RegionSplit> regionSplits = Lists.newArrayList();
+            Map<String, HTable> tables = Maps.newHashMap();
+            try {
+                for (String tableName : getRepositoryHBaseTableNames(hbaseAdmin, jobConf)) {
+                    HTable table = new HTable(hbaseConf, tableName);
+                    tables.put(tableName, table);
+                    regionSplits.addAll(getRegionSplits(table, startRow, stopRow, regionSizes));
+                }
 
-            //
-            hbaseConf = LilyClient.getHBaseConfiguration(zk);
+                if (!divideRegions) {
+                    List<InputSplit> inputSplits = new ArrayList<InputSplit>(regionSplits.size());
+                    for (RegionSplit regionSplit : regionSplits) {
+                        inputSplits.add(regionSplit.split);
+                    }
+                    return inputSplits;
+                }
 
-            for (String tableName : getRepositoryHBaseTableNames(repository.getTableManager(),
-                    jobContext.getConfiguration())) {
-                HTable table = new HTable(hbaseConf, tableName);
-                try {
-                    inputSplits.addAll(getSplits(table, startRow, stopRow));
-                } finally {
+                long totalSize = 0;
+                for (RegionSplit regionSplit : regionSplits) {
+                    totalSize += regionSplit.size;
+                }
+
+                List<InputSplit> inputSplits = Lists.newArrayList();
+                for (RegionSplit regionSplit : regionSplits) {
+                    int count = getSplitCount(regionSplit.size, totalSize, regionSplits.size(), maxSplitSize,
+                            splitCount);
+                    HTable table = tables.get(Bytes.toString(regionSplit.split.getTableName()));
+                    inputSplits.addAll(divide(table, regionSplit.split, count));
+                }
+                return inputSplits;
+            } finally {
+                for (HTable table : tables.values()) {
                     Closer.close(table);
                 }
             }
-            return inputSplits;
         } catch (ZkConnectException e) {
             throw new IOException("Error setting up splits", e);
-        } catch (RepositoryException e) {
-            throw new IOException("Error setting up splits", e);
         } finally {
+            Closer.close(hbaseAdmin);
             Closer.close(zk);
             if (hbaseConf != null) {
                 HConnectionManager.deleteConnection(hbaseConf, true);
             }
-            Closer.close(lilyClient);
         }
     }
 
     /**
      * Returns the HBase table names of the repository tables to be included in this job.
      */
-    private List<String> getRepositoryHBaseTableNames(TableManager tableManager, Configuration conf)
-            throws InterruptedException, IOException {
+    private List<String> getRepositoryHBaseTableNames(HBaseAdmin hbaseAdmin, Configuration conf)
+            throws IOException {
         // key is lily table name, value is hbase table name (= the name including the repository name prefix)
         Map<String, String> allRepoTables = Maps.newHashMap();
-        for (RepositoryTable repoTable : tableManager.getTables()) {
-            allRepoTables.put(repoTable.getName(),
-                    RepoAndTableUtil.getHBaseTableName(repoTable.getRepositoryName(), repoTable.getName()));
+        for (HTableDescriptor tableDescriptor : hbaseAdmin.listTables()) {
+            if (LilyHBaseSchema.isRecordTableDescriptor(tableDescriptor)
+                    && RepoAndTableUtil.belongsToRepository(tableDescriptor.getNameAsString(), repositoryName)) {
+                allRepoTables.put(RepoAndTableUtil.extractLilyTableName(repositoryName,
+                        tableDescriptor.getNameAsString()), tableDescriptor.getNameAsString());
+            }
         }
 
         List<String> tablesToInclude = Lists.newArrayList();
@@ -178,43 +225,94 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
     }
 
     /**
-     * License note: this code was copied from HBase's TableInputFormat.
+     * Returns the estimated size of all regions in the cluster, in bytes, by region name.
+     */
+    private Map<byte[], Long> getRegionSizes(HBaseAdmin hbaseAdmin) throws IOException {
+        Map<byte[], Long> regionSizes = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        ClusterStatus clusterStatus = hbaseAdmin.getClusterStatus();
+        for (ServerName serverName : clusterStatus.getServers()) {
+            for (HServerLoad.RegionLoad regionLoad : clusterStatus.getLoad(serverName).getRegionsLoad().values()) {
+                long sizeMB = regionLoad.getStorefileSizeMB() + regionLoad.getMemStoreSizeMB();
+                regionSizes.put(regionLoad.getName(), sizeMB * 1024 * 1024);
+            }
+        }
+        return regionSizes;
+    }
+
+    /**
+     * Returns the number of splits to divide a region into.
+     */
+    static int getSplitCount(long regionSize, long totalSize, int regionCount, long maxSplitSize, int splitCount) {
+        int count = 1;
+        if (maxSplitSize > 0 && regionSize > maxSplitSize) {
+            count = (int)Math.min(MAX_SPLITS_PER_REGION, (regionSize + maxSplitSize - 1) / maxSplitSize);
+        }
+        if (splitCount > regionCount) {
+            int share;
+            if (totalSize > 0) {
+                share = (int)Math.round((double)splitCount * regionSize / totalSize);
+            } else {
+                // No size information, divide all regions equally
+                share = (splitCount + regionCount - 1) / regionCount;
+            }
+            count = Math.max(count, share);
+        }
+        return Math.max(1, Math.min(MAX_SPLITS_PER_REGION, count));
+    }
+
+    /**
+     * Returns one split per region of the table.
+     *
+     * <p>License note: this code was copied from HBase's TableInputFormat.
      *
      * @param startRow start row of the scan
      * @param stopRow stop row of the scan
      */
     public List<InputSplit> getSplits(HTable table, final byte[] startRow, final byte[] stopRow) throws IOException {
+        List<RegionSplit> regionSplits = getRegionSplits(table, startRow, stopRow,
+                Collections.<byte[], Long>emptyMap());
+        List<InputSplit> splits = new ArrayList<InputSplit>(regionSplits.size());
+        for (RegionSplit regionSplit : regionSplits) {
+            splits.add(regionSplit.split);
+        }
+        return splits;
+    }
+
+    private List<RegionSplit> getRegionSplits(HTable table, final byte[] startRow, final byte[] stopRow,
+            Map<byte[], Long> regionSizes) throws IOException {
         if (table == null) {
             throw new IOException("No table was provided.");
         }
-        Pair<byte[][], byte[][]> keys = table.getStartEndKeys();
-        if (keys == null || keys.getFirst() == null ||
-                keys.getFirst().length == 0) {
+        // All region locations are fetched at once, rather than with a lookup per region
+        NavigableMap<HRegionInfo, ServerName> regions = table.getRegionLocations();
+        if (regions == null || regions.isEmpty()) {
             throw new IOException("Expecting at least one region.");
         }
         int count = 0;
-        List<InputSplit> splits = new ArrayList<InputSplit>(keys.getFirst().length);
-        for (int i = 0; i < keys.getFirst().length; i++) {
-            if ( !includeRegionInSplit(keys.getFirst()[i], keys.getSecond()[i])) {
+        List<RegionSplit> splits = new ArrayList<RegionSplit>(regions.size());
+        for (Map.Entry<HRegionInfo, ServerName> region : regions.entrySet()) {
+            byte[] regionStart = region.getKey().getStartKey();
+            byte[] regionEnd = region.getKey().getEndKey();
+            if ( !includeRegionInSplit(regionStart, regionEnd)) {
                 continue;
             }
-            String regionLocation = table.getRegionLocation(keys.getFirst()[i]).
-                    getServerAddress().getHostname();
+            String regionLocation = region.getValue() != null ? region.getValue().getHostname() : "";
             // determine if the given start an stop key fall into the region
-            if ((startRow.length == 0 || keys.getSecond()[i].length == 0 ||
-                    Bytes.compareTo(startRow, keys.getSecond()[i]) < 0) &&
+            if ((startRow.length == 0 || regionEnd.length == 0 ||
+                    Bytes.compareTo(startRow, regionEnd) < 0) &&
                     (stopRow.length == 0 ||
-                            Bytes.compareTo(stopRow, keys.getFirst()[i]) > 0)) {
+                            Bytes.compareTo(stopRow, regionStart) > 0)) {
                 byte[] splitStart = startRow.length == 0 ||
-                        Bytes.compareTo(keys.getFirst()[i], startRow) >= 0 ?
-                        keys.getFirst()[i] : startRow;
+                        Bytes.compareTo(regionStart, startRow) >= 0 ?
+                        regionStart : startRow;
                 byte[] splitStop = (stopRow.length == 0 ||
-                        Bytes.compareTo(keys.getSecond()[i], stopRow) <= 0) &&
-                        keys.getSecond()[i].length > 0 ?
-                        keys.getSecond()[i] : stopRow;
-                InputSplit split = new TableSplit(table.getTableName(),
+                        Bytes.compareTo(regionEnd, stopRow) <= 0) &&
+                        regionEnd.length > 0 ?
+                        regionEnd : stopRow;
+                TableSplit split = new TableSplit(table.getTableName(),
                         splitStart, splitStop, regionLocation);
-                splits.add(split);
+                Long size = regionSizes.get(region.getKey().getRegionName());
+                splits.add(new RegionSplit(split, size != null ? size : 0));
                 if (log.isDebugEnabled()) {
                     log.debug("getSplits: split -> " + (count++) + " -> " + split);
                 }
@@ -223,10 +321,118 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
         return splits;
     }
 
+    /**
+     * Divides the split of a region into the given number of splits, on the same location.
+     */
+    private List<InputSplit> divide(HTable table, TableSplit split, int count) throws IOException {
+        if (count <= 1) {
+            return Collections.<InputSplit>singletonList(split);
+        }
+
+        // An empty start row means the start of the table: use the first row of the split instead, so that the
+        // key range can be computed.
+        byte[] start = split.getStartRow();
+        if (start.length == 0) {
+            start = getFirstRow(table, split.getStartRow(), split.getEndRow());
+            if (start == null) {
+                // Nothing in there
+                return Collections.<InputSplit>singletonList(split);
+            }
+        }
+
+        byte[][] keys = splitKeyRange(start, split.getEndRow(), count);
+        List<InputSplit> splits = new ArrayList<InputSplit>(keys.length - 1);
+        for (int i = 0; i < keys.length - 1; i++) {
+            byte[] splitStart = i == 0 ? split.getStartRow() : keys[i];
+            splits.add(new TableSplit(split.getTableName(), splitStart, keys[i + 1], split.getRegionLocation()));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("getSplits: divided " + split + " into " + splits.size() + " splits");
+        }
+        return splits;
+    }
+
+    private byte[] getFirstRow(HTable table, byte[] startRow, byte[] stopRow) throws IOException {
+        Scan scan = new Scan(startRow, stopRow);
+        scan.setFilter(new FirstKeyOnlyFilter());
+        scan.setCaching(1);
+        scan.setCacheBlocks(false);
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+            Result result = scanner.next();
+            return result != null ? result.getRow() : null;
+        } finally {
+            Closer.close(scanner);
+        }
+    }
+
+    /**
+     * Divides the key range [start, stop[ in the given number of parts of equal width, and returns the boundaries
+     * of the parts, starting with start and ending with stop. Fewer parts are returned when the range is too
+     * narrow.
+     *
+     * <p>An empty stop key means the end of the table. Since the keys of a region normally share their first byte
+     * (the identifier byte of the record ids), the range is then taken to end at the next value of the first
+     * byte of the start key.</p>
+     *
+     * @param start the start key, should not be empty
+     */
+    public static byte[][] splitKeyRange(byte[] start, byte[] stop, int count) {
+        byte[] end = stop;
+        if (stop.length == 0) {
+            if (start[0] != (byte)0xFF) {
+                end = new byte[] {(byte)(start[0] + 1)};
+            } else {
+                end = new byte[Math.max(start.length, 16)];
+                Arrays.fill(end, (byte)0xFF);
+            }
+        }
+
+        byte[][] keys = null;
+        if (count > 1 && Bytes.compareTo(start, end) < 0) {
+            try {
+                keys = Bytes.split(start, end, count - 1);
+            } catch (IllegalArgumentException e) {
+                // the range can't be divided
+            }
+        }
+        if (keys == null) {
+            return new byte[][] {start, stop};
+        }
+        keys[keys.length - 1] = stop;
+        return keys;
+    }
+
     protected boolean includeRegionInSplit(final byte[] startKey, final byte [] endKey) {
         return true;
     }
 
+    /**
+     * Returns the raw start and stop row of the scan, an empty array meaning no start or stop row.
+     */
+    private byte[][] getScanRowRange() throws IOException {
+        byte[] startRow = null;
+        byte[] stopRow = null;
+        String scanData = conf.get(SCAN);
+        if (scanData != null) {
+            IdGenerator idGenerator = new IdGeneratorImpl();
+            JsonNode node = JsonFormat.deserializeNonStd(scanData);
+            try {
+                startRow = JsonUtil.getBinary(node, "rawStartRecordId", null);
+                if (startRow == null && JsonUtil.getString(node, "startRecordId", null) != null) {
+                    startRow = idGenerator.fromString(JsonUtil.getString(node, "startRecordId")).toBytes();
+                }
+                stopRow = JsonUtil.getBinary(node, "rawStopRecordId", null);
+                if (stopRow == null && JsonUtil.getString(node, "stopRecordId", null) != null) {
+                    stopRow = idGenerator.fromString(JsonUtil.getString(node, "stopRecordId")).toBytes();
+                }
+            } catch (JsonFormatException e) {
+                throw new IOException("Error reading the record scan", e);
+            }
+        }
+        return new byte[][] {startRow != null ? startRow : new byte[0], stopRow != null ? stopRow : new byte[0]};
+    }
+
     protected RecordScan getScan(LRepository repository) {
         RecordScan scan;
         String scanData = conf.get(SCAN);
@@ -243,4 +449,17 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
         }
         return scan;
     }
+
+    /**
+     * The split of one region, with the estimated size of the region.
+     */
+    private static class RegionSplit {
+        private final TableSplit split;
+        private final long size;
+
+        RegionSplit(TableSplit split, long size) {
+            this.split = split;
+            this.size = size;
+        }
+    }
 }
@@ -15,19 +15,31 @@
  */
 package org.lilyproject.mapreduce;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import com.google.common.base.Joiner;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Job;
 import org.codehaus.jackson.JsonNode;
 import org.lilyproject.client.LilyClient;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.RecordScan;
+import org.lilyproject.repository.impl.SchemaCacheSnapshot;
 import org.lilyproject.tools.import_.json.RecordScanWriter;
 import org.lilyproject.tools.import_.json.WriteOptions;
 import org.lilyproject.util.exception.ExceptionUtil;
+import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.json.JsonFormat;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
 public class LilyMapReduceUtil {
     public static final String ZK_CONNECT_STRING = "lily.mapreduce.zookeeper";
@@ -42,6 +54,19 @@ public class LilyMapReduceUtil {
      */
     public static final String REPOSITORY_NAME = "lily.mapreduce.repository";
 
+    /**
+     * Config key for the file name of the schema cache snapshot which is shipped to the tasks through the
+     * distributed cache. Set by {@link #initMapperJob}.
+     */
+    public static final String SCHEMA_SNAPSHOT = "lily.mapreduce.schemasnapshot";
+
+    /**
+     * Config key to disable shipping a schema cache snapshot to the tasks, it is enabled by default.
+     */
+    public static final String SCHEMA_SNAPSHOT_ENABLED = "lily.mapreduce.schemasnapshot.enabled";
+
+    private static final Log log = LogFactory.getLog(LilyMapReduceUtil.class);
+
     private LilyMapReduceUtil() {
     }
 
@@ -95,6 +120,69 @@ public class LilyMapReduceUtil {
                 throw new RuntimeException(e);
             }
         }
+
+        if (job.getConfiguration().getBoolean(SCHEMA_SNAPSHOT_ENABLED, true)) {
+            try {
+                addSchemaSnapshot(zooKeeperConnectString, repository, job);
+            } catch (Exception e) {
+                ExceptionUtil.handleInterrupt(e);
+                // Not fatal, each task will read the complete schema itself
+                log.warn("Failed to ship a schema cache snapshot with the job", e);
+            }
+        }
+    }
+
+    /**
+     * Adds a snapshot of the schema to the distributed cache of the job, so that the tasks don't each need to read
+     * the complete schema from the repository when starting their LilyClient.
+     *
+     * <p>The snapshot is written to a local temporary file which is added to the "tmpfiles" of the job (like the
+     * -files option of the hadoop command line does), so that it is copied to the staging directory of the job
+     * on submission and removed together with it when the job finishes.</p>
+     */
+    private static void addSchemaSnapshot(String zooKeeperConnectString, LRepository repository, Job job)
+            throws Exception {
+        SchemaCacheSnapshot snapshot;
+        ZooKeeperItf zk = ZkUtil.connect(zooKeeperConnectString, 30000);
+        try {
+            snapshot = SchemaCacheSnapshot.capture(zk, repository.getTypeManager());
+        } finally {
+            Closer.close(zk);
+        }
+
+        File file = File.createTempFile("lily-schema-", ".snapshot");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(snapshot.toBytes());
+        } finally {
+            out.close();
+        }
+
+        Configuration conf = job.getConfiguration();
+        String tmpFiles = conf.get("tmpfiles");
+        String uri = file.toURI().toString();
+        conf.set("tmpfiles", tmpFiles == null || tmpFiles.isEmpty() ? uri : tmpFiles + "," + uri);
+        conf.set(SCHEMA_SNAPSHOT, file.getName());
+    }
+
+    /**
+     * Returns the local copy of the schema cache snapshot shipped with the job, or null if there is none.
+     */
+    public static File getSchemaSnapshot(Configuration conf) throws IOException {
+        String name = conf.get(SCHEMA_SNAPSHOT);
+        if (name == null) {
+            return null;
+        }
+        Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+        if (localFiles != null) {
+            for (Path localFile : localFiles) {
+                if (localFile.getName().equals(name)) {
+                    return new File(localFile.toUri().getPath());
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -103,7 +191,7 @@ public class LilyMapReduceUtil {
     public static LilyClient getLilyClient(Configuration conf) throws InterruptedException {
         String zkConnectString = conf.get(ZK_CONNECT_STRING);
         try {
-            return new LilyClient(zkConnectString, 30000);
+            return new LilyClient(zkConnectString, 30000, false, getSchemaSnapshot(conf));
         } catch (InterruptedException e) {
             throw e;
         } catch (Exception e) {
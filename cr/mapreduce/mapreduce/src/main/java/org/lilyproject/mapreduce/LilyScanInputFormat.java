@@ -43,7 +43,8 @@ public class LilyScanInputFormat extends AbstractLilyScanInputFormat<RecordIdWri
 
         LilyClient lilyClient = null;
         try {
-            lilyClient = new LilyClient(zkConnectString, 30000);
+            lilyClient = new LilyClient(zkConnectString, 30000, false,
+                    LilyMapReduceUtil.getSchemaSnapshot(taskAttemptContext.getConfiguration()));
         } catch (Exception e) {
             throw new IOException("Error setting up LilyClient", e);
         }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.mapreduce.test;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.mapreduce.AbstractLilyScanInputFormat;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SplitKeyRangeTest {
+    @Test
+    public void testSplitKeyRange() throws Exception {
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        byte[] start = idGenerator.newRecordId().toBytes();
+        byte[] stop = new byte[] {start[0], (byte)0xFF, (byte)0xFF};
+        if (Bytes.compareTo(start, stop) >= 0) {
+            start = new byte[] {start[0], 0};
+        }
+
+        byte[][] keys = AbstractLilyScanInputFormat.splitKeyRange(start, stop, 4);
+        assertEquals(5, keys.length);
+        assertArrayEquals(start, keys[0]);
+        assertArrayEquals(stop, keys[4]);
+        for (int i = 0; i < keys.length - 1; i++) {
+            assertTrue(Bytes.compareTo(keys[i], keys[i + 1]) < 0);
+        }
+    }
+
+    @Test
+    public void testSplitKeyRangeToEndOfTable() throws Exception {
+        byte[] start = new byte[] {1, 0};
+        byte[] stop = new byte[0];
+
+        byte[][] keys = AbstractLilyScanInputFormat.splitKeyRange(start, stop, 3);
+        assertEquals(4, keys.length);
+        assertArrayEquals(start, keys[0]);
+        assertArrayEquals(stop, keys[3]);
+        // The range ends at the next value of the identifier byte
+        assertEquals(1, keys[1][0]);
+        assertEquals(1, keys[2][0]);
+        assertTrue(Bytes.compareTo(keys[1], keys[2]) < 0);
+    }
+
+    @Test
+    public void testSplitKeyRangeNotDivisible() throws Exception {
+        byte[] start = new byte[] {1, 0};
+        byte[] stop = new byte[] {1, 0, 0};
+
+        byte[][] keys = AbstractLilyScanInputFormat.splitKeyRange(start, stop, 4);
+        assertEquals(2, keys.length);
+        assertArrayEquals(start, keys[0]);
+        assertArrayEquals(stop, keys[1]);
+
+        keys = AbstractLilyScanInputFormat.splitKeyRange(start, new byte[] {2}, 1);
+        assertEquals(2, keys.length);
+    }
+}
@@ -16,6 +16,7 @@
 package org.lilyproject.client;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -137,8 +138,29 @@ public class LilyClient implements Closeable, RepositoryManager {
 
     public LilyClient(ZooKeeperItf zk, boolean keepAlive) throws IOException, InterruptedException, KeeperException, ZkConnectException,
             NoServersException, RepositoryException {
+        this(zk, keepAlive, null);
+    }
+
+    /**
+     * @param schemaCacheSnapshot a snapshot of the schema cache from which the client initializes its schema cache,
+     *                            only the types which changed since it was taken are read from the repository.
+     *                            The file is only read. Can be null.
+     */
+    public LilyClient(String zookeeperConnectString, int sessionTimeout, boolean keepAlive, File schemaCacheSnapshot)
+            throws IOException, InterruptedException, KeeperException, ZkConnectException, NoServersException,
+            RepositoryException {
+        this(ZkUtil.connect(zookeeperConnectString, sessionTimeout), keepAlive, schemaCacheSnapshot);
+        managedZk = true;
+    }
+
+    /**
+     * @param schemaCacheSnapshot see {@link #LilyClient(String, int, boolean, File)}
+     */
+    public LilyClient(ZooKeeperItf zk, boolean keepAlive, File schemaCacheSnapshot) throws IOException,
+            InterruptedException, KeeperException, ZkConnectException, NoServersException, RepositoryException {
         this.zk = zk;
         schemaCache = new RemoteSchemaCache(zk, this);
+        schemaCache.setSnapshotFile(schemaCacheSnapshot, false);
         this.keepAlive = keepAlive;
         init();
     }
@@ -16,11 +16,10 @@
 package org.lilyproject.client.impl;
 
 import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.util.proxy.ProxyFactory;
+import org.lilyproject.util.proxy.ProxyHandler;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 
 public class LoadBalancingUtil {
     /**
@@ -29,33 +28,37 @@ public class LoadBalancingUtil {
      */
     public static <T> T getLoadBalancedInstance(LBInstanceProvider<T> provider, Class<T> delegateType,
             String repositoryName, String tableName) {
-        InvocationHandler ih = new LoadBalancingInvocationHandler<T>(provider, repositoryName, tableName);
-        return (T)Proxy.newProxyInstance(LoadBalancingUtil.class.getClassLoader(), new Class[]{delegateType}, ih);
+        ProxyFactory<T> proxyFactory = ProxyFactory.forInterface(delegateType);
+        return proxyFactory.newInstance(new LoadBalancingHandler<T>(provider, repositoryName, tableName,
+                proxyFactory.getMethods()));
     }
 
-    private static final class LoadBalancingInvocationHandler<T> implements InvocationHandler {
+    private static final class LoadBalancingHandler<T> extends ProxyHandler {
         private final LBInstanceProvider<T> provider;
         private final String repositoryName;
         private final String tableName;
+        private final boolean[] closeMethods;
 
-        private LoadBalancingInvocationHandler(LBInstanceProvider<T> provider, String repositoryName, String tableName) {
+        private LoadBalancingHandler(LBInstanceProvider<T> provider, String repositoryName, String tableName,
+                Method[] methods) {
             this.provider = provider;
             this.repositoryName = repositoryName;
             this.tableName = tableName;
+            this.closeMethods = new boolean[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                // close is a no-op, the wrapped instances are closed by whoever provides them
+                closeMethods[i] = methods[i].getName().equals("close") && methods[i].getReturnType() == void.class;
+            }
         }
 
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            if (method.getName().equals("close")) {
-                return null;
-            }
+        public Object before(int method) {
+            return closeMethods[method] ? SKIP : null;
+        }
 
-            try {
-                T delegate = provider.getInstance(repositoryName, tableName);
-                return method.invoke(delegate, args);
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
-            }
+        @Override
+        public Object getTarget(Object token) throws RepositoryException, InterruptedException {
+            return provider.getInstance(repositoryName, tableName);
         }
     }
 
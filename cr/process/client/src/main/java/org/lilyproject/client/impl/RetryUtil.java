@@ -25,10 +25,11 @@ import org.lilyproject.repository.api.IORecordException;
 import org.lilyproject.repository.api.IOTypeException;
 import org.lilyproject.repository.api.RetriesExhaustedException;
 
-import java.lang.reflect.InvocationHandler;
+import org.lilyproject.util.proxy.ProxyFactory;
+import org.lilyproject.util.proxy.ProxyHandler;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 
 public class RetryUtil {
     private Log log = LogFactory.getLog(getClass());
@@ -40,28 +41,56 @@ public class RetryUtil {
 
     public static <T> T getRetryingInstance(T delegate, Class<T> delegateType, RetryConf retryConf) {
         RetryUtil retryUtil = new RetryUtil(retryConf);
-        InvocationHandler ih = new RetryingInvocationHandler<T>(delegate, retryUtil);
-        T retryingInstance = (T)Proxy.newProxyInstance(RetryUtil.class.getClassLoader(),
-                new Class[]{delegateType}, ih);
-        return retryingInstance;
+        ProxyFactory<T> proxyFactory = ProxyFactory.forInterface(delegateType);
+        return proxyFactory.newInstance(new RetryingHandler<T>(delegate, retryUtil, proxyFactory.getMethods()));
     }
 
-    private static final class RetryingInvocationHandler<T> implements InvocationHandler {
+    private static final class RetryingHandler<T> extends ProxyHandler {
         private final T delegate;
         private final RetryUtil retryUtil;
+        private final Method[] methods;
+        private final boolean[] closeMethods;
 
-        private RetryingInvocationHandler(T delegate, RetryUtil retryUtil) {
+        private RetryingHandler(T delegate, RetryUtil retryUtil, Method[] methods) {
             this.delegate = delegate;
             this.retryUtil = retryUtil;
+            this.methods = methods;
+            this.closeMethods = new boolean[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                // close is a no-op, the wrapped instances are closed by whoever provides them
+                closeMethods[i] = methods[i].getName().equals("close") && methods[i].getReturnType() == void.class;
+            }
         }
 
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            if (method.getName().equals("close")) {
-                return null;
+        public Object before(int method) {
+            if (closeMethods[method]) {
+                return SKIP;
             }
 
-            return retryUtil.retry(delegate, method, args);
+            return new RetryState(System.currentTimeMillis());
+        }
+
+        @Override
+        public Object getTarget(Object token) {
+            return delegate;
+        }
+
+        @Override
+        public Object failed(int method, Object token, Throwable throwable) throws Throwable {
+            RetryState state = (RetryState)token;
+            retryUtil.handleThrowable(throwable, methods[method], state.startedAt, state.attempt);
+            state.attempt++;
+            return state;
+        }
+    }
+
+    private static final class RetryState {
+        private final long startedAt;
+        private int attempt;
+
+        private RetryState(long startedAt) {
+            this.startedAt = startedAt;
         }
     }
 
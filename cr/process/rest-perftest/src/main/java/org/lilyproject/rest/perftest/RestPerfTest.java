@@ -15,8 +15,10 @@
  */
 package org.lilyproject.rest.perftest;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -32,6 +34,7 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.lilyproject.cli.OptionUtil;
@@ -48,6 +51,8 @@ public class RestPerfTest extends BaseTestTool {
 
     private int iterations;
 
+    private static final int EXPORT_PART_SIZE = 1000;
+
     private Option iterationsOption;
 
     public static void main(String[] args) throws Exception {
@@ -375,6 +380,27 @@ public class RestPerfTest extends BaseTestTool {
             });
         }
         stopExecutor();
+
+        //
+        // Export all records with a streaming scan, in parts using the continuation token
+        //
+        String scanBody = json("{caching: 1000, cacheBlocks: false}");
+        String continuation = null;
+        long exported = 0;
+        long exportStart = System.nanoTime();
+        do {
+            String path = "/scan/export?limit=" + EXPORT_PART_SIZE
+                    + (continuation != null ? "&continuation=" + continuation : "");
+            long before = System.nanoTime();
+            ExportResult result = export(path, scanBody.getBytes());
+            double duration = System.nanoTime() - before;
+            metrics.increment("Scan export of " + EXPORT_PART_SIZE + " records", "X", duration / 1e6d);
+            exported += result.recordCount;
+            continuation = result.continuation;
+        } while (continuation != null);
+        double exportDuration = (System.nanoTime() - exportStart) / 1e9d;
+        System.out.println(String.format("Exported %1$d records in %2$.1f s, %3$.0f records/s", exported,
+                exportDuration, exported / exportDuration));
     }
 
     private Result get(String path, int... expectedStatus) throws IOException {
@@ -408,6 +434,45 @@ public class RestPerfTest extends BaseTestTool {
         return new Result(response, data);
     }
 
+    /**
+     * Performs a scan export, reading the response line by line as it comes in.
+     */
+    private ExportResult export(String path, byte[] body) throws IOException {
+        HttpPost post = new HttpPost(baseUri + path);
+        post.addHeader("Content-Type", "application/json");
+        post.setEntity(new ByteArrayEntity(body));
+        HttpResponse response = httpclient.execute(post);
+
+        int status = response.getStatusLine().getStatusCode();
+        if (status != 200) {
+            checkStatusAndReadResponse(path, response, 200);
+        }
+
+        ExportResult result = new ExportResult();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
+        try {
+            String line;
+            String lastLine = null;
+            while ((line = reader.readLine()) != null) {
+                if (lastLine != null) {
+                    result.recordCount++;
+                }
+                lastLine = line;
+            }
+            if (lastLine == null) {
+                throw new RuntimeException("Scan export returned an empty response. Request path: " + path);
+            }
+            JsonNode continuation = JsonFormat.deserialize(lastLine).get("continuation");
+            if (continuation == null) {
+                throw new RuntimeException("Scan export response was interrupted. Request path: " + path);
+            }
+            result.continuation = continuation.isNull() ? null : continuation.getTextValue();
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
     private byte[] checkStatusAndReadResponse(String path, HttpResponse response, int... expectedStatus)
             throws IOException {
 
@@ -443,6 +508,11 @@ public class RestPerfTest extends BaseTestTool {
         return builder.toString();
     }
 
+    private static class ExportResult {
+        long recordCount;
+        String continuation;
+    }
+
     private static class Result {
         HttpResponse response;
         byte[] data;
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.io.BaseEncoding;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.lilyproject.repository.api.LRepository;
+import org.lilyproject.repository.api.LTable;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordScan;
+import org.lilyproject.repository.api.RecordScanner;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.ReturnFields;
+import org.lilyproject.tools.import_.json.RecordWriter;
+import org.lilyproject.tools.import_.json.WriteOptions;
+import org.lilyproject.tools.restresourcegenerator.GenerateRepositoryAndTableResource;
+import org.lilyproject.tools.restresourcegenerator.GenerateRepositoryResource;
+import org.lilyproject.tools.restresourcegenerator.GenerateTableResource;
+import org.lilyproject.util.json.JsonFormat;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
+
+/**
+ * Exports the result of a record scan in one response, as newline-delimited JSON: one record per line.
+ *
+ * <p>The records are written to the response while the scanner is read, so the export proceeds at the pace
+ * at which the client reads the response. The last line is an object with a "continuation" property, which
+ * is null if the scan is complete. If the number of records was limited with the "limit" parameter, the
+ * continuation token can be passed in the "continuation" parameter of a request with the same scan, to continue
+ * the export after the last exported record. A response without this last line was interrupted.</p>
+ *
+ * <p>The "fields" parameter limits the fields which are returned, same as for reading records.</p>
+ */
+@Path("scan/export")
+@GenerateTableResource
+@GenerateRepositoryResource
+@GenerateRepositoryAndTableResource
+public class RecordScanExportResource extends BaseRepositoryResource {
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    /**
+     * Number of records after which the response is flushed.
+     */
+    private static final int FLUSH_INTERVAL = 100;
+
+    private static final byte[] NEWLINE = new byte[] {'\n'};
+
+    @POST
+    @Consumes("application/json")
+    @Produces(MEDIA_TYPE)
+    public StreamingOutput post(final RecordScan scan, @QueryParam("limit") Long limit,
+            @QueryParam("continuation") String continuation, @Context UriInfo uriInfo) {
+        if (limit != null && limit < 1) {
+            throw new ResourceException("Invalid limit, it should be at least 1: " + limit,
+                    BAD_REQUEST.getStatusCode());
+        }
+
+        if (continuation != null) {
+            // Continue with the row following the last exported row
+            byte[] lastRow;
+            try {
+                lastRow = BaseEncoding.base64Url().decode(continuation);
+            } catch (IllegalArgumentException e) {
+                throw new ResourceException("Invalid continuation token: " + continuation,
+                        BAD_REQUEST.getStatusCode());
+            }
+            byte[] startRow = new byte[lastRow.length + 1];
+            System.arraycopy(lastRow, 0, startRow, 0, lastRow.length);
+            scan.setStartRecordId(null);
+            scan.setRawStartRecordId(startRow);
+        }
+
+        List<QName> fields = ResourceClassUtil.parseFieldList(uriInfo);
+        if (fields != null) {
+            scan.setReturnFields(new ReturnFields(fields));
+        }
+
+        final LRepository repository = getRepository(uriInfo);
+        final LTable table = getTable(uriInfo);
+        final WriteOptions writeOptions = ResourceClassUtil.getWriteOptions(uriInfo);
+        final long maxRecords = limit != null ? limit : Long.MAX_VALUE;
+
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                // The scanner is only opened here, so that it is always closed: it would leak if it was opened
+                // before returning and the response was never written. Nothing is written yet at this point, so
+                // errors opening it are still reported as such.
+                RecordScanner scanner;
+                try {
+                    scanner = table.getScanner(scan);
+                } catch (RepositoryException e) {
+                    throw new ResourceException(e, BAD_REQUEST.getStatusCode());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ResourceException(e, INTERNAL_SERVER_ERROR.getStatusCode());
+                }
+
+                try {
+                    long count = 0;
+                    Record record = null;
+                    while (count < maxRecords && (record = scanner.next()) != null) {
+                        output.write(JsonFormat.serializeAsBytes(RecordWriter.INSTANCE.toJson(record, writeOptions,
+                                repository)));
+                        output.write(NEWLINE);
+                        count++;
+                        if (count % FLUSH_INTERVAL == 0) {
+                            output.flush();
+                        }
+                    }
+
+                    ObjectNode endNode = JsonNodeFactory.instance.objectNode();
+                    if (count == maxRecords && record != null) {
+                        endNode.put("continuation", BaseEncoding.base64Url().encode(record.getId().toBytes()));
+                    } else {
+                        endNode.putNull("continuation");
+                    }
+                    output.write(JsonFormat.serializeAsBytes(endNode));
+                    output.write(NEWLINE);
+                    output.flush();
+                } catch (RepositoryException e) {
+                    throw new ResourceException("Error exporting records.", e,
+                            INTERNAL_SERVER_ERROR.getStatusCode());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ResourceException("Error exporting records.", e,
+                            INTERNAL_SERVER_ERROR.getStatusCode());
+                } finally {
+                    scanner.close();
+                }
+            }
+        };
+    }
+}
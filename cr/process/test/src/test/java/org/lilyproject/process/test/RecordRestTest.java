@@ -23,6 +23,7 @@ import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.junit.Test;
+import org.lilyproject.util.json.JsonFormat;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -745,6 +746,42 @@ public class RecordRestTest extends AbstractRestTest {
 
     }
 
+    @Test
+    public void testRecordScanExport() throws Exception {
+        setupRecordScannerTest();
+
+        String body = json("{'recordFilter' : { '@class' : 'org.lilyproject.repository.api.filter.RecordIdPrefixFilter', " +
+                "'recordId' : 'USER.scan_'}}, 'caching' : 1024, 'cacheBlocks' : false}");
+
+        // Export everything in one go: one line per record, followed by the end line
+        ResponseAndContent response = post("/scan/export", body);
+        assertStatus(HttpStatus.SC_OK, response);
+        String[] lines = new String(response.getContent(), "UTF-8").split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("USER.scan_faster_fishing", JsonFormat.deserialize(lines[0]).get("id").getTextValue());
+        assertTrue(JsonFormat.deserialize(lines[3]).get("continuation").isNull());
+
+        // Export in parts, using the continuation token, and only the title field
+        response = post("/scan/export?limit=2&fields=b$title&ns.b=org.lilyproject.resttest", body);
+        assertStatus(HttpStatus.SC_OK, response);
+        lines = new String(response.getContent(), "UTF-8").split("\n");
+        assertEquals(3, lines.length);
+        assertNotNull(JsonFormat.deserialize(lines[0]).get("fields"));
+        String continuation = JsonFormat.deserialize(lines[2]).get("continuation").getTextValue();
+        assertNotNull(continuation);
+
+        response = post("/scan/export?limit=2&continuation=" + continuation, body);
+        assertStatus(HttpStatus.SC_OK, response);
+        lines = new String(response.getContent(), "UTF-8").split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("USER.scan_fly_fishing_with_flash", JsonFormat.deserialize(lines[0]).get("id").getTextValue());
+        assertTrue(JsonFormat.deserialize(lines[1]).get("continuation").isNull());
+
+        // A limit below 1 would export nothing and look like a completed scan
+        response = post("/scan/export?limit=0", body);
+        assertStatus(HttpStatus.SC_BAD_REQUEST, response);
+    }
+
     @Test
     public void testRecordScanDelete() throws Exception {
         setupRecordScannerTest();
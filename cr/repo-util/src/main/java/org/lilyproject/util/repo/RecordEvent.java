@@ -34,6 +34,10 @@ import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.util.ByteArrayBuilder;
+import org.lilyproject.bytes.api.DataInput;
+import org.lilyproject.bytes.api.DataOutput;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.SchemaId;
@@ -43,9 +47,27 @@ import org.lilyproject.util.json.JsonFormat;
 /**
  * Represents the payload of an event about a create-update-delete operation on the repository.
  *
- * <p>The actual payload is json, this class helps in parsing or constructing that json.
+ * <p>The payload is either json ({@link #toJsonBytes()}) or a more compact binary format ({@link #toBytes()}),
+ * this class helps in parsing or constructing it. When parsing, the format is detected automatically.</p>
+ *
+ * <p>The binary format starts with a zero byte (which can never start a json payload) followed by a format
+ * version byte. When parsed from the binary format, the {@link IndexRecordFilterData} is only parsed when
+ * it is asked for, since many consumers of the events don't need it.</p>
+ *
+ * <p>The writers of the events use {@link #toPayloadBytes()}, which produces json unless the system property
+ * {@link #BINARY_PAYLOAD_PROPERTY} is true. Only enable it once all consumers can read the binary format.</p>
  */
 public class RecordEvent {
+    /**
+     * System property which, when true, makes {@link #toPayloadBytes()} use the binary format.
+     */
+    public static final String BINARY_PAYLOAD_PROPERTY = "lily.recordEventBinaryPayload";
+    private static final boolean BINARY_PAYLOAD = Boolean.getBoolean(BINARY_PAYLOAD_PROPERTY);
+
+    /** First byte of a binary payload, json payloads start with '{' or whitespace. */
+    private static final byte BINARY_MARKER = 0;
+    private static final byte BINARY_VERSION_1 = 1;
+
     private long versionCreated = -1;
     private long versionUpdated = -1;
     private Type type;
@@ -57,31 +79,54 @@ public class RecordEvent {
     private IndexRecordFilterData indexRecordFilterData;
     /** A copy of the attributes supplied via {@link Record#setAttributes(Map)}. */
     private Map<String, String> attributes;
+    /** The not yet parsed binary form of the indexRecordFilterData. */
+    private DataInput indexRecordFilterDataInput;
+    private IdGenerator idGenerator;
 
     public enum Type {
-        CREATE("repo:record-created"),
-        UPDATE("repo:record-updated"),
-        DELETE("repo:record-deleted"),
-        INDEX("repo:index");
+        CREATE("repo:record-created", (byte)1),
+        UPDATE("repo:record-updated", (byte)2),
+        DELETE("repo:record-deleted", (byte)3),
+        INDEX("repo:index", (byte)4);
 
         private String name;
+        /** Identifies the type in the binary format, 0 is used for no type. */
+        private final byte code;
 
-        private Type(String name) {
+        private Type(String name, byte code) {
             this.name = name;
+            this.code = code;
         }
 
         public String getName() {
             return name;
         }
+
+        private static Type fromCode(byte code) throws IOException {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown record event type code: " + code);
+        }
     }
 
     public RecordEvent() {
     }
 
     /**
-     * Creates a record event from the json data supplied as bytes.
+     * Creates a record event from the json or binary data supplied as bytes.
      */
     public RecordEvent(byte[] data, IdGenerator idGenerator) throws IOException {
+        if (data.length > 0 && data[0] == BINARY_MARKER) {
+            readBinary(data, idGenerator);
+        } else {
+            readJson(data, idGenerator);
+        }
+    }
+
+    private void readJson(byte[] data, IdGenerator idGenerator) throws IOException {
         // Using streaming JSON parsing for performance. We expect the JSON to be correct, validation
         // is absent/minimal.
 
@@ -148,6 +193,78 @@ public class RecordEvent {
         }
     }
 
+    private void readBinary(byte[] data, IdGenerator idGenerator) throws IOException {
+        DataInput input = new DataInputImpl(data);
+        input.readByte(); // marker
+        byte version = input.readByte();
+        if (version != BINARY_VERSION_1) {
+            throw new IOException("Unsupported record event format version: " + version);
+        }
+
+        byte typeCode = input.readByte();
+        if (typeCode != 0) {
+            type = Type.fromCode(typeCode);
+        }
+        tableName = input.readVUTF();
+        // versions are -1 when not set, shift them so that they are always encoded as a positive vlong
+        versionCreated = input.readVLong() - 1;
+        versionUpdated = input.readVLong() - 1;
+        recordTypeChanged = input.readBoolean();
+
+        int count = input.readVInt();
+        for (int i = 0; i < count; i++) {
+            addUpdatedField(readSchemaId(input, idGenerator));
+        }
+
+        count = input.readVInt();
+        for (int i = 0; i < count; i++) {
+            addVTagToIndex(readSchemaId(input, idGenerator));
+        }
+
+        count = input.readVInt();
+        if (count > 0) {
+            attributes = new HashMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                attributes.put(input.readVUTF(), input.readVUTF());
+            }
+        }
+
+        int filterDataLength = input.readVInt();
+        if (filterDataLength >= 0) {
+            this.indexRecordFilterDataInput = new DataInputImpl(data, input.getPosition(), filterDataLength);
+            this.idGenerator = idGenerator;
+        }
+    }
+
+    private static void writeSchemaId(DataOutput output, SchemaId schemaId) {
+        if (schemaId == null) {
+            output.writeVInt(-1);
+        } else {
+            byte[] bytes = schemaId.getBytes();
+            output.writeVInt(bytes.length);
+            output.writeBytes(bytes);
+        }
+    }
+
+    private static SchemaId readSchemaId(DataInput input, IdGenerator idGenerator) {
+        int length = input.readVInt();
+        return length == -1 ? null : idGenerator.getSchemaId(input.readBytes(length));
+    }
+
+    private static void writeNullableBytes(DataOutput output, byte[] bytes) {
+        if (bytes == null) {
+            output.writeVInt(-1);
+        } else {
+            output.writeVInt(bytes.length);
+            output.writeBytes(bytes);
+        }
+    }
+
+    private static byte[] readNullableBytes(DataInput input) {
+        int length = input.readVInt();
+        return length == -1 ? null : input.readBytes(length);
+    }
+
     public long getVersionCreated() {
         return versionCreated;
     }
@@ -247,14 +364,22 @@ public class RecordEvent {
     }
 
     public IndexRecordFilterData getIndexRecordFilterData() {
+        if (indexRecordFilterDataInput != null) {
+            indexRecordFilterData = new IndexRecordFilterData(indexRecordFilterDataInput, idGenerator);
+            indexRecordFilterDataInput = null;
+            idGenerator = null;
+        }
         return indexRecordFilterData;
     }
 
     public void setIndexRecordFilterData(IndexRecordFilterData indexRecordFilterData) {
         this.indexRecordFilterData = indexRecordFilterData;
+        this.indexRecordFilterDataInput = null;
+        this.idGenerator = null;
     }
 
     public void toJson(JsonGenerator gen) throws IOException {
+        IndexRecordFilterData indexRecordFilterData = getIndexRecordFilterData();
 
         gen.writeStartObject();
 
@@ -335,6 +460,63 @@ public class RecordEvent {
         }
     }
 
+    /**
+     * Serializes this event in the format used for the payloads written to the record table: json, or the
+     * binary format if enabled through {@link #BINARY_PAYLOAD_PROPERTY}.
+     */
+    public byte[] toPayloadBytes() {
+        return BINARY_PAYLOAD ? toBytes() : toJsonBytes();
+    }
+
+    /**
+     * Serializes this event in the binary format.
+     */
+    public byte[] toBytes() {
+        DataOutput output = new DataOutputImpl(128);
+        output.writeByte(BINARY_MARKER);
+        output.writeByte(BINARY_VERSION_1);
+
+        output.writeByte(type == null ? 0 : type.code);
+        output.writeVUTF(tableName);
+        output.writeVLong(versionCreated + 1);
+        output.writeVLong(versionUpdated + 1);
+        output.writeBoolean(recordTypeChanged);
+
+        output.writeVInt(updatedFields != null ? updatedFields.size() : 0);
+        if (updatedFields != null) {
+            for (SchemaId updatedField : updatedFields) {
+                writeSchemaId(output, updatedField);
+            }
+        }
+
+        output.writeVInt(vtagsToIndex != null ? vtagsToIndex.size() : 0);
+        if (vtagsToIndex != null) {
+            for (SchemaId vtag : vtagsToIndex) {
+                writeSchemaId(output, vtag);
+            }
+        }
+
+        output.writeVInt(attributes != null ? attributes.size() : 0);
+        if (attributes != null) {
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                output.writeVUTF(attribute.getKey());
+                output.writeVUTF(attribute.getValue());
+            }
+        }
+
+        IndexRecordFilterData indexRecordFilterData = getIndexRecordFilterData();
+        if (indexRecordFilterData != null) {
+            DataOutput filterDataOutput = new DataOutputImpl();
+            indexRecordFilterData.write(filterDataOutput);
+            output.writeVInt(filterDataOutput.getSize());
+            output.writeBytes(filterDataOutput.toByteArray());
+        } else {
+            output.writeVInt(-1);
+        }
+
+        return output.toByteArray();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -476,6 +658,31 @@ public class RecordEvent {
             }
         }
 
+        IndexRecordFilterData(DataInput input, IdGenerator idGenerator) {
+            oldRecordExists = input.readBoolean();
+            newRecordExists = input.readBoolean();
+            includeSubscriptions = input.readBoolean();
+            newRecordType = readSchemaId(input, idGenerator);
+            oldRecordType = readSchemaId(input, idGenerator);
+
+            int count = input.readVInt();
+            if (count >= 0) {
+                fieldChanges = new ArrayList<FieldChange>(count);
+                for (int i = 0; i < count; i++) {
+                    fieldChanges.add(new FieldChange(readSchemaId(input, idGenerator), readNullableBytes(input),
+                            readNullableBytes(input)));
+                }
+            }
+
+            count = input.readVInt();
+            if (count >= 0) {
+                indexSubscriptionIds = Sets.newHashSetWithExpectedSize(count);
+                for (int i = 0; i < count; i++) {
+                    indexSubscriptionIds.add(input.readVUTF());
+                }
+            }
+        }
+
         public boolean getNewRecordExists() {
             return newRecordExists;
         }
@@ -555,7 +762,33 @@ public class RecordEvent {
             gen.writeEndObject();
         }
 
+        void write(DataOutput output) {
+            output.writeBoolean(oldRecordExists);
+            output.writeBoolean(newRecordExists);
+            output.writeBoolean(includeSubscriptions);
+            writeSchemaId(output, newRecordType);
+            writeSchemaId(output, oldRecordType);
+
+            if (fieldChanges != null) {
+                output.writeVInt(fieldChanges.size());
+                for (FieldChange fieldChange : fieldChanges) {
+                    writeSchemaId(output, fieldChange.getId());
+                    writeNullableBytes(output, fieldChange.getOldValue());
+                    writeNullableBytes(output, fieldChange.getNewValue());
+                }
+            } else {
+                output.writeVInt(-1);
+            }
 
+            if (indexSubscriptionIds != null) {
+                output.writeVInt(indexSubscriptionIds.size());
+                for (String subscriptionId : indexSubscriptionIds) {
+                    output.writeVUTF(subscriptionId);
+                }
+            } else {
+                output.writeVInt(-1);
+            }
+        }
 
         /**
          * Set the index subscription ids to be included when distributing the containing record
@@ -38,6 +38,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class RecordEventTest {
 
@@ -122,6 +123,101 @@ public class RecordEventTest {
         assertEquals(tableName, deserialized.getTableName());
     }
 
+    @Test
+    public void testRecordEvent_BinaryRoundTrip() throws Exception {
+        RecordEvent event = new RecordEvent();
+        RecordEvent deserialized = new RecordEvent(event.toBytes(), idGenerator);
+        assertEquals(event, deserialized);
+        assertNull(deserialized.getIndexRecordFilterData());
+        assertTrue(deserialized.getUpdatedFields().isEmpty());
+
+        SchemaId fieldId = idGenerator.getSchemaId(UUID.randomUUID());
+        SchemaId vtagId = idGenerator.getSchemaId(UUID.randomUUID());
+        SchemaId rtId = idGenerator.getSchemaId(UUID.randomUUID());
+
+        event = new RecordEvent();
+        event.setType(RecordEvent.Type.UPDATE);
+        event.setTableName("_table_name_");
+        event.setVersionCreated(3);
+        event.setVersionUpdated(2);
+        event.setRecordTypeChanged(true);
+        event.addUpdatedField(fieldId);
+        event.addVTagToIndex(vtagId);
+        event.getAttributes().put("key", "value");
+
+        IndexRecordFilterData filterData = new IndexRecordFilterData();
+        filterData.setOldRecordExists(true);
+        filterData.setNewRecordExists(true);
+        filterData.setNewRecordType(rtId);
+        filterData.addChangedField(fieldId, null, Bytes.toBytes("foo"));
+        filterData.setSubscriptionExclusions(ImmutableSet.of("index1"));
+        event.setIndexRecordFilterData(filterData);
+
+        byte[] bytes = event.toBytes();
+        assertTrue(bytes.length < event.toJsonBytes().length);
+
+        deserialized = new RecordEvent(bytes, idGenerator);
+        assertEquals(event, deserialized);
+        assertEquals("value", deserialized.getAttributes().get("key"));
+
+        IndexRecordFilterData deserializedFilterData = deserialized.getIndexRecordFilterData();
+        assertEquals(filterData, deserializedFilterData);
+        assertEquals(rtId, deserializedFilterData.getNewRecordType());
+        assertNull(deserializedFilterData.getOldRecordType());
+        assertEquals(1, deserializedFilterData.getFieldChanges().size());
+        assertNull(deserializedFilterData.getFieldChanges().get(0).getOldValue());
+        assertArrayEquals(Bytes.toBytes("foo"), deserializedFilterData.getFieldChanges().get(0).getNewValue());
+        assertFalse(deserializedFilterData.appliesToSubscription("index1"));
+        assertTrue(deserializedFilterData.appliesToSubscription("index2"));
+    }
+
+    @Test
+    public void testRecordEvent_BinaryToJson() throws Exception {
+        // An event read from the binary format, re-serialized as json, should give the same json
+        RecordEvent event = new RecordEvent();
+        event.setType(RecordEvent.Type.CREATE);
+        event.setVersionCreated(1);
+        IndexRecordFilterData filterData = new IndexRecordFilterData();
+        filterData.setNewRecordExists(true);
+        filterData.setNewRecordType(idGenerator.getSchemaId(UUID.randomUUID()));
+        event.setIndexRecordFilterData(filterData);
+
+        RecordEvent deserialized = new RecordEvent(event.toBytes(), idGenerator);
+        assertEquals(event.toJson(), deserialized.toJson());
+    }
+
+    @Test
+    public void testRecordEvent_BinaryTypeCodes() throws Exception {
+        // The codes are part of the stored format, they should not change when the enum changes
+        byte[] expectedCodes = {1, 2, 3, 4};
+        RecordEvent.Type[] types = {RecordEvent.Type.CREATE, RecordEvent.Type.UPDATE, RecordEvent.Type.DELETE,
+                RecordEvent.Type.INDEX};
+        for (int i = 0; i < types.length; i++) {
+            RecordEvent event = new RecordEvent();
+            event.setType(types[i]);
+            byte[] bytes = event.toBytes();
+            assertEquals(expectedCodes[i], bytes[2]);
+            assertEquals(types[i], new RecordEvent(bytes, idGenerator).getType());
+        }
+
+        byte[] bytes = new RecordEvent().toBytes();
+        assertEquals(0, bytes[2]);
+        bytes[2] = 99;
+        try {
+            new RecordEvent(bytes, idGenerator);
+            fail("Expected exception.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRecordEvent_PayloadIsJsonByDefault() throws Exception {
+        RecordEvent event = new RecordEvent();
+        event.setType(RecordEvent.Type.CREATE);
+        assertArrayEquals(event.toJsonBytes(), event.toPayloadBytes());
+    }
+
     @Test
     public void testIndexRecordFilterData_JsonRoundtrip() {
         IndexRecordFilterData recordFilterData = new IndexRecordFilterData();
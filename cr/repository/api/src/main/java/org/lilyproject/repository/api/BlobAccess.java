@@ -27,4 +27,15 @@ public interface BlobAccess {
      * The InputStream is only opened when this method is called.
      */
     InputStream getInputStream() throws BlobException;
+
+    /**
+     * Opens an InputStream on a range of the blob: reading starts at the given offset and stops after
+     * the given number of bytes, or at the end of the blob.
+     *
+     * <p>Blob stores which support it (such as the HBase blob store) don't read the skipped part of the blob.</p>
+     *
+     * @param offset position of the first byte to read
+     * @param length maximum number of bytes to read, -1 to read till the end of the blob
+     */
+    InputStream getInputStream(long offset, long length) throws BlobException;
 }
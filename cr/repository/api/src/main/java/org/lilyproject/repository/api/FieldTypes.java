@@ -31,6 +31,17 @@ public interface FieldTypes {
      */
     FieldType getFieldType(SchemaId id) throws TypeException, InterruptedException;
 
+    /**
+     * Gets a FieldType from the FieldTypes based on the bytes of its id, found at the given position
+     * of the given array.
+     *
+     * <p>This avoids having to copy the id bytes into a {@link SchemaId}, which matters when looking
+     * up field types for each cell read from the record table.
+     *
+     * @throws FieldTypeNotFoundException when no fieldType with the given ID exists
+     */
+    FieldType getFieldType(byte[] idBytes, int offset, int length) throws TypeException, InterruptedException;
+
     /**
      * Gets a FieldType from the FieldTypes.
      *
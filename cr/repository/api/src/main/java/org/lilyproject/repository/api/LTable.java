@@ -204,6 +204,32 @@ public interface LTable {
      */
     Record createOrUpdate(Record record, boolean useLatestRecordType) throws RepositoryException, InterruptedException;
 
+    /**
+     * Creates a list of records, see {@link #create(Record)}.
+     *
+     * <p>The records are created in no particular order, and a failure to create one record does not stop
+     * the creation of the others. The returned list contains one result for each record, in the order of
+     * the supplied records.
+     *
+     * <p>Batch mutations are more efficient than performing the single-record operations one by one, but
+     * they are otherwise equivalent to them.
+     */
+    List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException;
+
+    /**
+     * Updates a list of records, see {@link #update(Record)}.
+     *
+     * <p>See {@link #create(List)} for how batch mutations are performed and reported.
+     */
+    List<MutationResult> update(List<Record> records) throws RepositoryException, InterruptedException;
+
+    /**
+     * Creates or updates a list of records, see {@link #createOrUpdate(Record)}.
+     *
+     * <p>See {@link #create(List)} for how batch mutations are performed and reported.
+     */
+    List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException;
+
     /**
      * @param recordId   the id of the record to read, null is not allowed
      * @param fieldNames list of names of the fields to read or null to read all fields
@@ -279,6 +305,23 @@ public interface LTable {
      */
     List<Record> read(List<RecordId> recordIds, QName... fieldNames) throws RepositoryException, InterruptedException;
 
+    /**
+     * Reads a list of records, returning them as they become available rather than all at once.
+     * This is intended for reading large amounts of records.
+     *
+     * <p>The same rules as for {@link #read(List, QName...)} apply, except that the records are not returned
+     * in the order of the supplied ids, and each record is returned only once, even when its id occurs
+     * multiple times.
+     *
+     * <p>When done with the scanner, be sure to call {@link RecordScanner#close()} on it, especially when
+     * not all records have been consumed.
+     *
+     * @param recordIds  the ids of the records to read, null is not allowed
+     * @param fieldNames names of the fields to read or null to read all fields
+     */
+    RecordScanner readStreaming(List<RecordId> recordIds, QName... fieldNames)
+            throws RepositoryException, InterruptedException;
+
     /**
      * @deprecated in favor of using varargs for the fieldNames. Please use {@link #read(RecordId, Long, QName...)}
      *             instead.
@@ -369,6 +412,20 @@ public interface LTable {
     IdRecord readWithIds(RecordId recordId, Long version, List<SchemaId> fieldIds)
             throws RepositoryException, InterruptedException;
 
+    /**
+     * Reads the latest version of multiple records, also returning the mapping from QNames to IDs. The records
+     * are fetched with multi-gets, as for {@link #read(List, QName...)}.
+     *
+     * <p>No RecordNotFoundException is thrown when a record does not exist or has been deleted.
+     * Instead, the returned list will not contain an entry for that requested id.
+     *
+     * @param recordIds ids of the records to read, null is not allowed
+     * @param fieldIds  load only the fields with these ids. optional, can be null.
+     * @return the records that are read, in the order of the requested ids
+     */
+    List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException;
+
     /**
      * Delete a {@link Record} from the repository.
      *
@@ -398,6 +455,13 @@ public interface LTable {
      */
     void delete(Record record) throws RepositoryException, InterruptedException;
 
+    /**
+     * Deletes a list of records, see {@link #delete(RecordId)}.
+     *
+     * <p>See {@link #create(List)} for how batch mutations are performed and reported.
+     */
+    List<MutationResult> delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException;
+
     /**
      * Returns an {@link java.io.OutputStream} for a blob. The binary data of a blob
      * must be written to this outputStream and the stream must be closed before
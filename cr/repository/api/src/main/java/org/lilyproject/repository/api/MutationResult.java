@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.api;
+
+/**
+ * The outcome of one record in a batch mutation, such as {@link LTable#createOrUpdate(java.util.List)}.
+ *
+ * <p>For a successful mutation, {@link #getRecord()} returns the same record as the corresponding single-record
+ * operation would have returned (which is null for deletes). For a failed mutation, {@link #getException()}
+ * returns the exception the single-record operation would have thrown.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class MutationResult {
+    private final RecordId recordId;
+    private final Record record;
+    private final RepositoryException exception;
+
+    private MutationResult(RecordId recordId, Record record, RepositoryException exception) {
+        this.recordId = recordId;
+        this.record = record;
+        this.exception = exception;
+    }
+
+    public static MutationResult success(RecordId recordId, Record record) {
+        return new MutationResult(recordId, record, null);
+    }
+
+    public static MutationResult failure(RecordId recordId, RepositoryException exception) {
+        return new MutationResult(recordId, null, exception);
+    }
+
+    /**
+     * The id of the record this result is about. Can be null for a failed create of a record without id.
+     */
+    public RecordId getRecordId() {
+        return recordId;
+    }
+
+    /**
+     * The record as returned by the mutation, null if the mutation failed or was a delete.
+     */
+    public Record getRecord() {
+        return record;
+    }
+
+    /**
+     * The reason the mutation failed, null if it succeeded.
+     */
+    public RepositoryException getException() {
+        return exception;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+}
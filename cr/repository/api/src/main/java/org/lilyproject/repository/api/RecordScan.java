@@ -31,6 +31,7 @@ public class RecordScan {
     private ReturnFields returnFields;
     private int caching = -1;
     private boolean cacheBlocks = true;
+    private boolean lazyFieldDecoding = false;
 
     /**
      * @see #setStartRecordId(RecordId)
@@ -210,4 +211,26 @@ public class RecordScan {
     public void setCacheBlocks(boolean cacheBlocks) {
         this.cacheBlocks = cacheBlocks;
     }
+
+    /**
+     * @see #setLazyFieldDecoding(boolean)
+     */
+    public boolean getLazyFieldDecoding() {
+        return lazyFieldDecoding;
+    }
+
+    /**
+     * Enable or disable lazy decoding of field values. When enabled, the records returned by the
+     * {@link RecordScanner} keep the stored form of their field values, and only decode a field when it is
+     * accessed for the first time. This is false by default.
+     *
+     * <p>This makes sense when the consumer of the scan only looks at a few of the returned fields, and
+     * these fields can't be selected upfront with {@link #setReturnFields(ReturnFields)}, e.g. because
+     * they depend on the record. Methods like {@link Record#getFields()} will still decode all fields.</p>
+     *
+     * <p>This setting does not apply to {@link Repository#getScannerWithIds(RecordScan)}.</p>
+     */
+    public void setLazyFieldDecoding(boolean lazyFieldDecoding) {
+        this.lazyFieldDecoding = lazyFieldDecoding;
+    }
 }
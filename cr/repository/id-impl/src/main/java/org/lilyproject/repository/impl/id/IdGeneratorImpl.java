@@ -31,9 +31,16 @@ import org.lilyproject.util.ArgumentValidator;
 
 public class IdGeneratorImpl implements IdGenerator {
 
+    /**
+     * System property selecting the {@link RecordIdStrategy} of id generators created with the default constructor,
+     * see {@link RecordIdStrategies#fromString(String)}.
+     */
+    public static final String RECORD_ID_STRATEGY_PROPERTY = "lily.recordIdStrategy";
+
     protected static enum IdType {
         USER((byte) 0, new UserRecordIdFactory()),
-        UUID((byte) 1, new UUIDRecordIdFactory());
+        UUID((byte) 1, new UUIDRecordIdFactory()),
+        SALTED_TIME((byte) 2, new SaltedTimeRecordIdFactory());
 
         private final byte identifierByte;
         private final RecordIdFactory factory;
@@ -54,9 +61,31 @@ public class IdGeneratorImpl implements IdGenerator {
 
     private static IdType[] ID_TYPES = IdType.values();
 
+    private final RecordIdStrategy recordIdStrategy;
+
+    /**
+     * Creates an id generator using the record id strategy specified by the system property
+     * {@link #RECORD_ID_STRATEGY_PROPERTY}, or random UUIDs if it is not set.
+     */
+    public IdGeneratorImpl() {
+        this(System.getProperty(RECORD_ID_STRATEGY_PROPERTY));
+    }
+
+    /**
+     * @param recordIdStrategy name of the record id strategy, see {@link RecordIdStrategies#fromString(String)}
+     */
+    public IdGeneratorImpl(String recordIdStrategy) {
+        this(RecordIdStrategies.fromString(recordIdStrategy));
+    }
+
+    public IdGeneratorImpl(RecordIdStrategy recordIdStrategy) {
+        ArgumentValidator.notNull(recordIdStrategy, "recordIdStrategy");
+        this.recordIdStrategy = recordIdStrategy;
+    }
+
     @Override
     public RecordId newRecordId() {
-        return new UUIDRecordId(this);
+        return recordIdStrategy.newRecordId(this);
     }
 
     @Override
@@ -145,6 +174,14 @@ public class IdGeneratorImpl implements IdGenerator {
         return stringBuilder.toString();
     }
 
+    protected String toString(SaltedTimeRecordId saltedTimeRecordId) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(IdType.SALTED_TIME.name());
+        stringBuilder.append(".");
+        stringBuilder.append(saltedTimeRecordId.getBasicString());
+        return stringBuilder.toString();
+    }
+
     protected String toString(UserRecordId userRecordId) {
         String idString = userRecordId.getBasicString();
 
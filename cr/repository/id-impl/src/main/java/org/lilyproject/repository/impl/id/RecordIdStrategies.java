@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.id;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+import org.lilyproject.repository.api.RecordId;
+
+/**
+ * The built-in {@link RecordIdStrategy}s.
+ *
+ * <p>A strategy can be selected by name with {@link #fromString(String)}:</p>
+ *
+ * <ul>
+ *     <li><b>uuid</b>: random UUIDs from {@link UUID#randomUUID()}. This is the default. All threads share
+ *     one random generator, which becomes a point of contention when many threads create records.</li>
+ *     <li><b>threadlocal-uuid</b>: the same random UUIDs, but each thread uses a random generator of its own.</li>
+ *     <li><b>salted-time</b> or <b>salted-time:&lt;buckets&gt;</b>: {@link SaltedTimeRecordId}s, which start with
+ *     a salt byte followed by the creation time, so that records created around the same time are stored
+ *     together within each of the salt buckets. The number of buckets (1-256, default 16) should be at least the
+ *     number of regions over which the inserts are to be spread. Tables meant for these ids can be pre-split on
+ *     the salt, using the split key prefix \x02 (the identifier byte of these ids).</li>
+ * </ul>
+ */
+public final class RecordIdStrategies {
+    public static final String RANDOM_UUID_NAME = "uuid";
+    public static final String THREAD_LOCAL_UUID_NAME = "threadlocal-uuid";
+    public static final String SALTED_TIME_NAME = "salted-time";
+
+    public static final int DEFAULT_SALT_BUCKETS = 16;
+
+    public static final RecordIdStrategy RANDOM_UUID = new RecordIdStrategy() {
+        @Override
+        public RecordId newRecordId(IdGeneratorImpl idGenerator) {
+            return new UUIDRecordId(UUID.randomUUID(), idGenerator);
+        }
+    };
+
+    public static final RecordIdStrategy THREAD_LOCAL_UUID = new RecordIdStrategy() {
+        @Override
+        public RecordId newRecordId(IdGeneratorImpl idGenerator) {
+            SecureRandom random = RANDOM.get();
+            long msb = random.nextLong();
+            long lsb = random.nextLong();
+            // Set the version (4, random) and variant (IETF) bits, as UUID.randomUUID() does
+            msb = (msb & ~0xF000L) | 0x4000L;
+            lsb = (lsb & ~0xC000000000000000L) | 0x8000000000000000L;
+            return new UUIDRecordId(new UUID(msb, lsb), idGenerator);
+        }
+    };
+
+    /**
+     * The random generators of the threads. SHA1PRNG is used rather than the platform default, since the
+     * default (NativePRNG) serializes all its instances on one lock.
+     */
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
+
+    private RecordIdStrategies() {
+    }
+
+    /**
+     * Creates a strategy generating {@link SaltedTimeRecordId}s spread over the given number of salt buckets.
+     */
+    public static RecordIdStrategy saltedTime(final int saltBuckets) {
+        if (saltBuckets < 1 || saltBuckets > 256) {
+            throw new IllegalArgumentException("Number of salt buckets should be between 1 and 256, got: "
+                    + saltBuckets);
+        }
+        return new RecordIdStrategy() {
+            @Override
+            public RecordId newRecordId(IdGeneratorImpl idGenerator) {
+                long random = RANDOM.get().nextLong();
+                byte salt = (byte)((random & Long.MAX_VALUE) % saltBuckets);
+                return new SaltedTimeRecordId(salt, System.currentTimeMillis(), random, idGenerator);
+            }
+        };
+    }
+
+    /**
+     * Returns the strategy with the given name, see the class description for the names. Null or an empty string
+     * returns the default strategy.
+     */
+    public static RecordIdStrategy fromString(String name) {
+        if (name == null || name.trim().length() == 0 || name.trim().equals(RANDOM_UUID_NAME)) {
+            return RANDOM_UUID;
+        }
+        name = name.trim();
+        if (name.equals(THREAD_LOCAL_UUID_NAME)) {
+            return THREAD_LOCAL_UUID;
+        } else if (name.equals(SALTED_TIME_NAME)) {
+            return saltedTime(DEFAULT_SALT_BUCKETS);
+        } else if (name.startsWith(SALTED_TIME_NAME + ":")) {
+            String buckets = name.substring(SALTED_TIME_NAME.length() + 1);
+            try {
+                return saltedTime(Integer.parseInt(buckets));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number of salt buckets in record id strategy: " + name);
+            }
+        }
+        throw new IllegalArgumentException("Unknown record id strategy: " + name);
+    }
+}
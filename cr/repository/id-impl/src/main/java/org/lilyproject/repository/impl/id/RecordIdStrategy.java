@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.id;
+
+import org.lilyproject.repository.api.RecordId;
+
+/**
+ * Generates the record ids returned by {@link IdGeneratorImpl#newRecordId()}. See {@link RecordIdStrategies} for
+ * the available strategies.
+ *
+ * <p>Implementations are called concurrently by all threads using the id generator.</p>
+ */
+public interface RecordIdStrategy {
+    RecordId newRecordId(IdGeneratorImpl idGenerator);
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.id;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.lilyproject.bytes.api.DataOutput;
+import org.lilyproject.bytes.impl.DataOutputImpl;
+import org.lilyproject.repository.api.RecordId;
+
+/**
+ * A generated record id which sorts on its creation time within each salt bucket.
+ *
+ * <p>Encoding: the identifier byte, the salt (1 byte), the creation time in milliseconds (8 bytes) and random
+ * bits (8 bytes). The string form is the hexadecimal representation of the same three parts, separated by
+ * dashes.</p>
+ *
+ * <p>See {@link RecordIdStrategies#saltedTime(int)}.</p>
+ */
+public class SaltedTimeRecordId implements RecordId {
+    /** Length of the encoded id, without the identifier byte. */
+    static final int LENGTH = 17;
+
+    private final byte salt;
+    private final long timestamp;
+    private final long random;
+    private final IdGeneratorImpl idGenerator;
+    private String basicString;
+    private String idString;
+    private byte[] idBytes;
+
+    private static final SortedMap<String, String> EMPTY_SORTED_MAP =
+            Collections.unmodifiableSortedMap(new TreeMap<String, String>());
+
+    protected SaltedTimeRecordId(byte salt, long timestamp, long random, IdGeneratorImpl idGenerator) {
+        this.salt = salt;
+        this.timestamp = timestamp;
+        this.random = random;
+        this.idGenerator = idGenerator;
+    }
+
+    public SaltedTimeRecordId(String basicString, IdGeneratorImpl idGenerator) {
+        String[] parts = basicString.split("-");
+        if (parts.length != 3 || parts[0].length() != 2 || parts[1].length() != 16 || parts[2].length() != 16) {
+            throw new IllegalArgumentException("Invalid salted time record id: " + basicString);
+        }
+        this.salt = (byte)parseHex(parts[0]);
+        this.timestamp = parseHex(parts[1]);
+        this.random = parseHex(parts[2]);
+        this.idGenerator = idGenerator;
+    }
+
+    private static long parseHex(String hex) {
+        // Long.parseLong doesn't accept the unsigned values of 16 digits
+        long result = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit == -1) {
+                throw new IllegalArgumentException("Invalid salted time record id, not hexadecimal: " + hex);
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    public byte getSalt() {
+        return salt;
+    }
+
+    /**
+     * The creation time of the id, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String toString() {
+        if (idString == null) {
+            idString = idGenerator.toString(this);
+        }
+        return idString;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        if (idBytes == null) {
+            DataOutput dataOutput = new DataOutputImpl(LENGTH + 1);
+            writeBytes(dataOutput);
+            idBytes = dataOutput.toByteArray();
+        }
+        return idBytes;
+    }
+
+    @Override
+    public void writeBytes(DataOutput dataOutput) {
+        if (idBytes == null) {
+            dataOutput.writeByte(IdGeneratorImpl.IdType.SALTED_TIME.getIdentifierByte());
+            dataOutput.writeByte(salt);
+            dataOutput.writeLong(timestamp);
+            dataOutput.writeLong(random);
+        } else {
+            dataOutput.writeBytes(idBytes);
+        }
+    }
+
+    @Override
+    public SortedMap<String, String> getVariantProperties() {
+        return EMPTY_SORTED_MAP;
+    }
+
+    protected String getBasicString() {
+        if (basicString == null) {
+            basicString = String.format("%02x-%016x-%016x", salt, timestamp, random);
+        }
+        return basicString;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + salt;
+        result = prime * result + (int)(timestamp ^ (timestamp >>> 32));
+        result = prime * result + (int)(random ^ (random >>> 32));
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        SaltedTimeRecordId other = (SaltedTimeRecordId) obj;
+        return salt == other.salt && timestamp == other.timestamp && random == other.random;
+    }
+
+    @Override
+    public RecordId getMaster() {
+        return this;
+    }
+
+    @Override
+    public boolean isMaster() {
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.id;
+
+import org.lilyproject.bytes.api.DataInput;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.repository.api.RecordId;
+
+public class SaltedTimeRecordIdFactory implements RecordIdFactory {
+    @Override
+    public DataInput[] splitInMasterAndVariant(DataInput dataInput) {
+        int position = dataInput.getPosition();
+        if (dataInput.getSize() - position > SaltedTimeRecordId.LENGTH) {
+            int variantPosition = position + SaltedTimeRecordId.LENGTH;
+            DataInput keyInput = new DataInputImpl(((DataInputImpl) dataInput), position, SaltedTimeRecordId.LENGTH);
+
+            DataInput variantInput = new DataInputImpl(((DataInputImpl) dataInput), variantPosition,
+                    dataInput.getSize() - variantPosition);
+
+            return new DataInput[]{keyInput, variantInput};
+        } else {
+            return new DataInput[]{dataInput, null};
+        }
+    }
+
+    @Override
+    public RecordId fromBytes(DataInput dataInput, IdGeneratorImpl idGenerator) {
+        byte salt = dataInput.readByte();
+        long timestamp = dataInput.readLong();
+        long random = dataInput.readLong();
+        return new SaltedTimeRecordId(salt, timestamp, random, idGenerator);
+    }
+
+    @Override
+    public RecordId fromString(String string, IdGeneratorImpl idGenerator) {
+        return new SaltedTimeRecordId(string, idGenerator);
+    }
+}
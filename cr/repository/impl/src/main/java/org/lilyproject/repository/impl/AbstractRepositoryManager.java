@@ -18,6 +18,10 @@ package org.lilyproject.repository.impl;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -36,6 +40,7 @@ import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.model.api.RepositoryModel;
 import org.lilyproject.util.hbase.LilyHBaseSchema;
 import org.lilyproject.util.hbase.LilyHBaseSchema.Table;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
 import org.lilyproject.util.hbase.RepoAndTableUtil;
 import org.lilyproject.util.io.Closer;
 
@@ -50,6 +55,14 @@ public abstract class AbstractRepositoryManager implements RepositoryManager {
     private final RecordFactory recordFactory;
     private final RepositoryModel repositoryModel;
     private final AuthorizationContextProvider authzCtxProvider = new DRAuthorizationContextProvider();
+    private ThreadPoolExecutor readExecutor;
+    private ThreadPoolExecutor mutationExecutor;
+
+    /**
+     * Maximum number of threads used for performing multi-record reads, and (separately) for batch mutations,
+     * shared by all repositories.
+     */
+    private static final int BATCH_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
 
     /**
      * For NGDATA's hbase authorization layer: unique name for the application, in order to
@@ -94,6 +107,35 @@ public abstract class AbstractRepositoryManager implements RepositoryManager {
         return recordFactory;
     }
 
+    /**
+     * Returns the executor used to fetch and decode the batches of multi-record reads. It has a bounded
+     * number of threads, which are shared by all repositories of this manager.
+     */
+    protected synchronized ExecutorService getReadExecutor() {
+        if (readExecutor == null) {
+            readExecutor = createBatchExecutor("lily-multiget");
+        }
+        return readExecutor;
+    }
+
+    /**
+     * Returns the executor used to perform batch mutations, which is bounded in the same way as
+     * the {@link #getReadExecutor() read executor}.
+     */
+    protected synchronized ExecutorService getMutationExecutor() {
+        if (mutationExecutor == null) {
+            mutationExecutor = createBatchExecutor("lily-batchmutation");
+        }
+        return mutationExecutor;
+    }
+
+    private ThreadPoolExecutor createBatchExecutor(String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(BATCH_THREADS, BATCH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory(name, null, true));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Create a new Repository object for the repository cache.
      */
@@ -133,6 +175,14 @@ public abstract class AbstractRepositoryManager implements RepositoryManager {
             }
         }
         repositoryCache.clear();
+        if (readExecutor != null) {
+            readExecutor.shutdownNow();
+            readExecutor = null;
+        }
+        if (mutationExecutor != null) {
+            mutationExecutor.shutdownNow();
+            mutationExecutor = null;
+        }
         Closer.close(typeManager);
     }
 
@@ -34,11 +34,13 @@ import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeBucket;
 import org.lilyproject.repository.api.TypeException;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.impl.valuetype.RecordTypeCodecCache;
 import org.lilyproject.util.Logs;
 import org.lilyproject.util.Pair;
 import org.lilyproject.util.zookeeper.ZkUtil;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -66,16 +68,25 @@ public abstract class AbstractSchemaCache implements SchemaCache {
 
     private final CacheRefresher cacheRefresher = new CacheRefresher();
 
-    private FieldTypes fieldTypesSnapshot;
     private FieldTypesCache fieldTypesCache = new FieldTypesCache();
-    private volatile boolean updatedFieldTypes = false;
 
     private RecordTypesCache recordTypes = new RecordTypesCache();
 
+    private final RecordTypeCodecCache recordTypeCodecs = new RecordTypeCodecCache();
+
     private Set<CacheWatcher> cacheWatchers = Collections.synchronizedSet(new HashSet<CacheWatcher>());
     private Map<String, Integer> bucketVersions = new ConcurrentHashMap<String, Integer>();
     private ParentWatcher parentWatcher = new ParentWatcher();
     private Integer parentVersion = null;
+    private long parentCzxid;
+
+    /**
+     * Held while bucket versions are updated together with the types of the buckets, so that a snapshot never
+     * combines a new bucket version with the old types of the bucket.
+     */
+    private final Object refreshLock = new Object();
+    private File snapshotFile;
+    private boolean saveSnapshot;
 
     protected static final String CACHE_INVALIDATION_PATH = "/lily/typemanager/cache/invalidate";
     protected static final String CACHE_REFRESHENABLED_PATH = "/lily/typemanager/cache/enabled";
@@ -107,10 +118,17 @@ public abstract class AbstractSchemaCache implements SchemaCache {
      * In this version we avoid having to create a new byte[] to give to {@link Hex#encodeHex(byte[])}
      */
     public static String encodeHex(byte[] data) {
+        return encodeHex(data, 0);
+    }
+
+    /**
+     * Version of {@link #encodeHex(byte[])} which encodes the byte at the given offset.
+     */
+    public static String encodeHex(byte[] data, int offset) {
         char[] out = new char[2];
         // two characters form the hex value.
-        out[0] = DIGITS_LOWER[(0xF0 & data[0]) >>> 4];
-        out[1] = DIGITS_LOWER[0x0F & data[0]];
+        out[0] = DIGITS_LOWER[(0xF0 & data[offset]) >>> 4];
+        out[1] = DIGITS_LOWER[0x0F & data[offset]];
         return new String(out);
     }
 
@@ -180,7 +198,13 @@ public abstract class AbstractSchemaCache implements SchemaCache {
         connectionWatcher = new ConnectionWatcher();
         zooKeeper.addDefaultWatcher(connectionWatcher);
         readRefreshingEnabledState();
+        if (snapshotFile != null) {
+            loadSnapshot();
+        }
         refreshAll();
+        if (saveSnapshot) {
+            saveSnapshot();
+        }
     }
 
     private String bucketPath(String bucket) {
@@ -197,6 +221,88 @@ public abstract class AbstractSchemaCache implements SchemaCache {
             Thread.currentThread().interrupt();
             log.debug("Interrupted", e);
         }
+        if (saveSnapshot) {
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Sets the file from which the cache is initialized at startup, instead of reading all types from the
+     * repository. After loading the snapshot, only the buckets of which the ZooKeeper version changed since the
+     * snapshot was taken are read. A missing or outdated snapshot file is ignored.
+     *
+     * <p>This should be called before {@link #start()}.</p>
+     *
+     * @param save true if the current contents of the cache should be written to the file after startup and when
+     *             closing the cache, false if the file should only be read (e.g. a snapshot shipped to MapReduce
+     *             tasks)
+     */
+    public void setSnapshotFile(File snapshotFile, boolean save) {
+        this.snapshotFile = snapshotFile;
+        this.saveSnapshot = snapshotFile != null && save;
+    }
+
+    /**
+     * Creates a snapshot of the current contents of the cache, or returns null if the cache has not been
+     * initialized yet.
+     */
+    public SchemaCacheSnapshot createSnapshot() {
+        synchronized (refreshLock) {
+            // The types are taken after the versions: they can only be more recent than the versions tell
+            Integer version = parentVersion;
+            Map<String, Integer> versions = new HashMap<String, Integer>(bucketVersions);
+            if (version == null || versions.isEmpty()) {
+                return null;
+            }
+            return new SchemaCacheSnapshot(parentCzxid, version, versions,
+                    fieldTypesCache.getFieldTypes(), recordTypes.getRecordTypes());
+        }
+    }
+
+    private void loadSnapshot() throws InterruptedException {
+        if (!snapshotFile.exists()) {
+            log.info("Schema cache snapshot " + snapshotFile + " does not exist, reading all types");
+            return;
+        }
+
+        try {
+            SchemaCacheSnapshot snapshot = SchemaCacheSnapshot.read(snapshotFile, getTypeManager());
+            Stat stat = new Stat();
+            ZkUtil.getData(zooKeeper, CACHE_INVALIDATION_PATH, null, stat);
+            if (stat.getCzxid() != snapshot.getInvalidationNodeCzxid()
+                    || stat.getVersion() != snapshot.getInvalidationNodeVersion()) {
+                log.info("Schema cache snapshot " + snapshotFile + " is outdated, reading all types");
+                return;
+            }
+
+            synchronized (refreshLock) {
+                fieldTypesCache.refreshFieldTypes(snapshot.getFieldTypes());
+                recordTypes.refreshRecordTypes(snapshot.getRecordTypes());
+                recordTypeCodecs.invalidate();
+                bucketVersions.putAll(snapshot.getBucketVersions());
+                parentVersion = stat.getVersion();
+                parentCzxid = stat.getCzxid();
+            }
+            log.info("Loaded " + snapshot.getFieldTypes().size() + " field types and "
+                    + snapshot.getRecordTypes().size() + " record types from schema cache snapshot " + snapshotFile);
+        } catch (IOException e) {
+            log.warn("Failed to load schema cache snapshot " + snapshotFile + ", reading all types", e);
+        } catch (KeeperException e) {
+            log.warn("Failed to load schema cache snapshot " + snapshotFile + ", reading all types", e);
+        } catch (RepositoryException e) {
+            log.warn("Failed to load schema cache snapshot " + snapshotFile + ", reading all types", e);
+        }
+    }
+
+    private void saveSnapshot() {
+        try {
+            SchemaCacheSnapshot snapshot = createSnapshot();
+            if (snapshot != null) {
+                snapshot.write(snapshotFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to save schema cache snapshot to " + snapshotFile, e);
+        }
     }
 
 
@@ -208,25 +314,22 @@ public abstract class AbstractSchemaCache implements SchemaCache {
 
     @Override
     public FieldTypes getFieldTypesSnapshot() throws InterruptedException {
-        if (!updatedFieldTypes) {
-            return fieldTypesSnapshot;
-        }
-        synchronized (this) {
-            if (updatedFieldTypes) {
-                fieldTypesSnapshot = fieldTypesCache.getSnapshot();
-                updatedFieldTypes = false;
-            }
-            return fieldTypesSnapshot;
-        }
+        return fieldTypesCache.getSnapshot();
+    }
+
+    @Override
+    public RecordTypeCodecCache getRecordTypeCodecCache() {
+        return recordTypeCodecs;
     }
 
     public void updateFieldType(FieldType fieldType) throws TypeException, InterruptedException {
         fieldTypesCache.update(fieldType);
-        updatedFieldTypes = true;
+        recordTypeCodecs.invalidate();
     }
 
     public void updateRecordType(RecordType recordType) throws TypeException, InterruptedException {
         recordTypes.update(recordType);
+        recordTypeCodecs.invalidate();
     }
 
     public Collection<RecordType> getRecordTypes() throws InterruptedException {
@@ -276,6 +379,12 @@ public abstract class AbstractSchemaCache implements SchemaCache {
      * invalidation zookeeper-node.
      */
     private void refreshAll() throws InterruptedException, RepositoryException {
+        synchronized (refreshLock) {
+            refreshAllBuckets();
+        }
+    }
+
+    private void refreshAllBuckets() throws InterruptedException, RepositoryException {
 
         watchPathsForExistence();
 
@@ -284,9 +393,10 @@ public abstract class AbstractSchemaCache implements SchemaCache {
         try {
             Stat stat = new Stat();
             ZkUtil.getData(zooKeeper, CACHE_INVALIDATION_PATH, parentWatcher, stat);
-            if (parentVersion == null || (stat.getVersion() != parentVersion)) {
+            if (parentVersion == null || (stat.getVersion() != parentVersion) || stat.getCzxid() != parentCzxid) {
                 // An explicit refresh was triggered
                 parentVersion = stat.getVersion();
+                parentCzxid = stat.getCzxid();
                 bucketVersions.clear();
             }
         } catch (KeeperException e) {
@@ -345,8 +455,8 @@ public abstract class AbstractSchemaCache implements SchemaCache {
             // Read all types in one go
             Pair<List<FieldType>, List<RecordType>> types = getTypeManager().getTypesWithoutCache();
             fieldTypesCache.refreshFieldTypes(types.getV1());
-            updatedFieldTypes = true;
             recordTypes.refreshRecordTypes(types.getV2());
+            recordTypeCodecs.invalidate();
         } else {
             // Only the changed buckets need to be refreshed.
             // Upon a re-connection event it could be that some updates were
@@ -387,8 +497,8 @@ public abstract class AbstractSchemaCache implements SchemaCache {
                 bucketVersions.put(entry.getKey(), entry.getValue());
                 TypeBucket typeBucket = getTypeManager().getTypeBucketWithoutCache(entry.getKey());
                 fieldTypesCache.refreshFieldTypeBucket(typeBucket);
-                updatedFieldTypes = true;
                 recordTypes.refreshRecordTypeBucket(typeBucket);
+                recordTypeCodecs.invalidate();
             }
         }
     }
@@ -411,38 +521,40 @@ public abstract class AbstractSchemaCache implements SchemaCache {
                 first = false;
                 Thread.sleep(50);
             }
-            String bucketId = watcher.getBucket();
-            String bucketPath = bucketPath(watcher.getBucket());
-            Stat stat = new Stat();
-            try {
-                ZkUtil.getData(zooKeeper, bucketPath, watcher, stat);
-                if (stat.getVersion() == bucketVersions.get(bucketId)) {
-                    continue; // The bucket is up to date
-                }
-            } catch (KeeperException e) {
-                if (Thread.currentThread().isInterrupted()) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Failed to put watcher on bucket " + bucketPath + " : thread is interrupted");
+            synchronized (refreshLock) {
+                String bucketId = watcher.getBucket();
+                String bucketPath = bucketPath(watcher.getBucket());
+                Stat stat = new Stat();
+                try {
+                    ZkUtil.getData(zooKeeper, bucketPath, watcher, stat);
+                    if (stat.getVersion() == bucketVersions.get(bucketId)) {
+                        continue; // The bucket is up to date
+                    }
+                } catch (KeeperException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Failed to put watcher on bucket " + bucketPath + " : thread is interrupted");
+                        }
+                    } else {
+                        log.warn("Failed to put watcher on bucket " + bucketPath
+                                + " - Relying on connection watcher to reinitialize cache", e);
+                        // Failed to put our watcher.
+                        // Relying on the ConnectionWatcher to put it again and
+                        // initialize the caches.
                     }
-                } else {
-                    log.warn("Failed to put watcher on bucket " + bucketPath
-                            + " - Relying on connection watcher to reinitialize cache", e);
-                    // Failed to put our watcher.
-                    // Relying on the ConnectionWatcher to put it again and
-                    // initialize the caches.
                 }
-            }
-            if (log.isDebugEnabled()) {
-                log.debug("Refreshing schema cache bucket: " + bucketId);
-            }
+                if (log.isDebugEnabled()) {
+                    log.debug("Refreshing schema cache bucket: " + bucketId);
+                }
 
-            // Avoid updating the cache while refreshing the buckets
-            bucketVersions.put(bucketId, stat.getVersion());
-            TypeBucket typeBucket = getTypeManager().getTypeBucketWithoutCache(bucketId);
-            fieldTypesCache.refreshFieldTypeBucket(typeBucket);
-            recordTypes.refreshRecordTypeBucket(typeBucket);
+                // Avoid updating the cache while refreshing the buckets
+                bucketVersions.put(bucketId, stat.getVersion());
+                TypeBucket typeBucket = getTypeManager().getTypeBucketWithoutCache(bucketId);
+                fieldTypesCache.refreshFieldTypeBucket(typeBucket);
+                recordTypes.refreshRecordTypeBucket(typeBucket);
+                recordTypeCodecs.invalidate();
+            }
         }
-        updatedFieldTypes = true;
     }
 
     private void watchPathsForExistence() throws InterruptedException {
@@ -704,6 +816,7 @@ public abstract class AbstractSchemaCache implements SchemaCache {
                         //    forget what is currently in the caches
                         fieldTypesCache.clear();
                         recordTypes.clear();
+                        recordTypeCodecs.invalidate();
 
                         cacheRefresher.needsRefreshAll();
                     }
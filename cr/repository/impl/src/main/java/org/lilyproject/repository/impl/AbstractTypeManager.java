@@ -45,6 +45,7 @@ import org.lilyproject.repository.impl.valuetype.LinkValueType;
 import org.lilyproject.repository.impl.valuetype.ListValueType;
 import org.lilyproject.repository.impl.valuetype.LongValueType;
 import org.lilyproject.repository.impl.valuetype.PathValueType;
+import org.lilyproject.repository.impl.valuetype.RecordTypeCodecCache;
 import org.lilyproject.repository.impl.valuetype.RecordValueType;
 import org.lilyproject.repository.impl.valuetype.StringValueType;
 import org.lilyproject.repository.impl.valuetype.UriValueType;
@@ -64,7 +65,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
-public abstract class AbstractTypeManager implements TypeManager {
+public abstract class AbstractTypeManager implements TypeManager, RecordTypeCodecCache.Provider {
     protected Log log;
 
     protected Map<String, ValueTypeFactory> valueTypeFactories = new HashMap<String, ValueTypeFactory>();
@@ -83,6 +84,11 @@ public abstract class AbstractTypeManager implements TypeManager {
         return schemaCache.getFieldTypesSnapshot();
     }
 
+    @Override
+    public RecordTypeCodecCache getRecordTypeCodecCache() {
+        return schemaCache.getRecordTypeCodecCache();
+    }
+
     @Override
     abstract public List<FieldType> getFieldTypesWithoutCache() throws RepositoryException, InterruptedException;
 
@@ -20,10 +20,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
 
 import com.google.common.base.Preconditions;
 import org.apache.hadoop.hbase.client.Get;
@@ -47,6 +47,7 @@ import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.IdRecordScanner;
 import org.lilyproject.repository.api.LRepository;
 import org.lilyproject.repository.api.LTable;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordException;
@@ -85,6 +86,7 @@ public abstract class BaseRepository implements Repository {
     protected final RepoTableKey repoTableKey;
     protected final TableManager tableManager;
     protected RepositoryMetrics metrics;
+    private final MultiGetReader multiGetReader;
 
     /**
      * Not all rows in the HBase record table are real records, this filter excludes non-valid
@@ -121,6 +123,12 @@ public abstract class BaseRepository implements Repository {
         this.metrics = metrics;
         this.tableManager = tableManager;
         this.recordFactory = recordFactory;
+        this.multiGetReader = new MultiGetReader(recordTable, nonAuthRecordTable, recdec,
+                repositoryManager.getReadExecutor(), REAL_RECORDS_FILTER);
+    }
+
+    public RepositoryMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
@@ -223,7 +231,7 @@ public abstract class BaseRepository implements Repository {
 
     @Override
     public RecordScanner getScanner(RecordScan scan) throws RepositoryException, InterruptedException {
-        return new HBaseRecordScannerImpl(createHBaseResultScanner(scan), recdec);
+        return new HBaseRecordScannerImpl(createHBaseResultScanner(scan), recdec, scan.getLazyFieldDecoding());
     }
 
     @Override
@@ -321,6 +329,110 @@ public abstract class BaseRepository implements Repository {
         }
     };
 
+    /* BATCH MUTATIONS */
+
+    /**
+     * The mutation of a single item of a batch mutation.
+     */
+    protected abstract static class BatchMutation<T> {
+        /**
+         * Returns the id of the record which will be mutated, or null if it is not known up front.
+         */
+        protected abstract RecordId getRecordId(T item);
+
+        /**
+         * Performs the mutation, returning the same as the corresponding single-record operation.
+         */
+        protected abstract Record apply(T item) throws RepositoryException, InterruptedException;
+    }
+
+    protected abstract static class RecordBatchMutation extends BatchMutation<Record> {
+        @Override
+        protected RecordId getRecordId(Record record) {
+            return record.getId();
+        }
+    }
+
+    @Override
+    public List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException {
+        return mutate(records, new RecordBatchMutation() {
+            @Override
+            protected Record apply(Record record) throws RepositoryException, InterruptedException {
+                return create(record);
+            }
+        });
+    }
+
+    @Override
+    public List<MutationResult> update(List<Record> records) throws RepositoryException, InterruptedException {
+        return mutate(records, new RecordBatchMutation() {
+            @Override
+            protected Record apply(Record record) throws RepositoryException, InterruptedException {
+                return update(record);
+            }
+        });
+    }
+
+    @Override
+    public List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return mutate(records, new RecordBatchMutation() {
+            @Override
+            protected Record apply(Record record) throws RepositoryException, InterruptedException {
+                return createOrUpdate(record);
+            }
+        });
+    }
+
+    @Override
+    public List<MutationResult> delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        return mutate(recordIds, new BatchMutation<RecordId>() {
+            @Override
+            protected RecordId getRecordId(RecordId recordId) {
+                return recordId;
+            }
+
+            @Override
+            protected Record apply(RecordId recordId) throws RepositoryException, InterruptedException {
+                delete(recordId);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the executor on which batch mutations can be performed, it is shared by all repositories of
+     * the same repository manager.
+     */
+    protected ExecutorService getMutationExecutor() {
+        return repositoryManager.getMutationExecutor();
+    }
+
+    /**
+     * Applies the mutation to each of the items, and returns the results in the order of the items. This
+     * implementation simply mutates the items one after the other.
+     */
+    protected <T> List<MutationResult> mutate(List<T> items, BatchMutation<T> mutation)
+            throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(items, "items");
+        List<MutationResult> results = new ArrayList<MutationResult>(items.size());
+        for (T item : items) {
+            results.add(mutateItem(item, mutation));
+        }
+        return results;
+    }
+
+    /**
+     * Applies the mutation to one item, reporting a repository exception as a failed result.
+     */
+    protected static <T> MutationResult mutateItem(T item, BatchMutation<T> mutation) throws InterruptedException {
+        try {
+            Record record = mutation.apply(item);
+            return MutationResult.success(record != null ? record.getId() : mutation.getRecordId(item), record);
+        } catch (RepositoryException e) {
+            return MutationResult.failure(mutation.getRecordId(item), e);
+        }
+    }
+
     /* READING */
     @Override
     public Record read(RecordId recordId, List<QName> fieldNames) throws RepositoryException, InterruptedException {
@@ -371,6 +483,35 @@ public abstract class BaseRepository implements Repository {
         return readWithIds(recordId, version, fields, fieldTypes);
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException {
+        long before = System.currentTimeMillis();
+        try {
+            ArgumentValidator.notNull(recordIds, "recordIds");
+            List<IdRecord> records = new ArrayList<IdRecord>();
+            if (recordIds.isEmpty()) {
+                return records;
+            }
+
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+            List<FieldType> fields = getFieldTypesFromIds(fieldIds, fieldTypes);
+            Map<RecordId, Record> recordsById = multiGetReader.read(recordIds, fields, fieldTypes, true);
+
+            for (RecordId recordId : recordIds) {
+                Record record = recordsById.get(recordId);
+                if (record != null) {
+                    records.add((IdRecord)record);
+                }
+            }
+            return records;
+        } finally {
+            if (metrics != null) {
+                metrics.report(Action.READ, System.currentTimeMillis() - before);
+            }
+        }
+    }
+
     private IdRecord readWithIds(RecordId recordId, Long requestedVersion, List<FieldType> fields,
                                  FieldTypes fieldTypes) throws RepositoryException, InterruptedException {
         long before = System.currentTimeMillis();
@@ -474,13 +615,12 @@ public abstract class BaseRepository implements Repository {
                 return records;
             }
 
-            Map<RecordId, Result> results = getRows(recordIds, fields);
+            Map<RecordId, Record> recordsById = multiGetReader.read(recordIds, fields, fieldTypes);
 
             for (RecordId recordId : recordIds) {
-                Result result = results.get(recordId);
-                if (result != null){
-                    Long version = recdec.getLatestVersion(result);
-                    records.add(recdec.decodeRecord(recordId, version, null, result, fieldTypes));
+                Record record = recordsById.get(recordId);
+                if (record != null) {
+                    records.add(record);
                 }
             }
             return records;
@@ -491,6 +631,16 @@ public abstract class BaseRepository implements Repository {
         }
     }
 
+    @Override
+    public RecordScanner readStreaming(List<RecordId> recordIds, QName... fieldNames)
+            throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(recordIds, "recordIds");
+        FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+        List<FieldType> fields = getFieldTypesFromNames(fieldTypes, fieldNames);
+
+        return multiGetReader.readStreaming(recordIds, fields, fieldTypes);
+    }
+
     // Retrieves the row from the table and check if it exists and has not been flagged as deleted
     protected Result getRow(RecordId recordId, Long version, int numberOfVersions, List<FieldType> fields)
             throws RecordException {
@@ -530,7 +680,7 @@ public abstract class BaseRepository implements Repository {
         return result;
     }
 
-    private void addFieldsToGet(Get get, List<FieldType> fields) {
+    static void addFieldsToGet(Get get, List<FieldType> fields) {
         if (fields != null && (!fields.isEmpty())) {
             for (FieldType field : fields) {
                 get.addColumn(RecordCf.DATA.bytes, ((FieldTypeImpl) field).getQualifier());
@@ -542,43 +692,6 @@ public abstract class BaseRepository implements Repository {
         }
     }
 
-    // Retrieves the row from the table and check if it exists and has not been flagged as deleted
-    protected Map<RecordId, Result> getRows(List<RecordId> recordIds, List<FieldType> fields)
-            throws RecordException {
-        Map<RecordId, Result> results = new HashMap<RecordId, Result>();
-
-        try {
-            List<Get> gets = new ArrayList<Get>();
-            for (RecordId recordId : recordIds) {
-                Get get = new Get(recordId.toBytes());
-                // Add the columns for the fields to get
-                addFieldsToGet(get, fields);
-                get.setMaxVersions(1); // Only retrieve the most recent version of each field
-                gets.add(get);
-            }
-
-            // Retrieve the data from the repository
-            int i = 0;
-            for (Result result : recordTable.get(gets)) {
-                if (result == null || result.isEmpty()) {
-                    i++; // Skip this recordId (instead of throwing a RecordNotFoundException)
-                    continue;
-                }
-                // Check if the record was deleted
-                byte[] deleted = recdec.getLatest(result, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
-                if ((deleted == null) || (Bytes.toBoolean(deleted))) {
-                    i++; // Skip this recordId (instead of throwing a RecordNotFoundException)
-                    continue;
-                }
-                results.put(recordIds.get(i++), result);
-            }
-        } catch (IOException e) {
-            throw new RecordException("Exception occurred while retrieving records '" + recordIds
-                    + "' from HBase table", e);
-        }
-        return results;
-    }
-
     @Override
     public List<Record> readVersions(RecordId recordId, Long fromVersion, Long toVersion, List<QName> fieldNames)
             throws RepositoryException, InterruptedException {
@@ -15,8 +15,10 @@
  */
 package org.lilyproject.repository.impl;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import com.google.common.io.ByteStreams;
 import org.lilyproject.repository.api.Blob;
 import org.lilyproject.repository.api.BlobAccess;
 import org.lilyproject.repository.api.BlobException;
@@ -42,4 +44,20 @@ public class BlobAccessImpl implements BlobAccess {
     public InputStream getInputStream() throws BlobException {
         return blobStoreAccess.getInputStream(blobKey);
     }
+
+    @Override
+    public InputStream getInputStream(long offset, long length) throws BlobException {
+        InputStream inputStream = blobStoreAccess.getInputStream(blobKey);
+        try {
+            ByteStreams.skipFully(inputStream, offset);
+        } catch (IOException e) {
+            try {
+                inputStream.close();
+            } catch (IOException e2) {
+                // ignore, report the original problem
+            }
+            throw new BlobException("Failed to skip to offset " + offset + " of blob", e);
+        }
+        return length < 0 ? inputStream : ByteStreams.limit(inputStream, length);
+    }
 }
@@ -21,6 +21,7 @@ import java.util.Arrays;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
@@ -198,7 +199,7 @@ public class BlobIncubatorMonitor {
                 }
                 for (Result result : results) {
                     long before = System.currentTimeMillis();
-                    checkResult(result);
+                    checkResult(result, maxStamp);
                     // usually these times will be very short, a bit too short to measure with ms precision, but
                     // this is mainly to observe when it would take long so that is fine
                     metrics.checkDuration.inc(System.currentTimeMillis() - before);
@@ -217,12 +218,15 @@ public class BlobIncubatorMonitor {
             log.debug("Stop run blob incubator monitor");
         }
 
-        private void checkResult(Result result) throws IOException, RepositoryException, InterruptedException {
+        private void checkResult(Result result, long maxStamp) throws IOException, RepositoryException,
+                InterruptedException {
             byte[] recordIdBytes = result.getValue(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.RECORD.bytes);
             SchemaId recordId = new SchemaIdImpl(recordIdBytes);
             byte[] blobKey = result.getRow();
             if (Arrays.equals(recordIdBytes,BlobManagerImpl.INCUBATE)) {
+                if (!isRecentlyIncubated(blobKey, maxStamp)) {
                     deleteBlob(blobKey, recordId, null);
+                }
             } else {
                 SchemaId fieldId = new SchemaIdImpl(result.getValue(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.FIELD.bytes));
                 Result blobUsage;
@@ -245,6 +249,18 @@ public class BlobIncubatorMonitor {
             }
         }
 
+        /**
+         * The scan only returns the incubations older than maxStamp, but the incubation of a blob which is still
+         * being written gets refreshed: its latest incubation is then more recent than what the scan returned.
+         */
+        private boolean isRecentlyIncubated(byte[] blobKey, long maxStamp) throws IOException {
+            Get get = new Get(blobKey);
+            get.addColumn(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.RECORD.bytes);
+            KeyValue latest = blobIncubatorTable.get(get).getColumnLatest(BlobIncubatorCf.REF.bytes,
+                    BlobIncubatorColumn.RECORD.bytes);
+            return latest == null || latest.getTimestamp() >= maxStamp;
+        }
+
         private void deleteBlob(byte[] blobKey, SchemaId recordId, SchemaId fieldId) throws IOException {
             if (deleteReference(blobKey, recordId)) {
                 try {
@@ -33,9 +33,12 @@ import org.lilyproject.util.Pair;
 
 public class BlobStoreAccessRegistry {
 
+    public static final long DEFAULT_INCUBATION_REFRESH_INTERVAL = 60000L;
+
     Map<String, BlobStoreAccess> registry = new HashMap<String, BlobStoreAccess>();
     private BlobStoreAccessFactory blobStoreAccessFactory;
     private final BlobManager blobManager;
+    private long incubationRefreshInterval = DEFAULT_INCUBATION_REFRESH_INTERVAL;
 
     public BlobStoreAccessRegistry(BlobManager blobManager) {
         this.blobManager = blobManager;
@@ -52,9 +55,40 @@ public class BlobStoreAccessRegistry {
         }
     }
 
+    /**
+     * Sets the interval, in milliseconds, at which the incubation of a blob which is being written is refreshed,
+     * see {@link KeyedBlobOutputStream}. It should be well below the minimal age of the {@link BlobIncubatorMonitor}.
+     */
+    public void setIncubationRefreshInterval(long incubationRefreshInterval) {
+        this.incubationRefreshInterval = incubationRefreshInterval;
+    }
+
+    /**
+     * Implemented by the output streams of blob stores which know the key of a blob before writing it. Such
+     * blobs are put in the incubator before any of their data is stored, so that the data is cleaned up by the
+     * {@link BlobIncubatorMonitor} if the writing fails or is abandoned. While the blob is written, and when it
+     * is closed, the incubation is refreshed, so that an upload which takes longer than the minimal age of the
+     * monitor isn't taken for an abandoned one.
+     */
+    interface KeyedBlobOutputStream {
+        byte[] getBlobKey();
+    }
+
     public OutputStream getOutputStream(Blob blob) throws BlobException {
         BlobStoreAccess blobStoreAccess = blobStoreAccessFactory.get(blob);
-        return new BlobOutputStream(blobStoreAccess.getOutputStream(blob), blobStoreAccess.getId(), blob, blobManager, blobStoreAccess.incubate());
+        OutputStream outputStream = blobStoreAccess.getOutputStream(blob);
+        boolean incubate = blobStoreAccess.incubate();
+        byte[] incubatedBlobKey = null;
+        if (incubate && outputStream instanceof KeyedBlobOutputStream) {
+            incubatedBlobKey = encode(blobStoreAccess.getId(), ((KeyedBlobOutputStream)outputStream).getBlobKey());
+            try {
+                blobManager.incubateBlob(incubatedBlobKey);
+            } catch (IOException e) {
+                throw new BlobException("Failed to put blob '" + blob + "' in the incubator", e);
+            }
+        }
+        return new BlobOutputStream(outputStream, blobStoreAccess.getId(), blob, blobManager, incubate,
+                incubatedBlobKey);
     }
 
     public BlobAccess getBlobAccess(Blob blob) throws BlobNotFoundException, BlobException {
@@ -117,14 +151,30 @@ public class BlobStoreAccessRegistry {
         private final String blobStoreAccessId;
         private final BlobManager blobManager;
         private final boolean incubate;
+        /** The key of the blob if it was incubated before writing it, null otherwise. */
+        private final byte[] incubatedBlobKey;
+        private long incubatedAt;
         private long size = 0;
 
-        BlobOutputStream(OutputStream outputStream, String blobStoreAccessId, Blob blob, BlobManager blobManager, boolean incubate) {
+        BlobOutputStream(OutputStream outputStream, String blobStoreAccessId, Blob blob, BlobManager blobManager,
+                boolean incubate, byte[] incubatedBlobKey) {
             super(outputStream);
             this.blobStoreAccessId = blobStoreAccessId;
             this.blob = blob;
             this.blobManager = blobManager;
             this.incubate = incubate;
+            this.incubatedBlobKey = incubatedBlobKey;
+            this.incubatedAt = System.currentTimeMillis();
+        }
+
+        private void refreshIncubation() throws IOException {
+            if (incubatedBlobKey != null) {
+                long now = System.currentTimeMillis();
+                if (now - incubatedAt >= incubationRefreshInterval) {
+                    blobManager.incubateBlob(incubatedBlobKey);
+                    incubatedAt = now;
+                }
+            }
         }
 
         @Override
@@ -132,6 +182,7 @@ public class BlobStoreAccessRegistry {
             super.close();
             byte[] encodedBlobKey = encode(blobStoreAccessId, blob.getValue());
             if (incubate) {
+                // For a blob which was incubated before writing it, this refreshes the incubation
                 blobManager.incubateBlob(encodedBlobKey);
             }
             blob.setValue(encodedBlobKey);
@@ -142,18 +193,21 @@ public class BlobStoreAccessRegistry {
         public void write(byte[] b) throws IOException {
             super.out.write(b);
             size = size + b.length;
+            refreshIncubation();
         }
 
         @Override
         public void write(int b) throws IOException {
             super.out.write(b);
             size = size + 1;
+            refreshIncubation();
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             super.out.write(b, off, len);
             size = size + len;
+            refreshIncubation();
         }
     }
 
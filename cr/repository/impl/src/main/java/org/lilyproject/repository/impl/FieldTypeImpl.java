@@ -31,6 +31,7 @@ public class FieldTypeImpl implements FieldType, Cloneable {
     private ValueType valueType;
     private QName name;
     private Scope scope;
+    private boolean immutable;
 
     /**
      * This constructor should not be called directly.
@@ -74,24 +75,55 @@ public class FieldTypeImpl implements FieldType, Cloneable {
 
     @Override
     public void setId(SchemaId id) {
+        checkMutable();
         this.id = id;
     }
 
     @Override
     public void setName(QName name) {
+        checkMutable();
         this.name = name;
     }
 
     @Override
     public void setValueType(ValueType valueType) {
+        checkMutable();
         this.valueType = valueType;
     }
 
     @Override
     public void setScope(Scope scope) {
+        checkMutable();
         this.scope = scope;
     }
 
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("This field type is shared and can not be modified, " +
+                    "modify a clone of it instead.");
+        }
+    }
+
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    /**
+     * Returns an immutable version of this field type: this instance if it is immutable already, otherwise an
+     * immutable copy of it. Immutable field types can be shared without defensive cloning, their setters throw
+     * an UnsupportedOperationException. {@link #clone()} always returns a modifiable copy.
+     */
+    public FieldTypeImpl toImmutable() {
+        if (immutable) {
+            return this;
+        }
+        FieldTypeImpl immutableFieldType = (FieldTypeImpl)clone();
+        // Initialize the qualifier up front, since the instance will be shared between threads
+        immutableFieldType.getQualifier();
+        immutableFieldType.immutable = true;
+        return immutableFieldType;
+    }
+
     @Override
     public FieldType clone() {
         FieldTypeImpl newFieldType = new FieldTypeImpl();
@@ -28,13 +28,14 @@ import org.lilyproject.repository.api.FieldTypeNotFoundException;
 import org.lilyproject.repository.api.FieldTypes;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.util.ArgumentValidator;
 
 public class FieldTypesImpl implements FieldTypes {
     private Log log = LogFactory.getLog(getClass());
 
     // Always use getNameCache() instead of this variable directly, to make sure
-    // this is the up-to-date nameCache (in case of FieldTypesCache).
+    // this is the up-to-date nameCache (in case of subclasses).
     protected Map<QName, FieldType> nameCache;
     protected Map<String, Map<SchemaId, FieldType>> buckets;
 
@@ -72,6 +73,15 @@ public class FieldTypesImpl implements FieldTypes {
         return fieldType.clone();
     }
 
+    @Override
+    public FieldType getFieldType(byte[] idBytes, int offset, int length) throws FieldTypeNotFoundException {
+        ArgumentValidator.notNull(idBytes, "idBytes");
+        // This copies the id, FieldTypesSnapshot looks up on the byte range itself
+        byte[] id = new byte[length];
+        System.arraycopy(idBytes, offset, id, 0, length);
+        return getFieldType(new SchemaIdImpl(id));
+    }
+
     @Override
     public FieldType getFieldType(QName name) throws FieldTypeNotFoundException, InterruptedException {
         ArgumentValidator.notNull(name, "name");
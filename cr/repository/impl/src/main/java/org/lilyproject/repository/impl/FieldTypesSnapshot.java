@@ -0,0 +1,277 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypeNotFoundException;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.util.ArgumentValidator;
+
+/**
+ * Immutable, read-optimized {@link FieldTypes}, as returned by {@link FieldTypesCache#getSnapshot()}.
+ *
+ * <p>The field types are indexed on their raw id bytes in open-addressing tables, so that looking them up
+ * based on a range of a byte array (such as the qualifier of a cell) doesn't allocate anything. There is one
+ * table per schema bucket (the first byte of the id), so that {@link #withFieldTypes} only needs to rebuild
+ * the tables of the changed buckets, and shares the other ones with this snapshot. The name index is shared
+ * in the same way, see {@link SegmentedSnapshotMap}.</p>
+ *
+ * <p>The returned field types are immutable (see {@link FieldTypeImpl#toImmutable()}) and are shared between
+ * all users of the snapshot rather than cloned on each lookup. Use {@link FieldType#clone()} to obtain a
+ * modifiable copy.</p>
+ */
+public class FieldTypesSnapshot implements FieldTypes {
+    private static final int TABLE_COUNT = 256;
+
+    static final FieldTypesSnapshot EMPTY = new FieldTypesSnapshot(new IdTable[TABLE_COUNT],
+            SegmentedSnapshotMap.<QName, FieldType>empty());
+
+    // Null for buckets without field types
+    private final IdTable[] idTables;
+    private final SegmentedSnapshotMap<QName, FieldType> nameIndex;
+
+    private FieldTypesSnapshot(IdTable[] idTables, SegmentedSnapshotMap<QName, FieldType> nameIndex) {
+        this.idTables = idTables;
+        this.nameIndex = nameIndex;
+    }
+
+    public FieldTypesSnapshot(Collection<FieldType> fieldTypes) {
+        FieldTypesSnapshot snapshot = EMPTY.withFieldTypes(fieldTypes);
+        this.idTables = snapshot.idTables;
+        this.nameIndex = snapshot.nameIndex;
+    }
+
+    /**
+     * Returns a new snapshot which contains the given field types in addition to the ones of this snapshot,
+     * replacing the ones with the same id. This snapshot is not modified.
+     */
+    public FieldTypesSnapshot withFieldTypes(Collection<FieldType> fieldTypes) {
+        if (fieldTypes.isEmpty()) {
+            return this;
+        }
+
+        List<FieldType>[] changesByTable = groupByTable(fieldTypes);
+        IdTable[] newIdTables = idTables.clone();
+        SegmentedSnapshotMap.Editor<QName, FieldType> names = nameIndex.edit();
+
+        for (int t = 0; t < TABLE_COUNT; t++) {
+            List<FieldType> changes = changesByTable[t];
+            if (changes == null) {
+                continue;
+            }
+            IdTable table = idTables[t];
+            for (FieldType fieldType : changes) {
+                if (table != null) {
+                    byte[] id = fieldType.getId().getBytes();
+                    FieldType previous = table.lookup(id, 0, id.length);
+                    // Drop the old name of a renamed field type, unless another type took it over meanwhile
+                    if (previous != null && !previous.getName().equals(fieldType.getName())
+                            && names.get(previous.getName()) == previous) {
+                        names.remove(previous.getName());
+                    }
+                }
+                names.put(fieldType.getName(), fieldType);
+            }
+            newIdTables[t] = IdTable.build(table, changes);
+        }
+
+        return new FieldTypesSnapshot(newIdTables, names.build());
+    }
+
+    /**
+     * Makes the field types immutable and groups them per id table. When the same id occurs more than
+     * once, the last one wins.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<FieldType>[] groupByTable(Collection<FieldType> fieldTypes) {
+        Map<SchemaId, FieldType> unique = new LinkedHashMap<SchemaId, FieldType>();
+        for (FieldType fieldType : fieldTypes) {
+            unique.put(fieldType.getId(), toImmutable(fieldType));
+        }
+        List<FieldType>[] changesByTable = new List[TABLE_COUNT];
+        for (FieldType fieldType : unique.values()) {
+            byte[] id = fieldType.getId().getBytes();
+            int t = tableIndex(id, 0, id.length);
+            if (changesByTable[t] == null) {
+                changesByTable[t] = new ArrayList<FieldType>();
+            }
+            changesByTable[t].add(fieldType);
+        }
+        return changesByTable;
+    }
+
+    /**
+     * Returns an immutable version of the field type, or a private copy if it is not a {@link FieldTypeImpl}.
+     */
+    static FieldType toImmutable(FieldType fieldType) {
+        if (fieldType instanceof FieldTypeImpl) {
+            return ((FieldTypeImpl)fieldType).toImmutable();
+        }
+        // Not something we can make immutable, fall back to a private copy
+        return fieldType.clone();
+    }
+
+    private static int tableIndex(byte[] idBytes, int offset, int length) {
+        // Same as the bucket of the schema cache
+        return length > 0 ? idBytes[offset] & 0xFF : 0;
+    }
+
+    /**
+     * Returns the field type with the given id bytes, or null if there is none.
+     */
+    private FieldType lookup(byte[] idBytes, int offset, int length) {
+        IdTable table = idTables[tableIndex(idBytes, offset, length)];
+        return table != null ? table.lookup(idBytes, offset, length) : null;
+    }
+
+    @Override
+    public FieldType getFieldType(SchemaId id) throws FieldTypeNotFoundException {
+        ArgumentValidator.notNull(id, "id");
+        byte[] idBytes = id.getBytes();
+        FieldType fieldType = lookup(idBytes, 0, idBytes.length);
+        if (fieldType == null) {
+            throw new FieldTypeNotFoundException(id);
+        }
+        return fieldType;
+    }
+
+    @Override
+    public FieldType getFieldType(byte[] idBytes, int offset, int length) throws FieldTypeNotFoundException {
+        ArgumentValidator.notNull(idBytes, "idBytes");
+        FieldType fieldType = lookup(idBytes, offset, length);
+        if (fieldType == null) {
+            byte[] id = new byte[length];
+            System.arraycopy(idBytes, offset, id, 0, length);
+            throw new FieldTypeNotFoundException(new SchemaIdImpl(id));
+        }
+        return fieldType;
+    }
+
+    @Override
+    public FieldType getFieldType(QName name) throws FieldTypeNotFoundException {
+        ArgumentValidator.notNull(name, "name");
+        FieldType fieldType = nameIndex.get(name);
+        if (fieldType == null) {
+            throw new FieldTypeNotFoundException(name);
+        }
+        return fieldType;
+    }
+
+    @Override
+    public List<FieldType> getFieldTypes() {
+        return nameIndex.values();
+    }
+
+    @Override
+    public FieldType getFieldTypeByNameReturnNull(QName name) {
+        ArgumentValidator.notNull(name, "name");
+        return nameIndex.get(name);
+    }
+
+    @Override
+    public boolean fieldTypeExists(QName name) {
+        return nameIndex.containsKey(name);
+    }
+
+    /**
+     * Open-addressing table of the field types of one bucket, keyed on the id bytes.
+     */
+    private static final class IdTable {
+        private final byte[][] ids;
+        private final FieldType[] fieldTypes;
+        private final int mask;
+
+        private IdTable(int capacity) {
+            ids = new byte[capacity][];
+            fieldTypes = new FieldType[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * Builds a table containing the field types of the original table (if any) and the changed ones.
+         */
+        static IdTable build(IdTable original, List<FieldType> changes) {
+            int maxSize = changes.size() + (original != null ? original.size() : 0);
+            int capacity = 4;
+            // Keep the load factor at or below 0.5, which keeps the probe sequences short
+            while (capacity < maxSize * 2) {
+                capacity <<= 1;
+            }
+            IdTable table = new IdTable(capacity);
+            if (original != null) {
+                for (int i = 0; i < original.ids.length; i++) {
+                    if (original.ids[i] != null) {
+                        table.put(original.ids[i], original.fieldTypes[i]);
+                    }
+                }
+            }
+            for (FieldType fieldType : changes) {
+                table.put(fieldType.getId().getBytes(), fieldType);
+            }
+            return table;
+        }
+
+        private int size() {
+            int size = 0;
+            for (byte[] id : ids) {
+                if (id != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        private void put(byte[] id, FieldType fieldType) {
+            int slot = hash(id, 0, id.length) & mask;
+            while (ids[slot] != null && !Bytes.equals(ids[slot], id)) {
+                slot = (slot + 1) & mask;
+            }
+            ids[slot] = id;
+            fieldTypes[slot] = fieldType;
+        }
+
+        FieldType lookup(byte[] idBytes, int offset, int length) {
+            int slot = hash(idBytes, offset, length) & mask;
+            byte[] id;
+            while ((id = ids[slot]) != null) {
+                if (Bytes.equals(id, 0, id.length, idBytes, offset, length)) {
+                    return fieldTypes[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(byte[] bytes, int offset, int length) {
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            // The ids are mostly random UUIDs, but spread the high bits anyway since the slot takes the low ones
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package org.lilyproject.repository.impl;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,16 +37,40 @@ import org.lilyproject.repository.api.BlobStoreAccess;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
 
+/**
+ * Stores blobs in an HBase table, one row per blob.
+ *
+ * <p>Blobs are written in chunks of {@link #getChunkSize()} bytes, each chunk being a separate cell in the
+ * blob's row. The chunks are written while the data streams in, so that a blob is never buffered completely
+ * in memory. The last chunk is written together with a header cell containing the chunk size and the total
+ * length of the blob: a blob without header is incomplete. Reading fetches the chunks on demand, and skipping
+ * over the input stream doesn't fetch the chunks that are skipped.</p>
+ *
+ * <p>Since the chunks are stored before the blob is complete, the blob is put in the incubator before its
+ * first chunk is written, and its incubation is refreshed while it is written (see
+ * {@link BlobStoreAccessRegistry.KeyedBlobOutputStream}). The chunks of an upload which failed or was abandoned
+ * are then removed by the {@link BlobIncubatorMonitor}.</p>
+ *
+ * <p>Blobs written before chunking was introduced are stored as one cell, these can still be read.</p>
+ */
 public class HBaseBlobStoreAccess implements BlobStoreAccess {
 
     private static final byte[] BLOB_TABLE = Bytes.toBytes("blob");
     private static final String ID = "HBASE";
     private static final String BLOBS_COLUMN_FAMILY = "data";
     private static final byte[] BLOBS_COLUMN_FAMILY_BYTES = Bytes.toBytes(BLOBS_COLUMN_FAMILY);
+    /** Column of blobs stored in one cell, the format before chunking. */
     private static final byte[] BLOB_COLUMN = Bytes.toBytes("b");
+    /** Column containing the chunk size (int) and blob length (long) of a chunked blob. */
+    private static final byte[] HEADER_COLUMN = Bytes.toBytes("h");
+    /** Prefix of the chunk columns, followed by the chunk index (int). */
+    private static final byte[] CHUNK_COLUMN_PREFIX = Bytes.toBytes("c");
+
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
 
     private boolean clientMode = false;
     private HTableInterface table;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
 
     public HBaseBlobStoreAccess(Configuration hbaseConf) throws IOException, InterruptedException {
         this(hbaseConf, false);
@@ -73,17 +96,33 @@ public class HBaseBlobStoreAccess implements BlobStoreAccess {
         return ID;
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the size of the chunks in which new blobs are written. Blobs which have already been written
+     * keep the chunk size they were written with.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size should be positive, got: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
     @Override
     public OutputStream getOutputStream(Blob blob) throws BlobException {
         UUID uuid = UUID.randomUUID();
         byte[] blobKey = Bytes.toBytes(uuid.getMostSignificantBits());
         blobKey = Bytes.add(blobKey, Bytes.toBytes(uuid.getLeastSignificantBits()));
-        return new HBaseBlobOutputStream(table, blobKey, blob);
+        return new HBaseBlobOutputStream(table, blobKey, blob, chunkSize);
     }
 
     @Override
     public InputStream getInputStream(byte[] blobKey) throws BlobException {
         Get get = new Get(blobKey);
+        get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, HEADER_COLUMN);
         get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, BLOB_COLUMN);
         Result result;
         try {
@@ -91,6 +130,14 @@ public class HBaseBlobStoreAccess implements BlobStoreAccess {
         } catch (IOException e) {
             throw new BlobException("Failed to open an inputstream for blobkey '" + Hex.encodeHexString(blobKey) + "' on the HBASE blobstore", e);
         }
+
+        byte[] header = result.getValue(BLOBS_COLUMN_FAMILY_BYTES, HEADER_COLUMN);
+        if (header != null) {
+            int blobChunkSize = Bytes.toInt(header, 0);
+            long length = Bytes.toLong(header, Bytes.SIZEOF_INT);
+            return new HBaseBlobInputStream(table, blobKey, blobChunkSize, length);
+        }
+
         byte[] value = result.getValue(BLOBS_COLUMN_FAMILY_BYTES, BLOB_COLUMN);
         if (value == null) {
             throw new BlobException("Failed to open an inputstream for blobkey '" + Hex.encodeHexString(blobKey) + "' since no blob was found on the HBASE blobstore");
@@ -113,25 +160,214 @@ public class HBaseBlobStoreAccess implements BlobStoreAccess {
         return true;
     }
 
-    private class HBaseBlobOutputStream extends ByteArrayOutputStream {
+    private static byte[] chunkColumn(int chunkIndex) {
+        return Bytes.add(CHUNK_COLUMN_PREFIX, Bytes.toBytes(chunkIndex));
+    }
+
+    private static class HBaseBlobOutputStream extends OutputStream
+            implements BlobStoreAccessRegistry.KeyedBlobOutputStream {
 
         private final HTableInterface blobTable;
         private final byte[] blobKey;
         private final Blob blob;
-        HBaseBlobOutputStream(HTableInterface table, byte[] blobKey, Blob blob) {
-            super();
+        private final int chunkSize;
+        private byte[] buffer;
+        private int bufferCount;
+        private int chunkIndex;
+        private long length;
+        private boolean closed;
+
+        HBaseBlobOutputStream(HTableInterface table, byte[] blobKey, Blob blob, int chunkSize) {
             blobTable = table;
             this.blobKey = blobKey;
             this.blob = blob;
+            this.chunkSize = chunkSize;
+            // Don't allocate a full chunk for blobs of which we know they are smaller. The buffer grows up to the
+            // chunk size if the blob turns out to be larger.
+            long expectedSize = blob.getSize() != null && blob.getSize() > 0 ? blob.getSize() : chunkSize;
+            this.buffer = new byte[(int)Math.min(chunkSize, expectedSize)];
         }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (bufferCount == buffer.length) {
+                makeRoom();
+            }
+            buffer[bufferCount++] = (byte)b;
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (bufferCount == buffer.length) {
+                    makeRoom();
+                }
+                int count = Math.min(len, buffer.length - bufferCount);
+                System.arraycopy(b, off, buffer, bufferCount, count);
+                bufferCount += count;
+                length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public byte[] getBlobKey() {
+            return blobKey;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Blob output stream is closed.");
+            }
+        }
+
+        /**
+         * Called when the buffer is full: grows the buffer if it is smaller than a chunk, otherwise writes the
+         * chunk, so that all chunks but the last one have the chunk size.
+         */
+        private void makeRoom() throws IOException {
+            if (buffer.length < chunkSize) {
+                byte[] newBuffer = new byte[(int)Math.min(chunkSize, 2L * buffer.length)];
+                System.arraycopy(buffer, 0, newBuffer, 0, bufferCount);
+                buffer = newBuffer;
+            } else {
+                writeChunk();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            Put put = new Put(blobKey);
+            addChunk(put);
+            blobTable.put(put);
+        }
+
+        private void addChunk(Put put) {
+            byte[] chunk = new byte[bufferCount];
+            System.arraycopy(buffer, 0, chunk, 0, bufferCount);
+            put.add(BLOBS_COLUMN_FAMILY_BYTES, chunkColumn(chunkIndex), chunk);
+            chunkIndex++;
+            bufferCount = 0;
+        }
+
         @Override
         public void close() throws IOException {
-            super.close();
-            byte[] bytes = toByteArray();
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // The last chunk is written together with the header, which marks the blob as complete
             Put put = new Put(blobKey);
-            put.add(BLOBS_COLUMN_FAMILY_BYTES, BLOB_COLUMN, bytes);
+            if (bufferCount > 0) {
+                addChunk(put);
+            }
+            put.add(BLOBS_COLUMN_FAMILY_BYTES, HEADER_COLUMN, Bytes.add(Bytes.toBytes(chunkSize),
+                    Bytes.toBytes(length)));
             blobTable.put(put);
             blob.setValue(blobKey);
         }
     }
+
+    /**
+     * Reads the chunks of a blob one by one, as they are needed.
+     */
+    private static class HBaseBlobInputStream extends InputStream {
+
+        private final HTableInterface blobTable;
+        private final byte[] blobKey;
+        private final int chunkSize;
+        private final long length;
+        private long position;
+        private byte[] chunk;
+        private int chunkIndex = -1;
+
+        HBaseBlobInputStream(HTableInterface table, byte[] blobKey, int chunkSize, long length) {
+            this.blobTable = table;
+            this.blobKey = blobKey;
+            this.chunkSize = chunkSize;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fetchChunk()) {
+                return -1;
+            }
+            int b = chunk[(int)(position % chunkSize)] & 0xFF;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fetchChunk()) {
+                return -1;
+            }
+            int chunkOffset = (int)(position % chunkSize);
+            int count = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, b, off, count);
+            position += count;
+            return count;
+        }
+
+        /**
+         * Skipping only moves the position, the chunks are not fetched until they are read from.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = Math.min(n, length - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (chunk == null || chunkIndex != position / chunkSize) {
+                return 0;
+            }
+            return chunk.length - (int)(position % chunkSize);
+        }
+
+        /**
+         * Makes sure the chunk containing the current position is loaded.
+         *
+         * @return false if the end of the blob has been reached
+         */
+        private boolean fetchChunk() throws IOException {
+            if (position >= length) {
+                return false;
+            }
+            int neededChunk = (int)(position / chunkSize);
+            if (chunk != null && chunkIndex == neededChunk) {
+                return true;
+            }
+
+            byte[] column = chunkColumn(neededChunk);
+            Get get = new Get(blobKey);
+            get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, column);
+            byte[] value = blobTable.get(get).getValue(BLOBS_COLUMN_FAMILY_BYTES, column);
+            if (value == null) {
+                throw new IOException("Chunk " + neededChunk + " of blob '" + Hex.encodeHexString(blobKey)
+                        + "' is missing on the HBASE blobstore");
+            }
+            chunk = value;
+            chunkIndex = neededChunk;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            chunk = null;
+        }
+    }
 }
@@ -27,14 +27,24 @@ import org.lilyproject.repository.api.RepositoryException;
 public class HBaseRecordScannerImpl extends AbstractHBaseRecordScanner<Record> implements RecordScanner {
 
     private final RecordDecoder recordDecoder;
+    private final boolean lazyFieldDecoding;
 
     public HBaseRecordScannerImpl(ResultScanner hbaseScanner, RecordDecoder recordDecoder) {
+        this(hbaseScanner, recordDecoder, false);
+    }
+
+    public HBaseRecordScannerImpl(ResultScanner hbaseScanner, RecordDecoder recordDecoder,
+                                  boolean lazyFieldDecoding) {
         super(hbaseScanner);
         this.recordDecoder = recordDecoder;
+        this.lazyFieldDecoding = lazyFieldDecoding;
     }
 
     @Override
     Record decode(Result result) throws RepositoryException, InterruptedException {
+        if (lazyFieldDecoding) {
+            return this.recordDecoder.decodeRecordLazily(result);
+        }
         return this.recordDecoder.decodeRecord(result);
     }
 
@@ -16,6 +16,7 @@
 package org.lilyproject.repository.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -23,12 +24,18 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import com.ngdata.lily.security.hbase.client.AuthorizationContext;
 import com.ngdata.lily.security.hbase.client.HBaseAuthzUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -65,6 +72,7 @@ import org.lilyproject.repository.api.InvalidRecordException;
 import org.lilyproject.repository.api.Metadata;
 import org.lilyproject.repository.api.MetadataBuilder;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
@@ -74,6 +82,7 @@ import org.lilyproject.repository.api.RecordFactory;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.RecordTypeNotFoundException;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.TableManager;
 import org.lilyproject.repository.api.ResponseStatus;
@@ -83,18 +92,22 @@ import org.lilyproject.repository.api.TypeException;
 import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.api.VersionNotFoundException;
 import org.lilyproject.repository.impl.RepositoryMetrics.Action;
+import org.lilyproject.repository.impl.RepositoryMetrics.UpdateRead;
 import org.lilyproject.repository.impl.hbase.ContainsValueComparator;
 import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.repository.impl.valuetype.BlobValueType;
 import org.lilyproject.repository.spi.AuthorizationContextHolder;
+import org.lilyproject.repository.spi.ProjectingRecordUpdateHook;
 import org.lilyproject.repository.spi.RecordUpdateHook;
 import org.lilyproject.util.ArgumentValidator;
 import org.lilyproject.util.Pair;
 import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
 import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.lilyproject.util.hbase.LocalHTable;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.RecordEvent.Type;
+import org.lilyproject.util.repo.SystemFields;
 
 import static org.lilyproject.repository.impl.RecordDecoder.RECORD_TYPE_ID_QUALIFIERS;
 import static org.lilyproject.repository.impl.RecordDecoder.RECORD_TYPE_VERSION_QUALIFIERS;
@@ -110,6 +123,11 @@ public class HBaseRepository extends BaseRepository {
 
     private static final Object METADATA_ONLY_UPDATE = new Object();
 
+    /**
+     * Maximum number of records of a batch mutation which are handled by one thread.
+     */
+    private static final int MUTATION_CHUNK_SIZE = 100;
+
     public HBaseRepository(RepoTableKey ttk, AbstractRepositoryManager repositoryManager, HTableInterface recordTable,
             HTableInterface nonAuthRecordTable, BlobManager blobManager, TableManager tableManager,
             RecordFactory recordFactory) throws IOException, InterruptedException {
@@ -189,114 +207,348 @@ public class HBaseRepository extends BaseRepository {
 
     @Override
     public Record create(Record record) throws RepositoryException {
+        return create(record, null);
+    }
+
+    /**
+     * @param rowState the DELETED, VERSION and OCC columns of the record row, if they were already read as
+     *                 part of a batch, otherwise null. The checkAndPut on the OCC column protects against
+     *                 concurrent changes since this state was read.
+     */
+    private Record create(Record record, Result rowState) throws RepositoryException {
 
         long before = System.currentTimeMillis();
         try {
             checkCreatePreconditions(record);
 
-            RecordId recordId = record.getId();
-            if (recordId == null) {
-                recordId = idGenerator.newRecordId();
+            if (record.getId() == null) {
+                // A freshly generated UUID record id can't exist yet, so we don't read the row state but rely on
+                // the checkAndPut to detect the (very unlikely) case where the row does exist.
+                RecordId recordId = idGenerator.newRecordId();
+                Record newRecord = createRecord(record, recordId, new Result(), true);
+                if (newRecord == null) {
+                    metrics.reportBlindCreateConflict();
+                    newRecord = createRecord(record, recordId, null, false);
+                }
+                return newRecord;
             }
 
-            byte[] rowId = recordId.toBytes();
+            return createRecord(record, record.getId(), rowState, false);
+        } finally {
+            metrics.report(Action.CREATE, System.currentTimeMillis() - before);
+        }
+    }
 
-            try {
-                FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
-
-                long version = 1L;
-                byte[] oldOccBytes = null;
-                long newOcc = 1L;
-                // If the record existed it would have been deleted.
-                // The version numbering continues from where it has been deleted.
-                Get get = new Get(rowId);
-                get.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
-                get.addColumn(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
-                get.addColumn(RecordCf.DATA.bytes, RecordColumn.OCC.bytes);
-                Result result = recordTable.get(get);
-                if (!result.isEmpty()) {
-                    // If the record existed it should have been deleted
-                    byte[] recordDeleted = result.getValue(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
-                    if (recordDeleted != null && !Bytes.toBoolean(recordDeleted)) {
-                        throw new RecordExistsException(recordId);
-                    }
+    /**
+     * @param rowState see {@link #create(Record, Result)}
+     * @param blindCreate true if the row state was not read but assumed to be empty
+     * @return the created record, or null if the row state assumed for a blind create turned out to be wrong,
+     *         in which case nothing has been written
+     */
+    private Record createRecord(Record record, RecordId recordId, Result rowState, boolean blindCreate)
+            throws RepositoryException {
+        byte[] rowId = recordId.toBytes();
 
-                    oldOccBytes = result.getValue(RecordCf.DATA.bytes, RecordColumn.OCC.bytes);
-                    newOcc = Bytes.toLong(nextOcc(oldOccBytes));
-
-                    byte[] oldVersion = result.getValue(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
-                    if (oldVersion != null) {
-                        version = Bytes.toLong(oldVersion) + 1;
-                        // Make sure any old data gets cleared and old blobs are deleted
-                        // This is to cover the failure scenario where a record was deleted, but a failure
-                        // occurred before executing the clearData
-                        // If this was already done, this is a no-op
-                        // Note: since the removal of the row locking, this part could run concurrent with other
-                        // threads trying to re-create a record or with a delete still being in progress. This
-                        // should be no problem since the clearData will only remove the versions at the old
-                        // timestamps, and leave the non-versioned fields untouched.
-                        clearData(recordId, null, Bytes.toLong(oldVersion));
-                    }
+        try {
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+
+            long version = 1L;
+            byte[] oldOccBytes = null;
+            long newOcc = 1L;
+            // If the record existed it would have been deleted.
+            // The version numbering continues from where it has been deleted.
+            Result result = rowState;
+            if (result == null) {
+                result = recordTable.get(createRowStateGet(rowId));
+            }
+            if (!result.isEmpty()) {
+                // If the record existed it should have been deleted
+                byte[] recordDeleted = result.getValue(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+                if (recordDeleted != null && !Bytes.toBoolean(recordDeleted)) {
+                    throw new RecordExistsException(recordId);
                 }
 
-                RecordEvent recordEvent = new RecordEvent();
-                recordEvent.setType(Type.CREATE);
-                recordEvent.setTableName(getTableName());
-                if (record.hasAttributes()) {
-                    recordEvent.getAttributes().putAll(record.getAttributes());
+                oldOccBytes = result.getValue(RecordCf.DATA.bytes, RecordColumn.OCC.bytes);
+                newOcc = Bytes.toLong(nextOcc(oldOccBytes));
+
+                byte[] oldVersion = result.getValue(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+                if (oldVersion != null) {
+                    version = Bytes.toLong(oldVersion) + 1;
+                    // Make sure any old data gets cleared and old blobs are deleted
+                    // This is to cover the failure scenario where a record was deleted, but a failure
+                    // occurred before executing the clearData
+                    // If this was already done, this is a no-op
+                    // Note: since the removal of the row locking, this part could run concurrent with other
+                    // threads trying to re-create a record or with a delete still being in progress. This
+                    // should be no problem since the clearData will only remove the versions at the old
+                    // timestamps, and leave the non-versioned fields untouched.
+                    clearData(recordId, null, Bytes.toLong(oldVersion));
                 }
+            }
+
+            RecordEvent recordEvent = new RecordEvent();
+            recordEvent.setType(Type.CREATE);
+            recordEvent.setTableName(getTableName());
+            if (record.hasAttributes()) {
+                recordEvent.getAttributes().putAll(record.getAttributes());
+            }
+
+            Record newRecord = record.cloneRecord();
+            newRecord.setId(recordId);
 
-                Record newRecord = record.cloneRecord();
-                newRecord.setId(recordId);
+            for (RecordUpdateHook hook : updateHooks) {
+                hook.beforeCreate(newRecord, this, fieldTypes, recordEvent);
+            }
+
+            Set<BlobReference> referencedBlobs = new HashSet<BlobReference>();
+            Set<BlobReference> unReferencedBlobs = new HashSet<BlobReference>();
+
+            Put put = buildPut(newRecord, version, fieldTypes, recordEvent, referencedBlobs, unReferencedBlobs, newOcc);
 
-                for (RecordUpdateHook hook : updateHooks) {
-                    hook.beforeCreate(newRecord, this, fieldTypes, recordEvent);
+            // Make sure the record type changed flag stays false for a newly
+            // created record
+            recordEvent.setRecordTypeChanged(false);
+            Long newVersion = newRecord.getVersion();
+            if (newVersion != null) {
+                recordEvent.setVersionCreated(newVersion);
+            }
+
+            // Blob reservations can't be undone, so for a blind create check the row doesn't exist before
+            // reserving blobs
+            if (blindCreate && !referencedBlobs.isEmpty()) {
+                if (!recordTable.get(createRowStateGet(rowId)).isEmpty()) {
+                    return null;
                 }
+                blindCreate = false;
+            }
 
-                Set<BlobReference> referencedBlobs = new HashSet<BlobReference>();
-                Set<BlobReference> unReferencedBlobs = new HashSet<BlobReference>();
+            // Reserve blobs so no other records can use them
+            reserveBlobs(null, referencedBlobs);
+
+            put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, recordEvent.toPayloadBytes());
+            boolean success = recordTable.checkAndPut(put.getRow(), RecordCf.DATA.bytes, RecordColumn.OCC.bytes,
+                    oldOccBytes, put);
+            if (!success) {
+                if (blindCreate) {
+                    return null;
+                }
+                throw new RecordExistsException(recordId);
+            }
 
-                Put put = buildPut(newRecord, version, fieldTypes, recordEvent, referencedBlobs, unReferencedBlobs, newOcc);
+            // Remove the used blobs from the blobIncubator
+            blobManager.handleBlobReferences(recordId, referencedBlobs, unReferencedBlobs);
 
-                // Make sure the record type changed flag stays false for a newly
-                // created record
-                recordEvent.setRecordTypeChanged(false);
-                Long newVersion = newRecord.getVersion();
-                if (newVersion != null) {
-                    recordEvent.setVersionCreated(newVersion);
+            newRecord.setResponseStatus(ResponseStatus.CREATED);
+            removeUnidirectionalState(newRecord);
+            return newRecord;
+
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
+                    e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
+                    e);
+        } catch (BlobException e) {
+            throw new RecordException("Exception occurred while creating record '" + recordId + "'",
+                    e);
+        }
+    }
+
+    private Get createRowStateGet(byte[] rowId) {
+        Get get = new Get(rowId);
+        get.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+        get.addColumn(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+        get.addColumn(RecordCf.DATA.bytes, RecordColumn.OCC.bytes);
+        return get;
+    }
+
+    /**
+     * Reads the DELETED, VERSION and OCC columns of the rows of the records, using multi-gets instead of one get
+     * per record. Records without id are skipped. Rows which don't exist are in the map as empty results.
+     *
+     * <p>Records whose id occurs more than once in the batch are skipped as well: after the first of them has
+     * been mutated, the state read upfront would be stale, so each of them reads the state itself.</p>
+     */
+    private Map<RecordId, Result> getRowStates(List<Record> records) throws RecordException {
+        Set<RecordId> uniqueIds = new HashSet<RecordId>();
+        Set<RecordId> duplicateIds = new HashSet<RecordId>();
+        for (Record record : records) {
+            RecordId recordId = record.getId();
+            if (recordId != null && !uniqueIds.add(recordId)) {
+                duplicateIds.add(recordId);
+            }
+        }
+        uniqueIds.removeAll(duplicateIds);
+
+        Map<RecordId, Result> rowStates = new HashMap<RecordId, Result>();
+        List<RecordId> recordIds = new ArrayList<RecordId>(uniqueIds.size());
+        List<Get> gets = new ArrayList<Get>(uniqueIds.size());
+        for (Record record : records) {
+            RecordId recordId = record.getId();
+            if (recordId != null && uniqueIds.contains(recordId)) {
+                recordIds.add(recordId);
+                gets.add(createRowStateGet(recordId.toBytes()));
+            }
+        }
+
+        try {
+            for (int i = 0; i < gets.size(); i += MultiGetReader.MAX_BATCH_SIZE) {
+                int end = Math.min(i + MultiGetReader.MAX_BATCH_SIZE, gets.size());
+                Result[] results = recordTable.get(gets.subList(i, end));
+                for (int j = 0; j < results.length; j++) {
+                    rowStates.put(recordIds.get(i + j), results[j] == null ? new Result() : results[j]);
                 }
+            }
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while reading the state of records from HBase table", e);
+        }
+        return rowStates;
+    }
 
-                // Reserve blobs so no other records can use them
-                reserveBlobs(null, referencedBlobs);
+    @Override
+    public List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(records, "records");
+        final Map<RecordId, Result> rowStates = getRowStates(records);
+        return mutate(records, new RecordBatchMutation() {
+            @Override
+            protected Record apply(Record record) throws RepositoryException, InterruptedException {
+                return create(record, record.getId() != null ? rowStates.get(record.getId()) : null);
+            }
+        });
+    }
 
-                put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, recordEvent.toJsonBytes());
-                boolean success = recordTable.checkAndPut(put.getRow(), RecordCf.DATA.bytes, RecordColumn.OCC.bytes,
-                        oldOccBytes, put);
-                if (!success) {
-                    throw new RecordExistsException(recordId);
+    @Override
+    public List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(records, "records");
+        final Map<RecordId, Result> rowStates = getRowStates(records);
+        return mutate(records, new RecordBatchMutation() {
+            @Override
+            protected Record apply(Record record) throws RepositoryException, InterruptedException {
+                Result rowState = record.getId() != null ? rowStates.get(record.getId()) : null;
+                if (rowState == null) {
+                    // Will fail because the id is missing, or reads the row state if the id occurs more than once
+                    return createOrUpdate(record);
                 }
 
-                // Remove the used blobs from the blobIncubator
-                blobManager.handleBlobReferences(recordId, referencedBlobs, unReferencedBlobs);
+                byte[] deleted = recdec.getLatest(rowState, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+                try {
+                    if ((deleted == null) || (Bytes.toBoolean(deleted))) {
+                        return create(record, rowState);
+                    } else {
+                        return update(record, false, true);
+                    }
+                } catch (RecordExistsException e) {
+                    // someone created the record since we read the row state
+                } catch (RecordNotFoundException e) {
+                    // someone deleted the record since we read the row state
+                }
+                return createOrUpdate(record);
+            }
+        });
+    }
 
-                newRecord.setResponseStatus(ResponseStatus.CREATED);
-                removeUnidirectionalState(newRecord);
-                return newRecord;
+    /**
+     * Groups the items per region server, and mutates the groups concurrently, each group in chunks of at most
+     * {@link #MUTATION_CHUNK_SIZE} items. Within a chunk, the items are mutated one after the other: the
+     * single-record operations, including the record update hooks and the check-and-put on the OCC column,
+     * are used as is.
+     *
+     * <p>If several items concern the same record, they are all mutated one after the other in the order of
+     * the batch, since the concurrent chunks would mutate them in no defined order.</p>
+     */
+    @Override
+    protected <T> List<MutationResult> mutate(final List<T> items, final BatchMutation<T> mutation)
+            throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(items, "items");
+        List<List<Integer>> chunks = groupByRegionServer(items, mutation);
+        if (chunks.size() <= 1) {
+            return super.mutate(items, mutation);
+        }
 
-            } catch (IOException e) {
-                throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
-                        e);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
-                        e);
-            } catch (BlobException e) {
-                throw new RecordException("Exception occurred while creating record '" + recordId + "'",
-                        e);
+        final MutationResult[] results = new MutationResult[items.size()];
+        final AuthorizationContext authzContext = AuthorizationContextHolder.getCurrentContext();
+        ExecutorService executor = getMutationExecutor();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks.size());
+        for (final List<Integer> chunk : chunks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // The authorization context is thread-bound, pass it on to the threads doing the mutations
+                    AuthorizationContextHolder.setCurrentContext(authzContext);
+                    try {
+                        for (int index : chunk) {
+                            results[index] = mutateItem(items.get(index), mutation);
+                        }
+                    } finally {
+                        AuthorizationContextHolder.clearContext();
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
             }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RepositoryException("Error performing batch mutation", cause);
         } finally {
-            metrics.report(Action.CREATE, System.currentTimeMillis() - before);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private <T> List<List<Integer>> groupByRegionServer(List<T> items, BatchMutation<T> mutation)
+            throws RecordException {
+        Map<String, List<Integer>> itemsByServer = new LinkedHashMap<String, List<Integer>>();
+        Set<RecordId> recordIds = new HashSet<RecordId>();
+        boolean locate = nonAuthRecordTable instanceof LocalHTable;
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                RecordId recordId = mutation.getRecordId(items.get(i));
+                if (recordId != null && !recordIds.add(recordId)) {
+                    // A single chunk, so the items are mutated sequentially
+                    List<Integer> chunk = new ArrayList<Integer>(items.size());
+                    for (int j = 0; j < items.size(); j++) {
+                        chunk.add(j);
+                    }
+                    return Collections.singletonList(chunk);
+                }
+                String server = "";
+                if (locate && recordId != null) {
+                    server = ((LocalHTable)nonAuthRecordTable).getRegionLocation(recordId.toBytes()).getHostnamePort();
+                }
+                List<Integer> serverItems = itemsByServer.get(server);
+                if (serverItems == null) {
+                    serverItems = new ArrayList<Integer>();
+                    itemsByServer.put(server, serverItems);
+                }
+                serverItems.add(i);
+            }
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while locating the regions of records", e);
+        }
+
+        List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+        for (List<Integer> serverItems : itemsByServer.values()) {
+            for (int i = 0; i < serverItems.size(); i += MUTATION_CHUNK_SIZE) {
+                chunks.add(serverItems.subList(i, Math.min(i + MUTATION_CHUNK_SIZE, serverItems.size())));
+            }
         }
+        return chunks;
     }
 
     /**
@@ -404,9 +656,14 @@ public class HBaseRepository extends BaseRepository {
                                 FieldTypes fieldTypes) throws RepositoryException {
 
         RecordId recordId = record.getId();
+        long before = System.currentTimeMillis();
+        Map<QName, FieldType> fieldsToRead = null;
 
         try {
-            Pair<Record, byte[]> recordAndOcc = readWithOcc(record.getId(), null, null, fieldTypes);
+            // Only read the fields needed for the update, rather than the complete record
+            fieldsToRead = getFieldsNeededForUpdate(record, conditions, useLatestRecordType, fieldTypes);
+            Pair<Record, byte[]> recordAndOcc = readWithOcc(record.getId(), null, fieldsToList(fieldsToRead),
+                    fieldTypes);
             Record originalRecord = new UnmodifiableRecord(recordAndOcc.getV1());
 
             byte[] oldOccBytes = recordAndOcc.getV2();
@@ -422,6 +679,17 @@ public class HBaseRepository extends BaseRepository {
                 hook.beforeUpdate(record, originalRecord, this, fieldTypes, recordEvent);
             }
 
+            // The hooks might have added fields, and the mandatory fields of the record type can only be
+            // determined once the original record type is known: read the missing fields if necessary.
+            if (fieldsToRead != null && addFieldsNeededForUpdate(fieldsToRead, record, originalRecord,
+                    useLatestRecordType, fieldTypes)) {
+                recordAndOcc = readWithOcc(record.getId(), null, fieldsToList(fieldsToRead), fieldTypes);
+                if (!Arrays.equals(oldOccBytes, recordAndOcc.getV2())) {
+                    throw new ConcurrentRecordUpdateException(recordId);
+                }
+                originalRecord = new UnmodifiableRecord(recordAndOcc.getV1());
+            }
+
             Record newRecord = record.cloneRecord();
 
             Put put = new Put(newRecord.getId().toBytes());
@@ -445,7 +713,7 @@ public class HBaseRepository extends BaseRepository {
                 // Reserve blobs so no other records can use them
                 reserveBlobs(record.getId(), referencedBlobs);
 
-                put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, recordEvent.toJsonBytes());
+                put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, recordEvent.toPayloadBytes());
                 put.add(RecordCf.DATA.bytes, RecordColumn.OCC.bytes, 1L, nextOcc(oldOccBytes));
                 boolean occSuccess = recordTable.checkAndPut(put.getRow(), RecordCf.DATA.bytes, RecordColumn.OCC.bytes,
                         oldOccBytes, put);
@@ -473,9 +741,134 @@ public class HBaseRepository extends BaseRepository {
         } catch (BlobException e) {
             throw new RecordException("Exception occurred while putting updated record '" + recordId
                     + "' on HBase table", e);
+        } finally {
+            metrics.reportUpdate(fieldsToRead != null ? UpdateRead.PROJECTED : UpdateRead.FULL,
+                    System.currentTimeMillis() - before);
         }
     }
 
+    /**
+     * Determines the fields of the original record needed to perform an update: the updated fields, the fields
+     * of the mutation conditions and the fields needed by the update hooks.
+     *
+     * @return the fields by name, or null if the complete record should be read
+     */
+    private Map<QName, FieldType> getFieldsNeededForUpdate(Record record, List<MutationCondition> conditions,
+            boolean useLatestRecordType, FieldTypes fieldTypes) throws RepositoryException, InterruptedException {
+        Map<QName, FieldType> fields = new LinkedHashMap<QName, FieldType>();
+
+        for (RecordUpdateHook hook : updateHooks) {
+            if (!(hook instanceof ProjectingRecordUpdateHook)) {
+                return null;
+            }
+            Collection<QName> hookFields =
+                    ((ProjectingRecordUpdateHook)hook).getUpdateFieldDependencies(record, fieldTypes);
+            if (hookFields == null || !addFieldsToRead(fields, hookFields, fieldTypes)) {
+                return null;
+            }
+        }
+
+        if (conditions != null) {
+            SystemFields systemFields = SystemFields.getInstance(typeManager, getIdGenerator());
+            for (MutationCondition condition : conditions) {
+                // System fields are derived from the system columns, which are always read
+                if (!systemFields.isSystemField(condition.getField())
+                        && !addFieldsToRead(fields, Collections.singleton(condition.getField()), fieldTypes)) {
+                    return null;
+                }
+            }
+        }
+
+        if (!addFieldsToRead(fields, record.getFields().keySet(), fieldTypes)
+                || !addFieldsToRead(fields, record.getFieldsToDelete(), fieldTypes)
+                || !addFieldsToRead(fields, record.getMetadataMap().keySet(), fieldTypes)) {
+            return null;
+        }
+
+        if (record.getRecordTypeName() != null) {
+            try {
+                RecordType recordType = typeManager.getRecordTypeByName(record.getRecordTypeName(),
+                        useLatestRecordType ? null : record.getRecordTypeVersion());
+                addMandatoryFieldsToRead(fields, recordType, record, fieldTypes);
+            } catch (RecordTypeNotFoundException e) {
+                return null;
+            }
+        }
+
+        // Asking for no fields at all would read the complete record
+        return fields.isEmpty() ? null : fields;
+    }
+
+    /**
+     * Adds the fields which are needed for the update but are not yet in fieldsToRead: fields added to the record
+     * by the update hooks and the mandatory fields of the record type.
+     *
+     * @return true if fields were added
+     */
+    private boolean addFieldsNeededForUpdate(Map<QName, FieldType> fieldsToRead, Record record,
+            Record originalRecord, boolean useLatestRecordType, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        int count = fieldsToRead.size();
+
+        addFieldsToRead(fieldsToRead, record.getFields().keySet(), fieldTypes);
+        addFieldsToRead(fieldsToRead, record.getFieldsToDelete(), fieldTypes);
+        addFieldsToRead(fieldsToRead, record.getMetadataMap().keySet(), fieldTypes);
+
+        // Same logic as in calculateRecordChanges
+        try {
+            RecordType recordType;
+            if (record.getRecordTypeName() == null) {
+                recordType = typeManager.getRecordTypeByName(originalRecord.getRecordTypeName(), null);
+            } else {
+                recordType = typeManager.getRecordTypeByName(record.getRecordTypeName(),
+                        useLatestRecordType ? null : record.getRecordTypeVersion());
+            }
+            addMandatoryFieldsToRead(fieldsToRead, recordType, record, fieldTypes);
+        } catch (RecordTypeNotFoundException e) {
+            // will be reported by the update itself
+        }
+
+        return fieldsToRead.size() > count;
+    }
+
+    /**
+     * Adds the mandatory fields of the record type which are not supplied in the record, since the update
+     * validation checks if these exist in the original record.
+     */
+    private void addMandatoryFieldsToRead(Map<QName, FieldType> fields, RecordType recordType, Record record,
+            FieldTypes fieldTypes) throws RepositoryException, InterruptedException {
+        for (FieldTypeEntry fieldTypeEntry : recordType.getFieldTypeEntries()) {
+            if (fieldTypeEntry.isMandatory()) {
+                FieldType fieldType = fieldTypes.getFieldType(fieldTypeEntry.getFieldTypeId());
+                if (!record.hasField(fieldType.getName())) {
+                    fields.put(fieldType.getName(), fieldType);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if one of the fields is not a known field type, in which case we leave it to the
+     *         full read and the normal update code to deal with it.
+     */
+    private boolean addFieldsToRead(Map<QName, FieldType> fields, Collection<QName> names, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        for (QName name : names) {
+            if (!fields.containsKey(name)) {
+                try {
+                    fields.put(name, fieldTypes.getFieldType(name));
+                } catch (FieldTypeNotFoundException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private List<FieldType> fieldsToList(Map<QName, FieldType> fields) {
+        return fields == null ? null : new ArrayList<FieldType>(fields.values());
+    }
+
     // Calculates the changes that are to be made on the record-row and puts
     // this information on the Put object and the RecordEvent
     private boolean calculateRecordChanges(Record record, Record originalRecord, Long version, Put put,
@@ -988,7 +1381,7 @@ public class HBaseRepository extends BaseRepository {
                 // Reserve blobs so no other records can use them
                 reserveBlobs(record.getId(), referencedBlobs);
 
-                put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, 1L, recordEvent.toJsonBytes());
+                put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, 1L, recordEvent.toPayloadBytes());
                 put.add(RecordCf.DATA.bytes, RecordColumn.OCC.bytes, 1L, nextOcc(oldOccBytes));
                 boolean occSuccess = recordTable.checkAndPut(put.getRow(), RecordCf.DATA.bytes, RecordColumn.OCC.bytes,
                         oldOccBytes, put);
@@ -1131,7 +1524,7 @@ public class HBaseRepository extends BaseRepository {
 
             }
 
-            put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, recordEvent.toJsonBytes());
+            put.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, recordEvent.toPayloadBytes());
             put.add(RecordCf.DATA.bytes, RecordColumn.OCC.bytes, 1L, nextOcc(oldOcc));
 
             // Hint towards the NGDATA HBase authorization coprocessor: for deletes, we need write access to all
@@ -60,6 +60,7 @@ import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.VersionTag;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -87,8 +88,22 @@ public class HBaseTypeManager extends AbstractTypeManager implements TypeManager
     public HBaseTypeManager(IdGenerator idGenerator, Configuration configuration, ZooKeeperItf zooKeeper,
             HBaseTableFactory hbaseTableFactory)
             throws IOException, InterruptedException, KeeperException, RepositoryException {
+        this(idGenerator, configuration, zooKeeper, hbaseTableFactory, null);
+    }
+
+    /**
+     * @param schemaCacheSnapshot path of the file in which the schema cache saves its contents, to initialize
+     *                            itself from at the next startup. Null or empty to always read all types at startup.
+     */
+    public HBaseTypeManager(IdGenerator idGenerator, Configuration configuration, ZooKeeperItf zooKeeper,
+            HBaseTableFactory hbaseTableFactory, String schemaCacheSnapshot)
+            throws IOException, InterruptedException, KeeperException, RepositoryException {
         super(zooKeeper);
-        schemaCache = new LocalSchemaCache(zooKeeper, this);
+        LocalSchemaCache localSchemaCache = new LocalSchemaCache(zooKeeper, this);
+        if (schemaCacheSnapshot != null && schemaCacheSnapshot.trim().length() > 0) {
+            localSchemaCache.setSnapshotFile(new File(schemaCacheSnapshot.trim()), true);
+        }
+        schemaCache = localSchemaCache;
         log = LogFactory.getLog(getClass());
         this.idGenerator = idGenerator;
 
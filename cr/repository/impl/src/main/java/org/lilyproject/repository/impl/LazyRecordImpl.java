@@ -0,0 +1,366 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.repository.api.FieldNotFoundException;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.IdentityRecordStack;
+import org.lilyproject.repository.api.Metadata;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordException;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.ResponseStatus;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.impl.RecordDecoder.ExtractedField;
+
+/**
+ * A record of which the field values are kept in their stored (encoded) form, and only decoded when
+ * they are accessed for the first time. Decoded values are kept in the delegate record, so each field
+ * is decoded at most once.
+ *
+ * <p>Id, version and record types are available without decoding anything. Operations that need all
+ * fields, such as {@link #getFields()} or {@link #equals(Object)}, decode all remaining fields.</p>
+ *
+ * <p>Instances are created by {@link RecordDecoder#decodeRecordLazily}.</p>
+ */
+public class LazyRecordImpl implements Record, Cloneable {
+    private Record delegate;
+
+    /** The fields which have not been decoded yet. */
+    private Map<QName, RawField> rawFields;
+
+    LazyRecordImpl(Record delegate) {
+        this(delegate, new HashMap<QName, RawField>());
+    }
+
+    private LazyRecordImpl(Record delegate, Map<QName, RawField> rawFields) {
+        this.delegate = delegate;
+        this.rawFields = rawFields;
+    }
+
+    void addRawField(FieldType fieldType, byte[] buffer, int offset, int length) {
+        rawFields.put(fieldType.getName(), new RawField(fieldType, buffer, offset, length));
+    }
+
+    /**
+     * The encoded value of a field: a range of the buffer of the cell it was read from, starting with
+     * the field flags.
+     */
+    private static final class RawField {
+        final FieldType fieldType;
+        final byte[] buffer;
+        final int offset;
+        final int length;
+
+        RawField(FieldType fieldType, byte[] buffer, int offset, int length) {
+            this.fieldType = fieldType;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private synchronized void decode(QName fieldName) {
+        if (rawFields.isEmpty()) {
+            return;
+        }
+        RawField rawField = rawFields.remove(fieldName);
+        if (rawField != null) {
+            decode(rawField);
+        }
+    }
+
+    private synchronized void decodeAll() {
+        if (rawFields.isEmpty()) {
+            return;
+        }
+        for (RawField rawField : new ArrayList<RawField>(rawFields.values())) {
+            decode(rawField);
+        }
+        rawFields.clear();
+    }
+
+    private void decode(RawField rawField) {
+        ExtractedField field;
+        try {
+            field = RecordDecoder.decodeField(rawField.fieldType, rawField.buffer, rawField.offset, rawField.length,
+                    null);
+        } catch (RepositoryException e) {
+            throw new RuntimeException("Failed to decode field " + rawField.fieldType.getName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while decoding field " + rawField.fieldType.getName(), e);
+        }
+        delegate.setField(field.type.getName(), field.value);
+        if (field.metadata != null) {
+            delegate.setMetadata(field.type.getName(), field.metadata);
+        }
+    }
+
+    /**
+     * Returns the underlying record, after having decoded all fields.
+     */
+    public Record getRecord() {
+        decodeAll();
+        return delegate;
+    }
+
+    @Override
+    public void setId(RecordId recordId) {
+        delegate.setId(recordId);
+    }
+
+    @Override
+    public RecordId getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public void setVersion(Long version) {
+        delegate.setVersion(version);
+    }
+
+    @Override
+    public Long getVersion() {
+        return delegate.getVersion();
+    }
+
+    @Override
+    public void setRecordType(QName name, Long version) {
+        delegate.setRecordType(name, version);
+    }
+
+    @Override
+    public void setRecordType(QName name) {
+        delegate.setRecordType(name);
+    }
+
+    @Override
+    public void setRecordType(String recordTypeName) throws RecordException {
+        delegate.setRecordType(recordTypeName);
+    }
+
+    @Override
+    public void setRecordType(String recordTypeName, Long version) throws RecordException {
+        delegate.setRecordType(recordTypeName, version);
+    }
+
+    @Override
+    public QName getRecordTypeName() {
+        return delegate.getRecordTypeName();
+    }
+
+    @Override
+    public Long getRecordTypeVersion() {
+        return delegate.getRecordTypeVersion();
+    }
+
+    @Override
+    public void setRecordType(Scope scope, QName name, Long version) {
+        delegate.setRecordType(scope, name, version);
+    }
+
+    @Override
+    public void setRecordType(Scope scope, String recordTypeName, Long version) throws RecordException {
+        delegate.setRecordType(scope, recordTypeName, version);
+    }
+
+    @Override
+    public QName getRecordTypeName(Scope scope) {
+        return delegate.getRecordTypeName(scope);
+    }
+
+    @Override
+    public Long getRecordTypeVersion(Scope scope) {
+        return delegate.getRecordTypeVersion(scope);
+    }
+
+    @Override
+    public void setField(QName fieldName, Object value) {
+        synchronized (this) {
+            rawFields.remove(fieldName);
+        }
+        delegate.setField(fieldName, value);
+    }
+
+    @Override
+    public void setField(String fieldName, Object value) throws RecordException {
+        decodeAll();
+        delegate.setField(fieldName, value);
+    }
+
+    @Override
+    public <T> T getField(QName fieldName) throws FieldNotFoundException {
+        decode(fieldName);
+        return delegate.<T>getField(fieldName);
+    }
+
+    @Override
+    public <T> T getField(String fieldName) throws FieldNotFoundException, RecordException {
+        decodeAll();
+        return delegate.<T>getField(fieldName);
+    }
+
+    @Override
+    public boolean hasField(QName fieldName) {
+        synchronized (this) {
+            if (rawFields.containsKey(fieldName)) {
+                return true;
+            }
+        }
+        return delegate.hasField(fieldName);
+    }
+
+    @Override
+    public boolean hasField(String fieldName) throws RecordException {
+        decodeAll();
+        return delegate.hasField(fieldName);
+    }
+
+    @Override
+    public Map<QName, Object> getFields() {
+        decodeAll();
+        return delegate.getFields();
+    }
+
+    @Override
+    public void delete(QName fieldName, boolean addFieldsToDelete) {
+        synchronized (this) {
+            rawFields.remove(fieldName);
+        }
+        delegate.delete(fieldName, addFieldsToDelete);
+    }
+
+    @Override
+    public void delete(String fieldName, boolean addFieldsToDelete) throws RecordException {
+        decodeAll();
+        delegate.delete(fieldName, addFieldsToDelete);
+    }
+
+    @Override
+    public List<QName> getFieldsToDelete() {
+        return delegate.getFieldsToDelete();
+    }
+
+    @Override
+    public void addFieldsToDelete(List<QName> names) {
+        delegate.addFieldsToDelete(names);
+    }
+
+    @Override
+    public void removeFieldsToDelete(List<QName> names) {
+        delegate.removeFieldsToDelete(names);
+    }
+
+    @Override
+    public ResponseStatus getResponseStatus() {
+        return delegate.getResponseStatus();
+    }
+
+    @Override
+    public void setResponseStatus(ResponseStatus status) {
+        delegate.setResponseStatus(status);
+    }
+
+    @Override
+    public Record clone() throws RuntimeException {
+        try {
+            return cloneRecord(new IdentityRecordStack());
+        } catch (RecordException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Record cloneRecord() throws RecordException {
+        return cloneRecord(new IdentityRecordStack());
+    }
+
+    @Override
+    public synchronized Record cloneRecord(IdentityRecordStack parentRecords) throws RecordException {
+        // The raw field bytes are never modified, so they can be shared with the clone
+        return new LazyRecordImpl(delegate.cloneRecord(parentRecords), new HashMap<QName, RawField>(rawFields));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        decodeAll();
+        return delegate.equals(obj);
+    }
+
+    @Override
+    public boolean softEquals(Object obj) {
+        decodeAll();
+        return delegate.softEquals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        decodeAll();
+        return delegate.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        decodeAll();
+        return delegate.toString();
+    }
+
+    @Override
+    public void setDefaultNamespace(String namespace) {
+        delegate.setDefaultNamespace(namespace);
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        return delegate.getAttributes();
+    }
+
+    @Override
+    public boolean hasAttributes() {
+        return delegate.hasAttributes();
+    }
+
+    @Override
+    public void setAttributes(Map<String, String> attributes) {
+        delegate.setAttributes(attributes);
+    }
+
+    @Override
+    public Metadata getMetadata(QName fieldName) {
+        decode(fieldName);
+        return delegate.getMetadata(fieldName);
+    }
+
+    @Override
+    public void setMetadata(QName fieldName, Metadata metadata) {
+        decode(fieldName);
+        delegate.setMetadata(fieldName, metadata);
+    }
+
+    @Override
+    public Map<QName, Metadata> getMetadataMap() {
+        decodeAll();
+        return delegate.getMetadataMap();
+    }
+}
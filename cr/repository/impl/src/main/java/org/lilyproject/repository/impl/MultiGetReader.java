@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.ngdata.lily.security.hbase.client.AuthorizationContext;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordException;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordScanner;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.spi.AuthorizationContextHolder;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.lilyproject.util.hbase.LocalHTable;
+
+/**
+ * Reads the latest version of a (possibly large) set of records.
+ *
+ * <p>The record ids are grouped per region and split in batches of at most {@link #MAX_BATCH_SIZE} ids. The
+ * batches are fetched with a multi-get and decoded on the executor, with at most {@link #MAX_IN_FLIGHT} batches
+ * being busy for one read. Rows of deleted records are filtered out by the region servers, and only the
+ * requested fields are retrieved.</p>
+ *
+ * <p>The region locations are taken from the connection's region cache, if the location table is a
+ * {@link LocalHTable}. Otherwise the ids are split in batches in the order they are supplied.</p>
+ */
+class MultiGetReader {
+    static final int MAX_BATCH_SIZE = 1000;
+    static final int MAX_IN_FLIGHT = 8;
+
+    private final HTableInterface table;
+    private final HTableInterface locationTable;
+    private final RecordDecoder recdec;
+    private final ExecutorService executor;
+    private final Filter realRecordsFilter;
+
+    MultiGetReader(HTableInterface table, HTableInterface locationTable, RecordDecoder recdec,
+            ExecutorService executor, Filter realRecordsFilter) {
+        this.table = table;
+        this.locationTable = locationTable;
+        this.recdec = recdec;
+        this.executor = executor;
+        this.realRecordsFilter = realRecordsFilter;
+    }
+
+    /**
+     * Reads the records and returns them by id. Records that don't exist or are deleted are not in the map.
+     */
+    Map<RecordId, Record> read(List<RecordId> recordIds, List<FieldType> fields, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        return read(recordIds, fields, fieldTypes, false);
+    }
+
+    /**
+     * Same as {@link #read(List, List, FieldTypes)}, but if withIds is true the records are decoded as
+     * {@link IdRecord}s.
+     */
+    Map<RecordId, Record> read(List<RecordId> recordIds, List<FieldType> fields, FieldTypes fieldTypes,
+            boolean withIds) throws RepositoryException, InterruptedException {
+        List<List<RecordId>> batches = split(recordIds);
+
+        // Nothing to win by going to another thread for a single batch
+        if (batches.size() == 1) {
+            Map<RecordId, Record> records = new HashMap<RecordId, Record>();
+            for (Record record : readBatch(batches.get(0), fields, fieldTypes, withIds)) {
+                records.put(record.getId(), record);
+            }
+            return records;
+        }
+
+        Map<RecordId, Record> records = new HashMap<RecordId, Record>(recordIds.size());
+        StreamingScanner scanner = new StreamingScanner(batches, fields, fieldTypes, withIds);
+        try {
+            Record record;
+            while ((record = scanner.next()) != null) {
+                records.put(record.getId(), record);
+            }
+        } finally {
+            scanner.close();
+        }
+        return records;
+    }
+
+    /**
+     * Returns a scanner which returns the records as their batch becomes available. Within a batch, the records
+     * are in the order of the supplied ids, but the batches themselves are returned in the order they complete.
+     */
+    RecordScanner readStreaming(List<RecordId> recordIds, List<FieldType> fields, FieldTypes fieldTypes)
+            throws RepositoryException {
+        return new StreamingScanner(split(recordIds), fields, fieldTypes, false);
+    }
+
+    /**
+     * Splits the record ids (without duplicates) in batches, each batch only containing rows of one region.
+     */
+    List<List<RecordId>> split(List<RecordId> recordIds) throws RecordException {
+        Set<RecordId> uniqueIds = new LinkedHashSet<RecordId>(recordIds);
+        List<List<RecordId>> batches = new ArrayList<List<RecordId>>();
+
+        if (locationTable instanceof LocalHTable && uniqueIds.size() > MAX_BATCH_SIZE) {
+            LocalHTable localHTable = (LocalHTable)locationTable;
+            Map<String, List<RecordId>> idsByRegion = new LinkedHashMap<String, List<RecordId>>();
+            try {
+                for (RecordId recordId : uniqueIds) {
+                    HRegionLocation location = localHTable.getRegionLocation(recordId.toBytes());
+                    String region = location.getRegionInfo().getEncodedName();
+                    List<RecordId> regionIds = idsByRegion.get(region);
+                    if (regionIds == null) {
+                        regionIds = new ArrayList<RecordId>();
+                        idsByRegion.put(region, regionIds);
+                    }
+                    regionIds.add(recordId);
+                }
+            } catch (IOException e) {
+                throw new RecordException("Exception occurred while locating the regions of records", e);
+            }
+            for (List<RecordId> regionIds : idsByRegion.values()) {
+                addBatches(regionIds, batches);
+            }
+        } else {
+            addBatches(new ArrayList<RecordId>(uniqueIds), batches);
+        }
+
+        return batches;
+    }
+
+    private void addBatches(List<RecordId> recordIds, List<List<RecordId>> batches) {
+        for (int i = 0; i < recordIds.size(); i += MAX_BATCH_SIZE) {
+            batches.add(recordIds.subList(i, Math.min(i + MAX_BATCH_SIZE, recordIds.size())));
+        }
+    }
+
+    private List<Record> readBatch(List<RecordId> recordIds, List<FieldType> fields, FieldTypes fieldTypes,
+            boolean withIds) throws RepositoryException, InterruptedException {
+        Result[] results;
+        try {
+            List<Get> gets = new ArrayList<Get>(recordIds.size());
+            for (RecordId recordId : recordIds) {
+                Get get = new Get(recordId.toBytes());
+                get.setFilter(realRecordsFilter);
+                BaseRepository.addFieldsToGet(get, fields);
+                get.setMaxVersions(1); // Only retrieve the most recent version of each field
+                gets.add(get);
+            }
+
+            results = table.get(gets);
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while retrieving records '" + recordIds
+                    + "' from HBase table", e);
+        }
+
+        List<Record> records = new ArrayList<Record>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            if (result == null || result.isEmpty()) {
+                continue; // Skip this recordId (instead of throwing a RecordNotFoundException)
+            }
+            // The filter should already have taken care of this, check anyway
+            byte[] deleted = recdec.getLatest(result, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+            if ((deleted == null) || (Bytes.toBoolean(deleted))) {
+                continue;
+            }
+            Long version = recdec.getLatestVersion(result);
+            if (withIds) {
+                records.add(recdec.decodeRecordWithIds(recordIds.get(i), version, result, fieldTypes));
+            } else {
+                records.add(recdec.decodeRecord(recordIds.get(i), version, null, result, fieldTypes));
+            }
+        }
+        return records;
+    }
+
+    private class StreamingScanner implements RecordScanner {
+        private final Iterator<List<RecordId>> pendingBatches;
+        private final List<FieldType> fields;
+        private final FieldTypes fieldTypes;
+        private final boolean withIds;
+        private final AuthorizationContext authzContext;
+        private final CompletionService<List<Record>> completionService;
+        private final Set<Future<List<Record>>> inFlight = new LinkedHashSet<Future<List<Record>>>();
+        private Iterator<Record> current = Collections.<Record>emptyList().iterator();
+
+        StreamingScanner(List<List<RecordId>> batches, List<FieldType> fields, FieldTypes fieldTypes,
+                boolean withIds) {
+            this.pendingBatches = batches.iterator();
+            this.fields = fields;
+            this.fieldTypes = fieldTypes;
+            this.withIds = withIds;
+            // The authorization context is thread-bound, pass it on to the threads doing the gets
+            this.authzContext = AuthorizationContextHolder.getCurrentContext();
+            this.completionService = new ExecutorCompletionService<List<Record>>(executor);
+            submitBatches();
+        }
+
+        private void submitBatches() {
+            while (inFlight.size() < MAX_IN_FLIGHT && pendingBatches.hasNext()) {
+                final List<RecordId> batch = pendingBatches.next();
+                inFlight.add(completionService.submit(new Callable<List<Record>>() {
+                    @Override
+                    public List<Record> call() throws Exception {
+                        AuthorizationContextHolder.setCurrentContext(authzContext);
+                        try {
+                            return readBatch(batch, fields, fieldTypes, withIds);
+                        } finally {
+                            AuthorizationContextHolder.clearContext();
+                        }
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public Record next() throws RepositoryException, InterruptedException {
+            while (!current.hasNext()) {
+                if (inFlight.isEmpty()) {
+                    return null;
+                }
+                Future<List<Record>> future = completionService.take();
+                inFlight.remove(future);
+                submitBatches();
+                try {
+                    current = future.get().iterator();
+                } catch (ExecutionException e) {
+                    close();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RepositoryException) {
+                        throw (RepositoryException)cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException)cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    throw new RepositoryException("Error reading records", cause);
+                }
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            while (pendingBatches.hasNext()) {
+                pendingBatches.next();
+            }
+            for (Future<List<Record>> future : inFlight) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+            current = Collections.<Record>emptyList().iterator();
+        }
+
+        @Override
+        public Iterator<Record> iterator() {
+            return new Iterator<Record>() {
+                private Record next;
+
+                @Override
+                public boolean hasNext() {
+                    if (next != null) {
+                        return true;
+                    }
+                    try {
+                        next = StreamingScanner.this.next();
+                    } catch (RepositoryException e) {
+                        throw new RuntimeException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Record next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Record result = next;
+                    next = null;
+                    return result;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
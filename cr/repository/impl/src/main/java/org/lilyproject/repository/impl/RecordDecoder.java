@@ -16,6 +16,7 @@
 package org.lilyproject.repository.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -24,6 +25,7 @@ import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
 
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
@@ -56,8 +58,20 @@ import static org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
  *
  * <p>The methods in this class assume they are supplied with non-deleted records, thus where the
  * {@link LilyHBaseSchema.RecordColumn#DELETED} flag is false.</p>
+ *
+ * <p>By default, the decoder works in columnar mode: it walks the sorted KeyValue array of the Result directly,
+ * and looks up field types based on the qualifier bytes without copying them. Otherwise, it uses the
+ * family/qualifier/timestamp maps of {@link Result#getMap()}. Both modes decode the same records. The map mode
+ * can be selected through {@link #RecordDecoder(TypeManager, IdGenerator, RecordFactory, boolean)}, or by
+ * setting the {@link #COLUMNAR_PROPERTY} system property to false.</p>
  */
 public class RecordDecoder {
+    /**
+     * System property which selects the mode of the decoders created without an explicit mode, the same in the
+     * Lily server, the clients and the indexer: true (the default) for columnar mode, false for map mode.
+     */
+    public static final String COLUMNAR_PROPERTY = "lily.recordDecoder.columnar";
+
     public static final Map<Scope, byte[]> RECORD_TYPE_ID_QUALIFIERS = new EnumMap<Scope, byte[]>(Scope.class);
     public static final Map<Scope, byte[]> RECORD_TYPE_VERSION_QUALIFIERS = new EnumMap<Scope, byte[]>(Scope.class);
 
@@ -88,11 +102,30 @@ public class RecordDecoder {
     private TypeManager typeManager;
     private IdGenerator idGenerator;
     private RecordFactory recordFactory;
+    private boolean columnar;
 
+    /**
+     * Creates a decoder in columnar mode, unless the {@link #COLUMNAR_PROPERTY} system property is false.
+     */
     public RecordDecoder(TypeManager typeManager, IdGenerator idGenerator, RecordFactory recordFactory) {
+        this(typeManager, idGenerator, recordFactory,
+                Boolean.parseBoolean(System.getProperty(COLUMNAR_PROPERTY, "true")));
+    }
+
+    /**
+     * @param columnar true to decode by walking the KeyValues of the Result, false to decode using
+     *                 {@link Result#getMap()}
+     */
+    public RecordDecoder(TypeManager typeManager, IdGenerator idGenerator, RecordFactory recordFactory,
+                         boolean columnar) {
         this.typeManager = typeManager;
         this.idGenerator = idGenerator;
         this.recordFactory = recordFactory;
+        this.columnar = columnar;
+    }
+
+    public boolean isColumnar() {
+        return columnar;
     }
 
     /**
@@ -105,11 +138,30 @@ public class RecordDecoder {
         return decodeRecord(recordId, latestVersion, null, result, typeManager.getFieldTypesSnapshot());
     }
 
+    /**
+     * Version of {@link #decodeRecord(Result)} which returns a {@link LazyRecordImpl}: the field values are
+     * only decoded when they are accessed. This is useful for scans of which the consumer only looks
+     * at a few of the returned fields.
+     *
+     * <p>The raw field values are collected by walking the KeyValues, as in columnar mode, whatever the mode
+     * of this decoder.</p>
+     */
+    public Record decodeRecordLazily(Result result) throws InterruptedException, RepositoryException {
+        Long latestVersion = getLatestVersion(result);
+        RecordId recordId = idGenerator.fromBytes(result.getRow());
+        FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+        return decodeRecordColumnar(recordId, latestVersion, null, result, fieldTypes, true);
+    }
+
     /**
      * Gets the requested version of the record (fields and recordTypes) from the Result object.
      */
     public Record decodeRecord(RecordId recordId, Long requestedVersion, ReadContext readContext,
                                Result result, FieldTypes fieldTypes) throws InterruptedException, RepositoryException {
+        if (columnar) {
+            return decodeRecordColumnar(recordId, requestedVersion, readContext, result, fieldTypes, false);
+        }
+
         Record record = recordFactory.newRecord(recordId);
         record.setVersion(requestedVersion);
 
@@ -201,6 +253,10 @@ public class RecordDecoder {
      */
     public List<Record> decodeRecords(RecordId recordId, List<Long> requestedVersions, Result result,
                                       FieldTypes fieldTypes) throws InterruptedException, RepositoryException {
+        if (columnar) {
+            return decodeRecordsColumnar(recordId, requestedVersions, result, fieldTypes);
+        }
+
         Map<Long, Record> records = new HashMap<Long, Record>(requestedVersions.size());
         Map<Long, Set<Scope>> scopes = new HashMap<Long, Set<Scope>>(requestedVersions.size());
         for (Long requestedVersion : requestedVersions) {
@@ -276,7 +332,265 @@ public class RecordDecoder {
         return new ArrayList<Record>(records.values());
     }
 
-    private static class ExtractedField {
+    /**
+     * Columnar version of {@link #decodeRecord(RecordId, Long, ReadContext, Result, FieldTypes)}.
+     *
+     * <p>The KeyValues of a Result are sorted on column, and within a column on descending timestamp, so
+     * the cell to use for each column is the first one with a timestamp not higher than the version to read.</p>
+     *
+     * @param lazy if true, the field values are not decoded but kept as raw bytes in a {@link LazyRecordImpl}
+     */
+    private Record decodeRecordColumnar(RecordId recordId, Long requestedVersion, ReadContext readContext,
+                                        Result result, FieldTypes fieldTypes, boolean lazy)
+            throws InterruptedException, RepositoryException {
+        Record record = recordFactory.newRecord(recordId);
+        record.setVersion(requestedVersion);
+        LazyRecordImpl lazyRecord = lazy ? new LazyRecordImpl(record) : null;
+
+        // If the version is null, this means the record has no version an thus only contains non-versioned fields (if any)
+        // All non-versioned fields are stored at version 1, so we extract the fields at version 1
+        long versionToRead = (requestedVersion == null) ? 1L : requestedVersion;
+
+        KeyValue[] kvs = result.raw();
+        KeyValue[] recordTypeIds = new KeyValue[SCOPE_COUNT];
+        KeyValue[] recordTypeVersions = new KeyValue[SCOPE_COUNT];
+
+        int start = 0;
+        while (kvs != null && start < kvs.length) {
+            int end = endOfColumn(kvs, start);
+            KeyValue first = kvs[start];
+            if (first.matchingFamily(RecordCf.DATA.bytes)) {
+                byte[] buffer = first.getBuffer();
+                int qualifierOffset = first.getQualifierOffset();
+                int qualifierLength = first.getQualifierLength();
+                if (qualifierLength > 0 && buffer[qualifierOffset] == RecordColumn.DATA_PREFIX) {
+                    // Get the cell for the version (can be a cell with a lower version number if the field was not changed)
+                    int index = ceilingIndex(kvs, start, end, versionToRead);
+                    if (index != -1 && lazy) {
+                        addRawField(lazyRecord, kvs[index], readContext, fieldTypes);
+                    } else if (index != -1) {
+                        ExtractedField field = extractField(kvs[index], readContext, fieldTypes);
+                        if (field != null) {
+                            record.setField(field.type.getName(), field.value);
+                            if (field.metadata != null) {
+                                record.setMetadata(field.type.getName(), field.metadata);
+                            }
+                        }
+                    }
+                } else if (qualifierLength > 0 && buffer[qualifierOffset] == RecordColumn.SYSTEM_PREFIX) {
+                    // For the record types, the latest version is read when no version was requested, see getLatest
+                    int index = requestedVersion == null ? end - 1 : ceilingIndex(kvs, start, end, versionToRead);
+                    if (index != -1) {
+                        collectRecordTypeCell(kvs[index], recordTypeIds, recordTypeVersions);
+                    }
+                }
+            }
+            start = end;
+        }
+
+        for (Scope scope : Scope.values()) {
+            KeyValue idCell = recordTypeIds[scope.ordinal()];
+            KeyValue versionCell = recordTypeVersions[scope.ordinal()];
+            if (idCell == null || versionCell == null) {
+                continue; // No record type was found
+            }
+            if (requestedVersion == null && (idCell.getValueLength() == 0 || versionCell.getValueLength() == 0)) {
+                continue; // No record type was found
+            }
+            SchemaId recordTypeId = new SchemaIdImpl(idCell.getValue());
+            long recordTypeVersion = Bytes.toLong(versionCell.getBuffer(), versionCell.getValueOffset(),
+                    versionCell.getValueLength());
+            // See decodeRecord for why the last version of the record type is read here
+            QName recordTypeName = typeManager.getRecordTypeById(recordTypeId, null).getName();
+            record.setRecordType(scope, recordTypeName, recordTypeVersion);
+            if (readContext != null) {
+                readContext.setRecordTypeId(scope, recordTypeId);
+            }
+        }
+
+        return lazy ? lazyRecord : record;
+    }
+
+    /**
+     * Columnar version of {@link #decodeRecords(RecordId, List, Result, FieldTypes)}. Picks, in one pass over
+     * the cells of each column, the cell to use for each of the requested versions.
+     */
+    private List<Record> decodeRecordsColumnar(RecordId recordId, List<Long> requestedVersions, Result result,
+                                               FieldTypes fieldTypes) throws InterruptedException, RepositoryException {
+        // Work on the versions in ascending order, so that the cells of a column can be walked only once
+        long[] sortedVersions = new long[requestedVersions.size()];
+        for (int i = 0; i < sortedVersions.length; i++) {
+            sortedVersions[i] = requestedVersions.get(i);
+        }
+        Arrays.sort(sortedVersions);
+        // Drop duplicate versions, only one record is returned per version
+        int versionCount = 0;
+        for (int i = 0; i < sortedVersions.length; i++) {
+            if (versionCount == 0 || sortedVersions[versionCount - 1] != sortedVersions[i]) {
+                sortedVersions[versionCount++] = sortedVersions[i];
+            }
+        }
+        long[] versions = Arrays.copyOf(sortedVersions, versionCount);
+
+        Record[] records = new Record[versions.length];
+        List<Set<Scope>> scopes = new ArrayList<Set<Scope>>(versions.length);
+        for (int i = 0; i < versions.length; i++) {
+            records[i] = recordFactory.newRecord(recordId);
+            records[i].setVersion(versions[i]);
+            scopes.add(EnumSet.noneOf(Scope.class));
+        }
+
+        // Start and end index of the record type columns, per scope
+        int[] recordTypeIdColumns = new int[SCOPE_COUNT * 2];
+        int[] recordTypeVersionColumns = new int[SCOPE_COUNT * 2];
+        Arrays.fill(recordTypeIdColumns, -1);
+        Arrays.fill(recordTypeVersionColumns, -1);
+
+        KeyValue[] kvs = result.raw();
+        int start = 0;
+        while (kvs != null && start < kvs.length) {
+            int end = endOfColumn(kvs, start);
+            KeyValue first = kvs[start];
+            if (first.matchingFamily(RecordCf.DATA.bytes)) {
+                byte[] buffer = first.getBuffer();
+                int qualifierOffset = first.getQualifierOffset();
+                int qualifierLength = first.getQualifierLength();
+                if (qualifierLength > 0 && buffer[qualifierOffset] == RecordColumn.DATA_PREFIX) {
+                    // Keep the last decoded field value, to avoid decoding the same value again and again if unchanged
+                    // between versions (sparse storage). Note that lastDecodedField can be null, in case of a field
+                    // deletion marker
+                    int lastDecodedIndex = -1;
+                    ExtractedField lastDecodedField = null;
+                    // The cells are sorted on descending timestamp, walk them from the oldest to the newest
+                    int cursor = end - 1;
+                    int index = -1;
+                    for (int v = 0; v < versions.length; v++) {
+                        while (cursor >= start && kvs[cursor].getTimestamp() <= versions[v]) {
+                            index = cursor;
+                            cursor--;
+                        }
+                        if (index == -1) {
+                            continue;
+                        }
+                        if (index != lastDecodedIndex) {
+                            // Not yet decoded, do it now
+                            lastDecodedIndex = index;
+                            lastDecodedField = extractField(kvs[index], null, fieldTypes);
+                        }
+                        if (lastDecodedField != null) {
+                            records[v].setField(lastDecodedField.type.getName(), lastDecodedField.value);
+                            scopes.get(v).add(lastDecodedField.type.getScope());
+                            if (lastDecodedField.metadata != null) {
+                                records[v].setMetadata(lastDecodedField.type.getName(), lastDecodedField.metadata);
+                            }
+                        }
+                    }
+                } else if (qualifierLength > 0 && buffer[qualifierOffset] == RecordColumn.SYSTEM_PREFIX) {
+                    for (Scope scope : Scope.values()) {
+                        int slot = scope.ordinal() * 2;
+                        if (matchingQualifier(first, RECORD_TYPE_ID_QUALIFIERS.get(scope))) {
+                            recordTypeIdColumns[slot] = start;
+                            recordTypeIdColumns[slot + 1] = end;
+                        } else if (matchingQualifier(first, RECORD_TYPE_VERSION_QUALIFIERS.get(scope))) {
+                            recordTypeVersionColumns[slot] = start;
+                            recordTypeVersionColumns[slot + 1] = end;
+                        }
+                    }
+                }
+            }
+            start = end;
+        }
+
+        // Add the record types to the records
+        for (int v = 0; v < versions.length; v++) {
+            Set<Scope> scopesForVersion = scopes.get(v);
+
+            // We're only adding the record types if any fields were read.
+            if (!scopesForVersion.isEmpty()) {
+                // At least the non-versioned record type should be read since that is also the record type of the whole record
+                scopesForVersion.add(Scope.NON_VERSIONED);
+                for (Scope scope : scopesForVersion) {
+                    int slot = scope.ordinal() * 2;
+                    if (recordTypeIdColumns[slot] == -1 || recordTypeVersionColumns[slot] == -1) {
+                        continue; // No record type was found
+                    }
+                    int idIndex = ceilingIndex(kvs, recordTypeIdColumns[slot], recordTypeIdColumns[slot + 1],
+                            versions[v]);
+                    int versionIndex = ceilingIndex(kvs, recordTypeVersionColumns[slot],
+                            recordTypeVersionColumns[slot + 1], versions[v]);
+                    if (idIndex == -1 || versionIndex == -1) {
+                        continue; // No record type was found
+                    }
+                    KeyValue versionCell = kvs[versionIndex];
+                    RecordType recordType = typeManager.getRecordTypeById(new SchemaIdImpl(kvs[idIndex].getValue()),
+                            Bytes.toLong(versionCell.getBuffer(), versionCell.getValueOffset(),
+                                    versionCell.getValueLength()));
+                    records[v].setRecordType(scope, recordType.getName(), recordType.getVersion());
+                }
+            }
+        }
+
+        return new ArrayList<Record>(Arrays.asList(records));
+    }
+
+    private static final int SCOPE_COUNT = Scope.values().length;
+
+    /**
+     * Returns the (exclusive) end index of the column starting at the given index, i.e. of the sequence of cells
+     * having the same family and qualifier.
+     */
+    private static int endOfColumn(KeyValue[] kvs, int start) {
+        KeyValue first = kvs[start];
+        byte[] buffer = first.getBuffer();
+        int familyOffset = first.getFamilyOffset();
+        int familyLength = first.getFamilyLength();
+        int qualifierOffset = first.getQualifierOffset();
+        int qualifierLength = first.getQualifierLength();
+        int end = start + 1;
+        while (end < kvs.length) {
+            KeyValue kv = kvs[end];
+            if (!Bytes.equals(buffer, qualifierOffset, qualifierLength,
+                    kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength())
+                    || !Bytes.equals(buffer, familyOffset, familyLength,
+                    kv.getBuffer(), kv.getFamilyOffset(), kv.getFamilyLength())) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the index of the cell with the highest timestamp that is not higher than the given version,
+     * within the cells of one column (which are sorted on descending timestamp), or -1 if there is none.
+     */
+    private static int ceilingIndex(KeyValue[] kvs, int start, int end, long version) {
+        for (int i = start; i < end; i++) {
+            if (kvs[i].getTimestamp() <= version) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchingQualifier(KeyValue kv, byte[] qualifier) {
+        return Bytes.equals(kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength(),
+                qualifier, 0, qualifier.length);
+    }
+
+    private static void collectRecordTypeCell(KeyValue kv, KeyValue[] recordTypeIds, KeyValue[] recordTypeVersions) {
+        for (Scope scope : Scope.values()) {
+            if (matchingQualifier(kv, RECORD_TYPE_ID_QUALIFIERS.get(scope))) {
+                recordTypeIds[scope.ordinal()] = kv;
+                return;
+            } else if (matchingQualifier(kv, RECORD_TYPE_VERSION_QUALIFIERS.get(scope))) {
+                recordTypeVersions[scope.ordinal()] = kv;
+                return;
+            }
+        }
+    }
+
+    static class ExtractedField {
         FieldType type;
         Object value;
         Metadata metadata;
@@ -295,7 +609,52 @@ public class RecordDecoder {
         if (FieldFlags.isDeletedField(flags)) {
             return null;
         }
-        FieldType fieldType = fieldTypes.getFieldType(new SchemaIdImpl(Bytes.tail(key, key.length - 1)));
+        FieldType fieldType = fieldTypes.getFieldType(key, 1, key.length - 1);
+        return decodeField(fieldType, prefixedValue, 0, prefixedValue.length, context);
+    }
+
+    /**
+     * Version of {@link #extractField(byte[], byte[], ReadContext, FieldTypes)} which works directly on the
+     * buffer of the KeyValue, without copying out its qualifier or value.
+     */
+    private ExtractedField extractField(KeyValue kv, ReadContext context, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        byte[] buffer = kv.getBuffer();
+        int valueOffset = kv.getValueOffset();
+        if (FieldFlags.isDeletedField(buffer[valueOffset])) {
+            return null;
+        }
+        // The qualifier is the data prefix followed by the field type id
+        FieldType fieldType = fieldTypes.getFieldType(buffer, kv.getQualifierOffset() + 1,
+                kv.getQualifierLength() - 1);
+        return decodeField(fieldType, buffer, valueOffset, kv.getValueLength(), context);
+    }
+
+    /**
+     * Registers the cell as a not yet decoded field of the lazy record.
+     */
+    private void addRawField(LazyRecordImpl record, KeyValue kv, ReadContext context, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        byte[] buffer = kv.getBuffer();
+        int valueOffset = kv.getValueOffset();
+        if (FieldFlags.isDeletedField(buffer[valueOffset])) {
+            return;
+        }
+        FieldType fieldType = fieldTypes.getFieldType(buffer, kv.getQualifierOffset() + 1,
+                kv.getQualifierLength() - 1);
+        if (context != null) {
+            context.addFieldType(fieldType);
+        }
+        record.addRawField(fieldType, buffer, valueOffset, kv.getValueLength());
+    }
+
+    /**
+     * Decodes the field value (and metadata) stored in the given range of the buffer. The range starts with
+     * the field flags.
+     */
+    static ExtractedField decodeField(FieldType fieldType, byte[] buffer, int offset, int length,
+                                      ReadContext context) throws RepositoryException, InterruptedException {
+        byte flags = buffer[offset];
         if (context != null) {
             context.addFieldType(fieldType);
         }
@@ -307,16 +666,16 @@ public class RecordDecoder {
         if (metadataEncodingVersion == 0) {
             // there is no metadata
         } else if (metadataEncodingVersion == 1) {
-            int metadataSize = Bytes.toInt(prefixedValue, prefixedValue.length - Bytes.SIZEOF_INT, Bytes.SIZEOF_INT);
+            int metadataSize = Bytes.toInt(buffer, offset + length - Bytes.SIZEOF_INT, Bytes.SIZEOF_INT);
             metadataSpace = metadataSize + Bytes.SIZEOF_INT;
             metadata = MetadataSerDeser.read(
-                    new DataInputImpl(prefixedValue, prefixedValue.length - metadataSpace, metadataSize));
+                    new DataInputImpl(buffer, offset + length - metadataSpace, metadataSize));
         } else {
             throw new RuntimeException("Unsupported field metadata encoding version: " + metadataEncodingVersion);
         }
 
-        Object value = valueType.read(new DataInputImpl(prefixedValue, FieldFlags.SIZE_OF_FIELD_FLAGS,
-                prefixedValue.length - FieldFlags.SIZE_OF_FIELD_FLAGS - metadataSpace));
+        Object value = valueType.read(new DataInputImpl(buffer, offset + FieldFlags.SIZE_OF_FIELD_FLAGS,
+                length - FieldFlags.SIZE_OF_FIELD_FLAGS - metadataSpace));
 
         return new ExtractedField(fieldType, value, metadata);
     }
@@ -334,12 +693,21 @@ public class RecordDecoder {
     }
 
     /**
-     * Gets the latest value for a family/qualifier from a Result object, using its
+     * Gets the latest value for a family/qualifier from a Result object. In map-based mode, this uses its
      * getMap(). Most of the time this will be more efficient than using
      * Result.getValue() since the map will need to built anyway when reading the
-     * record.
+     * record. In columnar mode, the map is never built, so the cell is looked up directly.
+     *
+     * <p>The timestamps in the map are sorted in descending order, so its last entry is the cell with the
+     * lowest timestamp. The columns read through this method, such as the version, are only written at
+     * timestamp 1, so this is the only cell. The columnar mode takes the same cell.</p>
      */
     public byte[] getLatest(Result result, byte[] family, byte[] qualifier) {
+        if (columnar) {
+            KeyValue kv = getLatestColumnar(result, family, qualifier);
+            return kv == null ? null : kv.getValue();
+        }
+
         NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> map = result.getMap();
         if (map == null) {
             return null;
@@ -421,8 +789,20 @@ public class RecordDecoder {
         return new Pair<SchemaId, Long>(recordTypeId, recordTypeVersion);
     }
 
+    /**
+     * Columnar version of {@link #getLatest}: returns the cell with the lowest timestamp of the column.
+     */
+    private static KeyValue getLatestColumnar(Result result, byte[] family, byte[] qualifier) {
+        List<KeyValue> column = result.getColumn(family, qualifier);
+        return column.isEmpty() ? null : column.get(column.size() - 1);
+    }
+
     // Fixme consider returning  Optional<Long>
     public Long getLatestVersion(Result result) {
+        if (columnar) {
+            KeyValue kv = getLatestColumnar(result, RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+            return kv != null ? Bytes.toLong(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength()) : null;
+        }
         byte[] latestVersionBytes = getLatest(result, RecordCf.DATA.bytes, LilyHBaseSchema.RecordColumn.VERSION.bytes);
         return latestVersionBytes != null ? Bytes.toLong(latestVersionBytes) : null;
     }
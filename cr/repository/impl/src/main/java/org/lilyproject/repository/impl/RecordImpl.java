@@ -333,6 +333,9 @@ public class RecordImpl implements Record, Cloneable {
         if (obj instanceof RecordRvtImpl) {
             return equals(((RecordRvtImpl)obj).getRecord());
         }
+        if (obj instanceof LazyRecordImpl) {
+            return equals(((LazyRecordImpl)obj).getRecord());
+        }
         if (obj instanceof IdRecordImpl) {
             return softEquals(((IdRecordImpl)obj).getRecord());
         }
@@ -369,6 +372,9 @@ public class RecordImpl implements Record, Cloneable {
         if (obj instanceof RecordRvtImpl) {
             return softEquals(((RecordRvtImpl)obj).getRecord());
         }
+        if (obj instanceof LazyRecordImpl) {
+            return softEquals(((LazyRecordImpl)obj).getRecord());
+        }
         if (obj instanceof IdRecordImpl) {
             return softEquals(((IdRecordImpl)obj).getRecord());
         }
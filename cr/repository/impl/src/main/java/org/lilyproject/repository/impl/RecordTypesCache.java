@@ -15,8 +15,6 @@
  */
 package org.lilyproject.repository.impl;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.RecordType;
 import org.lilyproject.repository.api.SchemaId;
@@ -30,172 +28,33 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Cache of the record types.
+ *
+ * <p>The content of the cache is an immutable {@link Snapshot}, which is replaced through a volatile field
+ * on each update. An update only copies the parts of the snapshot it changes (see
+ * {@link SegmentedSnapshotMap}), readers never block. Updates are serialized.</p>
+ */
 public class RecordTypesCache {
-    private Log log = LogFactory.getLog(getClass());
-
-    // A lock on the monitor needs to be taken when changes are to be made on
-    // the nameCache, on the count variable, on the nameCacheOutOfDate boolean
-    // or if a bucket monitor needs to be added.
-    private final Object monitor = new Object();
-    // A lock on a bucket monitor needs to be taken when changes are to be made
-    // on a bucket.
-    private final Map<String, Object> bucketMonitors = new HashMap<String, Object>();
-    // The nameCacheOutOfData should be set to true when an update happens on
-    // a bucket. This means that if the nameCache is requested, it should be
-    // refreshed first. Once it is refreshed it can be put back to false.
-    private volatile boolean nameCacheOutOfDate = false;
-    private volatile boolean childRecordTypesOutOfDate = false;
-    // The count indicates how many buckets are being updated. As long as the
-    // count is higher than 0, the nameCache can not be updated since this could
-    // lead to an inconsistent state (two types could get the same name).
-    private volatile int count = 0;
-
-    /**
-     * name -> record type version -> record type
-     */
-    private Map<QName, Map<Long, RecordType>> nameCache;
-
-    /**
-     * Normally a record type points to the record types from which it extends, i.e. to their parent type.
-     * This map allows to traverse the reverse relation: from parent to child.
-     */
-    private Map<SchemaId, Set<SchemaId>> childRecordTypes;
+    // A lock on the updateLock needs to be taken to publish a new snapshot or to
+    // change the localUpdateBuckets.
+    private final Object updateLock = new Object();
 
-    /**
-     * bucket -> record type id -> record type version -> record type
-     */
-    private Map<String, Map<SchemaId, Map<Long, RecordType>>> buckets;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     private ConcurrentHashMap<String, Map<SchemaId, Map<Long, RecordType>>> localUpdateBuckets =
             new ConcurrentHashMap<String, Map<SchemaId, Map<Long, RecordType>>>();
 
-    public RecordTypesCache() {
-        nameCache = new HashMap<QName, Map<Long, RecordType>>();
-        buckets = new ConcurrentHashMap<String, Map<SchemaId, Map<Long, RecordType>>>();
-    }
-
-    private Map<QName, Map<Long, RecordType>> getNameCache() throws InterruptedException {
-        // First check if the name cache is out of date
-        if (nameCacheOutOfDate) {
-            synchronized (monitor) {
-                // Wait until no buckets are being updated
-                while (count > 0) {
-                    monitor.wait();
-                }
-                if (nameCacheOutOfDate) {
-                    // Re-initialize the nameCache
-                    Map<QName, Map<Long, RecordType>> newNameCache = new HashMap<QName, Map<Long, RecordType>>();
-                    for (Map<SchemaId, Map<Long, RecordType>> bucket : buckets.values()) {
-                        for (Map<Long, RecordType> recordTypesByVersion : bucket.values()) {
-                            for (RecordType recordType : recordTypesByVersion.values()) {
-                                if (!newNameCache.containsKey(recordType.getName())) {
-                                    newNameCache.put(recordType.getName(), new HashMap<Long, RecordType>());
-                                }
-                                newNameCache.get(recordType.getName()).put(recordType.getVersion(), recordType);
-                            }
-                        }
-                    }
-                    nameCache = newNameCache;
-                    nameCacheOutOfDate = false;
-                }
-            }
-        }
-        return nameCache;
-    }
-
-    private Map<SchemaId, Set<SchemaId>> getChildRecordTypes() throws InterruptedException {
-        // First check if the childRecordTypes is out of date
-        if (childRecordTypesOutOfDate) {
-            synchronized (monitor) {
-                // Wait until no buckets are being updated
-                while (count > 0) {
-                    monitor.wait();
-                }
-                if (childRecordTypesOutOfDate) {
-                    // Re-initialize the childRecordTypes
-                    Map<SchemaId, Set<SchemaId>> newChildRecordTypes = new HashMap<SchemaId, Set<SchemaId>>() {
-                        @Override
-                        public Set<SchemaId> get(Object key) {
-                            Set<SchemaId> set = super.get(key);
-                            if (set == null) {
-                                set = new HashSet<SchemaId>();
-                                super.put((SchemaId) key, set);
-                            }
-                            return set;
-                        }
-                    };
-                    for (Map<SchemaId, Map<Long, RecordType>> bucket : buckets.values()) {
-                        for (Map<Long, RecordType> recordTypeByVersion : bucket.values()) {
-                            // TODO: we only look at the last record type here, not sure why
-                            RecordType lastRecordType = getRecordTypeWithVersion(recordTypeByVersion, null);
-                            for (SchemaId parent : lastRecordType.getSupertypes().keySet()) {
-                                newChildRecordTypes.get(parent).add(lastRecordType.getId());
-                            }
-                        }
-                    }
-                    childRecordTypes = newChildRecordTypes;
-                    childRecordTypesOutOfDate = false;
-                }
-            }
-        }
-        return childRecordTypes;
-    }
-
-    /**
-     * Increment the number of buckets being updated
-     */
-    private void incCount() {
-        synchronized (monitor) {
-            count++;
-            monitor.notify();
-        }
-    }
-
-    /**
-     * Decrement the number of buckets being updated and mark the nameCache out
-     * of date.
-     */
-    private void decCount() {
-        synchronized (monitor) {
-            count--;
-            nameCacheOutOfDate = true;
-            childRecordTypesOutOfDate = true;
-            monitor.notify();
-        }
-    }
-
-    /**
-     * Return the monitor of a bucket and create it if it does not exist yet.
-     */
-    private Object getBucketMonitor(String bucketId) {
-        Object bucketMonitor = bucketMonitors.get(bucketId);
-        if (bucketMonitor == null) {
-            // If the bucket does not exist yet we need to create it
-            // Take the lock on the monitor to avoid that another call would
-            // created it at the same time
-            synchronized (monitor) {
-                // Make sure it hasn't been created meanwhile (= between
-                // checking for null and taking the lock on the monitor)
-                bucketMonitor = bucketMonitors.get(bucketId);
-                if (bucketMonitor == null) {
-                    bucketMonitor = new Object();
-                    bucketMonitors.put(bucketId, bucketMonitor);
-                }
-            }
-        }
-        return bucketMonitor;
-    }
-
     /**
-     * Return all record types in the cache. To avoid inconsistencies between
-     * buckets, we get the nameCache first.
+     * Return all record types in the cache.
      */
-    public Collection<RecordType> getRecordTypes() throws InterruptedException {
+    public Collection<RecordType> getRecordTypes() {
         List<RecordType> recordTypes = new ArrayList<RecordType>();
-        for (Map<Long, RecordType> recordTypesByVersion : getNameCache().values()) {
+        for (SortedMap<Long, RecordType> recordTypesByVersion : snapshot.byName.values()) {
             for (RecordType recordType : recordTypesByVersion.values()) {
                 recordTypes.add(recordType.clone());
             }
@@ -206,13 +65,12 @@ public class RecordTypesCache {
     /**
      * Return the record type based on its name
      */
-    public RecordType getRecordType(QName name, Long version) throws InterruptedException {
-        Map<Long, RecordType> recordTypesByVersion = getNameCache().get(name);
-        return getRecordTypeWithVersion(recordTypesByVersion, version);
+    public RecordType getRecordType(QName name, Long version) {
+        return getRecordTypeWithVersion(snapshot.byName.get(name), version);
     }
 
-    public Set<SchemaId> findDirectSubTypes(SchemaId recordTypeId) throws InterruptedException {
-        Set<SchemaId> childTypes = getChildRecordTypes().get(recordTypeId);
+    public Set<SchemaId> findDirectSubTypes(SchemaId recordTypeId) {
+        Set<SchemaId> childTypes = snapshot.childRecordTypes.get(recordTypeId);
         return childTypes != null ? childTypes : Collections.<SchemaId>emptySet();
     }
 
@@ -220,54 +78,28 @@ public class RecordTypesCache {
      * Get the record type based on its id
      */
     public RecordType getRecordType(SchemaId id, Long version) {
-        String bucketId = AbstractSchemaCache.encodeHex(id.getBytes());
-        Map<SchemaId, Map<Long, RecordType>> bucket = buckets.get(bucketId);
-        if (bucket == null) {
-            return null;
-        }
-        Map<Long, RecordType> recordTypesByVersion = bucket.get(id);
-        return getRecordTypeWithVersion(recordTypesByVersion, version);
+        return getRecordTypeWithVersion(snapshot.byId.get(id), version);
     }
 
-    private RecordType getRecordTypeWithVersion(Map<Long, RecordType> recordTypesByVersion, Long version) {
-        if (recordTypesByVersion == null)
+    private static RecordType getRecordTypeWithVersion(SortedMap<Long, RecordType> recordTypesByVersion,
+            Long version) {
+        if (recordTypesByVersion == null || recordTypesByVersion.isEmpty())
             return null;
         else if (version != null)
             return recordTypesByVersion.get(version);
         else
-            return recordTypesByVersion.get(new TreeSet<Long>(recordTypesByVersion.keySet()).last());
+            return recordTypesByVersion.get(recordTypesByVersion.lastKey());
     }
 
     /**
      * Refreshes the whole cache to contain the given list of record types.
      */
-    public void refreshRecordTypes(List<RecordType> recordTypes) throws InterruptedException {
-        // Since we will update all buckets, we take the lock on the monitor for
-        // the whole operation
-        synchronized (monitor) {
-            while (count > 0) {
-                monitor.wait();
-            }
-            nameCacheOutOfDate = true;
-            childRecordTypesOutOfDate = true;
-            // One would expect that existing buckets need to be cleared first.
+    public void refreshRecordTypes(List<RecordType> recordTypes) {
+        synchronized (updateLock) {
+            // One would expect that existing record types need to be cleared first.
             // But since record types cannot be deleted we will just overwrite
             // them.
-            for (RecordType recordType : recordTypes) {
-                String bucketId = AbstractSchemaCache.encodeHex(recordType.getId().getBytes());
-                // Only update if it was not updated locally
-                // If it was updated locally either this is the refresh of that
-                // update,
-                // or the refresh for this update will follow.
-                if (!removeFromLocalUpdateBucket(recordType, bucketId)) {
-                    Map<SchemaId, Map<Long, RecordType>> bucket = buckets.get(bucketId);
-                    if (bucket == null) {
-                        bucket = new ConcurrentHashMap<SchemaId, Map<Long, RecordType>>();
-                        buckets.put(bucketId, bucket);
-                    }
-                    putRecordTypeInBucket(bucket, recordType);
-                }
-            }
+            snapshot = snapshot.withRecordTypes(skipLocallyUpdated(recordTypes));
         }
     }
 
@@ -275,38 +107,9 @@ public class RecordTypesCache {
      * Refresh one bucket with the record types contained in the TypeBucket
      */
     public void refreshRecordTypeBucket(TypeBucket typeBucket) {
-        String bucketId = typeBucket.getBucketId();
-
-        // First increment the number of buckets that are being updated
-        incCount();
-        // Get a lock on the bucket to be updated
-        synchronized (getBucketMonitor(bucketId)) {
-            List<RecordType> recordTypes = typeBucket.getRecordTypes();
-            Map<SchemaId, Map<Long, RecordType>> bucket = buckets.get(bucketId);
-            // One would expect that an existing bucket need to be cleared
-            // first.
-            // But since record types cannot be deleted we will just overwrite
-            // them.
-            if (bucket == null) {
-                bucket = new ConcurrentHashMap<SchemaId, Map<Long, RecordType>>(Math.min(recordTypes.size(), 8), .75f, 1);
-                buckets.put(bucketId, bucket);
-            }
-            // Fill the bucket with the new record types
-            for (RecordType recordType : recordTypes) {
-                if (!removeFromLocalUpdateBucket(recordType, bucketId)) {
-                    putRecordTypeInBucket(bucket, recordType);
-                }
-            }
+        synchronized (updateLock) {
+            snapshot = snapshot.withRecordTypes(skipLocallyUpdated(typeBucket.getRecordTypes()));
         }
-        // Decrement the number of buckets that are being updated again.
-        decCount();
-    }
-
-    private void putRecordTypeInBucket(Map<SchemaId, Map<Long, RecordType>> bucket, RecordType recordType) {
-        if (!bucket.containsKey(recordType.getId())) {
-            bucket.put(recordType.getId(), new HashMap<Long, RecordType>());
-        }
-        bucket.get(recordType.getId()).put(recordType.getVersion(), recordType);
     }
 
     /**
@@ -315,26 +118,28 @@ public class RecordTypesCache {
     public void update(RecordType recordType) {
         // Clone the RecordType to avoid changes to it while it is in the cache
         RecordType rtToCache = recordType.clone();
-        SchemaId id = rtToCache.getId();
-        String bucketId = AbstractSchemaCache.encodeHex(id.getBytes());
-        // First increment the number of buckets that are being updated
-        incCount();
-        // Get a lock on the bucket to be updated
-        synchronized (getBucketMonitor(bucketId)) {
-            Map<SchemaId, Map<Long, RecordType>> bucket = buckets.get(bucketId);
-            // If the bucket does not exist yet, create it
-            if (bucket == null) {
-                bucket = new ConcurrentHashMap<SchemaId, Map<Long, RecordType>>(8, .75f, 1);
-                buckets.put(bucketId, bucket);
-            }
-            putRecordTypeInBucket(bucket, rtToCache);
+        String bucketId = AbstractSchemaCache.encodeHex(rtToCache.getId().getBytes());
+        synchronized (updateLock) {
+            snapshot = snapshot.withRecordTypes(Collections.singletonList(rtToCache));
             // Mark that this recordType is updated locally
             // and that the next refresh can be ignored
             // since this refresh can contain an old recordType
             addToLocalUpdateBucket(recordType, bucketId);
         }
-        // Decrement the number of buckets that are being updated again.
-        decCount();
+    }
+
+    // Only keep the record types that were not updated locally.
+    // If one was updated locally either this is the refresh of that
+    // update, or the refresh for this update will follow.
+    private List<RecordType> skipLocallyUpdated(List<RecordType> recordTypes) {
+        List<RecordType> result = new ArrayList<RecordType>(recordTypes.size());
+        for (RecordType recordType : recordTypes) {
+            String bucketId = AbstractSchemaCache.encodeHex(recordType.getId().getBytes());
+            if (!removeFromLocalUpdateBucket(recordType, bucketId)) {
+                result.add(recordType);
+            }
+        }
+        return result;
     }
 
     // Add the id of a record type that has been updated locally
@@ -348,7 +153,12 @@ public class RecordTypesCache {
             localUpdateBucket = new HashMap<SchemaId, Map<Long, RecordType>>();
             localUpdateBuckets.put(bucketId, localUpdateBucket);
         }
-        putRecordTypeInBucket(localUpdateBucket, recordType);
+        Map<Long, RecordType> recordTypesByVersion = localUpdateBucket.get(recordType.getId());
+        if (recordTypesByVersion == null) {
+            recordTypesByVersion = new HashMap<Long, RecordType>();
+            localUpdateBucket.put(recordType.getId(), recordTypesByVersion);
+        }
+        recordTypesByVersion.put(recordType.getVersion(), recordType);
     }
 
     // Check if the record type is present in the local update bucket.
@@ -369,15 +179,151 @@ public class RecordTypesCache {
     }
 
     public void clear() {
-        nameCache.clear();
+        synchronized (updateLock) {
+            snapshot = Snapshot.EMPTY;
+            for (Map<SchemaId, Map<Long, RecordType>> bucket : localUpdateBuckets.values()) {
+                bucket.clear();
+            }
+        }
+    }
+
+    /**
+     * Immutable state of the cache. The maps and sets it contains are never modified.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(
+                SegmentedSnapshotMap.<SchemaId, SortedMap<Long, RecordType>>empty(),
+                SegmentedSnapshotMap.<QName, SortedMap<Long, RecordType>>empty(),
+                SegmentedSnapshotMap.<SchemaId, Set<SchemaId>>empty());
+
+        /**
+         * record type id -> record type version -> record type
+         */
+        final SegmentedSnapshotMap<SchemaId, SortedMap<Long, RecordType>> byId;
 
-        for (Map bucket : buckets.values()) {
-            bucket.clear();
+        /**
+         * name -> record type version -> record type
+         */
+        final SegmentedSnapshotMap<QName, SortedMap<Long, RecordType>> byName;
+
+        /**
+         * Normally a record type points to the record types from which it extends, i.e. to their parent type.
+         * This map allows to traverse the reverse relation: from parent to child. It is based on the last
+         * version of each record type.
+         */
+        final SegmentedSnapshotMap<SchemaId, Set<SchemaId>> childRecordTypes;
+
+        private Snapshot(SegmentedSnapshotMap<SchemaId, SortedMap<Long, RecordType>> byId,
+                SegmentedSnapshotMap<QName, SortedMap<Long, RecordType>> byName,
+                SegmentedSnapshotMap<SchemaId, Set<SchemaId>> childRecordTypes) {
+            this.byId = byId;
+            this.byName = byName;
+            this.childRecordTypes = childRecordTypes;
         }
 
-        for (Map<SchemaId, Map<Long, RecordType>> bucket : localUpdateBuckets.values()) {
-            bucket.clear();
+        /**
+         * Returns a new snapshot in which the given record types have been added to the ones of this snapshot,
+         * replacing those with the same id and version.
+         */
+        Snapshot withRecordTypes(Collection<RecordType> recordTypes) {
+            if (recordTypes.isEmpty()) {
+                return this;
+            }
+
+            // Maps and sets which have been copied already during this update, so that each one is copied
+            // only once, even if many versions of a type are added
+            Map<SchemaId, TreeMap<Long, RecordType>> changedIds =
+                    new HashMap<SchemaId, TreeMap<Long, RecordType>>();
+            Map<QName, TreeMap<Long, RecordType>> changedNames = new HashMap<QName, TreeMap<Long, RecordType>>();
+            Map<SchemaId, Set<SchemaId>> changedChildren = new HashMap<SchemaId, Set<SchemaId>>();
+
+            for (RecordType recordType : recordTypes) {
+                SchemaId id = recordType.getId();
+                Long version = recordType.getVersion();
+
+                TreeMap<Long, RecordType> versions = changedIds.get(id);
+                if (versions == null) {
+                    versions = copy(byId.get(id));
+                    changedIds.put(id, versions);
+                }
+                RecordType oldLatest = versions.isEmpty() ? null : versions.get(versions.lastKey());
+                RecordType previous = versions.put(version, recordType);
+                RecordType newLatest = versions.get(versions.lastKey());
+
+                if (previous != null && !previous.getName().equals(recordType.getName())) {
+                    TreeMap<Long, RecordType> previousNameVersions = getForUpdate(changedNames, byName,
+                            previous.getName());
+                    // Only remove it if no other type took over the name meanwhile
+                    if (previousNameVersions.get(version) == previous) {
+                        previousNameVersions.remove(version);
+                    }
+                }
+                getForUpdate(changedNames, byName, recordType.getName()).put(version, recordType);
+
+                if (newLatest != oldLatest) {
+                    if (oldLatest != null) {
+                        for (SchemaId parent : oldLatest.getSupertypes().keySet()) {
+                            getChildrenForUpdate(changedChildren, childRecordTypes, parent).remove(id);
+                        }
+                    }
+                    for (SchemaId parent : newLatest.getSupertypes().keySet()) {
+                        getChildrenForUpdate(changedChildren, childRecordTypes, parent).add(id);
+                    }
+                }
+            }
+
+            SegmentedSnapshotMap.Editor<SchemaId, SortedMap<Long, RecordType>> newById = byId.edit();
+            for (Map.Entry<SchemaId, TreeMap<Long, RecordType>> entry : changedIds.entrySet()) {
+                newById.put(entry.getKey(), Collections.unmodifiableSortedMap(entry.getValue()));
+            }
+            SegmentedSnapshotMap.Editor<QName, SortedMap<Long, RecordType>> newByName = byName.edit();
+            for (Map.Entry<QName, TreeMap<Long, RecordType>> entry : changedNames.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    newByName.remove(entry.getKey());
+                } else {
+                    newByName.put(entry.getKey(), Collections.unmodifiableSortedMap(entry.getValue()));
+                }
+            }
+            SegmentedSnapshotMap<SchemaId, Set<SchemaId>> newChildRecordTypes = childRecordTypes;
+            if (!changedChildren.isEmpty()) {
+                SegmentedSnapshotMap.Editor<SchemaId, Set<SchemaId>> childEditor = childRecordTypes.edit();
+                for (Map.Entry<SchemaId, Set<SchemaId>> entry : changedChildren.entrySet()) {
+                    if (entry.getValue().isEmpty()) {
+                        childEditor.remove(entry.getKey());
+                    } else {
+                        childEditor.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+                    }
+                }
+                newChildRecordTypes = childEditor.build();
+            }
+
+            return new Snapshot(newById.build(), newByName.build(), newChildRecordTypes);
+        }
+
+        private static TreeMap<Long, RecordType> copy(SortedMap<Long, RecordType> versions) {
+            return versions != null ? new TreeMap<Long, RecordType>(versions) : new TreeMap<Long, RecordType>();
         }
-    }
 
+        private static <K> TreeMap<Long, RecordType> getForUpdate(Map<K, TreeMap<Long, RecordType>> changed,
+                SegmentedSnapshotMap<K, SortedMap<Long, RecordType>> original, K key) {
+            TreeMap<Long, RecordType> versions = changed.get(key);
+            if (versions == null) {
+                versions = copy(original.get(key));
+                changed.put(key, versions);
+            }
+            return versions;
+        }
+
+        private static Set<SchemaId> getChildrenForUpdate(Map<SchemaId, Set<SchemaId>> changed,
+                SegmentedSnapshotMap<SchemaId, Set<SchemaId>> original, SchemaId key) {
+            Set<SchemaId> children = changed.get(key);
+            if (children == null) {
+                Set<SchemaId> originalChildren = original.get(key);
+                children = originalChildren != null ? new HashSet<SchemaId>(originalChildren)
+                        : new HashSet<SchemaId>();
+                changed.put(key, children);
+            }
+            return children;
+        }
+    }
 }
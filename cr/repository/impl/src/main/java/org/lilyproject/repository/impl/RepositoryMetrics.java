@@ -25,6 +25,7 @@ import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.lilyproject.util.hbase.metrics.MBeanUtil;
 import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
@@ -34,12 +35,20 @@ public class RepositoryMetrics implements Updater {
 
     public enum HBaseAction{PUT, GET, LOCK, UNLOCK}
 
+    /**
+     * How much of the original record an update read: only the fields needed for the update, or everything.
+     */
+    public enum UpdateRead{PROJECTED, FULL}
+
     private final MetricsRegistry registry = new MetricsRegistry();
     private final MetricsRecord metricsRecord;
     private final MetricsContext context;
     private final EnumMap<Action, MetricsTimeVaryingRate> rates = new EnumMap<Action, MetricsTimeVaryingRate>(Action.class);
     private final EnumMap<HBaseAction, MetricsTimeVaryingRate> hbaseRates =
                 new EnumMap<HBaseAction, MetricsTimeVaryingRate>(HBaseAction.class);
+    private final EnumMap<UpdateRead, MetricsTimeVaryingRate> updateRates =
+                new EnumMap<UpdateRead, MetricsTimeVaryingRate>(UpdateRead.class);
+    private final MetricsTimeVaryingInt blindCreateConflicts;
     private final MetricsLongValue lastMutationEventTimestamp;
     private final RepositoryMetricsMXBean mbean;
     private final String recordName;
@@ -53,6 +62,11 @@ public class RepositoryMetrics implements Updater {
         for (HBaseAction action : HBaseAction.values()) {
             hbaseRates.put(action, new MetricsTimeVaryingRate(action.name().toLowerCase(), registry));
         }
+        for (UpdateRead read : UpdateRead.values()) {
+            updateRates.put(read, new MetricsTimeVaryingRate("update_" + read.name().toLowerCase() + "_read",
+                    registry));
+        }
+        blindCreateConflicts = new MetricsTimeVaryingInt("blindCreateConflicts", registry);
         lastMutationEventTimestamp = new MetricsLongValue("timestampLastMutation", registry);
         context = MetricsUtil.getContext("repository");
         metricsRecord = MetricsUtil.createRecord(context, recordName);
@@ -86,6 +100,25 @@ public class RepositoryMetrics implements Updater {
         hbaseRates.get(action).inc(duration);
     }
 
+    void reportUpdate(UpdateRead read, long duration) {
+        updateRates.get(read).inc(duration);
+    }
+
+    /**
+     * Reports a create of a record with a generated id, which didn't read the row state first, but had to
+     * fall back to doing so because the row turned out to exist.
+     */
+    void reportBlindCreateConflict() {
+        blindCreateConflicts.inc();
+    }
+
+    /**
+     * The number of creates counted by {@link #reportBlindCreateConflict()} in the current interval.
+     */
+    public int getBlindCreateConflicts() {
+        return blindCreateConflicts.getCurrentIntervalValue();
+    }
+
     public class RepositoryMetricsMXBean extends MetricsDynamicMBeanBase {
         private final ObjectName mbeanName;
 
@@ -25,6 +25,7 @@ import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeException;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.impl.valuetype.RecordTypeCodecCache;
 
 import java.io.IOException;
 import java.util.Collection;
@@ -67,6 +68,11 @@ public interface SchemaCache {
      */
     FieldTypes getFieldTypesSnapshot() throws InterruptedException;
 
+    /**
+     * Returns the cache of record type codecs, which is invalidated whenever the cached types change.
+     */
+    RecordTypeCodecCache getRecordTypeCodecCache();
+
     /**
      * Returns a list of field types currently in the cache.
      */
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.io.Files;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.lilyproject.bytes.api.DataInput;
+import org.lilyproject.bytes.api.DataOutput;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypeEntry;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.util.Pair;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+
+/**
+ * The contents of the schema cache, as saved to a file so that Lily servers and clients can start without reading
+ * all types from the repository.
+ *
+ * <p>Next to the field types and record types, a snapshot contains the ZooKeeper versions of the cache
+ * invalidation nodes from before the types were read. These versions tell which parts of the snapshot are still
+ * valid: when the snapshot is loaded, only the buckets of which the version changed since then are read again.
+ * If the parent invalidation node itself changed (an explicit refresh of all types was triggered, or the node was
+ * recreated), the snapshot as a whole is outdated.</p>
+ *
+ * <p>See {@link AbstractSchemaCache#setSnapshotFile}.</p>
+ */
+public class SchemaCacheSnapshot {
+    private static final int FORMAT_VERSION = 1;
+
+    private final long invalidationNodeCzxid;
+    private final int invalidationNodeVersion;
+    private final Map<String, Integer> bucketVersions;
+    private final List<FieldType> fieldTypes;
+    private final List<RecordType> recordTypes;
+
+    /**
+     * @param invalidationNodeCzxid the creation transaction id of the cache invalidation node, which identifies
+     *                              the node
+     * @param invalidationNodeVersion the version of the cache invalidation node
+     * @param bucketVersions the versions of the bucket invalidation nodes, by bucket id
+     */
+    public SchemaCacheSnapshot(long invalidationNodeCzxid, int invalidationNodeVersion,
+            Map<String, Integer> bucketVersions, Collection<FieldType> fieldTypes,
+            Collection<RecordType> recordTypes) {
+        this.invalidationNodeCzxid = invalidationNodeCzxid;
+        this.invalidationNodeVersion = invalidationNodeVersion;
+        this.bucketVersions = Collections.unmodifiableMap(new HashMap<String, Integer>(bucketVersions));
+        this.fieldTypes = Collections.unmodifiableList(new ArrayList<FieldType>(fieldTypes));
+        this.recordTypes = Collections.unmodifiableList(new ArrayList<RecordType>(recordTypes));
+    }
+
+    /**
+     * Creates a snapshot of the current schema by reading all types from the type manager, bypassing its cache.
+     * This is meant for tools which don't run a schema cache themselves, such as the submission of MapReduce jobs.
+     */
+    public static SchemaCacheSnapshot capture(ZooKeeperItf zk, TypeManager typeManager)
+            throws InterruptedException, KeeperException, RepositoryException {
+        // The versions are read before the types, so that the types are at least as recent as the versions
+        Stat parentStat = new Stat();
+        ZkUtil.getData(zk, AbstractSchemaCache.CACHE_INVALIDATION_PATH, null, parentStat);
+
+        Map<String, Integer> bucketVersions = new HashMap<String, Integer>();
+        byte[] bucket = new byte[1];
+        for (int i = 0; i < 256; i++) {
+            bucket[0] = (byte) i;
+            String bucketId = AbstractSchemaCache.encodeHex(bucket);
+            Stat stat = new Stat();
+            try {
+                ZkUtil.getData(zk, AbstractSchemaCache.CACHE_INVALIDATION_PATH + "/" + bucketId, null, stat);
+                bucketVersions.put(bucketId, stat.getVersion());
+            } catch (KeeperException.NoNodeException e) {
+                // No known version, the bucket will be read when the snapshot is loaded
+            }
+        }
+
+        Pair<List<FieldType>, List<RecordType>> types = typeManager.getTypesWithoutCache();
+        return new SchemaCacheSnapshot(parentStat.getCzxid(), parentStat.getVersion(), bucketVersions,
+                types.getV1(), types.getV2());
+    }
+
+    public long getInvalidationNodeCzxid() {
+        return invalidationNodeCzxid;
+    }
+
+    public int getInvalidationNodeVersion() {
+        return invalidationNodeVersion;
+    }
+
+    public Map<String, Integer> getBucketVersions() {
+        return bucketVersions;
+    }
+
+    public List<FieldType> getFieldTypes() {
+        return fieldTypes;
+    }
+
+    public List<RecordType> getRecordTypes() {
+        return recordTypes;
+    }
+
+    public byte[] toBytes() {
+        DataOutput output = new DataOutputImpl(64 + fieldTypes.size() * 64 + recordTypes.size() * 128);
+        output.writeInt(FORMAT_VERSION);
+        output.writeLong(invalidationNodeCzxid);
+        output.writeInt(invalidationNodeVersion);
+
+        output.writeVInt(bucketVersions.size());
+        for (Map.Entry<String, Integer> entry : bucketVersions.entrySet()) {
+            output.writeVUTF(entry.getKey());
+            output.writeVInt(entry.getValue());
+        }
+
+        output.writeVInt(fieldTypes.size());
+        for (FieldType fieldType : fieldTypes) {
+            writeSchemaId(fieldType.getId(), output);
+            writeQName(fieldType.getName(), output);
+            output.writeVUTF(fieldType.getValueType().getName());
+            output.writeVUTF(fieldType.getScope().name());
+        }
+
+        output.writeVInt(recordTypes.size());
+        for (RecordType recordType : recordTypes) {
+            writeSchemaId(recordType.getId(), output);
+            writeQName(recordType.getName(), output);
+            output.writeVLong(recordType.getVersion());
+
+            Collection<FieldTypeEntry> fieldTypeEntries = recordType.getFieldTypeEntries();
+            output.writeVInt(fieldTypeEntries.size());
+            for (FieldTypeEntry fieldTypeEntry : fieldTypeEntries) {
+                writeSchemaId(fieldTypeEntry.getFieldTypeId(), output);
+                output.writeBoolean(fieldTypeEntry.isMandatory());
+            }
+
+            Map<SchemaId, Long> supertypes = recordType.getSupertypes();
+            output.writeVInt(supertypes.size());
+            for (Map.Entry<SchemaId, Long> supertype : supertypes.entrySet()) {
+                writeSchemaId(supertype.getKey(), output);
+                output.writeBoolean(supertype.getValue() != null);
+                if (supertype.getValue() != null) {
+                    output.writeVLong(supertype.getValue());
+                }
+            }
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Decodes a snapshot created with {@link #toBytes()}.
+     *
+     * @param typeManager used to look up the value types of the field types
+     */
+    public static SchemaCacheSnapshot fromBytes(byte[] data, TypeManager typeManager)
+            throws IOException, RepositoryException, InterruptedException {
+        try {
+            DataInput input = new DataInputImpl(data);
+            int format = input.readInt();
+            if (format != FORMAT_VERSION) {
+                throw new IOException("Unsupported schema cache snapshot format: " + format);
+            }
+            long invalidationNodeCzxid = input.readLong();
+            int invalidationNodeVersion = input.readInt();
+
+            int bucketCount = input.readVInt();
+            Map<String, Integer> bucketVersions = new HashMap<String, Integer>(bucketCount * 2);
+            for (int i = 0; i < bucketCount; i++) {
+                bucketVersions.put(input.readVUTF(), input.readVInt());
+            }
+
+            int fieldTypeCount = input.readVInt();
+            List<FieldType> fieldTypes = new ArrayList<FieldType>(fieldTypeCount);
+            // Most field types share a few value types, so only parse each of them once
+            Map<String, ValueType> valueTypes = new HashMap<String, ValueType>();
+            for (int i = 0; i < fieldTypeCount; i++) {
+                SchemaId id = readSchemaId(input);
+                QName name = readQName(input);
+                String valueTypeName = input.readVUTF();
+                ValueType valueType = valueTypes.get(valueTypeName);
+                if (valueType == null) {
+                    valueType = typeManager.getValueType(valueTypeName);
+                    valueTypes.put(valueTypeName, valueType);
+                }
+                Scope scope = Scope.valueOf(input.readVUTF());
+                fieldTypes.add(new FieldTypeImpl(id, valueType, name, scope));
+            }
+
+            int recordTypeCount = input.readVInt();
+            List<RecordType> recordTypes = new ArrayList<RecordType>(recordTypeCount);
+            for (int i = 0; i < recordTypeCount; i++) {
+                RecordTypeImpl recordType = new RecordTypeImpl(readSchemaId(input), readQName(input));
+                recordType.setVersion(input.readVLong());
+
+                int fieldTypeEntryCount = input.readVInt();
+                for (int j = 0; j < fieldTypeEntryCount; j++) {
+                    recordType.addFieldTypeEntry(readSchemaId(input), input.readBoolean());
+                }
+
+                int supertypeCount = input.readVInt();
+                for (int j = 0; j < supertypeCount; j++) {
+                    SchemaId supertypeId = readSchemaId(input);
+                    recordType.addSupertype(supertypeId, input.readBoolean() ? input.readVLong() : null);
+                }
+                recordTypes.add(recordType);
+            }
+
+            if (input.getPosition() != data.length) {
+                throw new IOException("Unexpected data at the end of the schema cache snapshot");
+            }
+
+            return new SchemaCacheSnapshot(invalidationNodeCzxid, invalidationNodeVersion, bucketVersions,
+                    fieldTypes, recordTypes);
+        } catch (RuntimeException e) {
+            // Reading beyond the end of the data or invalid enum names
+            throw new IOException("Corrupt schema cache snapshot", e);
+        }
+    }
+
+    /**
+     * Writes the snapshot to the given file. The file is replaced at once, so that readers never see a partially
+     * written snapshot.
+     */
+    public void write(File file) throws IOException {
+        Files.createParentDirs(file);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(toBytes(), tmpFile);
+        if (!tmpFile.renameTo(file)) {
+            // Renaming onto an existing file fails on some platforms
+            if (!file.delete() || !tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("Failed to rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+
+    public static SchemaCacheSnapshot read(File file, TypeManager typeManager)
+            throws IOException, RepositoryException, InterruptedException {
+        try {
+            return fromBytes(Files.toByteArray(file), typeManager);
+        } catch (IOException e) {
+            throw new IOException("Error reading schema cache snapshot from " + file, e);
+        }
+    }
+
+    private static void writeSchemaId(SchemaId id, DataOutput output) {
+        byte[] bytes = id.getBytes();
+        output.writeVInt(bytes.length);
+        output.writeBytes(bytes);
+    }
+
+    private static SchemaId readSchemaId(DataInput input) {
+        return new SchemaIdImpl(input.readBytes(input.readVInt()));
+    }
+
+    private static void writeQName(QName name, DataOutput output) {
+        output.writeVUTF(name.getNamespace());
+        output.writeVUTF(name.getName());
+    }
+
+    private static QName readQName(DataInput input) {
+        return new QName(input.readVUTF(), input.readVUTF());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable map which is split into a fixed number of segments, used to build the schema cache snapshots.
+ *
+ * <p>A modified version of the map is created through an {@link Editor}, which only copies the segments in
+ * which keys are put or removed, and shares the other ones with the original map. This makes the cost of
+ * publishing a changed snapshot proportional to the number of changed entries rather than to the size of the
+ * whole schema.</p>
+ */
+final class SegmentedSnapshotMap<K, V> {
+    private static final int SEGMENT_COUNT = 256;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final SegmentedSnapshotMap EMPTY = new SegmentedSnapshotMap(new Map[SEGMENT_COUNT], 0);
+
+    // Segments are null as long as they are empty. The segment maps are never modified once the map is built.
+    private final Map<K, V>[] segments;
+    private final int size;
+
+    private SegmentedSnapshotMap(Map<K, V>[] segments, int size) {
+        this.segments = segments;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> SegmentedSnapshotMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    private static int segment(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 8) ^ (h >>> 16)) & (SEGMENT_COUNT - 1);
+    }
+
+    V get(Object key) {
+        Map<K, V> segment = segments[segment(key)];
+        return segment != null ? segment.get(key) : null;
+    }
+
+    boolean containsKey(Object key) {
+        Map<K, V> segment = segments[segment(key)];
+        return segment != null && segment.containsKey(key);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a new list containing all values of the map.
+     */
+    List<V> values() {
+        List<V> values = new ArrayList<V>(size);
+        for (Map<K, V> segment : segments) {
+            if (segment != null) {
+                values.addAll(segment.values());
+            }
+        }
+        return values;
+    }
+
+    Editor<K, V> edit() {
+        return new Editor<K, V>(this);
+    }
+
+    /**
+     * Collects changes to a map, to produce a new map with {@link #build()}. The original map is not affected.
+     * Editors are not thread safe.
+     */
+    static final class Editor<K, V> {
+        private final Map<K, V>[] segments;
+        private final boolean[] copied = new boolean[SEGMENT_COUNT];
+        private int size;
+
+        private Editor(SegmentedSnapshotMap<K, V> original) {
+            this.segments = original.segments.clone();
+            this.size = original.size;
+        }
+
+        V get(Object key) {
+            Map<K, V> segment = segments[segment(key)];
+            return segment != null ? segment.get(key) : null;
+        }
+
+        void put(K key, V value) {
+            Map<K, V> segment = segmentForUpdate(segment(key));
+            if (segment.put(key, value) == null) {
+                size++;
+            }
+        }
+
+        void remove(Object key) {
+            int index = segment(key);
+            if (segments[index] != null && segments[index].containsKey(key)) {
+                segmentForUpdate(index).remove(key);
+                size--;
+            }
+        }
+
+        private Map<K, V> segmentForUpdate(int index) {
+            if (!copied[index]) {
+                Map<K, V> original = segments[index];
+                segments[index] = original != null ? new HashMap<K, V>(original) : new HashMap<K, V>();
+                copied[index] = true;
+            }
+            return segments[index];
+        }
+
+        /**
+         * Creates the new map. The editor should not be used anymore afterwards.
+         */
+        SegmentedSnapshotMap<K, V> build() {
+            return new SegmentedSnapshotMap<K, V>(segments, size);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.valuetype;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypeEntry;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+
+/**
+ * The information {@link RecordValueType} needs to encode and decode records of one version of a record type:
+ * the field types of the record type and of its supertypes, in the order in which they are encoded.
+ *
+ * <p>Instances are immutable and are shared through the {@link RecordTypeCodecCache}.</p>
+ */
+final class RecordTypeCodec {
+    final byte[] recordTypeIdBytes;
+    final QName recordTypeName;
+    final Long recordTypeVersion;
+    final Map<Scope, SchemaId> recordTypeIds;
+
+    // The fields in encoding order. A field which occurs both in the record type and in a supertype occurs twice.
+    final SchemaId[] fieldIds;
+    final QName[] fieldNames;
+    final ValueType[] valueTypes;
+
+    /** The id to name mapping of all fields, used as is when a record has all fields. */
+    final Map<SchemaId, QName> fieldIdToName;
+    final Set<QName> fieldNameSet;
+
+    private RecordTypeCodec(RecordType recordType, List<FieldType> fieldTypes) {
+        this.recordTypeIdBytes = recordType.getId().getBytes();
+        this.recordTypeName = recordType.getName();
+        this.recordTypeVersion = recordType.getVersion();
+        Map<Scope, SchemaId> ids = new EnumMap<Scope, SchemaId>(Scope.class);
+        ids.put(Scope.NON_VERSIONED, recordType.getId());
+        this.recordTypeIds = Collections.unmodifiableMap(ids);
+
+        int count = fieldTypes.size();
+        fieldIds = new SchemaId[count];
+        fieldNames = new QName[count];
+        valueTypes = new ValueType[count];
+        Map<SchemaId, QName> idToName = new HashMap<SchemaId, QName>();
+        for (int i = 0; i < count; i++) {
+            FieldType fieldType = fieldTypes.get(i);
+            fieldIds[i] = fieldType.getId();
+            fieldNames[i] = fieldType.getName();
+            valueTypes[i] = fieldType.getValueType();
+            idToName.put(fieldIds[i], fieldNames[i]);
+        }
+        this.fieldIdToName = Collections.unmodifiableMap(idToName);
+        this.fieldNameSet = Collections.unmodifiableSet(new HashSet<QName>(idToName.values()));
+    }
+
+    static RecordTypeCodec build(RecordType recordType, TypeManager typeManager)
+            throws RepositoryException, InterruptedException {
+        List<FieldTypeEntry> fieldTypeEntries = new ArrayList<FieldTypeEntry>();
+        collectFieldTypeEntries(recordType, typeManager, fieldTypeEntries);
+        List<FieldType> fieldTypes = new ArrayList<FieldType>(fieldTypeEntries.size());
+        for (FieldTypeEntry fieldTypeEntry : fieldTypeEntries) {
+            fieldTypes.add(typeManager.getFieldTypeById(fieldTypeEntry.getFieldTypeId()));
+        }
+        return new RecordTypeCodec(recordType, fieldTypes);
+    }
+
+    private static void collectFieldTypeEntries(RecordType recordType, TypeManager typeManager,
+            List<FieldTypeEntry> fieldTypeEntries) throws RepositoryException, InterruptedException {
+        fieldTypeEntries.addAll(recordType.getFieldTypeEntries());
+        for (Map.Entry<SchemaId, Long> supertypeEntry : recordType.getSupertypes().entrySet()) {
+            RecordType supertype = typeManager.getRecordTypeById(supertypeEntry.getKey(), supertypeEntry.getValue());
+            collectFieldTypeEntries(supertype, typeManager, fieldTypeEntries);
+        }
+    }
+}
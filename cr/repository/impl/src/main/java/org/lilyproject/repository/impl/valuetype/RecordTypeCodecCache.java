@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.valuetype;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.util.Pair;
+
+/**
+ * Cache of the {@link RecordTypeCodec}s used by the {@link RecordValueType}s, so that encoding and decoding nested
+ * records doesn't need to collect the field types of their record type each time.
+ *
+ * <p>The schema cache owns this cache and calls {@link #invalidate()} after each change to the field types or
+ * record types it contains, as codecs depend on the names of field types and on the latest version of record
+ * types.</p>
+ */
+public class RecordTypeCodecCache {
+    private volatile Generation generation = new Generation();
+
+    /**
+     * Implemented by type managers which offer a codec cache to the record value types they create. Record value
+     * types of other type managers build the codecs each time.
+     */
+    public interface Provider {
+        RecordTypeCodecCache getRecordTypeCodecCache();
+    }
+
+    /**
+     * The codecs built for one state of the schema. A codec which is being built while the schema changes ends up
+     * in a generation which is already discarded.
+     */
+    private static final class Generation {
+        private final ConcurrentMap<Pair<SchemaId, Long>, RecordTypeCodec> byIdAndVersion =
+                new ConcurrentHashMap<Pair<SchemaId, Long>, RecordTypeCodec>();
+        private final ConcurrentMap<QName, RecordTypeCodec> latestByName =
+                new ConcurrentHashMap<QName, RecordTypeCodec>();
+    }
+
+    /**
+     * Discards all codecs. Should be called after the schema changed.
+     */
+    public void invalidate() {
+        generation = new Generation();
+    }
+
+    RecordTypeCodec getCodec(SchemaId recordTypeId, Long version, TypeManager typeManager)
+            throws RepositoryException, InterruptedException {
+        Generation current = generation;
+        Pair<SchemaId, Long> key = new Pair<SchemaId, Long>(recordTypeId, version);
+        RecordTypeCodec codec = current.byIdAndVersion.get(key);
+        if (codec == null) {
+            codec = RecordTypeCodec.build(typeManager.getRecordTypeById(recordTypeId, version), typeManager);
+            current.byIdAndVersion.put(key, codec);
+        }
+        return codec;
+    }
+
+    RecordTypeCodec getLatestCodec(QName recordTypeName, TypeManager typeManager)
+            throws RepositoryException, InterruptedException {
+        Generation current = generation;
+        RecordTypeCodec codec = current.latestByName.get(recordTypeName);
+        if (codec == null) {
+            RecordType recordType = typeManager.getRecordTypeByName(recordTypeName, null);
+            codec = RecordTypeCodec.build(recordType, typeManager);
+            current.latestByName.put(recordTypeName, codec);
+            current.byIdAndVersion.put(new Pair<SchemaId, Long>(recordType.getId(), recordType.getVersion()), codec);
+        }
+        return codec;
+    }
+}
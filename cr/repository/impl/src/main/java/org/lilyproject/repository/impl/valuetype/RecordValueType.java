@@ -15,29 +15,20 @@
  */
 package org.lilyproject.repository.impl.valuetype;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Comparator;
-import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.lilyproject.bytes.api.DataInput;
 import org.lilyproject.bytes.api.DataOutput;
 import org.lilyproject.bytes.impl.DataOutputImpl;
-import org.lilyproject.repository.api.FieldType;
-import org.lilyproject.repository.api.FieldTypeEntry;
 import org.lilyproject.repository.api.IdentityRecordStack;
 import org.lilyproject.repository.api.InvalidRecordException;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordException;
-import org.lilyproject.repository.api.RecordType;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
-import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.api.ValueTypeFactory;
@@ -98,24 +89,34 @@ public class RecordValueType extends AbstractValueType implements ValueType {
         int length = dataInput.readVInt();
         byte[] recordTypeId = dataInput.readBytes(length);
         Long recordTypeVersion = dataInput.readLong();
-        RecordType recordType = typeManager.getRecordTypeById(new SchemaIdImpl(recordTypeId), recordTypeVersion);
-        record.setRecordType(recordType.getName(), recordTypeVersion);
-
-        Map<SchemaId, QName> idToQNameMapping = new HashMap<SchemaId, QName>();
-        List<FieldType> fieldTypes = getSortedFieldTypes(recordType);
-        for (FieldType fieldType : fieldTypes) {
-            byte readByte = dataInput.readByte();
-            if (DEFINED == readByte) {
-                Object value = fieldType.getValueType().read(dataInput);
-                record.setField(fieldType.getName(), value);
-                idToQNameMapping.put(fieldType.getId(), fieldType.getName());
+        RecordTypeCodec codec = getCodec(new SchemaIdImpl(recordTypeId), recordTypeVersion);
+        record.setRecordType(codec.recordTypeName, recordTypeVersion);
+
+        QName[] fieldNames = codec.fieldNames;
+        ValueType[] valueTypes = codec.valueTypes;
+        boolean allDefined = true;
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (DEFINED == dataInput.readByte()) {
+                record.setField(fieldNames[i], valueTypes[i].read(dataInput));
+            } else {
+                allDefined = false;
             }
         }
 
-        Map<Scope, SchemaId> recordTypeIds = new EnumMap<Scope, SchemaId>(Scope.class);
-        recordTypeIds.put(Scope.NON_VERSIONED, recordType.getId());
+        Map<SchemaId, QName> idToQNameMapping;
+        if (allDefined) {
+            idToQNameMapping = codec.fieldIdToName;
+        } else {
+            idToQNameMapping = new HashMap<SchemaId, QName>();
+            SchemaId[] fieldIds = codec.fieldIds;
+            for (int i = 0; i < fieldIds.length; i++) {
+                if (record.hasField(fieldNames[i])) {
+                    idToQNameMapping.put(fieldIds[i], fieldNames[i]);
+                }
+            }
+        }
 
-        return new IdRecordImpl(record, idToQNameMapping, recordTypeIds);
+        return new IdRecordImpl(record, idToQNameMapping, codec.recordTypeIds);
     }
 
     @Override
@@ -153,7 +154,7 @@ public class RecordValueType extends AbstractValueType implements ValueType {
         }
 
 
-        RecordType recordType;
+        RecordTypeCodec codec;
         QName recordRecordTypeName = record.getRecordTypeName();
         if (recordRecordTypeName != null) {
             if (valueTypeRecordTypeName != null) {
@@ -164,18 +165,14 @@ public class RecordValueType extends AbstractValueType implements ValueType {
 //                            "' does not match the record value type's record type '" + valueTypeRecordTypeName + "'");
 //                }
             }
-            recordType = typeManager.getRecordTypeByName(recordRecordTypeName, null);
+            codec = getLatestCodec(recordRecordTypeName);
         } else if (valueTypeRecordTypeName != null) {
-                recordType = typeManager.getRecordTypeByName(valueTypeRecordTypeName, null);
+                codec = getLatestCodec(valueTypeRecordTypeName);
         } else {
             throw new RecordException("The record '" + record + "' should specify a record type");
         }
 
-        // Get and sort the field type entries that should be in the record
-        List<FieldType> fieldTypes = getSortedFieldTypes(recordType);
-
         Map<QName, Object> recordFields = record.getFields();
-        List<QName> expectedFields = new ArrayList<QName>();
 
         // Write the record type information
         // Encoding:
@@ -184,58 +181,59 @@ public class RecordValueType extends AbstractValueType implements ValueType {
         // - recordtype id : bytes
         // - recordtype version : long
         dataOutput.writeByte(ENCODING_VERSION);
-        byte[] recordIdBytes = recordType.getId().getBytes();
-        dataOutput.writeVInt(recordIdBytes.length);
-        dataOutput.writeBytes(recordIdBytes);
-        dataOutput.writeLong(recordType.getVersion());
+        dataOutput.writeVInt(codec.recordTypeIdBytes.length);
+        dataOutput.writeBytes(codec.recordTypeIdBytes);
+        dataOutput.writeLong(codec.recordTypeVersion);
 
         // Write the content of the fields
         // Encoding: for each field :
         // - if not present in the record : undefined marker : byte (0)
         // - if present in the record : defined marker : byte (1)
         //      - fieldValue : bytes
-        for (FieldType fieldType : fieldTypes) {
-            QName name = fieldType.getName();
-            expectedFields.add(name);
-            Object fieldValue = recordFields.get(name);
+        QName[] fieldNames = codec.fieldNames;
+        ValueType[] valueTypes = codec.valueTypes;
+        parentRecords.push(record);
+        for (int i = 0; i < fieldNames.length; i++) {
+            Object fieldValue = recordFields.get(fieldNames[i]);
             if (fieldValue == null) {
                 dataOutput.writeByte(UNDEFINED);
             } else {
                 dataOutput.writeByte(DEFINED);
-                parentRecords.push(record);
-                fieldType.getValueType().write(fieldValue, dataOutput, parentRecords);
-                parentRecords.pop();
+                valueTypes[i].write(fieldValue, dataOutput, parentRecords);
             }
         }
+        parentRecords.pop();
 
         // Check if the record does contain fields that are not defined in the record type
-        if (!expectedFields.containsAll(recordFields.keySet())) {
+        if (!codec.fieldNameSet.containsAll(recordFields.keySet())) {
             throw new InvalidRecordException("Record contains fields not part of the record type '" +
-                    recordType.getName() + "'", record.getId());
+                    codec.recordTypeName + "'", record.getId());
         }
     }
 
-    private List<FieldType> getSortedFieldTypes(RecordType recordType) throws RepositoryException,
-            InterruptedException {
-        Collection<FieldTypeEntry> fieldTypeEntries = getFieldTypeEntries(recordType);
-        List<FieldType> fieldTypes = new ArrayList<FieldType>();
-        for (FieldTypeEntry fieldTypeEntry : fieldTypeEntries) {
-            fieldTypes.add(typeManager.getFieldTypeById(fieldTypeEntry.getFieldTypeId()));
+    /**
+     * Returns the codec for the given record type version, from the codec cache if the type manager offers one.
+     */
+    private RecordTypeCodec getCodec(SchemaId recordTypeId, Long version)
+            throws RepositoryException, InterruptedException {
+        RecordTypeCodecCache codecCache = getCodecCache();
+        if (codecCache != null) {
+            return codecCache.getCodec(recordTypeId, version, typeManager);
         }
-        return fieldTypes;
+        return RecordTypeCodec.build(typeManager.getRecordTypeById(recordTypeId, version), typeManager);
     }
 
-    private Collection<FieldTypeEntry> getFieldTypeEntries(RecordType recordType)
-            throws RepositoryException, InterruptedException {
-
-        // Wrap the list as an array list since we don't know if the collection will actually support the .addAll() methodq
-        Collection<FieldTypeEntry> fieldTypeEntries = new ArrayList<FieldTypeEntry>(recordType.getFieldTypeEntries());
-        Map<SchemaId, Long> supertypes = recordType.getSupertypes();
-        for (Entry<SchemaId, Long> supertypeEntry: supertypes.entrySet()) {
-            RecordType supertypeRecordType = typeManager.getRecordTypeById(supertypeEntry.getKey(), supertypeEntry.getValue());
-            fieldTypeEntries.addAll(getFieldTypeEntries(supertypeRecordType));
+    private RecordTypeCodec getLatestCodec(QName recordTypeName) throws RepositoryException, InterruptedException {
+        RecordTypeCodecCache codecCache = getCodecCache();
+        if (codecCache != null) {
+            return codecCache.getLatestCodec(recordTypeName, typeManager);
         }
-        return fieldTypeEntries;
+        return RecordTypeCodec.build(typeManager.getRecordTypeByName(recordTypeName, null), typeManager);
+    }
+
+    private RecordTypeCodecCache getCodecCache() {
+        return typeManager instanceof RecordTypeCodecCache.Provider ?
+                ((RecordTypeCodecCache.Provider)typeManager).getRecordTypeCodecCache() : null;
     }
 
     @Override
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.lilyproject.cli.BaseCliTool;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.util.Version;
+
+/**
+ * Base class for in-process performance tests of repository internals, which don't need a running
+ * HBase or Lily.
+ *
+ * <p>Each operation is first run a number of times to let the JIT do its work, after which the
+ * average duration over the measured iterations is reported.</p>
+ */
+public abstract class BaseMicroPerfTest extends BaseCliTool {
+    private Option warmupOption;
+    private Option iterationsOption;
+
+    protected int warmupIterations;
+    protected int iterations;
+
+    // Results of the operations are stored here to avoid them being optimized away
+    private volatile Object lastResult;
+
+    /**
+     * A single operation to measure. The return value is only there to avoid dead code elimination.
+     */
+    protected interface Operation {
+        Object run() throws Exception;
+    }
+
+    @Override
+    protected String getVersion() {
+        return Version.readVersion("org.lilyproject", "lily-repository-perftest");
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        warmupOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of iterations to perform before starting measuring")
+                .withLongOpt("warmup")
+                .create("wu");
+        options.add(warmupOption);
+
+        iterationsOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of measured iterations")
+                .withLongOpt("iterations")
+                .create("i");
+        options.add(iterationsOption);
+
+        return options;
+    }
+
+    @Override
+    protected int processOptions(CommandLine cmd) throws Exception {
+        int result = super.processOptions(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        warmupIterations = OptionUtil.getIntOption(cmd, warmupOption, getDefaultWarmupIterations());
+        iterations = OptionUtil.getIntOption(cmd, iterationsOption, getDefaultIterations());
+
+        return 0;
+    }
+
+    /**
+     * Number of warmup iterations used when not specified on the command line, tests of heavier operations
+     * can lower this.
+     */
+    protected int getDefaultWarmupIterations() {
+        return 20000;
+    }
+
+    /**
+     * Number of measured iterations used when not specified on the command line.
+     */
+    protected int getDefaultIterations() {
+        return 100000;
+    }
+
+    /**
+     * Runs the operation and prints the average time per operation.
+     *
+     * @return the average duration of one operation, in nanoseconds
+     */
+    protected double measure(String name, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            lastResult = operation.run();
+        }
+
+        long before = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            lastResult = operation.run();
+        }
+        double avgNanos = (double)(System.nanoTime() - before) / iterations;
+
+        System.out.println(String.format("%1$-60s %2$12.1f ns/op %3$12.0f ops/s", name, avgNanos, 1e9d / avgNanos));
+        return avgNanos;
+    }
+}
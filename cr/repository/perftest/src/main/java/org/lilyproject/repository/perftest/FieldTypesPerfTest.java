@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.hadoop.hbase.client.Result;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.fake.FakeTypeManager;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.FieldTypesCache;
+import org.lilyproject.repository.impl.RecordDecoder;
+import org.lilyproject.repository.impl.RecordFactoryImpl;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+
+/**
+ * Compares looking up field types by id in the immutable {@link FieldTypes} snapshot with doing so in the
+ * {@link FieldTypesCache} itself (which clones on each lookup), both on their own and as part of decoding rows.
+ */
+public class FieldTypesPerfTest extends BaseMicroPerfTest {
+    private Option fieldsOption;
+
+    public static void main(String[] args) throws Exception {
+        new FieldTypesPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-fieldtypes-perftest";
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        fieldsOption = OptionBuilder
+                .withArgName("counts")
+                .hasArg()
+                .withDescription("Comma-separated list of row widths (number of fields) to test, default 100,1000")
+                .withLongOpt("fields")
+                .create("f");
+        options.add(fieldsOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        String fieldCounts = OptionUtil.getStringOption(cmd, fieldsOption, "100,1000");
+        for (String fieldCount : fieldCounts.split(",")) {
+            runForWidth(Integer.parseInt(fieldCount.trim()));
+            System.out.println();
+        }
+
+        return 0;
+    }
+
+    private void runForWidth(int fieldCount) throws Exception {
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        FakeTypeManager typeManager = new FakeTypeManager(idGenerator);
+
+        RecordType recordType = typeManager.newRecordType(new QName("perftest", "RecordType"));
+        FieldTypesCache fieldTypesCache = new FieldTypesCache();
+        List<FieldTypeImpl> fields = new ArrayList<FieldTypeImpl>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            FieldType fieldType = typeManager.createFieldType(typeManager.getValueType("STRING"),
+                    new QName("perftest", "field" + i), Scope.VERSIONED);
+            fieldTypesCache.update(fieldType);
+            fields.add((FieldTypeImpl)fieldType);
+            recordType.addFieldTypeEntry(fieldType.getId(), false);
+        }
+        recordType = typeManager.createRecordType(recordType);
+
+        final RecordId recordId = idGenerator.newRecordId();
+        final Result row = RecordDecoderPerfTest.createRow(recordId, recordType, fields, 1);
+        final RecordDecoder decoder = new RecordDecoder(typeManager, idGenerator, new RecordFactoryImpl(), true);
+
+        // The qualifiers as they occur in the row: the data prefix byte followed by the id
+        final byte[][] qualifiers = new byte[fieldCount][];
+        for (int i = 0; i < fieldCount; i++) {
+            qualifiers[i] = fields.get(i).getQualifier();
+        }
+
+        System.out.println("Rows of " + fieldCount + " fields (" + row.size() + " cells)");
+
+        FieldTypes[] variants = {fieldTypesCache, fieldTypesCache.getSnapshot()};
+        String[] variantNames = {"cloning cache", "immutable snapshot"};
+        for (int v = 0; v < variants.length; v++) {
+            final FieldTypes fieldTypes = variants[v];
+
+            measure(fieldCount + " fields, getFieldType(byte[], int, int), " + variantNames[v], new Operation() {
+                private int i;
+
+                @Override
+                public Object run() throws Exception {
+                    byte[] qualifier = qualifiers[i];
+                    i = (i + 1) % qualifiers.length;
+                    return fieldTypes.getFieldType(qualifier, 1, qualifier.length - 1);
+                }
+            });
+
+            measure(fieldCount + " fields, decodeRecord, " + variantNames[v], new Operation() {
+                @Override
+                public Object run() throws Exception {
+                    // The Result caches its map, so use a fresh one each time, as happens when scanning
+                    Result result = new Result(row.raw());
+                    return decoder.decodeRecord(recordId, decoder.getLatestVersion(result), null, result,
+                            fieldTypes);
+                }
+            });
+        }
+    }
+}
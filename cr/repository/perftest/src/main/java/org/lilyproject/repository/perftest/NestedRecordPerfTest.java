@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.IdentityRecordStack;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.fake.FakeTypeManager;
+import org.lilyproject.repository.impl.RecordImpl;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.repository.impl.valuetype.RecordTypeCodecCache;
+
+/**
+ * Measures encoding and decoding LIST&lt;RECORD&gt; field values, with and without the
+ * {@link RecordTypeCodecCache}.
+ */
+public class NestedRecordPerfTest extends BaseMicroPerfTest {
+    private static final String NS = "perftest";
+    private static final QName RECORD_TYPE = new QName(NS, "Nested");
+
+    private Option fieldsOption;
+    private Option recordsOption;
+
+    public static void main(String[] args) throws Exception {
+        new NestedRecordPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-nested-record-perftest";
+    }
+
+    @Override
+    protected int getDefaultWarmupIterations() {
+        return 5000;
+    }
+
+    @Override
+    protected int getDefaultIterations() {
+        return 20000;
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        fieldsOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of fields of the nested record type, default 20")
+                .withLongOpt("fields")
+                .create("f");
+        options.add(fieldsOption);
+
+        recordsOption = OptionBuilder
+                .withArgName("counts")
+                .hasArg()
+                .withDescription("Comma-separated list of numbers of nested records in the list, default 1,10,100")
+                .withLongOpt("records")
+                .create("r");
+        options.add(recordsOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        int fieldCount = OptionUtil.getIntOption(cmd, fieldsOption, 20);
+        String recordCounts = OptionUtil.getStringOption(cmd, recordsOption, "1,10,100");
+
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        FakeTypeManager[] typeManagers = {new FakeTypeManager(idGenerator), new CachingTypeManager(idGenerator)};
+        String[] variantNames = {"uncached", "cached codecs"};
+        List<QName> fieldNames = null;
+        for (FakeTypeManager typeManager : typeManagers) {
+            fieldNames = createTypes(typeManager, fieldCount);
+        }
+
+        for (String recordCount : recordCounts.split(",")) {
+            int count = Integer.parseInt(recordCount.trim());
+            final List<Record> records = createRecords(fieldNames, count);
+
+            System.out.println("Lists of " + count + " nested records of " + fieldCount + " fields");
+            for (int v = 0; v < typeManagers.length; v++) {
+                final ValueType valueType = typeManagers[v].getValueType("LIST<RECORD<" + RECORD_TYPE + ">>");
+                final byte[] bytes = valueType.toBytes(records, new IdentityRecordStack());
+
+                measure(count + " records, encode, " + variantNames[v], new Operation() {
+                    @Override
+                    public Object run() throws Exception {
+                        return valueType.toBytes(records, new IdentityRecordStack());
+                    }
+                });
+
+                measure(count + " records, decode, " + variantNames[v], new Operation() {
+                    @Override
+                    public Object run() throws Exception {
+                        return valueType.read(new DataInputImpl(bytes));
+                    }
+                });
+            }
+            System.out.println();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Creates the nested record type, which extends a base type holding a quarter of its fields.
+     *
+     * @return the names of the fields of the nested record type
+     */
+    private List<QName> createTypes(FakeTypeManager typeManager, int fieldCount) throws Exception {
+        List<QName> fieldNames = new ArrayList<QName>(fieldCount);
+        RecordType baseType = typeManager.newRecordType(new QName(NS, "Base"));
+        RecordType recordType = typeManager.newRecordType(RECORD_TYPE);
+        for (int i = 0; i < fieldCount; i++) {
+            QName fieldName = new QName(NS, "field" + i);
+            FieldType fieldType = typeManager.createFieldType(i % 2 == 0 ? "STRING" : "LONG", fieldName,
+                    Scope.NON_VERSIONED);
+            (i < fieldCount / 4 ? baseType : recordType).addFieldTypeEntry(fieldType.getId(), false);
+            fieldNames.add(fieldName);
+        }
+        baseType = typeManager.createRecordType(baseType);
+        recordType.addSupertype(baseType.getId(), baseType.getVersion());
+        typeManager.createRecordType(recordType);
+        return fieldNames;
+    }
+
+    private List<Record> createRecords(List<QName> fieldNames, int count) {
+        List<Record> records = new ArrayList<Record>(count);
+        for (int r = 0; r < count; r++) {
+            Record record = new RecordImpl();
+            record.setRecordType(RECORD_TYPE);
+            for (int i = 0; i < fieldNames.size(); i++) {
+                record.setField(fieldNames.get(i), i % 2 == 0 ? (Object)("value " + i) : (Object)Long.valueOf(i));
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Type manager which offers a codec cache to its record value types, as the real type managers do. The types
+     * are not changed while measuring, so the cache never needs to be invalidated.
+     */
+    private static class CachingTypeManager extends FakeTypeManager implements RecordTypeCodecCache.Provider {
+        private final RecordTypeCodecCache codecCache = new RecordTypeCodecCache();
+
+        public CachingTypeManager(IdGenerator idGenerator) {
+            super(idGenerator);
+        }
+
+        @Override
+        public RecordTypeCodecCache getRecordTypeCodecCache() {
+            return codecCache;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.commons.cli.CommandLine;
+import org.lilyproject.client.RetryConf;
+import org.lilyproject.client.impl.LoadBalancingUtil;
+import org.lilyproject.client.impl.RetryUtil;
+import org.lilyproject.repository.api.LRepository;
+import org.lilyproject.repository.api.LTable;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.fake.FakeRepositoryManager;
+import org.lilyproject.runtime.model.ModuleDefinition;
+import org.lilyproject.runtime.module.Module;
+import org.lilyproject.runtime.module.javaservice.JavaServiceShield;
+import org.lilyproject.runtime.rapi.ModuleSource;
+import org.springframework.context.support.AbstractApplicationContext;
+
+/**
+ * Measures the overhead of the proxies through which an {@link LTable#read} call passes: the
+ * {@link JavaServiceShield} of the runtime, and the load balancing and retrying of the client. As a reference,
+ * the same stack built with reflective {@link Proxy}s, which these used before, is measured as well.
+ */
+public class ProxyStackPerfTest extends BaseMicroPerfTest {
+    public static void main(String[] args) throws Exception {
+        new ProxyStackPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-proxy-stack-perftest";
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        LRepository repository = FakeRepositoryManager.bootstrapRepositoryManager().getDefaultRepository();
+        TypeManager typeManager = repository.getTypeManager();
+        QName recordType = new QName("perftest", "ProxyStack");
+        typeManager.createRecordType(typeManager.newRecordType(recordType));
+
+        LTable table = repository.getDefaultTable();
+        Record record = table.newRecord();
+        record.setRecordType(recordType);
+        final RecordId recordId = table.create(record).getId();
+
+        ClassLoader moduleClassLoader = getClass().getClassLoader();
+        Module module = new PerfTestModule();
+
+        measureRead("LTable.read, direct", table, recordId);
+
+        LTable reflectiveShielded = reflectiveProxy(new ReflectiveShield(table, module, moduleClassLoader));
+        LTable reflective = reflectiveProxy(new ReflectiveRetry(reflectiveProxy(new ReflectiveLoadBalancing(
+                reflectiveShielded))));
+        measureRead("LTable.read, reflective proxies", reflective, recordId);
+
+        final LTable shielded = JavaServiceShield.shield(LTable.class, table, module, moduleClassLoader);
+        LTable generated = RetryUtil.getRetryingInstance(LoadBalancingUtil.getLoadBalancedInstance(
+                new LoadBalancingUtil.LBInstanceProvider<LTable>() {
+                    @Override
+                    public LTable getInstance(String repositoryName, String tableName) {
+                        return shielded;
+                    }
+                }, LTable.class, null, null), LTable.class, new RetryConf());
+        measureRead("LTable.read, generated proxies", generated, recordId);
+
+        return 0;
+    }
+
+    private void measureRead(String name, final LTable table, final RecordId recordId) throws Exception {
+        measure(name, new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return table.read(recordId);
+            }
+        });
+    }
+
+    private static LTable reflectiveProxy(InvocationHandler handler) {
+        return (LTable)Proxy.newProxyInstance(ProxyStackPerfTest.class.getClassLoader(),
+                new Class[] {LTable.class}, handler);
+    }
+
+    private static class ReflectiveShield implements InvocationHandler {
+        private final Object component;
+        private final Module owner;
+        private final ClassLoader classLoader;
+
+        ReflectiveShield(Object component, Module owner, ClassLoader classLoader) {
+            this.component = component;
+            this.owner = owner;
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!owner.isAlive()) {
+                throw new IllegalStateException();
+            }
+
+            Thread currentThread = Thread.currentThread();
+            ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+            try {
+                currentThread.setContextClassLoader(classLoader);
+                return method.invoke(component, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            } finally {
+                currentThread.setContextClassLoader(previousContextClassLoader);
+            }
+        }
+    }
+
+    private static class ReflectiveLoadBalancing implements InvocationHandler {
+        private final Object instance;
+
+        ReflectiveLoadBalancing(Object instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("close")) {
+                return null;
+            }
+
+            try {
+                return method.invoke(instance, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+
+    private static class ReflectiveRetry implements InvocationHandler {
+        private final Object delegate;
+
+        ReflectiveRetry(Object delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("close")) {
+                return null;
+            }
+
+            long startedAt = System.currentTimeMillis();
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                // no retries needed here, the fake repository doesn't fail
+                throw new IllegalStateException("Call started at " + startedAt + " failed", e.getTargetException());
+            }
+        }
+    }
+
+    private static class PerfTestModule implements Module {
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public boolean isAlive() {
+            return true;
+        }
+
+        @Override
+        public ModuleDefinition getDefinition() {
+            return null;
+        }
+
+        @Override
+        public ModuleSource getSource() {
+            return null;
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return null;
+        }
+
+        @Override
+        public AbstractApplicationContext getApplicationContext() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.fake.FakeTypeManager;
+import org.lilyproject.repository.impl.FieldFlags;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.FieldTypesCache;
+import org.lilyproject.repository.impl.RecordDecoder;
+import org.lilyproject.repository.impl.RecordFactoryImpl;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+
+/**
+ * Compares the map-based and the columnar {@link RecordDecoder} on wide, multi-version rows.
+ */
+public class RecordDecoderPerfTest extends BaseMicroPerfTest {
+    private Option fieldsOption;
+    private Option versionsOption;
+
+    private int fieldCount;
+    private int versionCount;
+
+    public static void main(String[] args) throws Exception {
+        new RecordDecoderPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-decoder-perftest";
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        fieldsOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of fields in the row")
+                .withLongOpt("fields")
+                .create("f");
+        options.add(fieldsOption);
+
+        versionsOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of versions of the record, each version updates a tenth of the fields")
+                .withLongOpt("versions")
+                .create("rv");
+        options.add(versionsOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        fieldCount = OptionUtil.getIntOption(cmd, fieldsOption, 100);
+        versionCount = OptionUtil.getIntOption(cmd, versionsOption, 10);
+
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        FakeTypeManager typeManager = new FakeTypeManager(idGenerator);
+
+        RecordType recordType = typeManager.newRecordType(new QName("perftest", "RecordType"));
+        FieldTypesCache fieldTypesCache = new FieldTypesCache();
+        List<FieldTypeImpl> fields = new ArrayList<FieldTypeImpl>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            FieldType fieldType = typeManager.createFieldType(typeManager.getValueType("STRING"),
+                    new QName("perftest", "field" + i), Scope.VERSIONED);
+            fieldTypesCache.update(fieldType);
+            fields.add((FieldTypeImpl)fieldType);
+            recordType.addFieldTypeEntry(fieldType.getId(), false);
+        }
+        recordType = typeManager.createRecordType(recordType);
+        final FieldTypes fieldTypes = fieldTypesCache.getSnapshot();
+
+        final RecordId recordId = idGenerator.newRecordId();
+        final Result row = createRow(recordId, recordType, fields, versionCount);
+        final List<Long> allVersions = new ArrayList<Long>();
+        for (long version = 1; version <= versionCount; version++) {
+            allVersions.add(version);
+        }
+
+        System.out.println("Decoding a row of " + fieldCount + " fields and " + versionCount + " versions ("
+                + row.size() + " cells)");
+        System.out.println();
+
+        for (final boolean columnar : new boolean[] {false, true}) {
+            final RecordDecoder decoder = new RecordDecoder(typeManager, idGenerator, new RecordFactoryImpl(),
+                    columnar);
+            String mode = columnar ? "columnar" : "map-based";
+
+            measure("decodeRecord, latest version, " + mode, new Operation() {
+                @Override
+                public Object run() throws Exception {
+                    // The Result caches its map, so use a fresh one each time, as happens when scanning
+                    Result result = new Result(row.raw());
+                    return decoder.decodeRecord(recordId, decoder.getLatestVersion(result), null, result,
+                            fieldTypes);
+                }
+            });
+
+            measure("decodeRecords, all versions, " + mode, new Operation() {
+                @Override
+                public Object run() throws Exception {
+                    Result result = new Result(row.raw());
+                    return decoder.decodeRecords(recordId, allVersions, result, fieldTypes);
+                }
+            });
+        }
+
+        return 0;
+    }
+
+    /**
+     * Creates a row as stored by the repository, in which the first version sets all fields and each next
+     * version updates a tenth of them.
+     */
+    static Result createRow(RecordId recordId, RecordType recordType, List<FieldTypeImpl> fields,
+            int versionCount) throws Exception {
+        byte[] rowKey = recordId.toBytes();
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+
+        kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, 1L, Bytes.toBytes(false)));
+        kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.OCC.bytes, 1L, Bytes.toBytes(1L)));
+        for (long version = 1; version <= versionCount; version++) {
+            kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.VERSION.bytes, version,
+                    Bytes.toBytes(version)));
+            kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.NON_VERSIONED_RT_ID.bytes, version,
+                    recordType.getId().getBytes()));
+            kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.NON_VERSIONED_RT_VERSION.bytes, version,
+                    Bytes.toBytes(recordType.getVersion())));
+            kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.VERSIONED_RT_ID.bytes, version,
+                    recordType.getId().getBytes()));
+            kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, RecordColumn.VERSIONED_RT_VERSION.bytes, version,
+                    Bytes.toBytes(recordType.getVersion())));
+
+            for (int i = 0; i < fields.size(); i++) {
+                if (version == 1 || i % 10 == version % 10) {
+                    FieldTypeImpl field = fields.get(i);
+                    byte[] value = field.getValueType().toBytes("value " + i + " at version " + version, null);
+                    kvs.add(new KeyValue(rowKey, RecordCf.DATA.bytes, field.getQualifier(), version,
+                            Bytes.add(new byte[] {FieldFlags.DEFAULT}, value)));
+                }
+            }
+        }
+
+        KeyValue[] sorted = kvs.toArray(new KeyValue[kvs.size()]);
+        Arrays.sort(sorted, KeyValue.COMPARATOR);
+        return new Result(sorted);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.repository.impl.id.RecordIdStrategies;
+
+/**
+ * Measures the throughput of {@link IdGenerator#newRecordId()} with the different record id strategies, when
+ * called concurrently by a number of threads.
+ */
+public class RecordIdPerfTest extends BaseMicroPerfTest {
+    private Option threadsOption;
+    private Option strategiesOption;
+
+    public static void main(String[] args) throws Exception {
+        new RecordIdPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-recordid-perftest";
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        threadsOption = OptionBuilder
+                .withArgName("counts")
+                .hasArg()
+                .withDescription("Comma-separated list of thread counts to test, default 1,8,64")
+                .withLongOpt("threads")
+                .create("t");
+        options.add(threadsOption);
+
+        strategiesOption = OptionBuilder
+                .withArgName("names")
+                .hasArg()
+                .withDescription("Comma-separated list of record id strategies to test, default "
+                        + "uuid,threadlocal-uuid,salted-time")
+                .withLongOpt("strategies")
+                .create("s");
+        options.add(strategiesOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        String threadCounts = OptionUtil.getStringOption(cmd, threadsOption, "1,8,64");
+        String strategies = OptionUtil.getStringOption(cmd, strategiesOption, RecordIdStrategies.RANDOM_UUID_NAME
+                + "," + RecordIdStrategies.THREAD_LOCAL_UUID_NAME + "," + RecordIdStrategies.SALTED_TIME_NAME);
+
+        System.out.println("Each thread generates " + iterations + " ids, after " + warmupIterations
+                + " warmup iterations");
+        System.out.println();
+
+        for (String threadCount : threadCounts.split(",")) {
+            int threads = Integer.parseInt(threadCount.trim());
+            for (String strategy : strategies.split(",")) {
+                IdGenerator idGenerator = new IdGeneratorImpl(strategy.trim());
+                measureConcurrently(threads + " threads, " + strategy.trim(), idGenerator, threads);
+            }
+            System.out.println();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Generates ids in the given number of threads at once, and prints the average time per id over all threads.
+     */
+    private void measureConcurrently(String name, final IdGenerator idGenerator, int threadCount)
+            throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Object last = null;
+                        for (int i = 0; i < warmupIterations; i++) {
+                            last = idGenerator.newRecordId();
+                        }
+                        ready.countDown();
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            last = idGenerator.newRecordId();
+                        }
+                        if (last == null) {
+                            throw new IllegalStateException("No id generated");
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        ready.countDown();
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ready.await();
+        long before = System.nanoTime();
+        start.countDown();
+        done.await();
+        long duration = System.nanoTime() - before;
+
+        if (error.get() != null) {
+            throw new Exception("Error generating ids", error.get());
+        }
+
+        double avgNanos = (double)duration / ((long)iterations * threadCount);
+        System.out.println(String.format("%1$-60s %2$12.1f ns/op %3$12.0f ops/s", name, avgNanos, 1e9d / avgNanos));
+    }
+}
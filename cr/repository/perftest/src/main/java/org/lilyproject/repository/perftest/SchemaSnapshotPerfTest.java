@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.perftest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeBucket;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.FieldTypesCache;
+import org.lilyproject.repository.impl.FieldTypesSnapshot;
+import org.lilyproject.repository.impl.RecordTypeImpl;
+import org.lilyproject.repository.impl.RecordTypesCache;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.repository.impl.valuetype.StringValueType;
+
+/**
+ * Measures the cost of publishing a new schema cache snapshot after a change, depending on the size of the
+ * schema. A rebuild of the complete field types snapshot is measured as reference.
+ */
+public class SchemaSnapshotPerfTest extends BaseMicroPerfTest {
+    private Option sizesOption;
+
+    public static void main(String[] args) throws Exception {
+        new SchemaSnapshotPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "lily-schema-snapshot-perftest";
+    }
+
+    @Override
+    protected int getDefaultWarmupIterations() {
+        return 500;
+    }
+
+    @Override
+    protected int getDefaultIterations() {
+        return 2000;
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        sizesOption = OptionBuilder
+                .withArgName("counts")
+                .hasArg()
+                .withDescription("Comma-separated list of schema sizes (number of field types and of record types)"
+                        + " to test, default 1000,5000,20000")
+                .withLongOpt("sizes")
+                .create("s");
+        options.add(sizesOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0) {
+            return result;
+        }
+
+        String sizes = OptionUtil.getStringOption(cmd, sizesOption, "1000,5000,20000");
+        for (String size : sizes.split(",")) {
+            runForSize(Integer.parseInt(size.trim()));
+            System.out.println();
+        }
+
+        return 0;
+    }
+
+    private void runForSize(int size) throws Exception {
+        System.out.println("Schema of " + size + " field types and " + size + " record types");
+
+        final List<FieldType> fieldTypes = new ArrayList<FieldType>(size);
+        for (int i = 0; i < size; i++) {
+            fieldTypes.add(newFieldType(new SchemaIdImpl(UUID.randomUUID()), "field" + i));
+        }
+        final FieldTypesCache fieldTypesCache = new FieldTypesCache();
+        fieldTypesCache.refreshFieldTypes(fieldTypes);
+
+        final List<RecordType> recordTypes = new ArrayList<RecordType>(size);
+        final SchemaId supertypeId = new SchemaIdImpl(UUID.randomUUID());
+        for (int i = 0; i < size; i++) {
+            recordTypes.add(newRecordType(new SchemaIdImpl(UUID.randomUUID()), "recordType" + i, false, supertypeId));
+        }
+        final RecordTypesCache recordTypesCache = new RecordTypesCache();
+        recordTypesCache.refreshRecordTypes(recordTypes);
+
+        // A bucket refresh contains the types whose id starts with the same byte, 1/256th of the schema
+        final TypeBucket typeBucket = new TypeBucket("00");
+        for (FieldType fieldType : fieldTypes) {
+            if (fieldType.getId().getBytes()[0] == 0) {
+                typeBucket.add(fieldType);
+            }
+        }
+        for (RecordType recordType : recordTypes) {
+            if (recordType.getId().getBytes()[0] == 0) {
+                typeBucket.add(recordType);
+            }
+        }
+
+        measure(size + " types, rebuild complete field types snapshot", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return new FieldTypesSnapshot(fieldTypes);
+            }
+        });
+
+        measure(size + " types, publish one renamed field type", new Operation() {
+            private int count;
+
+            @Override
+            public Object run() throws Exception {
+                // Use the last field type, the other ones are also used by the bucket refresh
+                FieldType fieldType = fieldTypes.get(fieldTypes.size() - 1);
+                fieldTypesCache.update(newFieldType(fieldType.getId(), "renamed" + (count++ % 2)));
+                return fieldTypesCache.getSnapshot();
+            }
+        });
+
+        measure(size + " types, publish one record type with changed supertypes", new Operation() {
+            private int count;
+
+            @Override
+            public Object run() throws Exception {
+                RecordType recordType = recordTypes.get(recordTypes.size() - 1);
+                recordTypesCache.update(newRecordType(recordType.getId(), "recordType" + (recordTypes.size() - 1),
+                        count++ % 2 == 0, supertypeId));
+                return recordTypesCache.findDirectSubTypes(supertypeId);
+            }
+        });
+
+        measure(size + " types, publish refreshed bucket (" + typeBucket.getFieldTypes().size() + " field types, "
+                + typeBucket.getRecordTypes().size() + " record types)", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                fieldTypesCache.refreshFieldTypeBucket(typeBucket);
+                recordTypesCache.refreshRecordTypeBucket(typeBucket);
+                return fieldTypesCache.getSnapshot();
+            }
+        });
+    }
+
+    private FieldType newFieldType(SchemaId id, String name) {
+        return new FieldTypeImpl(id, new StringValueType(), new QName("perftest", name), Scope.NON_VERSIONED);
+    }
+
+    private RecordType newRecordType(SchemaId id, String name, boolean withSupertype, SchemaId supertypeId) {
+        RecordTypeImpl recordType = new RecordTypeImpl(id, new QName("perftest", name));
+        recordType.setVersion(1L);
+        if (withSupertype) {
+            recordType.addSupertype(supertypeId, 1L);
+        }
+        return recordType;
+    }
+}
@@ -18,8 +18,14 @@ package org.lilyproject.repository.remote;
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.avro.AvroRemoteException;
 import org.apache.avro.ipc.Transceiver;
@@ -28,11 +34,13 @@ import org.lilyproject.avro.AvroAuthzContext;
 import org.lilyproject.avro.AvroConverter;
 import org.lilyproject.avro.AvroGenericException;
 import org.lilyproject.avro.AvroLily;
+import org.lilyproject.avro.AvroMutationResult;
 import org.lilyproject.avro.AvroRepositoryException;
 import org.lilyproject.repository.api.BlobManager;
 import org.lilyproject.repository.api.IORecordException;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
 import org.lilyproject.repository.api.RecordException;
@@ -45,6 +53,7 @@ import org.lilyproject.repository.impl.BaseRepository;
 import org.lilyproject.repository.impl.RecordBuilderImpl;
 import org.lilyproject.repository.impl.RepoTableKey;
 import org.lilyproject.repository.spi.AuthorizationContextHolder;
+import org.lilyproject.util.ArgumentValidator;
 import org.lilyproject.util.io.Closer;
 
 // ATTENTION: when adding new methods, do not forget to add handling for UndeclaredThrowableException! This is
@@ -52,6 +61,16 @@ import org.lilyproject.util.io.Closer;
 //            interfaces.
 
 public class RemoteRepository extends BaseRepository {
+    /**
+     * Maximum number of records sent in one batch mutation message.
+     */
+    private static final int BATCH_MESSAGE_SIZE = 500;
+
+    /**
+     * Maximum number of batch mutation messages awaiting a response, for one batch mutation.
+     */
+    private static final int MAX_BATCH_MESSAGES_IN_FLIGHT = 4;
+
     private AvroLily lilyProxy;
     private final AvroConverter converter;
     private Transceiver client;
@@ -224,6 +243,135 @@ public class RemoteRepository extends BaseRepository {
         }
     }
 
+    /**
+     * Sends one batch message for part of the items of a batch mutation.
+     */
+    private abstract class BatchMessage<T> {
+        abstract List<AvroMutationResult> send(AvroAuthzContext authzContext, List<T> items)
+                throws AvroRemoteException, RepositoryException, InterruptedException;
+
+        List<MutationResult> call(AvroAuthzContext authzContext, List<T> items)
+                throws RepositoryException, InterruptedException {
+            try {
+                return converter.convertAvroMutationResults(send(authzContext, items), RemoteRepository.this);
+            } catch (AvroRepositoryException e) {
+                throw converter.convert(e);
+            } catch (AvroGenericException e) {
+                throw converter.convert(e);
+            } catch (AvroRemoteException e) {
+                throw handleAvroRemoteException(e);
+            } catch (UndeclaredThrowableException e) {
+                throw handleUndeclaredRecordThrowable(e);
+            }
+        }
+    }
+
+    @Override
+    public List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException {
+        return sendBatch(records, new BatchMessage<Record>() {
+            @Override
+            List<AvroMutationResult> send(AvroAuthzContext authzContext, List<Record> items)
+                    throws AvroRemoteException, RepositoryException, InterruptedException {
+                return lilyProxy.createBatch(authzContext, converter.convertRecords(items, RemoteRepository.this),
+                        repositoryName, tableName);
+            }
+        });
+    }
+
+    @Override
+    public List<MutationResult> update(List<Record> records) throws RepositoryException, InterruptedException {
+        return sendBatch(records, new BatchMessage<Record>() {
+            @Override
+            List<AvroMutationResult> send(AvroAuthzContext authzContext, List<Record> items)
+                    throws AvroRemoteException, RepositoryException, InterruptedException {
+                return lilyProxy.updateBatch(authzContext, converter.convertRecords(items, RemoteRepository.this),
+                        repositoryName, tableName);
+            }
+        });
+    }
+
+    @Override
+    public List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return sendBatch(records, new BatchMessage<Record>() {
+            @Override
+            List<AvroMutationResult> send(AvroAuthzContext authzContext, List<Record> items)
+                    throws AvroRemoteException, RepositoryException, InterruptedException {
+                return lilyProxy.createOrUpdateBatch(authzContext,
+                        converter.convertRecords(items, RemoteRepository.this), repositoryName, tableName);
+            }
+        });
+    }
+
+    @Override
+    public List<MutationResult> delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        return sendBatch(recordIds, new BatchMessage<RecordId>() {
+            @Override
+            List<AvroMutationResult> send(AvroAuthzContext authzContext, List<RecordId> items)
+                    throws AvroRemoteException {
+                return lilyProxy.deleteBatch(authzContext, converter.convertRecordIds(items), repositoryName,
+                        tableName);
+            }
+        });
+    }
+
+    /**
+     * Splits the items in messages of at most {@link #BATCH_MESSAGE_SIZE} items. The messages are pipelined:
+     * up to {@link #MAX_BATCH_MESSAGES_IN_FLIGHT} of them are sent without waiting for the earlier responses.
+     */
+    private <T> List<MutationResult> sendBatch(List<T> items, final BatchMessage<T> message)
+            throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(items, "items");
+        final AvroAuthzContext authzContext = getAuthzContext();
+        if (items.size() <= BATCH_MESSAGE_SIZE) {
+            return message.call(authzContext, items);
+        }
+
+        ExecutorService executor = getMutationExecutor();
+        List<MutationResult> results = new ArrayList<MutationResult>(items.size());
+        LinkedList<Future<List<MutationResult>>> inFlight = new LinkedList<Future<List<MutationResult>>>();
+        try {
+            for (int i = 0; i < items.size(); i += BATCH_MESSAGE_SIZE) {
+                final List<T> chunk = items.subList(i, Math.min(i + BATCH_MESSAGE_SIZE, items.size()));
+                if (inFlight.size() == MAX_BATCH_MESSAGES_IN_FLIGHT) {
+                    results.addAll(getBatchResult(inFlight.removeFirst()));
+                }
+                inFlight.add(executor.submit(new Callable<List<MutationResult>>() {
+                    @Override
+                    public List<MutationResult> call() throws Exception {
+                        return message.call(authzContext, chunk);
+                    }
+                }));
+            }
+            while (!inFlight.isEmpty()) {
+                results.addAll(getBatchResult(inFlight.removeFirst()));
+            }
+        } finally {
+            for (Future<List<MutationResult>> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private List<MutationResult> getBatchResult(Future<List<MutationResult>> future)
+            throws RepositoryException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RepositoryException) {
+                throw (RepositoryException)cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RecordException("Error performing batch mutation", cause);
+        }
+    }
+
     private RuntimeException handleUndeclaredRecordThrowable(UndeclaredThrowableException e) throws RecordException {
         if (e.getCause() instanceof IOException) {
             throw new IORecordException(e.getCause());
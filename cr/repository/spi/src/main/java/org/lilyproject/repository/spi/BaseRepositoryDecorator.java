@@ -28,6 +28,7 @@ import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.IdRecordScanner;
 import org.lilyproject.repository.api.LTable;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
@@ -120,6 +121,21 @@ public class BaseRepositoryDecorator implements Repository {
         return delegate.createOrUpdate(record, useLatestRecordType);
     }
 
+    @Override
+    public List<MutationResult> create(List<Record> records) throws RepositoryException, InterruptedException {
+        return delegate.create(records);
+    }
+
+    @Override
+    public List<MutationResult> update(List<Record> records) throws RepositoryException, InterruptedException {
+        return delegate.update(records);
+    }
+
+    @Override
+    public List<MutationResult> createOrUpdate(List<Record> records) throws RepositoryException, InterruptedException {
+        return delegate.createOrUpdate(records);
+    }
+
     @Override
     public Record read(RecordId recordId, List<QName> fieldNames) throws RepositoryException, InterruptedException {
         return delegate.read(recordId, fieldNames);
@@ -142,6 +158,12 @@ public class BaseRepositoryDecorator implements Repository {
         return delegate.read(recordIds, fieldNames);
     }
 
+    @Override
+    public RecordScanner readStreaming(List<RecordId> recordIds, QName... fieldNames)
+            throws RepositoryException, InterruptedException {
+        return delegate.readStreaming(recordIds, fieldNames);
+    }
+
     @Override
     public Record read(RecordId recordId, Long version, List<QName> fieldNames)
             throws RepositoryException, InterruptedException {
@@ -184,6 +206,12 @@ public class BaseRepositoryDecorator implements Repository {
         return delegate.readWithIds(recordId, version, fieldIds);
     }
 
+    @Override
+    public List<IdRecord> readWithIds(List<RecordId> recordIds, List<SchemaId> fieldIds)
+            throws RepositoryException, InterruptedException {
+        return delegate.readWithIds(recordIds, fieldIds);
+    }
+
     @Override
     public void delete(RecordId recordId) throws RepositoryException, InterruptedException {
         delegate.delete(recordId);
@@ -200,6 +228,11 @@ public class BaseRepositoryDecorator implements Repository {
         delegate.delete(record);
     }
 
+    @Override
+    public List<MutationResult> delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        return delegate.delete(recordIds);
+    }
+
     @Override
     public IdGenerator getIdGenerator() {
         return delegate.getIdGenerator();
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.spi;
+
+import java.util.Collection;
+
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RepositoryException;
+
+/**
+ * A {@link RecordUpdateHook} which can tell which fields of the original record it needs.
+ *
+ * <p>By default, the repository reads the complete original record before an update, since it doesn't know
+ * what a hook will look at. When all hooks implement this interface, the repository only reads the fields
+ * needed by the update itself and by the hooks (the system information such as the record type and version
+ * is always read).</p>
+ */
+public interface ProjectingRecordUpdateHook extends RecordUpdateHook {
+    /**
+     * Returns the names of the fields of the original record which will be used by
+     * {@link #beforeUpdate(Record, Record, org.lilyproject.repository.api.Repository, FieldTypes,
+     * org.lilyproject.util.repo.RecordEvent) beforeUpdate}, as well as the fields which it might add to
+     * the record.
+     *
+     * @param record the record supplied by the user, as passed to beforeUpdate
+     * @return the field names, or null if the complete original record is needed
+     */
+    Collection<QName> getUpdateFieldDependencies(Record record, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypeNotFoundException;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.repository.impl.valuetype.StringValueType;
+
+public class FieldTypesSnapshotTest {
+    private FieldTypesCache cache;
+    private List<FieldType> fieldTypeList;
+    private FieldTypes fieldTypes;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new FieldTypesCache();
+        fieldTypeList = new ArrayList<FieldType>();
+        // Enough field types to have collisions in the table
+        for (int i = 0; i < 500; i++) {
+            FieldType fieldType = new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), new StringValueType(),
+                    new QName("ns", "field" + i), Scope.NON_VERSIONED);
+            fieldTypeList.add(fieldType);
+            cache.update(fieldType);
+        }
+        fieldTypes = cache.getSnapshot();
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        for (FieldType fieldType : fieldTypeList) {
+            FieldType byId = fieldTypes.getFieldType(fieldType.getId());
+            assertEquals(fieldType, byId);
+            assertSame(byId, fieldTypes.getFieldType(fieldType.getName()));
+
+            // Lookup on a range of a larger array, as done for the qualifiers of cells
+            byte[] qualifier = Bytes.add(new byte[] {1, 2}, fieldType.getId().getBytes(), new byte[] {3});
+            assertSame(byId, fieldTypes.getFieldType(qualifier, 2, qualifier.length - 3));
+        }
+
+        assertEquals(fieldTypeList.size(), fieldTypes.getFieldTypes().size());
+        assertTrue(fieldTypes.fieldTypeExists(new QName("ns", "field0")));
+        assertFalse(fieldTypes.fieldTypeExists(new QName("ns", "nonexisting")));
+        assertNull(fieldTypes.getFieldTypeByNameReturnNull(new QName("ns", "nonexisting")));
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        try {
+            fieldTypes.getFieldType(new SchemaIdImpl(UUID.randomUUID()));
+            fail("Expected a FieldTypeNotFoundException");
+        } catch (FieldTypeNotFoundException e) {
+            // expected
+        }
+
+        byte[] id = new SchemaIdImpl(UUID.randomUUID()).getBytes();
+        try {
+            fieldTypes.getFieldType(id, 0, id.length);
+            fail("Expected a FieldTypeNotFoundException");
+        } catch (FieldTypeNotFoundException e) {
+            // expected
+        }
+
+        // The range should match exactly
+        byte[] qualifier = Bytes.add(new byte[] {1}, fieldTypeList.get(0).getId().getBytes());
+        try {
+            fieldTypes.getFieldType(qualifier, 0, qualifier.length - 1);
+            fail("Expected a FieldTypeNotFoundException");
+        } catch (FieldTypeNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSharedFieldTypesAreImmutable() throws Exception {
+        FieldType fieldType = fieldTypes.getFieldType(new QName("ns", "field0"));
+        try {
+            fieldType.setName(new QName("ns", "renamed"));
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        FieldType clone = fieldType.clone();
+        clone.setName(new QName("ns", "renamed"));
+        assertEquals(new QName("ns", "field0"), fieldType.getName());
+        assertEquals(fieldType, fieldTypes.getFieldType(new QName("ns", "field0")));
+
+        // The field type given to the cache can still be modified
+        fieldTypeList.get(0).setScope(Scope.VERSIONED);
+        assertEquals(Scope.NON_VERSIONED, fieldType.getScope());
+    }
+
+    @Test
+    public void testSnapshotNotAffectedByUpdates() throws Exception {
+        FieldType original = fieldTypeList.get(0);
+        FieldType renamed = original.clone();
+        renamed.setName(new QName("ns", "renamed"));
+        cache.update(renamed);
+
+        FieldTypes newFieldTypes = cache.getSnapshot();
+        assertEquals(new QName("ns", "renamed"), newFieldTypes.getFieldType(original.getId()).getName());
+        assertFalse(newFieldTypes.fieldTypeExists(new QName("ns", "field0")));
+        assertEquals(fieldTypeList.size(), newFieldTypes.getFieldTypes().size());
+        // Unchanged field types are shared between the snapshots
+        assertSame(fieldTypes.getFieldType(new QName("ns", "field1")),
+                newFieldTypes.getFieldType(new QName("ns", "field1")));
+
+        // The old snapshot still has the old state
+        assertEquals(new QName("ns", "field0"), fieldTypes.getFieldType(original.getId()).getName());
+        assertFalse(fieldTypes.fieldTypeExists(new QName("ns", "renamed")));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordScanner;
+import org.lilyproject.repository.impl.RecordDecoder.ReadContext;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class MultiGetReaderTest {
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+    private ExecutorService executor;
+    private MultiGetReader reader;
+    private Filter filter = mock(Filter.class);
+    private List<List<Get>> multiGets = new ArrayList<List<Get>>();
+    private Set<RecordId> deletedIds = new HashSet<RecordId>();
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+
+        HTableInterface table = mock(HTableInterface.class);
+        when(table.get(anyListOf(Get.class))).thenAnswer(new Answer<Result[]>() {
+            @Override
+            public Result[] answer(InvocationOnMock invocation) throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<Get> gets = (List<Get>)invocation.getArguments()[0];
+                synchronized (multiGets) {
+                    multiGets.add(gets);
+                }
+                Result[] results = new Result[gets.size()];
+                for (int i = 0; i < gets.size(); i++) {
+                    byte[] row = gets.get(i).getRow();
+                    boolean deleted = deletedIds.contains(idGenerator.fromBytes(row));
+                    results[i] = new Result(new KeyValue[] {
+                            new KeyValue(row, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, 1L,
+                                    Bytes.toBytes(deleted)),
+                            new KeyValue(row, RecordCf.DATA.bytes, RecordColumn.VERSION.bytes, 1L,
+                                    Bytes.toBytes(1L))});
+                }
+                return results;
+            }
+        });
+
+        RecordDecoder recdec = mock(RecordDecoder.class);
+        doCallRealMethod().when(recdec).getLatest(any(Result.class), any(byte[].class), any(byte[].class));
+        doCallRealMethod().when(recdec).getLatestVersion(any(Result.class));
+        when(recdec.decodeRecord(any(RecordId.class), any(Long.class), any(ReadContext.class), any(Result.class),
+                any(FieldTypes.class))).thenAnswer(new Answer<Record>() {
+            @Override
+            public Record answer(InvocationOnMock invocation) throws Throwable {
+                return new RecordImpl((RecordId)invocation.getArguments()[0]);
+            }
+        });
+
+        reader = new MultiGetReader(table, null, recdec, executor, filter);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private List<RecordId> createIds(int count) {
+        List<RecordId> ids = new ArrayList<RecordId>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(idGenerator.newRecordId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        List<RecordId> ids = createIds(2500);
+        ids.add(ids.get(0));
+
+        List<List<RecordId>> batches = reader.split(ids);
+        assertEquals(3, batches.size());
+        assertEquals(MultiGetReader.MAX_BATCH_SIZE, batches.get(0).size());
+        assertEquals(500, batches.get(2).size());
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        List<RecordId> ids = createIds(3500);
+        deletedIds.add(ids.get(10));
+        deletedIds.add(ids.get(2000));
+
+        Map<RecordId, Record> records = reader.read(ids, new ArrayList<FieldType>(), null);
+        assertEquals(3498, records.size());
+        assertFalse(records.containsKey(ids.get(10)));
+        assertTrue(records.containsKey(ids.get(11)));
+
+        assertEquals(4, multiGets.size());
+        for (List<Get> gets : multiGets) {
+            for (Get get : gets) {
+                assertSame(filter, get.getFilter());
+            }
+        }
+    }
+
+    @Test
+    public void testReadStreaming() throws Exception {
+        List<RecordId> ids = createIds(5000);
+        deletedIds.add(ids.get(4999));
+
+        Set<RecordId> readIds = new HashSet<RecordId>();
+        RecordScanner scanner = reader.readStreaming(ids, null, null);
+        try {
+            for (Record record : scanner) {
+                assertTrue(readIds.add(record.getId()));
+            }
+        } finally {
+            scanner.close();
+        }
+
+        assertEquals(4999, readIds.size());
+        assertFalse(readIds.contains(ids.get(4999)));
+    }
+}
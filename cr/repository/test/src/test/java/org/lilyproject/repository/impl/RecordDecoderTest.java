@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.repository.impl.valuetype.StringValueType;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class RecordDecoderTest {
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+    private RecordId recordId;
+    private FieldTypeImpl versionedField;
+    private FieldTypeImpl nonVersionedField;
+    private FieldTypes fieldTypes;
+    private RecordDecoder columnarDecoder;
+    private RecordDecoder mapDecoder;
+    private SchemaId recordTypeId = new SchemaIdImpl(UUID.randomUUID());
+    private TypeManager typeManager;
+
+    @Before
+    public void setUp() throws Exception {
+        recordId = idGenerator.newRecordId();
+
+        versionedField = new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), new StringValueType(),
+                new QName("ns", "versioned"), Scope.VERSIONED);
+        nonVersionedField = new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), new StringValueType(),
+                new QName("ns", "nonversioned"), Scope.NON_VERSIONED);
+
+        FieldTypesCache cache = new FieldTypesCache();
+        cache.update(versionedField);
+        cache.update(nonVersionedField);
+        fieldTypes = cache.getSnapshot();
+
+        typeManager = mock(TypeManager.class);
+        when(typeManager.getRecordTypeById(any(SchemaId.class), any(Long.class))).thenAnswer(
+                new Answer<RecordTypeImpl>() {
+                    @Override
+                    public RecordTypeImpl answer(InvocationOnMock invocation) throws Throwable {
+                        RecordTypeImpl recordType = new RecordTypeImpl((SchemaId)invocation.getArguments()[0],
+                                new QName("ns", "rt"));
+                        Long version = (Long)invocation.getArguments()[1];
+                        recordType.setVersion(version == null ? 3L : version);
+                        return recordType;
+                    }
+                });
+
+        columnarDecoder = new RecordDecoder(typeManager, idGenerator, new RecordFactoryImpl(), true);
+        mapDecoder = new RecordDecoder(typeManager, idGenerator, new RecordFactoryImpl(), false);
+    }
+
+    private Result createRow() throws Exception {
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        byte[] row = recordId.toBytes();
+
+        // Like the repository does, the unversioned system columns are always written at timestamp 1
+        kvs.add(systemCell(row, RecordColumn.DELETED, 1L, Bytes.toBytes(false)));
+        kvs.add(systemCell(row, RecordColumn.VERSION, 1L, Bytes.toBytes(3L)));
+        kvs.add(systemCell(row, RecordColumn.NON_VERSIONED_RT_ID, 1L, recordTypeId.getBytes()));
+        kvs.add(systemCell(row, RecordColumn.NON_VERSIONED_RT_VERSION, 1L, Bytes.toBytes(1L)));
+        for (long version = 1; version <= 3; version++) {
+            kvs.add(systemCell(row, RecordColumn.VERSIONED_RT_ID, version, recordTypeId.getBytes()));
+            kvs.add(systemCell(row, RecordColumn.VERSIONED_RT_VERSION, version, Bytes.toBytes(version)));
+        }
+
+        kvs.add(fieldCell(row, nonVersionedField, 1L, "nv"));
+        kvs.add(fieldCell(row, versionedField, 1L, "v1"));
+        // no change at version 2 (sparse storage)
+        kvs.add(new KeyValue(row, RecordCf.DATA.bytes, versionedField.getQualifier(), 3L,
+                FieldFlags.getDeleteMarker()));
+
+        KeyValue[] sorted = kvs.toArray(new KeyValue[kvs.size()]);
+        Arrays.sort(sorted, KeyValue.COMPARATOR);
+        return new Result(sorted);
+    }
+
+    private KeyValue systemCell(byte[] row, RecordColumn column, long version, byte[] value) {
+        return new KeyValue(row, RecordCf.DATA.bytes, column.bytes, version, value);
+    }
+
+    private KeyValue fieldCell(byte[] row, FieldTypeImpl fieldType, long version, String value) throws Exception {
+        byte[] encoded = fieldType.getValueType().toBytes(value, null);
+        return new KeyValue(row, RecordCf.DATA.bytes, fieldType.getQualifier(), version,
+                Bytes.add(new byte[]{FieldFlags.DEFAULT}, encoded));
+    }
+
+    @Test
+    public void testDefaultMode() throws Exception {
+        assertTrue(new RecordDecoder(typeManager, idGenerator, new RecordFactoryImpl()).isColumnar());
+
+        System.setProperty(RecordDecoder.COLUMNAR_PROPERTY, "false");
+        try {
+            assertFalse(new RecordDecoder(typeManager, idGenerator, new RecordFactoryImpl()).isColumnar());
+        } finally {
+            System.clearProperty(RecordDecoder.COLUMNAR_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testDecodeRecordSameAsMapBased() throws Exception {
+        Result result = createRow();
+
+        for (Long version : new Long[]{null, 1L, 2L, 3L}) {
+            Record expected = mapDecoder.decodeRecord(recordId, version, null, result, fieldTypes);
+            Record actual = columnarDecoder.decodeRecord(recordId, version, null, result, fieldTypes);
+            assertEquals("version " + version, expected, actual);
+        }
+
+        Record record = columnarDecoder.decodeRecord(recordId, 2L, null, result, fieldTypes);
+        assertEquals("v1", record.getField(versionedField.getName()));
+        assertEquals("nv", record.getField(nonVersionedField.getName()));
+        assertEquals(new QName("ns", "rt"), record.getRecordTypeName(Scope.VERSIONED));
+        assertEquals(Long.valueOf(2L), record.getRecordTypeVersion(Scope.VERSIONED));
+
+        record = columnarDecoder.decodeRecord(recordId, 3L, null, result, fieldTypes);
+        assertEquals(1, record.getFields().size());
+    }
+
+    @Test
+    public void testDecodeRecordsSameAsMapBased() throws Exception {
+        Result result = createRow();
+        List<Long> versions = Arrays.asList(1L, 2L, 3L);
+
+        List<Record> expected = mapDecoder.decodeRecords(recordId, versions, result, fieldTypes);
+        List<Record> actual = columnarDecoder.decodeRecords(recordId, versions, result, fieldTypes);
+        assertEquals(expected.size(), actual.size());
+        for (Record record : actual) {
+            assertEquals(true, expected.contains(record));
+        }
+    }
+
+    @Test
+    public void testLatestVersion() throws Exception {
+        Result result = createRow();
+        assertEquals(Long.valueOf(3L), columnarDecoder.getLatestVersion(result));
+        assertEquals(mapDecoder.getLatestVersion(result), columnarDecoder.getLatestVersion(result));
+    }
+
+    @Test
+    public void testLatestSameAsMapBased() throws Exception {
+        // A column with several cells: both modes should take the same one
+        byte[] row = recordId.toBytes();
+        KeyValue[] kvs = new KeyValue[3];
+        for (int i = 0; i < 3; i++) {
+            kvs[i] = systemCell(row, RecordColumn.VERSION, i + 1, Bytes.toBytes(i + 1L));
+        }
+        Arrays.sort(kvs, KeyValue.COMPARATOR);
+        Result result = new Result(kvs);
+
+        assertEquals(mapDecoder.getLatestVersion(result), columnarDecoder.getLatestVersion(result));
+        assertTrue(Bytes.equals(mapDecoder.getLatest(result, RecordCf.DATA.bytes, RecordColumn.VERSION.bytes),
+                columnarDecoder.getLatest(result, RecordCf.DATA.bytes, RecordColumn.VERSION.bytes)));
+        assertEquals(null, columnarDecoder.getLatest(result, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes));
+    }
+
+    @Test
+    public void testDecodeRecordLazily() throws Exception {
+        Result result = createRow();
+        when(typeManager.getFieldTypesSnapshot()).thenReturn(fieldTypes);
+
+        Record expected = mapDecoder.decodeRecord(result);
+        assertEquals(Long.valueOf(3L), expected.getVersion());
+        assertEquals(expected, columnarDecoder.decodeRecord(result));
+
+        Record lazy = columnarDecoder.decodeRecordLazily(result);
+        assertTrue(lazy instanceof LazyRecordImpl);
+        assertTrue(mapDecoder.decodeRecordLazily(result) instanceof LazyRecordImpl);
+
+        assertTrue(lazy.hasField(nonVersionedField.getName()));
+        assertFalse(lazy.hasField(versionedField.getName()));
+        assertEquals("nv", lazy.getField(nonVersionedField.getName()));
+        assertEquals(expected.getRecordTypeName(), lazy.getRecordTypeName());
+
+        Record clone = lazy.clone();
+        assertEquals(expected, lazy);
+        assertEquals(expected, clone);
+        assertEquals(expected.getFields(), clone.getFields());
+    }
+
+    @Test
+    public void testFieldTypeLookupByRange() throws Exception {
+        byte[] qualifier = versionedField.getQualifier();
+        FieldType fieldType = fieldTypes.getFieldType(qualifier, 1, qualifier.length - 1);
+        assertEquals(versionedField.getName(), fieldType.getName());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeBucket;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.repository.impl.valuetype.StringValueType;
+
+/**
+ * Checks that readers of the schema caches always see consistent snapshots while the caches are being updated.
+ */
+public class SchemaCacheConcurrencyTest {
+    private static final int TYPE_COUNT = 1000;
+    private static final int GENERATIONS = 10;
+    private static final int READERS = 3;
+
+    @Test
+    public void testFieldTypesCache() throws Exception {
+        final FieldTypesCache cache = new FieldTypesCache();
+        final List<SchemaId> ids = new ArrayList<SchemaId>();
+        List<FieldType> initial = new ArrayList<FieldType>();
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            SchemaId id = new SchemaIdImpl(UUID.randomUUID());
+            ids.add(id);
+            initial.add(newFieldType(id, i, 0));
+        }
+        cache.refreshFieldTypes(initial);
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        // Renames all field types once per generation: half of them through local updates, the other half
+        // through bucket refreshes
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    for (int generation = 1; generation <= GENERATIONS; generation++) {
+                        TypeBucket bucket = new TypeBucket("00");
+                        for (int i = 0; i < TYPE_COUNT; i++) {
+                            FieldType fieldType = newFieldType(ids.get(i), i, generation);
+                            if (i % 2 == 0) {
+                                cache.update(fieldType);
+                            } else {
+                                bucket.add(fieldType);
+                                if (bucket.getFieldTypes().size() == 50) {
+                                    cache.refreshFieldTypeBucket(bucket);
+                                    bucket = new TypeBucket("00");
+                                }
+                            }
+                        }
+                        cache.refreshFieldTypeBucket(bucket);
+                    }
+                } finally {
+                    writing.set(false);
+                }
+                return null;
+            }
+        }));
+
+        for (int r = 0; r < READERS; r++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int[] lastGenerations = new int[TYPE_COUNT];
+                    do {
+                        FieldTypes snapshot = cache.getSnapshot();
+                        for (int i = 0; i < TYPE_COUNT; i++) {
+                            FieldType fieldType = snapshot.getFieldType(ids.get(i));
+                            // The name index of the snapshot is consistent with its id index
+                            assertSame(fieldType, snapshot.getFieldType(fieldType.getName()));
+                            // Later snapshots never go back in time
+                            int generation = Integer.parseInt(fieldType.getName().getName().split("_")[1]);
+                            assertTrue(generation >= lastGenerations[i]);
+                            lastGenerations[i] = generation;
+                        }
+                        // Old names are gone, so each type occurs once
+                        assertEquals(TYPE_COUNT, snapshot.getFieldTypes().size());
+                    } while (writing.get());
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        FieldTypes snapshot = cache.getSnapshot();
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            assertEquals(new QName("ns", "field" + i + "_" + GENERATIONS),
+                    snapshot.getFieldType(ids.get(i)).getName());
+        }
+    }
+
+    private FieldType newFieldType(SchemaId id, int index, int generation) {
+        return new FieldTypeImpl(id, new StringValueType(), new QName("ns", "field" + index + "_" + generation),
+                Scope.NON_VERSIONED);
+    }
+
+    @Test
+    public void testRecordTypesCache() throws Exception {
+        final RecordTypesCache cache = new RecordTypesCache();
+        final SchemaId parentId = new SchemaIdImpl(UUID.randomUUID());
+        final List<SchemaId> ids = new ArrayList<SchemaId>();
+        List<RecordType> initial = new ArrayList<RecordType>();
+        initial.add(newRecordType(parentId, new QName("ns", "parent"), 1L, null));
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            SchemaId id = new SchemaIdImpl(UUID.randomUUID());
+            ids.add(id);
+            initial.add(newRecordType(id, new QName("ns", "type" + i), 1L, null));
+        }
+        cache.refreshRecordTypes(initial);
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        // Adds a version per generation, which alternately does and doesn't extend from the parent type
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    for (long version = 2; version <= GENERATIONS + 1; version++) {
+                        for (int i = 0; i < TYPE_COUNT; i++) {
+                            cache.update(newRecordType(ids.get(i), new QName("ns", "type" + i), version,
+                                    version % 2 == 0 ? parentId : null));
+                        }
+                    }
+                } finally {
+                    writing.set(false);
+                }
+                return null;
+            }
+        }));
+
+        for (int r = 0; r < READERS; r++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    long[] lastVersions = new long[TYPE_COUNT];
+                    do {
+                        for (int i = 0; i < TYPE_COUNT; i++) {
+                            RecordType latest = cache.getRecordType(ids.get(i), null);
+                            assertTrue(latest.getVersion() >= lastVersions[i]);
+                            lastVersions[i] = latest.getVersion();
+                            // Versions which were seen remain available
+                            assertNotNull(cache.getRecordType(new QName("ns", "type" + i), latest.getVersion()));
+                            assertNotNull(cache.getRecordType(ids.get(i), 1L));
+                        }
+                        assertTrue(cache.findDirectSubTypes(parentId).size() <= TYPE_COUNT);
+                    } while (writing.get());
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Whether the types extend from the parent depends on their last version only
+        long lastVersion = GENERATIONS + 1;
+        assertEquals(lastVersion % 2 == 0 ? TYPE_COUNT : 0, cache.findDirectSubTypes(parentId).size());
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            assertEquals(Long.valueOf(lastVersion), cache.getRecordType(ids.get(i), null).getVersion());
+            assertEquals(Long.valueOf(lastVersion),
+                    cache.getRecordType(new QName("ns", "type" + i), null).getVersion());
+        }
+        assertEquals(TYPE_COUNT * lastVersion + 1, cache.getRecordTypes().size());
+    }
+
+    private RecordType newRecordType(SchemaId id, QName name, Long version, SchemaId supertype) {
+        RecordTypeImpl recordType = new RecordTypeImpl(id, name);
+        recordType.setVersion(version);
+        if (supertype != null) {
+            recordType.addSupertype(supertype, 1L);
+        }
+        return recordType;
+    }
+}
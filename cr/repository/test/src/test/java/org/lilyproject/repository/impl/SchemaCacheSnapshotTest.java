@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.RecordType;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.repository.impl.valuetype.LongValueType;
+import org.lilyproject.repository.impl.valuetype.StringValueType;
+
+public class SchemaCacheSnapshotTest {
+    private TypeManager typeManager;
+    private SchemaCacheSnapshot snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        typeManager = mock(TypeManager.class);
+        when(typeManager.getValueType("STRING")).thenReturn(new StringValueType());
+        when(typeManager.getValueType("LONG")).thenReturn(new LongValueType());
+
+        Map<String, Integer> bucketVersions = new HashMap<String, Integer>();
+        bucketVersions.put("00", 3);
+        bucketVersions.put("ff", 0);
+
+        List<FieldType> fieldTypes = new ArrayList<FieldType>();
+        for (int i = 0; i < 10; i++) {
+            fieldTypes.add(new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()),
+                    i % 2 == 0 ? new StringValueType() : new LongValueType(), new QName("ns", "field" + i),
+                    i % 2 == 0 ? Scope.NON_VERSIONED : Scope.VERSIONED));
+        }
+
+        SchemaId supertypeId = new SchemaIdImpl(UUID.randomUUID());
+        RecordTypeImpl supertype = new RecordTypeImpl(supertypeId, new QName("ns", "supertype"));
+        supertype.setVersion(1L);
+        RecordTypeImpl recordType = new RecordTypeImpl(new SchemaIdImpl(UUID.randomUUID()), new QName("ns", "type"));
+        recordType.setVersion(2L);
+        recordType.addFieldTypeEntry(fieldTypes.get(0).getId(), true);
+        recordType.addFieldTypeEntry(fieldTypes.get(1).getId(), false);
+        recordType.addSupertype(supertypeId, 1L);
+
+        snapshot = new SchemaCacheSnapshot(1234L, 5, bucketVersions, fieldTypes,
+                Arrays.<RecordType>asList(supertype, recordType));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("schemasnapshot", null);
+        try {
+            snapshot.write(file);
+            assertSnapshotEquals(snapshot, SchemaCacheSnapshot.read(file, typeManager));
+        } finally {
+            file.delete();
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // Value types are only looked up once
+        verify(typeManager, times(1)).getValueType("STRING");
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        byte[] data = snapshot.toBytes();
+        try {
+            SchemaCacheSnapshot.fromBytes(Arrays.copyOf(data, data.length - 1), typeManager);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        try {
+            SchemaCacheSnapshot.fromBytes(Arrays.copyOf(data, data.length + 1), typeManager);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Unknown format version
+        data[3]++;
+        try {
+            SchemaCacheSnapshot.fromBytes(data, typeManager);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void assertSnapshotEquals(SchemaCacheSnapshot expected, SchemaCacheSnapshot actual) {
+        assertEquals(expected.getInvalidationNodeCzxid(), actual.getInvalidationNodeCzxid());
+        assertEquals(expected.getInvalidationNodeVersion(), actual.getInvalidationNodeVersion());
+        assertEquals(expected.getBucketVersions(), actual.getBucketVersions());
+
+        assertEquals(expected.getFieldTypes().size(), actual.getFieldTypes().size());
+        for (int i = 0; i < expected.getFieldTypes().size(); i++) {
+            FieldType expectedFieldType = expected.getFieldTypes().get(i);
+            FieldType actualFieldType = actual.getFieldTypes().get(i);
+            assertEquals(expectedFieldType.getId(), actualFieldType.getId());
+            assertEquals(expectedFieldType.getName(), actualFieldType.getName());
+            assertEquals(expectedFieldType.getScope(), actualFieldType.getScope());
+            assertEquals(expectedFieldType.getValueType().getName(), actualFieldType.getValueType().getName());
+        }
+
+        assertEquals(expected.getRecordTypes(), actual.getRecordTypes());
+    }
+}
@@ -58,6 +58,7 @@ import org.lilyproject.repository.api.Link;
 import org.lilyproject.repository.api.Metadata;
 import org.lilyproject.repository.api.MetadataBuilder;
 import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.MutationResult;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
@@ -97,15 +98,15 @@ public abstract class AbstractRepositoryTest {
     protected static FieldType fieldType1;
 
     private static FieldType fieldType1B;
-    private static FieldType fieldType2;
-    private static FieldType fieldType3;
+    protected static FieldType fieldType2;
+    protected static FieldType fieldType3;
     private static FieldType fieldType4;
     private static FieldType fieldType5;
     private static FieldType fieldType6;
     protected static RecordType recordType1;
     private static RecordType recordType1B;
     private static RecordType recordType2;
-    private static RecordType recordType3;
+    protected static RecordType recordType3;
     private static String namespace = "/test/repository";
 
 
@@ -1638,6 +1639,90 @@ public abstract class AbstractRepositoryTest {
         assertEquals(ResponseStatus.UP_TO_DATE, resultRecord.getResponseStatus());
     }
 
+    @Test
+    public void testBatchMutations() throws Exception {
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 250; i++) {
+            Record record = repository.newRecord(idGenerator.newRecordId());
+            record.setRecordType(recordType1.getName(), recordType1.getVersion());
+            record.setField(fieldType1.getName(), "value" + i);
+            records.add(record);
+        }
+
+        List<MutationResult> results = repository.create(records);
+        assertEquals(records.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue(results.get(i).isSuccess());
+            assertEquals(records.get(i).getId(), results.get(i).getRecordId());
+            assertEquals(ResponseStatus.CREATED, results.get(i).getRecord().getResponseStatus());
+        }
+
+        // Creating again fails for each record, but does not stop the batch
+        results = repository.create(records.subList(0, 10));
+        for (MutationResult result : results) {
+            assertFalse(result.isSuccess());
+            assertTrue(result.getException() instanceof RecordExistsException);
+        }
+
+        // Mix of creates, updates and no-ops
+        List<Record> mixed = new ArrayList<Record>(records.subList(0, 20));
+        mixed.get(0).setField(fieldType1.getName(), "changed");
+        Record newRecord = repository.newRecord(idGenerator.newRecordId());
+        newRecord.setRecordType(recordType1.getName(), recordType1.getVersion());
+        newRecord.setField(fieldType1.getName(), "new");
+        mixed.add(newRecord);
+
+        results = repository.createOrUpdate(mixed);
+        assertEquals(ResponseStatus.UPDATED, results.get(0).getRecord().getResponseStatus());
+        assertEquals(ResponseStatus.UP_TO_DATE, results.get(1).getRecord().getResponseStatus());
+        assertEquals(ResponseStatus.CREATED, results.get(20).getRecord().getResponseStatus());
+        assertEquals("changed", repository.read(mixed.get(0).getId()).getField(fieldType1.getName()));
+
+        List<RecordId> recordIds = new ArrayList<RecordId>();
+        for (Record record : records) {
+            recordIds.add(record.getId());
+        }
+        results = repository.delete(recordIds);
+        for (MutationResult result : results) {
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(0, repository.read(recordIds).size());
+
+        results = repository.delete(recordIds.subList(0, 1));
+        assertTrue(results.get(0).getException() instanceof RecordNotFoundException);
+    }
+
+    @Test
+    public void testBatchMutationsSameRecord() throws Exception {
+        // Items concerning the same record are mutated in the order of the batch, each seeing the previous one
+        RecordId recordId = idGenerator.newRecordId();
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 3; i++) {
+            Record record = repository.newRecord(recordId);
+            record.setRecordType(recordType1.getName(), recordType1.getVersion());
+            record.setField(fieldType1.getName(), "value" + i);
+            records.add(record);
+        }
+
+        List<MutationResult> results = repository.create(records);
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).getException() instanceof RecordExistsException);
+        assertTrue(results.get(2).getException() instanceof RecordExistsException);
+        assertEquals("value0", repository.read(recordId).getField(fieldType1.getName()));
+
+        results = repository.createOrUpdate(records);
+        assertEquals(ResponseStatus.UP_TO_DATE, results.get(0).getRecord().getResponseStatus());
+        assertEquals(ResponseStatus.UPDATED, results.get(1).getRecord().getResponseStatus());
+        assertEquals(ResponseStatus.UPDATED, results.get(2).getRecord().getResponseStatus());
+        assertEquals("value2", repository.read(recordId).getField(fieldType1.getName()));
+
+        // Once deleted, the first create succeeds and the second one sees the record it created
+        repository.delete(recordId);
+        results = repository.create(records.subList(0, 2));
+        assertEquals(ResponseStatus.CREATED, results.get(0).getRecord().getResponseStatus());
+        assertTrue(results.get(1).getException() instanceof RecordExistsException);
+    }
+
     @Test
     public void testUpdateMutableFieldsRecordType() throws Exception {
         Record record = repository.newRecord();
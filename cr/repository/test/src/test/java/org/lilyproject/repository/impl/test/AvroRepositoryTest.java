@@ -15,11 +15,24 @@
  */
 package org.lilyproject.repository.impl.test;
 
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.repository.api.MutationResult;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordExistsException;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.ResponseStatus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class AvroRepositoryTest extends AbstractRepositoryTest {
 
@@ -42,5 +55,58 @@ public class AvroRepositoryTest extends AbstractRepositoryTest {
     public static void tearDownAfterClass() throws Exception {
         repoSetup.stop();
     }
+
+    @Test
+    public void testBatchMutationResultsRoundTrip() throws Exception {
+        // Enough items to be sent as several pipelined messages
+        List<Record> records = new ArrayList<Record>();
+        List<Record> existing = new ArrayList<Record>();
+        for (int i = 0; i < 1200; i++) {
+            Record record = repository.newRecord(idGenerator.newRecordId());
+            record.setRecordType(recordType1.getName(), recordType1.getVersion());
+            record.setField(fieldType1.getName(), "value" + i);
+            records.add(record);
+            if (i % 3 == 0) {
+                existing.add(record);
+            }
+        }
+        repository.create(existing);
+
+        List<MutationResult> results = repository.create(records);
+        assertEquals(records.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            MutationResult result = results.get(i);
+            assertEquals(records.get(i).getId(), result.getRecordId());
+            if (i % 3 == 0) {
+                assertFalse(result.isSuccess());
+                assertTrue(result.getException() instanceof RecordExistsException);
+                assertEquals(null, result.getRecord());
+            } else {
+                assertTrue(result.isSuccess());
+                assertEquals(ResponseStatus.CREATED, result.getRecord().getResponseStatus());
+                assertEquals("value" + i, result.getRecord().getField(fieldType1.getName()));
+            }
+        }
+
+        // Deleting the existing records, then all of them: only the others can still be deleted
+        List<RecordId> recordIds = new ArrayList<RecordId>();
+        for (Record record : existing) {
+            recordIds.add(record.getId());
+        }
+        repository.delete(recordIds);
+        recordIds.clear();
+        for (Record record : records) {
+            recordIds.add(record.getId());
+        }
+        results = repository.delete(recordIds);
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(recordIds.get(i), results.get(i).getRecordId());
+            if (i % 3 == 0) {
+                assertTrue(results.get(i).getException() instanceof RecordNotFoundException);
+            } else {
+                assertTrue(results.get(i).isSuccess());
+            }
+        }
+    }
 }
 
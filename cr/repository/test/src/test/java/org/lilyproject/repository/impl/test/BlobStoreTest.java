@@ -15,14 +15,40 @@
  */
 package org.lilyproject.repository.impl.test;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.BlobAccess;
+import org.lilyproject.repository.api.BlobException;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.impl.BlobAccessImpl;
+import org.lilyproject.repository.impl.BlobIncubatorMonitor;
 import org.lilyproject.repository.impl.BlobStoreAccessRegistry;
+import org.lilyproject.repository.impl.HBaseBlobStoreAccess;
+import org.lilyproject.util.hbase.LilyHBaseSchema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BlobStoreTest extends AbstractBlobStoreTest {
 
@@ -54,5 +80,183 @@ public class BlobStoreTest extends AbstractBlobStoreTest {
     public void tearDown() throws Exception {
     }
 
+    @Test
+    public void testHBaseChunkedBlob() throws Exception {
+        HBaseBlobStoreAccess blobStoreAccess = new HBaseBlobStoreAccess(repoSetup.getHbaseTableFactory());
+        blobStoreAccess.setChunkSize(10);
+
+        byte[] bytes = new byte[95];
+        random.nextBytes(bytes);
+        Blob blob = new Blob("aMediaType", (long) bytes.length, "aName");
+        OutputStream outputStream = blobStoreAccess.getOutputStream(blob);
+        outputStream.write(bytes, 0, 7);
+        outputStream.write(bytes, 7, 50);
+        for (int i = 57; i < bytes.length; i++) {
+            outputStream.write(bytes[i]);
+        }
+        outputStream.close();
+
+        InputStream inputStream = blobStoreAccess.getInputStream(blob.getValue());
+        try {
+            assertTrue(Arrays.equals(bytes, IOUtils.toByteArray(inputStream)));
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        // Range reads, within one chunk, spanning chunks and past the end of the blob
+        BlobAccess blobAccess = new BlobAccessImpl(blob, blobStoreAccess, blob.getValue());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 22, 27), readRange(blobAccess, 22, 5)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 15, 45), readRange(blobAccess, 15, 30)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 90, 95), readRange(blobAccess, 90, 20)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 40, 95), readRange(blobAccess, 40, -1)));
+
+        // Blob larger than its announced size, the chunks are still cut at the chunk size
+        Blob undersizedBlob = new Blob("aMediaType", 3L, "undersized");
+        outputStream = blobStoreAccess.getOutputStream(undersizedBlob);
+        outputStream.write(bytes, 0, 25);
+        outputStream.close();
+        inputStream = blobStoreAccess.getInputStream(undersizedBlob.getValue());
+        try {
+            assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 0, 25), IOUtils.toByteArray(inputStream)));
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+        blobAccess = new BlobAccessImpl(undersizedBlob, blobStoreAccess, undersizedBlob.getValue());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 12, 22), readRange(blobAccess, 12, 10)));
+
+        // Empty blob
+        Blob emptyBlob = new Blob("aMediaType", 0L, "empty");
+        blobStoreAccess.getOutputStream(emptyBlob).close();
+        inputStream = blobStoreAccess.getInputStream(emptyBlob.getValue());
+        try {
+            assertEquals(-1, inputStream.read());
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        blobStoreAccess.delete(blob.getValue());
+        try {
+            blobStoreAccess.getInputStream(blob.getValue());
+            fail("Expected exception");
+        } catch (BlobException expected) {
+        }
+    }
+
+    @Test
+    public void testHBaseSingleCellBlob() throws Exception {
+        // Blobs written before the HBase blob store wrote chunks are stored in a single cell
+        HTableInterface blobTable = repoSetup.getHbaseTableFactory().getTable(new HTableDescriptor("blob"), false);
+        byte[] blobKey = Bytes.toBytes("singlecellblob");
+        byte[] bytes = Bytes.toBytes("single cell blob");
+        Put put = new Put(blobKey);
+        put.add(Bytes.toBytes("data"), Bytes.toBytes("b"), bytes);
+        blobTable.put(put);
+
+        HBaseBlobStoreAccess blobStoreAccess = new HBaseBlobStoreAccess(repoSetup.getHbaseTableFactory());
+        InputStream inputStream = blobStoreAccess.getInputStream(blobKey);
+        try {
+            assertTrue(Arrays.equals(bytes, IOUtils.toByteArray(inputStream)));
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        Blob blob = new Blob("aMediaType", (long) bytes.length, "aName");
+        BlobAccess blobAccess = new BlobAccessImpl(blob, blobStoreAccess, blobKey);
+        assertTrue(Arrays.equals(Bytes.toBytes("cell"), readRange(blobAccess, 7, 4)));
+    }
+
+    private byte[] readRange(BlobAccess blobAccess, long offset, long length) throws Exception {
+        InputStream inputStream = blobAccess.getInputStream(offset, length);
+        try {
+            return IOUtils.toByteArray(inputStream);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    @Test
+    public void testHBaseBlobIncubatedBeforeWriting() throws Exception {
+        HTableInterface blobIncubatorTable = LilyHBaseSchema.getBlobIncubatorTable(repoSetup.getHbaseTableFactory(),
+                true);
+        Set<String> incubatedBefore = getRowKeys(blobIncubatorTable);
 
+        // A blob stored in the HBase blob store, which is abandoned while writing it
+        byte[] bytes = new byte[500];
+        random.nextBytes(bytes);
+        Blob blob = new Blob("aMediaType", (long) bytes.length, "aName");
+        OutputStream outputStream = testBlobStoreAccessRegistry.getOutputStream(blob);
+        outputStream.write(bytes, 0, 100);
+
+        Set<String> incubated = getRowKeys(blobIncubatorTable);
+        incubated.removeAll(incubatedBefore);
+        assertEquals(1, incubated.size());
+        String blobKey = incubated.iterator().next();
+
+        // Give time for the blob to expire
+        Thread.sleep(60);
+
+        BlobIncubatorMonitor monitor = new BlobIncubatorMonitor(repoSetup.getZk(), repoSetup.getHbaseTableFactory(),
+                repoSetup.getTableManager(), blobManager, typeManager, 50, 0, 0);
+        monitor.runMonitorOnce();
+
+        assertFalse(getRowKeys(blobIncubatorTable).contains(blobKey));
+    }
+
+    @Test
+    public void testHBaseBlobIncubationRefreshedWhileWriting() throws Exception {
+        HTableInterface blobIncubatorTable = LilyHBaseSchema.getBlobIncubatorTable(repoSetup.getHbaseTableFactory(),
+                true);
+        Set<String> incubatedBefore = getRowKeys(blobIncubatorTable);
+        BlobIncubatorMonitor monitor = new BlobIncubatorMonitor(repoSetup.getZk(), repoSetup.getHbaseTableFactory(),
+                repoSetup.getTableManager(), blobManager, typeManager, 50, 0, 0);
+
+        // A blob which takes longer to write than the minimal age of the incubator monitor
+        byte[] bytes = new byte[500];
+        random.nextBytes(bytes);
+        Blob blob = new Blob("aMediaType", (long) bytes.length, "aName");
+        testBlobStoreAccessRegistry.setIncubationRefreshInterval(10);
+        try {
+            OutputStream outputStream = testBlobStoreAccessRegistry.getOutputStream(blob);
+            outputStream.write(bytes, 0, 100);
+
+            Set<String> incubated = getRowKeys(blobIncubatorTable);
+            incubated.removeAll(incubatedBefore);
+            assertEquals(1, incubated.size());
+            String blobKey = incubated.iterator().next();
+
+            Thread.sleep(60);
+            outputStream.write(bytes, 100, 200);
+            monitor.runMonitorOnce();
+            assertTrue(getRowKeys(blobIncubatorTable).contains(blobKey));
+
+            Thread.sleep(60);
+            outputStream.write(bytes, 300, 200);
+            outputStream.close();
+            monitor.runMonitorOnce();
+            assertTrue(getRowKeys(blobIncubatorTable).contains(blobKey));
+        } finally {
+            testBlobStoreAccessRegistry.setIncubationRefreshInterval(
+                    BlobStoreAccessRegistry.DEFAULT_INCUBATION_REFRESH_INTERVAL);
+        }
+
+        InputStream inputStream = testBlobStoreAccessRegistry.getBlobAccess(blob).getInputStream();
+        try {
+            assertTrue(Arrays.equals(bytes, IOUtils.toByteArray(inputStream)));
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    private Set<String> getRowKeys(HTableInterface table) throws Exception {
+        Set<String> rowKeys = new HashSet<String>();
+        ResultScanner scanner = table.getScanner(new Scan());
+        try {
+            for (Result result : scanner) {
+                rowKeys.add(Bytes.toStringBinary(result.getRow()));
+            }
+        } finally {
+            scanner.close();
+        }
+        return rowKeys;
+    }
 }
@@ -16,16 +16,40 @@
 package org.lilyproject.repository.impl.test;
 
 
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.CompareOp;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.MutationCondition;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordExistsException;
+import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.ResponseStatus;
+import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.impl.HBaseRepository;
+import org.lilyproject.repository.impl.HBaseRepositoryManager;
 import org.lilyproject.repository.impl.HBaseTypeManager;
+import org.lilyproject.repository.impl.RecordFactoryImpl;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.repository.spi.ProjectingRecordUpdateHook;
+import org.lilyproject.repository.spi.RecordUpdateHook;
 import org.lilyproject.util.io.Closer;
+import org.lilyproject.util.repo.RecordEvent;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class HBaseRepositoryTest extends AbstractRepositoryTest {
 
@@ -54,4 +78,200 @@ public class HBaseRepositoryTest extends AbstractRepositoryTest {
         assertEquals(fieldType1, newTypeManager.getFieldTypeByName(fieldType1.getName()));
         Closer.close(newTypeManager);
     }
+
+    /**
+     * Updates only read the fields they need from the original record, check this doesn't change the outcome.
+     */
+    @Test
+    public void testUpdateReadsOnlyNeededFields() throws Exception {
+        // recordType3 has field1 and field3 as mandatory fields
+        Record record = repository.newRecord();
+        record.setRecordType(recordType3.getName());
+        record.setField(fieldType1.getName(), "value1");
+        record.setField(fieldType2.getName(), 2);
+        record.setField(fieldType3.getName(), true);
+        record = repository.create(record);
+
+        // Update without record type: the mandatory fields of the original record type should be found
+        Record update = repository.newRecord(record.getId());
+        update.setField(fieldType2.getName(), 3);
+        update = repository.update(update);
+        assertEquals(ResponseStatus.UPDATED, update.getResponseStatus());
+        assertEquals(Long.valueOf(2), update.getVersion());
+
+        // Updating to the same value is no update
+        update = repository.newRecord(record.getId());
+        update.setField(fieldType2.getName(), 3);
+        update = repository.update(update);
+        assertEquals(ResponseStatus.UP_TO_DATE, update.getResponseStatus());
+
+        // Condition on a field which is not updated
+        update = repository.newRecord(record.getId());
+        update.setField(fieldType2.getName(), 4);
+        update = repository.update(update, Collections.singletonList(
+                new MutationCondition(fieldType1.getName(), CompareOp.EQUAL, "other value")));
+        assertEquals(ResponseStatus.CONFLICT, update.getResponseStatus());
+
+        update = repository.newRecord(record.getId());
+        update.setField(fieldType2.getName(), 4);
+        update = repository.update(update, Collections.singletonList(
+                new MutationCondition(fieldType1.getName(), CompareOp.EQUAL, "value1")));
+        assertEquals(ResponseStatus.UPDATED, update.getResponseStatus());
+
+        Record readRecord = repository.read(record.getId());
+        assertEquals("value1", readRecord.getField(fieldType1.getName()));
+        assertEquals(4, readRecord.getField(fieldType2.getName()));
+        assertEquals(true, readRecord.getField(fieldType3.getName()));
+        assertEquals(Long.valueOf(3), readRecord.getVersion());
+    }
+
+    @Test
+    public void testUpdateWithProjectingHook() throws Exception {
+        final QName field1 = fieldType1.getName();
+        final QName field3 = fieldType3.getName();
+
+        // A hook which looks at field3 and sets field1
+        final Object[] seenValue = new Object[1];
+        RecordUpdateHook hook = new ProjectingRecordUpdateHook() {
+            @Override
+            public Collection<QName> getUpdateFieldDependencies(Record record, FieldTypes fieldTypes) {
+                return Collections.singleton(field3);
+            }
+
+            @Override
+            public void beforeUpdate(Record record, Record originalRecord, Repository repository,
+                    FieldTypes fieldTypes, RecordEvent recordEvent) throws RepositoryException, InterruptedException {
+                seenValue[0] = originalRecord.getField(field3);
+                record.setField(field1, "set by hook");
+            }
+
+            @Override
+            public void beforeCreate(Record newRecord, Repository repository, FieldTypes fieldTypes,
+                    RecordEvent recordEvent) {
+            }
+
+            @Override
+            public void beforeDelete(Record originalRecord, Repository repository, FieldTypes fieldTypes,
+                    RecordEvent recordEvent) {
+            }
+        };
+
+        Record record = repository.newRecord();
+        record.setRecordType(recordType1.getName());
+        record.setField(field1, "value1");
+        record.setField(field3, true);
+        record = repository.create(record);
+
+        HBaseRepository hbaseRepository = (HBaseRepository)repository;
+        hbaseRepository.setRecordUpdateHooks(Collections.singletonList(hook));
+        try {
+            Record update = repository.newRecord(record.getId());
+            update.setField(fieldType2.getName(), 5);
+            update = repository.update(update);
+            assertEquals(ResponseStatus.UPDATED, update.getResponseStatus());
+        } finally {
+            hbaseRepository.setRecordUpdateHooks(null);
+        }
+
+        assertEquals(true, seenValue[0]);
+        Record readRecord = repository.read(record.getId());
+        assertEquals("set by hook", readRecord.getField(field1));
+    }
+
+    /**
+     * A record without id is created without reading the row state first, check the fallback when the
+     * generated id turns out to be the one of an existing row.
+     */
+    @Test
+    public void testCreateWithGeneratedIdOfExistingRow() throws Exception {
+        FixedIdGenerator fixedIdGenerator = new FixedIdGenerator();
+        HBaseRepositoryManager repositoryManager = new HBaseRepositoryManager(typeManager, fixedIdGenerator,
+                new RecordFactoryImpl(), repoSetup.getHbaseTableFactory(), repoSetup.getBlobManager(),
+                repoSetup.getHadoopConf(), repoSetup.getRepositoryModel());
+        try {
+            HBaseRepository hbaseRepository =
+                    (HBaseRepository)repositoryManager.getDefaultRepository().getDefaultTable();
+
+            // A deleted record: the create falls back to reading the row state and continues the versions
+            Record record = repository.newRecord(idGenerator.newRecordId());
+            record.setRecordType(recordType1.getName());
+            record.setField(fieldType1.getName(), "value1");
+            record = repository.create(record);
+            repository.delete(record.getId());
+
+            int conflicts = hbaseRepository.getMetrics().getBlindCreateConflicts();
+            fixedIdGenerator.nextRecordId = record.getId();
+            Record newRecord = hbaseRepository.newRecord();
+            newRecord.setRecordType(recordType1.getName());
+            newRecord.setField(fieldType1.getName(), "value2");
+            newRecord = hbaseRepository.create(newRecord);
+            assertEquals(record.getId(), newRecord.getId());
+            assertEquals(ResponseStatus.CREATED, newRecord.getResponseStatus());
+            assertEquals(Long.valueOf(2), newRecord.getVersion());
+            assertEquals(conflicts + 1, hbaseRepository.getMetrics().getBlindCreateConflicts());
+
+            Record readRecord = repository.read(record.getId());
+            assertEquals("value2", readRecord.getField(fieldType1.getName()));
+            assertEquals(Long.valueOf(2), readRecord.getVersion());
+
+            // An existing record: the create fails
+            fixedIdGenerator.nextRecordId = record.getId();
+            newRecord = hbaseRepository.newRecord();
+            newRecord.setRecordType(recordType1.getName());
+            newRecord.setField(fieldType1.getName(), "value3");
+            try {
+                hbaseRepository.create(newRecord);
+                fail("Expected a RecordExistsException");
+            } catch (RecordExistsException e) {
+                // expected
+            }
+            assertEquals(conflicts + 2, hbaseRepository.getMetrics().getBlindCreateConflicts());
+            assertEquals("value2", repository.read(record.getId()).getField(fieldType1.getName()));
+
+            // A deleted record and a blob: the blob should only be reserved once, when the row state is known,
+            // otherwise the fallback can't reserve it anymore
+            FieldType blobField = typeManager.createFieldType("BLOB", new QName("blind-create", "blob"),
+                    Scope.NON_VERSIONED);
+            repository.delete(record.getId());
+
+            Blob blob = new Blob("text/plain", 5L, "blob");
+            OutputStream os = hbaseRepository.getOutputStream(blob);
+            os.write("12345".getBytes());
+            os.close();
+
+            fixedIdGenerator.nextRecordId = record.getId();
+            newRecord = hbaseRepository.newRecord();
+            newRecord.setRecordType(recordType1.getName());
+            newRecord.setField(blobField.getName(), blob);
+            newRecord = hbaseRepository.create(newRecord);
+            assertEquals(record.getId(), newRecord.getId());
+            assertEquals(ResponseStatus.CREATED, newRecord.getResponseStatus());
+            assertEquals(conflicts + 3, hbaseRepository.getMetrics().getBlindCreateConflicts());
+            assertEquals(blob, repository.read(record.getId()).getField(blobField.getName()));
+
+            // A fresh id still doesn't count as a conflict
+            newRecord = hbaseRepository.newRecord();
+            newRecord.setRecordType(recordType1.getName());
+            newRecord.setField(fieldType1.getName(), "value4");
+            newRecord = hbaseRepository.create(newRecord);
+            assertEquals(ResponseStatus.CREATED, newRecord.getResponseStatus());
+            assertEquals(conflicts + 3, hbaseRepository.getMetrics().getBlindCreateConflicts());
+        } finally {
+            Closer.close(repositoryManager);
+        }
+    }
+
+    /**
+     * Generates the record id set on it once, instead of a new one.
+     */
+    private static class FixedIdGenerator extends IdGeneratorImpl {
+        private RecordId nextRecordId;
+
+        @Override
+        public RecordId newRecordId() {
+            RecordId recordId = nextRecordId;
+            nextRecordId = null;
+            return recordId != null ? recordId : super.newRecordId();
+        }
+    }
 }
@@ -20,10 +20,13 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.repository.impl.id.RecordIdStrategies;
+import org.lilyproject.repository.impl.id.SaltedTimeRecordId;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -266,4 +269,84 @@ public class IdGeneratorImplTest {
         }
     }
 
+    @Test
+    public void testThreadLocalUUID() {
+        IdGenerator idGenerator = new IdGeneratorImpl(RecordIdStrategies.THREAD_LOCAL_UUID);
+        RecordId recordId = idGenerator.newRecordId();
+        assertTrue(recordId.toString().startsWith("UUID."));
+        assertEquals(recordId, idGenerator.fromBytes(recordId.toBytes()));
+        assertEquals(recordId, idGenerator.fromString(recordId.toString()));
+
+        // Same version and variant as UUID.randomUUID()
+        UUID uuid = UUID.fromString(recordId.toString().substring("UUID.".length()));
+        assertEquals(4, uuid.version());
+        assertEquals(2, uuid.variant());
+
+        assertFalse(recordId.equals(idGenerator.newRecordId()));
+    }
+
+    @Test
+    public void testSaltedTime() {
+        IdGenerator idGenerator = new IdGeneratorImpl(RecordIdStrategies.saltedTime(4));
+        long before = System.currentTimeMillis();
+        RecordId recordId = idGenerator.newRecordId();
+        assertTrue(recordId.isMaster());
+        assertTrue(((SaltedTimeRecordId)recordId).getSalt() < 4);
+        assertTrue(((SaltedTimeRecordId)recordId).getTimestamp() >= before);
+        assertEquals(recordId, idGenerator.fromBytes(recordId.toBytes()));
+        assertEquals(recordId, idGenerator.fromString(recordId.toString()));
+
+        // Test string and bytes representation
+        String idString = "SALTED_TIME.83-0000013f2c1e3a00-ffeeddccbbaa9988";
+        byte[] idBytes = new byte[] {
+                /* salted time type marker */2,
+                /* salt */-125,
+                /* timestamp */0, 0, 1, 63, 44, 30, 58, 0,
+                /* random */-1, -18, -35, -52, -69, -86, -103, -120 };
+        assertArrayEquals(idBytes, idGenerator.fromString(idString).toBytes());
+        assertEquals(idString, idGenerator.fromBytes(idBytes).toString());
+        assertEquals(0x13f2c1e3a00L, ((SaltedTimeRecordId)idGenerator.fromBytes(idBytes)).getTimestamp());
+
+        // Variants
+        RecordId variantId = idGenerator.newRecordId(recordId, Collections.singletonMap("X", "ABC"));
+        assertEquals(variantId, idGenerator.fromBytes(variantId.toBytes()));
+        assertEquals(variantId, idGenerator.fromString(variantId.toString()));
+        assertEquals(recordId, idGenerator.fromBytes(variantId.toBytes()).getMaster());
+
+        try {
+            idGenerator.fromString("SALTED_TIME.83-0000013f2c1e3a00");
+            fail("Expected an exception for an incomplete id.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSaltedTimeOrdering() throws Exception {
+        IdGenerator idGenerator = new IdGeneratorImpl(RecordIdStrategies.saltedTime(1));
+        RecordId first = idGenerator.newRecordId();
+        Thread.sleep(2);
+        RecordId second = idGenerator.newRecordId();
+
+        // With a single salt bucket, ids sort on their creation time
+        assertTrue(Bytes.compareTo(first.toBytes(), second.toBytes()) < 0);
+    }
+
+    @Test
+    public void testRecordIdStrategyNames() {
+        assertTrue(RecordIdStrategies.fromString(null) == RecordIdStrategies.RANDOM_UUID);
+        assertTrue(RecordIdStrategies.fromString("uuid") == RecordIdStrategies.RANDOM_UUID);
+        assertTrue(RecordIdStrategies.fromString("threadlocal-uuid") == RecordIdStrategies.THREAD_LOCAL_UUID);
+        assertTrue(new IdGeneratorImpl("salted-time:8").newRecordId() instanceof SaltedTimeRecordId);
+
+        for (String invalid : new String[] {"foo", "salted-time:0", "salted-time:257", "salted-time:x"}) {
+            try {
+                RecordIdStrategies.fromString(invalid);
+                fail("Expected an exception for record id strategy " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.valuetype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.IdRecord;
+import org.lilyproject.repository.api.IdentityRecordStack;
+import org.lilyproject.repository.api.InvalidRecordException;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.RecordImpl;
+import org.lilyproject.repository.impl.RecordTypeImpl;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+
+public class RecordValueTypeTest {
+    private static final QName NESTED = new QName("ns", "nested");
+    private static final QName BASE = new QName("ns", "base");
+
+    private TypeManager typeManager;
+    private RecordTypeCodecCache codecCache;
+    private FieldType stringField;
+    private FieldType longField;
+    private FieldType baseField;
+    private RecordValueType valueType;
+
+    @Before
+    public void setUp() throws Exception {
+        typeManager = mock(TypeManager.class, withSettings().extraInterfaces(RecordTypeCodecCache.Provider.class));
+        codecCache = new RecordTypeCodecCache();
+        when(((RecordTypeCodecCache.Provider)typeManager).getRecordTypeCodecCache()).thenReturn(codecCache);
+
+        stringField = newFieldType(new StringValueType(), "string");
+        longField = newFieldType(new LongValueType(), "long");
+        baseField = newFieldType(new StringValueType(), "base");
+
+        RecordTypeImpl baseType = new RecordTypeImpl(new SchemaIdImpl(UUID.randomUUID()), BASE);
+        baseType.setVersion(1L);
+        baseType.addFieldTypeEntry(baseField.getId(), false);
+        when(typeManager.getRecordTypeById(baseType.getId(), 1L)).thenReturn(baseType);
+
+        RecordTypeImpl nestedType = new RecordTypeImpl(new SchemaIdImpl(UUID.randomUUID()), NESTED);
+        nestedType.setVersion(1L);
+        nestedType.addFieldTypeEntry(stringField.getId(), false);
+        nestedType.addFieldTypeEntry(longField.getId(), false);
+        nestedType.addSupertype(baseType.getId(), 1L);
+        when(typeManager.getRecordTypeById(nestedType.getId(), 1L)).thenReturn(nestedType);
+        when(typeManager.getRecordTypeByName(NESTED, null)).thenReturn(nestedType);
+
+        valueType = new RecordValueType(typeManager, NESTED.toString());
+    }
+
+    private FieldType newFieldType(ValueType fieldValueType, String name)
+            throws Exception {
+        FieldType fieldType = new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), fieldValueType,
+                new QName("ns", name), Scope.NON_VERSIONED);
+        when(typeManager.getFieldTypeById(fieldType.getId())).thenReturn(fieldType);
+        return fieldType;
+    }
+
+    private Record newRecord(boolean allFields) {
+        Record record = new RecordImpl();
+        record.setRecordType(NESTED);
+        record.setField(stringField.getName(), "value");
+        record.setField(baseField.getName(), "base value");
+        if (allFields) {
+            record.setField(longField.getName(), 5L);
+        }
+        return record;
+    }
+
+    private IdRecord roundTrip(Record record) throws Exception {
+        byte[] bytes = valueType.toBytes(record, new IdentityRecordStack());
+        return (IdRecord)valueType.read(new DataInputImpl(bytes));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        IdRecord record = roundTrip(newRecord(true));
+        assertEquals(NESTED, record.getRecordTypeName());
+        assertEquals("value", record.getField(stringField.getName()));
+        assertEquals(Long.valueOf(5L), record.getField(longField.getName()));
+        assertEquals("base value", record.getField(baseField.getName()));
+        assertEquals(3, record.getFieldIdToNameMapping().size());
+        assertEquals("base value", record.getField(baseField.getId()));
+
+        // Only the fields which are present are part of the id mapping
+        record = roundTrip(newRecord(false));
+        assertEquals(2, record.getFieldIdToNameMapping().size());
+        assertFalse(record.hasField(longField.getId()));
+    }
+
+    @Test
+    public void testCodecIsCached() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            roundTrip(newRecord(true));
+        }
+        verify(typeManager, times(1)).getRecordTypeByName(NESTED, null);
+        verify(typeManager, times(1)).getFieldTypeById(stringField.getId());
+        verify(typeManager, times(1)).getFieldTypeById(baseField.getId());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        byte[] bytes = valueType.toBytes(newRecord(true), new IdentityRecordStack());
+        assertEquals("value", ((Record)valueType.read(new DataInputImpl(bytes))).getField(stringField.getName()));
+
+        FieldType renamed = stringField.clone();
+        renamed.setName(new QName("ns", "renamed"));
+        when(typeManager.getFieldTypeById(stringField.getId())).thenReturn(renamed);
+
+        // The cached codec still uses the old name until the cache is invalidated
+        assertEquals("value", ((Record)valueType.read(new DataInputImpl(bytes))).getField(stringField.getName()));
+        codecCache.invalidate();
+        Record record = valueType.read(new DataInputImpl(bytes));
+        assertEquals("value", record.getField(renamed.getName()));
+        assertFalse(record.hasField(stringField.getName()));
+    }
+
+    @Test
+    public void testFieldNotInRecordType() throws Exception {
+        Record record = newRecord(true);
+        record.setField(new QName("ns", "other"), "value");
+        try {
+            valueType.toBytes(record, new IdentityRecordStack());
+            fail("Expected an InvalidRecordException");
+        } catch (InvalidRecordException e) {
+            // expected
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.util.Map;
 import org.lilyproject.util.hbase.RepoAndTableUtil;
 
 import com.google.common.collect.Maps;
-import com.ngdata.sep.EventPublisher;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.LilyHBaseSchema;
@@ -29,14 +28,14 @@ import org.lilyproject.util.hbase.LilyHBaseSchema;
 public class LilyEventPublisherManager {
 
     private HBaseTableFactory tableFactory;
-    private Map<String,EventPublisher> eventPublishers;
+    private Map<String,LilyHBaseEventPublisher> eventPublishers;
 
     public LilyEventPublisherManager(HBaseTableFactory tableFactory) {
         this.tableFactory = tableFactory;
         eventPublishers = Maps.newHashMap();
     }
 
-    public synchronized EventPublisher getEventPublisher(String repositoryName, String tableName)
+    public synchronized LilyHBaseEventPublisher getEventPublisher(String repositoryName, String tableName)
             throws IOException, InterruptedException {
         String hbaseTableName = RepoAndTableUtil.getHBaseTableName(repositoryName, tableName);
         if (!eventPublishers.containsKey(hbaseTableName)) {
@@ -45,7 +44,7 @@ public class LilyEventPublisherManager {
         return eventPublishers.get(hbaseTableName);
     }
 
-    private EventPublisher createEventPublisher(String repositoryName, String tableName) throws IOException, InterruptedException {
+    private LilyHBaseEventPublisher createEventPublisher(String repositoryName, String tableName) throws IOException, InterruptedException {
         HTableInterface recordTable = LilyHBaseSchema.getRecordTable(tableFactory, repositoryName, tableName);
         return new LilyHBaseEventPublisher(recordTable);
     }
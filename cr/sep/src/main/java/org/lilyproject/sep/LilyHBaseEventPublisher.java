@@ -16,12 +16,16 @@
 package org.lilyproject.sep;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.ngdata.sep.impl.HBaseEventPublisher;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.util.hbase.LilyHBaseSchema;
 import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
@@ -49,4 +53,46 @@ public class LilyHBaseEventPublisher extends HBaseEventPublisher {
             LogFactory.getLog(getClass()).warn("Did not publish event as requested, row=" + Arrays.toString(row));
     }
 
+    /**
+     * Publishes multiple events with one batch of puts, after checking with one batch of gets which of the records
+     * exist.
+     *
+     * <p>Unlike {@link #publishEvent(byte[], byte[])}, the check and the put are not atomic: if a record is
+     * deleted in between, its event is still put on the (deleted) row.</p>
+     *
+     * @param rows the rows of the events
+     * @param payloads the payloads of the events, in the same order as the rows
+     */
+    public void publishEvents(List<byte[]> rows, List<byte[]> payloads) throws IOException {
+        if (rows.size() != payloads.size()) {
+            throw new IllegalArgumentException("The number of rows and payloads should be equal.");
+        }
+
+        List<Get> gets = new ArrayList<Get>(rows.size());
+        for (byte[] row : rows) {
+            Get get = new Get(row);
+            get.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+            gets.add(get);
+        }
+        Result[] results = getPayloadTable().get(gets);
+
+        List<Put> messagePuts = new ArrayList<Put>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            byte[] deleted = results[i] != null ?
+                    results[i].getValue(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes) : null;
+            if (deleted != null && Bytes.equals(deleted, FALSE_BYTES)) {
+                Put messagePut = new Put(rows.get(i));
+                messagePut.add(RecordCf.DATA.bytes, RecordColumn.PAYLOAD.bytes, 1L, payloads.get(i));
+                messagePuts.add(messagePut);
+            } else {
+                LogFactory.getLog(getClass()).warn("Did not publish event as requested, row=" +
+                        Arrays.toString(rows.get(i)));
+            }
+        }
+
+        if (!messagePuts.isEmpty()) {
+            getPayloadTable().put(messagePuts);
+        }
+    }
+
 }
@@ -17,20 +17,29 @@ package org.lilyproject.sep;
 
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 import com.ngdata.sep.impl.HBaseEventPublisher;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Before;
 import org.junit.Test;
 import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
 import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.mockito.ArgumentCaptor;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Adapter from the Lily ZooKeeperItf interface and the HBase SEP ZooKeepterItf interface.
@@ -61,4 +70,32 @@ public class LilyHBaseEventPublisherTest {
                 aryEq(Bytes.toBytes(false)), any(Put.class));
     }
 
+    @Test
+    public void testPublishEvents_OnlyExistingRows() throws IOException {
+        byte[] existingRow = Bytes.toBytes("existing-row");
+        byte[] deletedRow = Bytes.toBytes("deleted-row");
+        byte[] missingRow = Bytes.toBytes("missing-row");
+        byte[] messagePayload = Bytes.toBytes("payload");
+
+        when(recordTable.get(any(List.class))).thenReturn(new Result[] {
+                new Result(new KeyValue[] {new KeyValue(existingRow, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes,
+                        Bytes.toBytes(false))}),
+                new Result(new KeyValue[] {new KeyValue(deletedRow, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes,
+                        Bytes.toBytes(true))}),
+                new Result()});
+
+        ((LilyHBaseEventPublisher)eventPublisher).publishEvents(Arrays.asList(existingRow, deletedRow, missingRow),
+                Arrays.asList(messagePayload, messagePayload, messagePayload));
+
+        ArgumentCaptor<List> gets = ArgumentCaptor.forClass(List.class);
+        verify(recordTable).get(gets.capture());
+        assertEquals(3, gets.getValue().size());
+        assertArrayEquals(deletedRow, ((Get)gets.getValue().get(1)).getRow());
+
+        ArgumentCaptor<List> puts = ArgumentCaptor.forClass(List.class);
+        verify(recordTable).put(puts.capture());
+        assertEquals(1, puts.getValue().size());
+        assertArrayEquals(existingRow, ((Put)puts.getValue().get(0)).getRow());
+    }
+
 }
@@ -34,6 +34,7 @@ import java.util.concurrent.TimeoutException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.Append;
 import org.apache.hadoop.hbase.client.Delete;
@@ -450,6 +451,19 @@ public class LocalHTable implements HTableInterface {
         });
     }
 
+    /**
+     * Returns the location of the region containing the given row. This is not part of HTableInterface,
+     * but is useful to group operations per region. The locations are cached by the HConnection.
+     */
+    public HRegionLocation getRegionLocation(final byte[] row) throws IOException {
+        return runNoIE(new TableRunnable<HRegionLocation>() {
+            @Override
+            public HRegionLocation run(HTableInterface table) throws IOException, InterruptedException {
+                return ((HTable)table).getRegionLocation(row);
+            }
+        });
+    }
+
     @Override
     public Result increment(final Increment increment) throws IOException {
         return runNoIE(new TableRunnable<Result>() {
@@ -31,6 +31,15 @@ abstract class BaseQueryResult implements QueryResult {
         this.definition = definition;
     }
 
+    @Override
+    public byte[] skipTo(byte[] identifier) throws IOException {
+        byte[] key;
+        do {
+            key = next();
+        } while (key != null && Bytes.compareTo(key, identifier) < 0);
+        return key;
+    }
+
     @Override
     public byte[] getData(byte[] qualifier) {
         if (currentResult != null) {
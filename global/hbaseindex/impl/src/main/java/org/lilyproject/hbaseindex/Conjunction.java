@@ -32,14 +32,10 @@ import org.apache.hadoop.hbase.util.Bytes;
  * <p>A Conjunction itself also returns its results in increasing identifier
  * order, and can hence serve as input to other Conjunctions.
  *
- * <p>TODO the implementation is currently not optimal if lots of rows need
- * to be skipped to move to the next common result, since this is done by
- * iterating one result at a time using next() calls. It would be better to
- * directly skip to the next appropriate result. HBase scanners don't support
- * this natively, so to skip we would rather need to open a new scanner. But
- * we can't exactly know on beforehand if this will be beneficial or not. Maybe
- * we could have some heuristic for this, e.g. after 10 next() calls open a new
- * scanner to jump directly to the next relevant result.
+ * <p>When one side is behind, it is moved forward using {@link QueryResult#skipTo},
+ * so that results which are not relevant don't need to be iterated one by one.
+ * Scanner-based results position a new scanner on the key if the jump is not
+ * a short one, see {@link ScannerQueryResult}.
  */
 public class Conjunction extends BaseQueryResult {
     private QueryResult result1;
@@ -53,9 +49,19 @@ public class Conjunction extends BaseQueryResult {
 
     @Override
     public byte[] next() throws IOException {
-        byte[] key1 = result1.next();
-        byte[] key2 = result2.next();
+        return join(result1.next(), result2.next());
+    }
+
+    @Override
+    public byte[] skipTo(byte[] identifier) throws IOException {
+        return join(result1.skipTo(identifier), result2.skipTo(identifier));
+    }
 
+    /**
+     * Leapfrog intersection: the side which is behind skips to the key of the other side, rather than
+     * stepping through all the keys in between.
+     */
+    private byte[] join(byte[] key1, byte[] key2) throws IOException {
         if (key1 == null || key2 == null) {
             return null;
         }
@@ -64,22 +70,17 @@ public class Conjunction extends BaseQueryResult {
 
         while (cmp != 0) {
             if (cmp < 0) {
-                while (cmp < 0) {
-                    key1 = result1.next();
-                    if (key1 == null) {
-                        return null;
-                    }
-                    cmp = Bytes.compareTo(key1, key2);
+                key1 = result1.skipTo(key2);
+                if (key1 == null) {
+                    return null;
                 }
-            } else if (cmp > 0) {
-                while (cmp > 0) {
-                    key2 = result2.next();
-                    if (key2 == null) {
-                        return null;
-                    }
-                    cmp = Bytes.compareTo(key1, key2);
+            } else {
+                key2 = result2.skipTo(key1);
+                if (key2 == null) {
+                    return null;
                 }
             }
+            cmp = Bytes.compareTo(key1, key2);
         }
 
         currentQResult = result1;
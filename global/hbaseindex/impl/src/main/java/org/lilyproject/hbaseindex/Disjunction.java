@@ -81,6 +81,25 @@ public class Disjunction extends BaseQueryResult {
         }
     }
 
+    @Override
+    public byte[] skipTo(byte[] identifier) throws IOException {
+        if (!init) {
+            key1 = result1.skipTo(identifier);
+            key2 = result2.skipTo(identifier);
+            init = true;
+        } else {
+            // The keys which are already read ahead have not been returned yet, they only need to move
+            // if they are before the identifier
+            if (key1 != null && Bytes.compareTo(key1, identifier) < 0) {
+                key1 = result1.skipTo(identifier);
+            }
+            if (key2 != null && Bytes.compareTo(key2, identifier) < 0) {
+                key2 = result2.skipTo(identifier);
+            }
+        }
+        return next();
+    }
+
     @Override
     public void close() {
         result1.close();
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import com.gotometrics.orderly.Order;
 import com.gotometrics.orderly.RowKey;
 import com.gotometrics.orderly.StructBuilder;
 import com.gotometrics.orderly.StructRowKey;
@@ -286,7 +287,15 @@ public class Index {
         scan.setFilter(filters);
         scan.setCaching(30);
 
-        return new ScannerQueryResult(htable.getScanner(scan), definition);
+        // When all index fields have a fixed value, the position of each identifier can be computed, which
+        // allows the query result to skip ahead
+        Object[] fieldValues = null;
+        if (!rangeCondSet && usedConditionsCount == definition.getFields().size()
+                && definition.getIdentifierIndexFieldDefinition().getOrder() == Order.ASCENDING) {
+            fieldValues = fromKeyComponents.toArray();
+        }
+
+        return new ScannerQueryResult(htable, scan, fieldValues, definition);
     }
 
     /**
@@ -30,6 +30,19 @@ public interface QueryResult extends Closeable {
      */
     byte[] next() throws IOException;
 
+    /**
+     * Move to and return the first result following the current one of which the identifier is equal to
+     * or larger than the given identifier (in byte order), skipping over the results in between.
+     *
+     * <p>This is what allows {@link Conjunction} to leapfrog over the results of its most selective side.
+     * Implementations which can position themselves directly on an identifier do so, others simply call
+     * {@link #next} until they reach it. Like the merge joins, this assumes the results are sorted on
+     * identifier, which is the case when the query has equals conditions on all fields of the index.</p>
+     *
+     * @return the identifier of the next matching query result, or null if the end is reached.
+     */
+    byte[] skipTo(byte[] identifier) throws IOException;
+
     /**
      * Retrieves data that was stored as part of the {@link IndexEntry} from the current index
      * entry (corresponding to the last {@link #next} call).
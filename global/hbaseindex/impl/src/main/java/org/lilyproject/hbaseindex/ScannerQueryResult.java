@@ -16,20 +16,45 @@
 package org.lilyproject.hbaseindex;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import com.gotometrics.orderly.StructIterator;
 import com.gotometrics.orderly.StructRowKey;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * A QueryResult on top of a HBase scanner.
+ *
+ * <p>If the position of an identifier in the index can be computed, which is when the query has equals
+ * conditions on all index fields and the identifiers are in ascending order, {@link #skipTo} opens a new
+ * scanner starting at that identifier. Since opening a scanner costs a round trip, this is only done after
+ * having tried the rows which the current scanner might have fetched already.</p>
  */
 class ScannerQueryResult extends BaseQueryResult {
+    /**
+     * Number of rows to try with next() before opening a new scanner, same as the scanner caching.
+     */
+    static final int SKIP_BY_NEXT_LIMIT = 30;
+
+    private final HTableInterface htable;
+    private final Scan scan;
+    private final Object[] fieldValues;
     private ResultScanner scanner;
 
-    ScannerQueryResult(ResultScanner scanner, IndexDefinition definition) {
+    /**
+     * @param fieldValues the values of all index fields, which are the same for all results, or null if the
+     *                    query does not have such values
+     */
+    ScannerQueryResult(HTableInterface htable, Scan scan, Object[] fieldValues, IndexDefinition definition)
+            throws IOException {
         super(definition);
-        this.scanner = scanner;
+        this.htable = htable;
+        this.scan = scan;
+        this.fieldValues = fieldValues;
+        this.scanner = htable.getScanner(scan);
     }
 
     @Override
@@ -44,6 +69,31 @@ class ScannerQueryResult extends BaseQueryResult {
         return decodeIdentifierFrom(rowKey);
     }
 
+    @Override
+    public byte[] skipTo(byte[] identifier) throws IOException {
+        if (fieldValues == null) {
+            return super.skipTo(identifier);
+        }
+
+        for (int i = 0; i < SKIP_BY_NEXT_LIMIT; i++) {
+            byte[] key = next();
+            if (key == null || Bytes.compareTo(key, identifier) >= 0) {
+                return key;
+            }
+        }
+
+        Object[] rowKeyValues = Arrays.copyOf(fieldValues, fieldValues.length + 1);
+        rowKeyValues[fieldValues.length] = identifier;
+        byte[] startRow = definition.asStructRowKey().serialize(rowKeyValues);
+
+        Scan skipScan = new Scan(scan);
+        skipScan.setStartRow(startRow);
+        scanner.close();
+        scanner = htable.getScanner(skipScan);
+
+        return next();
+    }
+
     private byte[] decodeIdentifierFrom(byte[] rowKey) throws IOException {
         final StructRowKey structRowKey = definition.asStructRowKey();
         structRowKey.iterateOver(rowKey);
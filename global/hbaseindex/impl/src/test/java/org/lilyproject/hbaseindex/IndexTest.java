@@ -971,6 +971,48 @@ public class IndexTest {
         assertEquals("foo", result.getDataAsString("originalValue"));
     }
 
+    @Test
+    public void testSkipTo() throws Exception {
+        final String INDEX_NAME = "skipTo";
+        IndexManager indexManager = new IndexManager(HBASE_PROXY.getConf());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        Index index = indexManager.getIndex(indexDef);
+
+        for (int i = 0; i < 200; i++) {
+            for (String value : new String[]{"a", "b"}) {
+                IndexEntry entry = new IndexEntry(indexDef);
+                entry.addField("field1", value);
+                entry.addField("field2", 5);
+                entry.setIdentifier(Bytes.toBytes(String.format("key%03d", i * 2)));
+                index.addEntry(entry);
+            }
+        }
+
+        // Equals conditions on all fields: long skips open a new scanner
+        Query query = new Query();
+        query.addEqualsCondition("field1", "a");
+        query.addEqualsCondition("field2", 5);
+        QueryResult result = index.performQuery(query);
+
+        assertEquals("key000", Bytes.toString(result.next()));
+        assertEquals("key010", Bytes.toString(result.skipTo(Bytes.toBytes("key009"))));
+        assertEquals("key200", Bytes.toString(result.skipTo(Bytes.toBytes("key200"))));
+        assertEquals("key202", Bytes.toString(result.next()));
+        assertEquals("key398", Bytes.toString(result.skipTo(Bytes.toBytes("key397"))));
+        assertNull(result.skipTo(Bytes.toBytes("key399")));
+        result.close();
+
+        // Only a condition on the first field: skipping is done by iterating
+        query = new Query();
+        query.addEqualsCondition("field1", "b");
+        result = index.performQuery(query);
+        assertEquals("key300", Bytes.toString(result.skipTo(Bytes.toBytes("key299"))));
+        result.close();
+    }
+
     private void assertResultIds(QueryResult result, String... expectedIdentifiers) throws IOException {
         int resultIdx = 0;
         byte[] identifier;
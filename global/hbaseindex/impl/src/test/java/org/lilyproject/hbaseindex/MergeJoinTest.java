@@ -55,6 +55,47 @@ public class MergeJoinTest {
         assertNull(result.next());
     }
 
+    @Test
+    public void testConjunctionSkipTo() throws Exception {
+        String[] values1 = {"a", "b", "c", "f", "g", "h"};
+        String[] values2 = {"b", "c", "d", "e", "f", "h"};
+
+        QueryResult result = new Conjunction(buildQueryResult(values1), buildQueryResult(values2));
+
+        assertEquals("b", Bytes.toString(result.next()));
+        assertEquals("f", Bytes.toString(result.skipTo(Bytes.toBytes("d"))));
+        assertEquals("h", Bytes.toString(result.skipTo(Bytes.toBytes("h"))));
+        assertNull(result.skipTo(Bytes.toBytes("i")));
+    }
+
+    @Test
+    public void testDisjunctionSkipTo() throws Exception {
+        String[] values1 = {"a", "b", "c", "f", "g"};
+        String[] values2 = {"b", "c", "d", "e", "f"};
+
+        QueryResult result = new Disjunction(buildQueryResult(values1), buildQueryResult(values2));
+
+        assertEquals("c", Bytes.toString(result.skipTo(Bytes.toBytes("c"))));
+        assertEquals("d", Bytes.toString(result.next()));
+        assertEquals("f", Bytes.toString(result.skipTo(Bytes.toBytes("f"))));
+        assertEquals("g", Bytes.toString(result.next()));
+        assertNull(result.skipTo(Bytes.toBytes("h")));
+    }
+
+    @Test
+    public void testNestedConjunction() throws Exception {
+        String[] values1 = {"a", "b", "c", "d", "e", "f", "g"};
+        String[] values2 = {"b", "d", "f", "g"};
+        String[] values3 = {"c", "d", "g"};
+
+        QueryResult result = new Conjunction(buildQueryResult(values1),
+                new Conjunction(buildQueryResult(values2), buildQueryResult(values3)));
+
+        assertEquals("d", Bytes.toString(result.next()));
+        assertEquals("g", Bytes.toString(result.next()));
+        assertNull(result.next());
+    }
+
     private QueryResult buildQueryResult(String[] values) {
         List<byte[]> byteValues = new ArrayList<byte[]>(values.length);
 
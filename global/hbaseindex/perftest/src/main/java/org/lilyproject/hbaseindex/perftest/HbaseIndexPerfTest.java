@@ -15,6 +15,7 @@
  */
 package org.lilyproject.hbaseindex.perftest;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,7 +23,9 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.hbaseindex.Conjunction;
 import org.lilyproject.hbaseindex.Index;
 import org.lilyproject.hbaseindex.IndexDefinition;
 import org.lilyproject.hbaseindex.IndexEntry;
@@ -39,6 +42,14 @@ import org.lilyproject.util.Version;
 public class HbaseIndexPerfTest extends BaseTestTool {
     private Index index;
 
+    /**
+     * Index in which all entries have the tag "all" and one in {@link #RARE_TAG_RATIO} also has the tag "rare",
+     * used to compare leapfrogging conjunctions with plain merging ones.
+     */
+    private Index tagIndex;
+
+    private static final int RARE_TAG_RATIO = 100;
+
     private IdGenerator idGenerator = new IdGeneratorImpl();
 
     private Option initialInsertOption;
@@ -116,6 +127,11 @@ public class HbaseIndexPerfTest extends BaseTestTool {
 
         index = indexMgr.getIndex(indexDef);
 
+        IndexDefinition tagIndexDef = new IndexDefinition(indexName + "-tags");
+        tagIndexDef.addStringField("tag");
+
+        tagIndex = indexMgr.getIndex(tagIndexDef);
+
         initialInserts = OptionUtil.getIntOption(cmd, initialInsertOption, 5000000);
         initialInsertsBatchSize = OptionUtil.getIntOption(cmd, initialInsertBatchOption, 300);
         loops = OptionUtil.getIntOption(cmd, loopsOption, 100000);
@@ -158,6 +174,8 @@ public class HbaseIndexPerfTest extends BaseTestTool {
             executor.submit(new BulkInserter(1));
             executor.submit(new StringRangeQuery());
             executor.submit(new BulkInserter(5));
+            executor.submit(new ConjunctionQuery(true));
+            executor.submit(new ConjunctionQuery(false));
         }
 
         stopExecutor();
@@ -174,25 +192,133 @@ public class HbaseIndexPerfTest extends BaseTestTool {
         public void run() {
             try {
                 List<IndexEntry> entries = new ArrayList<IndexEntry>(amount);
+                List<IndexEntry> tagEntries = new ArrayList<IndexEntry>(amount);
 
                 for (int i = 0; i < amount; i++) {
+                    byte[] identifier = idGenerator.newRecordId().toBytes();
+
                     IndexEntry entry = new IndexEntry(index.getDefinition());
                     entry.addField("word", Words.get());
                     entry.addField("number", (long) Math.floor(Math.random() * Long.MAX_VALUE));
-                    entry.setIdentifier(idGenerator.newRecordId().toBytes());
+                    entry.setIdentifier(identifier);
                     entries.add(entry);
+
+                    tagEntries.add(createTagEntry("all", identifier));
+                    if ((int) Math.floor(Math.random() * RARE_TAG_RATIO) == 0) {
+                        tagEntries.add(createTagEntry("rare", identifier));
+                    }
                 }
 
                 long before = System.nanoTime();
                 index.addEntries(entries);
                 double duration = System.nanoTime() - before;
                 metrics.increment("Index insert in batch of " + amount, "I", amount, duration / 1e6d);
+
+                tagIndex.addEntries(tagEntries);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private IndexEntry createTagEntry(String tag, byte[] identifier) {
+        IndexEntry entry = new IndexEntry(tagIndex.getDefinition());
+        entry.addField("tag", tag);
+        entry.setIdentifier(identifier);
+        return entry;
+    }
+
+    /**
+     * Intersects the common tag with the rare one. With skipping, the side with the common tag jumps from
+     * one rare identifier to the next, without skipping it has to iterate over all entries in between.
+     */
+    private class ConjunctionQuery implements Runnable {
+        private boolean skip;
+
+        ConjunctionQuery(boolean skip) {
+            this.skip = skip;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Query allQuery = new Query();
+                allQuery.addEqualsCondition("tag", "all");
+                Query rareQuery = new Query();
+                rareQuery.addEqualsCondition("tag", "rare");
+
+                int resultCount = 0;
+                String name = skip ? "Conjunction with skipTo" : "Conjunction without skipTo";
+
+                long before = System.nanoTime();
+                QueryResult allResult = tagIndex.performQuery(allQuery);
+                if (!skip) {
+                    allResult = new NonSkippingQueryResult(allResult);
+                }
+                QueryResult result = new Conjunction(allResult, tagIndex.performQuery(rareQuery));
+                while (result.next() != null && resultCount < maxResults) {
+                    resultCount++;
+                }
+                double duration = System.nanoTime() - before;
+                metrics.increment(name + " duration", "C", duration / 1e6d);
+                metrics.increment(name + " # of results", resultCount);
+                result.close();
             } catch (Throwable t) {
                 t.printStackTrace();
             }
         }
     }
 
+    /**
+     * Hides the skipTo implementation of a query result, so that it is done by iterating.
+     */
+    private static class NonSkippingQueryResult implements QueryResult {
+        private QueryResult delegate;
+
+        NonSkippingQueryResult(QueryResult delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            return delegate.next();
+        }
+
+        @Override
+        public byte[] skipTo(byte[] identifier) throws IOException {
+            byte[] key;
+            do {
+                key = delegate.next();
+            } while (key != null && Bytes.compareTo(key, identifier) < 0);
+            return key;
+        }
+
+        @Override
+        public byte[] getData(byte[] qualifier) {
+            return delegate.getData(qualifier);
+        }
+
+        @Override
+        public byte[] getData(String qualifier) {
+            return delegate.getData(qualifier);
+        }
+
+        @Override
+        public String getDataAsString(String qualifier) {
+            return delegate.getDataAsString(qualifier);
+        }
+
+        @Override
+        public Object getIndexField(String fieldName) throws IOException {
+            return delegate.getIndexField(fieldName);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
     private class SingleFieldEqualsQuery implements Runnable {
         @Override
         public void run() {
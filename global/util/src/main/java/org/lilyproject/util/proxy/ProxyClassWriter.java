@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the class file of a proxy class, see {@link ProxyFactory}. The class implements the interface with a
+ * method per entry of the methods array, which performs the call as described in {@link ProxyHandler} with
+ * a typed invokeinterface on the target, so without reflection nor boxing of arguments. The methods of Object
+ * are called with invokevirtual.
+ *
+ * <p>The class is written in the Java 5 class file format, which doesn't need stack map frames.</p>
+ */
+class ProxyClassWriter {
+    private static final int CLASS_VERSION = 49;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final String HANDLER = ProxyHandler.class.getName().replace('.', '/');
+    private static final String HANDLER_FIELD = "handler";
+    private static final String HANDLER_DESC = "L" + HANDLER + ";";
+
+    private final String className;
+    private final Class<?> type;
+    private final Method[] methods;
+
+    private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+    private int constantCount = 1;
+
+    /**
+     * @param className the binary name of the class, with slashes
+     */
+    ProxyClassWriter(String className, Class<?> type, Method[] methods) {
+        this.className = className;
+        this.type = type;
+        this.methods = methods;
+    }
+
+    byte[] write() throws IOException {
+        // The constant pool is collected while writing the rest of the class
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+
+        body.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        body.writeShort(classConstant(className));
+        body.writeShort(classConstant("java/lang/Object"));
+        body.writeShort(1);
+        body.writeShort(classConstant(internalName(type)));
+
+        body.writeShort(1);
+        body.writeShort(ACC_PRIVATE | ACC_FINAL);
+        body.writeShort(utf8Constant(HANDLER_FIELD));
+        body.writeShort(utf8Constant(HANDLER_DESC));
+        body.writeShort(0);
+
+        body.writeShort(methods.length + 1);
+        writeConstructor(body);
+        for (int i = 0; i < methods.length; i++) {
+            writeMethod(body, i, methods[i]);
+        }
+
+        body.writeShort(0);
+        body.flush();
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        out.writeShort(constantCount);
+        constantPool.flush();
+        constantPoolBytes.writeTo(out);
+        bodyBytes.writeTo(out);
+        out.flush();
+        return classBytes.toByteArray();
+    }
+
+    private void writeConstructor(DataOutputStream out) throws IOException {
+        Code code = new Code();
+        code.op(0x2a); // aload_0
+        code.op(0xb7); // invokespecial
+        code.u2(memberConstant(10, "java/lang/Object", "<init>", "()V"));
+        code.op(0x2a); // aload_0
+        code.op(0x2b); // aload_1
+        code.op(0xb5); // putfield
+        code.u2(handlerFieldConstant());
+        code.op(0xb1); // return
+
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(utf8Constant("<init>"));
+        out.writeShort(utf8Constant("(" + HANDLER_DESC + ")V"));
+        out.writeShort(1);
+        writeCode(out, code, 2, 2, null);
+    }
+
+    private void writeMethod(DataOutputStream out, int index, Method method) throws IOException {
+        Class<?>[] paramTypes = method.getParameterTypes();
+        Class<?> returnType = method.getReturnType();
+
+        int paramSlots = 0;
+        for (Class<?> paramType : paramTypes) {
+            paramSlots += slots(paramType);
+        }
+        int tokenLocal = 1 + paramSlots;
+        int resultLocal = tokenLocal + 1;
+        int throwableLocal = resultLocal + slots(returnType);
+
+        Code code = new Code();
+
+        // token = handler.before(index)
+        loadHandler(code);
+        pushInt(code, index);
+        code.op(0xb6); // invokevirtual
+        code.u2(memberConstant(10, HANDLER, "before", "(I)Ljava/lang/Object;"));
+        code.local(0x3a, tokenLocal); // astore
+
+        if (returnType == void.class) {
+            // if (token == SKIP) return
+            code.local(0x19, tokenLocal); // aload
+            code.op(0xb2); // getstatic
+            code.u2(fieldConstant(HANDLER, "SKIP", "Ljava/lang/Object;"));
+            code.op(0xa6); // if_acmpne, jumps over the return
+            code.u2(4);
+            code.op(0xb1); // return
+        }
+
+        // result = ((T)handler.getTarget(token)).method(args)
+        int loop = code.length();
+        loadHandler(code);
+        code.local(0x19, tokenLocal); // aload
+        code.op(0xb6); // invokevirtual
+        code.u2(memberConstant(10, HANDLER, "getTarget", "(Ljava/lang/Object;)Ljava/lang/Object;"));
+        code.op(0xc0); // checkcast
+        code.u2(classConstant(internalName(type)));
+        int slot = 1;
+        for (Class<?> paramType : paramTypes) {
+            code.local(loadOpcode(paramType), slot);
+            slot += slots(paramType);
+        }
+        if (method.getDeclaringClass() == Object.class) {
+            code.op(0xb6); // invokevirtual
+            code.u2(memberConstant(10, "java/lang/Object", method.getName(), methodDescriptor(method)));
+        } else {
+            code.op(0xb9); // invokeinterface
+            code.u2(memberConstant(11, internalName(type), method.getName(), methodDescriptor(method)));
+            code.op(1 + paramSlots);
+            code.op(0);
+        }
+        if (returnType != void.class) {
+            code.local(storeOpcode(returnType), resultLocal);
+        }
+        int tryEnd = code.length();
+
+        // handler.after(token); return result
+        loadHandler(code);
+        code.local(0x19, tokenLocal); // aload
+        code.op(0xb6); // invokevirtual
+        code.u2(memberConstant(10, HANDLER, "after", "(Ljava/lang/Object;)V"));
+        if (returnType != void.class) {
+            code.local(loadOpcode(returnType), resultLocal);
+        }
+        code.op(returnOpcode(returnType));
+
+        // catch (Throwable t) { token = handler.failed(index, token, t); continue }
+        int catchStart = code.length();
+        code.local(0x3a, throwableLocal); // astore
+        loadHandler(code);
+        pushInt(code, index);
+        code.local(0x19, tokenLocal); // aload
+        code.local(0x19, throwableLocal); // aload
+        code.op(0xb6); // invokevirtual
+        code.u2(memberConstant(10, HANDLER, "failed", "(ILjava/lang/Object;Ljava/lang/Throwable;)Ljava/lang/Object;"));
+        code.local(0x3a, tokenLocal); // astore
+        int jump = code.length();
+        code.op(0xa7); // goto
+        code.u2(loop - jump);
+
+        Class<?>[] exceptionTypes = method.getExceptionTypes();
+
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(utf8Constant(method.getName()));
+        out.writeShort(utf8Constant(methodDescriptor(method)));
+        out.writeShort(exceptionTypes.length > 0 ? 2 : 1);
+        writeCode(out, code, Math.max(4, 1 + paramSlots), throwableLocal + 1, new int[] {loop, tryEnd, catchStart});
+
+        if (exceptionTypes.length > 0) {
+            out.writeShort(utf8Constant("Exceptions"));
+            out.writeInt(2 + 2 * exceptionTypes.length);
+            out.writeShort(exceptionTypes.length);
+            for (Class<?> exceptionType : exceptionTypes) {
+                out.writeShort(classConstant(internalName(exceptionType)));
+            }
+        }
+    }
+
+    /**
+     * @param catchAll start, end and handler of the exception table entry which catches all exceptions, or null
+     */
+    private void writeCode(DataOutputStream out, Code code, int maxStack, int maxLocals, int[] catchAll)
+            throws IOException {
+        byte[] bytes = code.toByteArray();
+        out.writeShort(utf8Constant("Code"));
+        out.writeInt(12 + bytes.length + (catchAll != null ? 8 : 0));
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        if (catchAll != null) {
+            out.writeShort(1);
+            out.writeShort(catchAll[0]);
+            out.writeShort(catchAll[1]);
+            out.writeShort(catchAll[2]);
+            out.writeShort(0);
+        } else {
+            out.writeShort(0);
+        }
+        out.writeShort(0);
+    }
+
+    private void loadHandler(Code code) throws IOException {
+        code.op(0x2a); // aload_0
+        code.op(0xb4); // getfield
+        code.u2(handlerFieldConstant());
+    }
+
+    private void pushInt(Code code, int value) throws IOException {
+        if (value <= 5) {
+            code.op(0x03 + value); // iconst_<n>
+        } else if (value <= Byte.MAX_VALUE) {
+            code.op(0x10); // bipush
+            code.op(value);
+        } else {
+            code.op(0x11); // sipush
+            code.u2(value);
+        }
+    }
+
+    private static int slots(Class<?> type) {
+        return type == void.class ? 0 : type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static int loadOpcode(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return 0x19; // aload
+        } else if (type == long.class) {
+            return 0x16; // lload
+        } else if (type == float.class) {
+            return 0x17; // fload
+        } else if (type == double.class) {
+            return 0x18; // dload
+        } else {
+            return 0x15; // iload
+        }
+    }
+
+    private static int storeOpcode(Class<?> type) {
+        // The store opcodes follow the load opcodes in the same order
+        return loadOpcode(type) - 0x15 + 0x36;
+    }
+
+    private static int returnOpcode(Class<?> type) {
+        if (type == void.class) {
+            return 0xb1; // return
+        } else if (!type.isPrimitive()) {
+            return 0xb0; // areturn
+        } else if (type == long.class) {
+            return 0xad; // lreturn
+        } else if (type == float.class) {
+            return 0xae; // freturn
+        } else if (type == double.class) {
+            return 0xaf; // dreturn
+        } else {
+            return 0xac; // ireturn
+        }
+    }
+
+    static String methodDescriptor(Method method) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Class<?> paramType : method.getParameterTypes()) {
+            descriptor.append(typeDescriptor(paramType));
+        }
+        descriptor.append(')').append(typeDescriptor(method.getReturnType()));
+        return descriptor.toString();
+    }
+
+    private static String typeDescriptor(Class<?> type) {
+        if (type.isArray()) {
+            return internalName(type);
+        } else if (!type.isPrimitive()) {
+            return "L" + internalName(type) + ";";
+        } else if (type == void.class) {
+            return "V";
+        } else if (type == boolean.class) {
+            return "Z";
+        } else if (type == byte.class) {
+            return "B";
+        } else if (type == char.class) {
+            return "C";
+        } else if (type == short.class) {
+            return "S";
+        } else if (type == int.class) {
+            return "I";
+        } else if (type == long.class) {
+            return "J";
+        } else if (type == float.class) {
+            return "F";
+        } else {
+            return "D";
+        }
+    }
+
+    private static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private int handlerFieldConstant() throws IOException {
+        return fieldConstant(className, HANDLER_FIELD, HANDLER_DESC);
+    }
+
+    private int utf8Constant(String value) throws IOException {
+        Integer index = constants.get("utf8 " + value);
+        if (index == null) {
+            constantPool.writeByte(1);
+            constantPool.writeUTF(value);
+            index = addConstant("utf8 " + value);
+        }
+        return index;
+    }
+
+    private int classConstant(String internalName) throws IOException {
+        Integer index = constants.get("class " + internalName);
+        if (index == null) {
+            int name = utf8Constant(internalName);
+            constantPool.writeByte(7);
+            constantPool.writeShort(name);
+            index = addConstant("class " + internalName);
+        }
+        return index;
+    }
+
+    private int nameAndTypeConstant(String name, String descriptor) throws IOException {
+        String key = "nameandtype " + name + " " + descriptor;
+        Integer index = constants.get(key);
+        if (index == null) {
+            int nameIndex = utf8Constant(name);
+            int descriptorIndex = utf8Constant(descriptor);
+            constantPool.writeByte(12);
+            constantPool.writeShort(nameIndex);
+            constantPool.writeShort(descriptorIndex);
+            index = addConstant(key);
+        }
+        return index;
+    }
+
+    private int fieldConstant(String owner, String name, String descriptor) throws IOException {
+        return memberConstant(9, owner, name, descriptor);
+    }
+
+    /**
+     * @param tag 9 for a field, 10 for a method of a class, 11 for a method of an interface
+     */
+    private int memberConstant(int tag, String owner, String name, String descriptor) throws IOException {
+        String key = "member" + tag + " " + owner + " " + name + " " + descriptor;
+        Integer index = constants.get(key);
+        if (index == null) {
+            int ownerIndex = classConstant(owner);
+            int nameAndTypeIndex = nameAndTypeConstant(name, descriptor);
+            constantPool.writeByte(tag);
+            constantPool.writeShort(ownerIndex);
+            constantPool.writeShort(nameAndTypeIndex);
+            index = addConstant(key);
+        }
+        return index;
+    }
+
+    private int addConstant(String key) {
+        int index = constantCount++;
+        if (index > 0xFFFF) {
+            throw new IllegalStateException("Too many constants in proxy class " + className);
+        }
+        constants.put(key, index);
+        return index;
+    }
+
+    /**
+     * The bytecode of a method.
+     */
+    private static class Code {
+        private final List<Byte> bytes = new ArrayList<Byte>();
+
+        void op(int value) {
+            bytes.add((byte)value);
+        }
+
+        void u2(int value) {
+            bytes.add((byte)(value >> 8));
+            bytes.add((byte)value);
+        }
+
+        /**
+         * Adds an instruction which takes a local variable index.
+         */
+        void local(int opcode, int index) {
+            if (index > 0xFF) {
+                op(0xc4); // wide
+                op(opcode);
+                u2(index);
+            } else {
+                op(opcode);
+                op(index);
+            }
+        }
+
+        int length() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[bytes.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = bytes.get(i);
+            }
+            return result;
+        }
+    }
+}
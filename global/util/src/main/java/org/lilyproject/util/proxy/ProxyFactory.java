@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.proxy;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates proxies for an interface, which delegate each call to a target as decided by a {@link ProxyHandler}.
+ *
+ * <p>In contrast with a {@link Proxy}, the proxies are instances of a class generated for the interface,
+ * which calls the target through the interface itself, so without {@link Method#invoke} and without boxing
+ * the arguments. If the class can't be generated, for example for an interface which isn't public,
+ * {@link Proxy} is used instead.</p>
+ *
+ * <p>The methods of Object (equals, hashCode, toString) are delegated to the target as well, like a
+ * {@link Proxy} whose invocation handler calls the target.</p>
+ */
+public final class ProxyFactory<T> {
+    private static final Log log = LogFactory.getLog(ProxyFactory.class);
+
+    /**
+     * The factories are referenced weakly, a factory is kept alive by the class loader of its proxy class,
+     * so that neither keeps the interface from being unloaded.
+     */
+    private static final Map<Class<?>, WeakReference<ProxyFactory<?>>> FACTORIES =
+            new WeakHashMap<Class<?>, WeakReference<ProxyFactory<?>>>();
+
+    private static final String[] OBJECT_METHODS = {"equals", "hashCode", "toString"};
+
+    private final Class<T> type;
+    private final Method[] methods;
+    private final Map<Method, Integer> methodIndexes = new HashMap<Method, Integer>();
+    private final Constructor<? extends T> constructor;
+
+    private ProxyFactory(Class<T> type) {
+        this.type = type;
+
+        // A method inherited from several interfaces is delegated once
+        List<Method> methods = new ArrayList<Method>();
+        Map<String, Integer> indexesBySignature = new HashMap<String, Integer>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            String signature = method.getName() + ProxyClassWriter.methodDescriptor(method);
+            Integer index = indexesBySignature.get(signature);
+            if (index == null) {
+                index = methods.size();
+                methods.add(method);
+                indexesBySignature.put(signature, index);
+            }
+            methodIndexes.put(method, index);
+        }
+        for (String name : OBJECT_METHODS) {
+            Method method = objectMethod(name);
+            String signature = method.getName() + ProxyClassWriter.methodDescriptor(method);
+            Integer index = indexesBySignature.get(signature);
+            if (index == null) {
+                index = methods.size();
+                methods.add(method);
+                indexesBySignature.put(signature, index);
+            }
+            // A dynamic proxy passes the methods of Object, also when the interface declares them
+            methodIndexes.put(method, index);
+        }
+        this.methods = methods.toArray(new Method[methods.size()]);
+
+        if (Modifier.isPublic(type.getModifiers())) {
+            this.constructor = generateProxyClass();
+        } else {
+            // The dynamic proxy calls the methods of a non-public interface from outside its package
+            for (Method method : this.methods) {
+                method.setAccessible(true);
+            }
+            this.constructor = null;
+        }
+    }
+
+    private static Method objectMethod(String name) {
+        try {
+            return name.equals("equals") ? Object.class.getMethod(name, Object.class) : Object.class.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the factory for the given interface. The proxy class of an interface is only generated once.
+     */
+    public static <T> ProxyFactory<T> forInterface(Class<T> type) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + type.getName());
+        }
+
+        synchronized (FACTORIES) {
+            WeakReference<ProxyFactory<?>> ref = FACTORIES.get(type);
+            ProxyFactory<T> factory = ref != null ? (ProxyFactory<T>)ref.get() : null;
+            if (factory == null) {
+                factory = new ProxyFactory<T>(type);
+                FACTORIES.put(type, new WeakReference<ProxyFactory<?>>(factory));
+            }
+            return factory;
+        }
+    }
+
+    /**
+     * The methods which are delegated: those of the interface, followed by those of Object it doesn't declare.
+     * The index of a method in this array is the method argument of the {@link ProxyHandler} methods.
+     */
+    public Method[] getMethods() {
+        return methods.clone();
+    }
+
+    public T newInstance(ProxyHandler handler) {
+        if (constructor == null) {
+            return (T)Proxy.newProxyInstance(type.getClassLoader(), new Class[] {type},
+                    new HandlerInvocationHandler(handler));
+        }
+
+        try {
+            return constructor.newInstance(handler);
+        } catch (Exception e) {
+            throw new RuntimeException("Error instantiating proxy for " + type.getName(), e);
+        }
+    }
+
+    private Constructor<? extends T> generateProxyClass() {
+        String className = ProxyFactory.class.getPackage().getName() + ".generated."
+                + type.getName().replace('.', '_') + "Proxy";
+        try {
+            byte[] classBytes = new ProxyClassWriter(className.replace('.', '/'), type, methods).write();
+            ProxyClassLoader classLoader = new ProxyClassLoader(type.getClassLoader(), this);
+            Class<? extends T> proxyClass = classLoader.defineProxyClass(className, classBytes).asSubclass(type);
+            return proxyClass.getConstructor(ProxyHandler.class);
+        } catch (Throwable t) {
+            log.warn("Could not generate proxy class for " + type.getName() + ", will use a dynamic proxy.", t);
+            return null;
+        }
+    }
+
+    /**
+     * Defines the proxy class, which needs to see the interface and {@link ProxyHandler}.
+     */
+    private static class ProxyClassLoader extends ClassLoader {
+        // Keeps the factory alive as long as its proxy class is in use
+        private final ProxyFactory<?> factory;
+
+        ProxyClassLoader(ClassLoader parent, ProxyFactory<?> factory) {
+            super(parent);
+            this.factory = factory;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(ProxyHandler.class.getName())) {
+                return ProxyHandler.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        Class<?> defineProxyClass(String name, byte[] classBytes) {
+            return defineClass(name, classBytes, 0, classBytes.length);
+        }
+    }
+
+    /**
+     * Performs the calls on a dynamic proxy in the same way as the generated proxy classes.
+     */
+    private class HandlerInvocationHandler implements InvocationHandler {
+        private final ProxyHandler handler;
+
+        HandlerInvocationHandler(ProxyHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            int index = methodIndexes.get(method);
+            Object token = handler.before(index);
+            if (token == ProxyHandler.SKIP && method.getReturnType() == void.class) {
+                return null;
+            }
+
+            while (true) {
+                Object result;
+                try {
+                    result = methods[index].invoke(handler.getTarget(token), args);
+                } catch (Throwable t) {
+                    if (t instanceof InvocationTargetException) {
+                        t = ((InvocationTargetException)t).getTargetException();
+                    }
+                    token = handler.failed(index, token, t);
+                    continue;
+                }
+                handler.after(token);
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.proxy;
+
+/**
+ * Decides what happens around the calls on a proxy created by {@link ProxyFactory}.
+ *
+ * <p>A call of the method with index <i>method</i> (see {@link ProxyFactory#getMethods()}) on the proxy
+ * is performed as follows:</p>
+ *
+ * <pre>
+ * Object token = handler.before(method);
+ * while (true) {
+ *     try {
+ *         result = ((T)handler.getTarget(token)).method(args);
+ *     } catch (Throwable t) {
+ *         token = handler.failed(method, token, t);
+ *         continue;
+ *     }
+ *     handler.after(token);
+ *     return result;
+ * }
+ * </pre>
+ *
+ * <p>The token is state which the handler needs to keep for the duration of one call.</p>
+ */
+public abstract class ProxyHandler {
+    /**
+     * When returned by {@link #before} for a method which returns void, the call is skipped.
+     */
+    public static final Object SKIP = new Object();
+
+    /**
+     * Called before the target is called. An exception thrown by this method is thrown by the proxy.
+     *
+     * @return the token for this call
+     */
+    public Object before(int method) throws Throwable {
+        return null;
+    }
+
+    /**
+     * Returns the object on which the call is performed. An exception thrown by this method is handled
+     * like an exception thrown by the target.
+     */
+    public abstract Object getTarget(Object token) throws Throwable;
+
+    /**
+     * Called after the target returned normally, before the proxy returns.
+     */
+    public void after(Object token) {
+    }
+
+    /**
+     * Called when the target threw an exception. This method should either throw the exception to be thrown
+     * by the proxy, or return the token with which the call is tried again.
+     */
+    public Object failed(int method, Object token, Throwable throwable) throws Throwable {
+        throw throwable;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util.proxy;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProxyFactoryTest {
+    @Test
+    public void testGeneratedProxy() throws Exception {
+        TypesService service = ProxyFactory.forInterface(TypesService.class)
+                .newInstance(new TargetHandler(new TypesServiceImpl()));
+        assertFalse(Proxy.isProxyClass(service.getClass()));
+        assertTypes(service);
+    }
+
+    @Test
+    public void testDynamicProxyFallback() throws Exception {
+        // A proxy class can't be generated for an interface which isn't public
+        PackageTypesService service = ProxyFactory.forInterface(PackageTypesService.class)
+                .newInstance(new TargetHandler(new TypesServiceImpl()));
+        assertTrue(Proxy.isProxyClass(service.getClass()));
+        assertTypes(service);
+    }
+
+    private void assertTypes(TypesService service) throws Exception {
+        assertEquals(3.5f, service.addFloat(1.25f, 2.25f), 0f);
+        assertEquals(3.5d, service.addDouble(1.25d, 2.25d), 0d);
+        assertEquals(Long.MAX_VALUE, service.addLong(Long.MAX_VALUE - 1, 1L));
+        assertTrue(service.not(false));
+        assertArrayEquals(new long[] {3L, 2L, 1L}, service.reverse(new long[] {1L, 2L, 3L}));
+        assertArrayEquals(new String[] {"b", "a"}, service.reverse(new String[] {"a", "b"}));
+        assertEquals("1.5 2 true x", service.concat(1.5d, 2L, true, 'x'));
+
+        try {
+            service.fail();
+            fail("Expected exception.");
+        } catch (IOException e) {
+            // expected, not wrapped
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        final TypesServiceImpl target = new TypesServiceImpl();
+        target.failures = 2;
+        final List<String> calls = new ArrayList<String>();
+        ProxyHandler handler = new ProxyHandler() {
+            @Override
+            public Object before(int method) {
+                calls.add("before");
+                return 0;
+            }
+
+            @Override
+            public Object getTarget(Object token) {
+                calls.add("getTarget " + token);
+                return target;
+            }
+
+            @Override
+            public void after(Object token) {
+                calls.add("after " + token);
+            }
+
+            @Override
+            public Object failed(int method, Object token, Throwable throwable) throws Throwable {
+                calls.add("failed " + token);
+                if ((Integer)token < 1) {
+                    return (Integer)token + 1;
+                }
+                throw throwable;
+            }
+        };
+
+        // The call fails twice, the handler gives up after the first retry
+        TypesService service = ProxyFactory.forInterface(TypesService.class).newInstance(handler);
+        try {
+            service.failing(5);
+            fail("Expected exception.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(listOf("before", "getTarget 0", "failed 0", "getTarget 1", "failed 1"), calls);
+
+        // The call fails once, and succeeds on the retry
+        calls.clear();
+        target.failures = 1;
+        assertEquals(5, service.failing(5));
+        assertEquals(listOf("before", "getTarget 0", "failed 0", "getTarget 1", "after 1"), calls);
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        for (Class<? extends TypesService> type : listOf(TypesService.class, PackageTypesService.class)) {
+            TypesServiceImpl target = new TypesServiceImpl();
+            TypesService service = ProxyFactory.forInterface(type).newInstance(new TargetHandler(target) {
+                @Override
+                public Object before(int method) {
+                    return ProxyHandler.SKIP;
+                }
+            });
+
+            // A void method is skipped, other methods are called anyway
+            service.close();
+            assertFalse(target.closed);
+            assertEquals(3L, service.addLong(1L, 2L));
+        }
+    }
+
+    @Test
+    public void testInheritedAndDuplicateMethods() throws Exception {
+        ProxyFactory<CombinedService> factory = ProxyFactory.forInterface(CombinedService.class);
+        int nameMethods = 0;
+        for (Method method : factory.getMethods()) {
+            if (method.getName().equals("getName")) {
+                nameMethods++;
+            }
+        }
+        assertEquals(1, nameMethods);
+
+        CombinedService service = factory.newInstance(new TargetHandler(new CombinedServiceImpl()));
+        assertEquals("combined", service.getName());
+        assertEquals(1, service.getNumber());
+        assertEquals(2, service.getOtherNumber());
+        assertEquals(3, service.getCombinedNumber());
+    }
+
+    @Test
+    public void testObjectMethods() throws Exception {
+        for (Class<? extends TypesService> type : listOf(TypesService.class, PackageTypesService.class)) {
+            TypesServiceImpl target = new TypesServiceImpl();
+            TypesService service = ProxyFactory.forInterface(type).newInstance(new TargetHandler(target));
+
+            // Like the target, the proxy is equal to anything
+            assertTrue(service.equals(new Object()));
+            assertEquals(42, service.hashCode());
+            assertEquals("target", service.toString());
+        }
+
+        // The interface declares toString
+        CombinedService service = ProxyFactory.forInterface(CombinedService.class)
+                .newInstance(new TargetHandler(new CombinedServiceImpl()));
+        assertEquals("combined service", service.toString());
+    }
+
+    private static <E> List<E> listOf(E... elements) {
+        List<E> list = new ArrayList<E>();
+        for (E element : elements) {
+            list.add(element);
+        }
+        return list;
+    }
+
+    private static class TargetHandler extends ProxyHandler {
+        private final Object target;
+
+        TargetHandler(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object getTarget(Object token) {
+            return target;
+        }
+    }
+
+    public static interface TypesService {
+        float addFloat(float a, float b);
+
+        double addDouble(double a, double b);
+
+        long addLong(long a, long b);
+
+        boolean not(boolean b);
+
+        long[] reverse(long[] values);
+
+        String[] reverse(String[] values);
+
+        String concat(double a, long b, boolean c, char d);
+
+        int failing(int value) throws IOException;
+
+        void fail() throws IOException;
+
+        void close();
+    }
+
+    static interface PackageTypesService extends TypesService {
+    }
+
+    public static class TypesServiceImpl implements PackageTypesService {
+        private int failures;
+        private boolean closed;
+
+        @Override
+        public float addFloat(float a, float b) {
+            return a + b;
+        }
+
+        @Override
+        public double addDouble(double a, double b) {
+            return a + b;
+        }
+
+        @Override
+        public long addLong(long a, long b) {
+            return a + b;
+        }
+
+        @Override
+        public boolean not(boolean b) {
+            return !b;
+        }
+
+        @Override
+        public long[] reverse(long[] values) {
+            long[] result = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = values[values.length - 1 - i];
+            }
+            return result;
+        }
+
+        @Override
+        public String[] reverse(String[] values) {
+            String[] result = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = values[values.length - 1 - i];
+            }
+            return result;
+        }
+
+        @Override
+        public String concat(double a, long b, boolean c, char d) {
+            return a + " " + b + " " + c + " " + d;
+        }
+
+        @Override
+        public int failing(int value) throws IOException {
+            if (failures > 0) {
+                failures--;
+                throw new IOException();
+            }
+            return value;
+        }
+
+        @Override
+        public void fail() throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public String toString() {
+            return "target";
+        }
+    }
+
+    public static interface NamedService {
+        String getName();
+
+        int getNumber();
+    }
+
+    public static interface OtherNamedService {
+        String getName();
+
+        int getOtherNumber();
+    }
+
+    public static interface CombinedService extends NamedService, OtherNamedService {
+        int getCombinedNumber();
+
+        @Override
+        String toString();
+    }
+
+    public static class CombinedServiceImpl implements CombinedService {
+        @Override
+        public String getName() {
+            return "combined";
+        }
+
+        @Override
+        public int getNumber() {
+            return 1;
+        }
+
+        @Override
+        public int getOtherNumber() {
+            return 2;
+        }
+
+        @Override
+        public int getCombinedNumber() {
+            return 3;
+        }
+
+        @Override
+        public String toString() {
+            return "combined service";
+        }
+    }
+}
@@ -17,7 +17,6 @@
 package org.lilyproject.runtime.module.build;
 
 import java.io.InputStream;
-import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 
 import org.apache.commons.logging.Log;
@@ -124,7 +123,6 @@ public class ModuleBuilder {
      * can be accessed.
      */
     private Object shieldJavaService(Class serviceInterface, Object bean, Module module, ClassLoader classLoader) {
-        JavaServiceShield handler = new JavaServiceShield(bean, module, serviceInterface, classLoader);
-        return Proxy.newProxyInstance(classLoader, new Class[] { serviceInterface }, handler);
+        return JavaServiceShield.shield(serviceInterface, bean, module, classLoader);
     }
 }
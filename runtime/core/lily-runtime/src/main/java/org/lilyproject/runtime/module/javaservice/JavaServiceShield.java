@@ -16,21 +16,21 @@
  */
 package org.lilyproject.runtime.module.javaservice;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-
 import org.lilyproject.runtime.LilyRTException;
 import org.lilyproject.runtime.module.Module;
+import org.lilyproject.util.proxy.ProxyFactory;
+import org.lilyproject.util.proxy.ProxyHandler;
 
 /**
- * Dynamic proxy around services exported by modules (i.e. a wrapper around
+ * Proxy around services exported by modules (i.e. a wrapper around
  * spring beans). This has multiple purpose: provide shielding so that only service interface
  * methods can be called, check that the target module is still alive (e.g. to check
  * the shutdown scenario is ok), and to set the context classloader to the classloader
  * of the target module.
+ *
+ * <p>The proxies are created by {@link ProxyFactory}, so calls on them don't go through reflection.</p>
  */
-public class JavaServiceShield implements InvocationHandler {
+public class JavaServiceShield extends ProxyHandler {
     private final Object component;
     private final Module owner;
     private final Class serviceType;
@@ -43,20 +43,39 @@ public class JavaServiceShield implements InvocationHandler {
         this.classLoader = classLoader;
     }
 
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    /**
+     * Creates the shielded service.
+     */
+    public static <T> T shield(Class<T> serviceType, T component, Module owner, ClassLoader classLoader) {
+        return ProxyFactory.forInterface(serviceType).newInstance(
+                new JavaServiceShield(component, owner, serviceType, classLoader));
+    }
+
+    @Override
+    public Object before(int method) {
         if (!owner.isAlive()) {
             throw new LilyRTException("Component belongs to module which is no longer alive, for service " + serviceType.getName());
         }
 
         Thread currentThread = Thread.currentThread();
         ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
-        try {
-            currentThread.setContextClassLoader(classLoader);
-            return method.invoke(component, args);
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException();
-        } finally {
-            currentThread.setContextClassLoader(previousContextClassLoader);
-        }
+        currentThread.setContextClassLoader(classLoader);
+        return previousContextClassLoader;
+    }
+
+    @Override
+    public Object getTarget(Object previousContextClassLoader) {
+        return component;
+    }
+
+    @Override
+    public void after(Object previousContextClassLoader) {
+        Thread.currentThread().setContextClassLoader((ClassLoader)previousContextClassLoader);
+    }
+
+    @Override
+    public Object failed(int method, Object previousContextClassLoader, Throwable throwable) throws Throwable {
+        after(previousContextClassLoader);
+        throw throwable;
     }
 }
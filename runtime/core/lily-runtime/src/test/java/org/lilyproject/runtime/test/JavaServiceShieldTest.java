@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.runtime.test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import junit.framework.TestCase;
+import org.lilyproject.runtime.LilyRTException;
+import org.lilyproject.runtime.model.ModuleDefinition;
+import org.lilyproject.runtime.module.Module;
+import org.lilyproject.runtime.module.javaservice.JavaServiceShield;
+import org.lilyproject.runtime.rapi.ModuleSource;
+import org.springframework.context.support.AbstractApplicationContext;
+
+public class JavaServiceShieldTest extends TestCase {
+    private final ClassLoader moduleClassLoader = new URLClassLoader(new URL[0]);
+
+    public void testCall() throws Exception {
+        TestModule module = new TestModule();
+        TestService service = JavaServiceShield.shield(TestService.class, new TestServiceImpl(), module,
+                moduleClassLoader);
+
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        assertEquals(10L, service.add(3, 7L));
+        assertSame(moduleClassLoader, service.getContextClassLoader());
+        assertSame(contextClassLoader, Thread.currentThread().getContextClassLoader());
+
+        try {
+            service.fail();
+            fail("Expected exception.");
+        } catch (IOException e) {
+            // expected, not wrapped
+        }
+        assertSame(contextClassLoader, Thread.currentThread().getContextClassLoader());
+
+        module.alive = false;
+        try {
+            service.add(1, 1L);
+            fail("Expected exception.");
+        } catch (LilyRTException e) {
+            // expected
+        }
+    }
+
+    public static interface TestService {
+        long add(int a, long b);
+
+        ClassLoader getContextClassLoader();
+
+        void fail() throws IOException;
+    }
+
+    public static class TestServiceImpl implements TestService {
+        @Override
+        public long add(int a, long b) {
+            return a + b;
+        }
+
+        @Override
+        public ClassLoader getContextClassLoader() {
+            return Thread.currentThread().getContextClassLoader();
+        }
+
+        @Override
+        public void fail() throws IOException {
+            throw new IOException();
+        }
+    }
+
+    private static class TestModule implements Module {
+        private boolean alive = true;
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public boolean isAlive() {
+            return alive;
+        }
+
+        @Override
+        public ModuleDefinition getDefinition() {
+            return null;
+        }
+
+        @Override
+        public ModuleSource getSource() {
+            return null;
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return null;
+        }
+
+        @Override
+        public AbstractApplicationContext getApplicationContext() {
+            return null;
+        }
+    }
+}